@@ -0,0 +1,179 @@
+package io.mosaicnetworks.babble.fragments.discover;
+
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListUpdateCallback;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import io.mosaicnetworks.babble.servicediscovery.ResolvedGroup;
+import io.mosaicnetworks.babble.servicediscovery.ResolvedGroupRegistry;
+import io.mosaicnetworks.babble.servicediscovery.ResolvedService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class ServicesListDiffTest {
+
+    /**
+     * Applies long sequences of random registry changes and checks that replaying the diff between
+     * each pair of snapshots onto the old list yields the new one, as the adapter would see it.
+     */
+    @Test
+    public void churnTest() {
+        Random random = new Random(6762);
+        ResolvedGroupRegistry registry = new ResolvedGroupRegistry();
+        List<String> keys = new ArrayList<>();
+        int nextKey = 0;
+
+        List<ResolvedGroup> displayed = registry.getSnapshot();
+        for (int step = 0; step < 500; step++) {
+            int changes = 1 + random.nextInt(20);
+            for (int c = 0; c < changes; c++) {
+                ResolvedGroup.Source source = random.nextBoolean() ? ResolvedGroup.Source.MDNS
+                        : ResolvedGroup.Source.WEBRTC;
+                if (keys.isEmpty() || random.nextInt(3) != 0) {
+                    String key = source.name() + "/" + nextKey++;
+                    String uid = "uid-" + random.nextInt(60);
+                    registry.addService(source, key, new ResolvedService(uid, "group " + uid, "app",
+                            0, null, null, null, 0));
+                    keys.add(key);
+                } else {
+                    String key = keys.remove(random.nextInt(keys.size()));
+                    registry.removeService(ResolvedGroup.Source.valueOf(key.split("/")[0]), key);
+                }
+            }
+
+            List<ResolvedGroup> next = registry.getSnapshot();
+            List<ResolvedGroup> replayed = replay(displayed, next);
+
+            assertEquals(next.size(), replayed.size());
+            for (int i = 0; i < next.size(); i++) {
+                assertTrue(ServicesListAdapter.DIFF_CALLBACK.areItemsTheSame(replayed.get(i), next.get(i)));
+            }
+            displayed = next;
+        }
+    }
+
+    @Test
+    public void unchangedGroupsAreNotReboundTest() {
+        ResolvedGroupRegistry registry = new ResolvedGroupRegistry();
+        for (int i = 0; i < 50; i++) {
+            registry.addService(ResolvedGroup.Source.MDNS, "node-" + i,
+                    new ResolvedService("uid-" + i, "group", "app", 0, null, null, null, 0));
+        }
+        List<ResolvedGroup> before = registry.getSnapshot();
+
+        // a service joining an existing group does not change how the group is displayed
+        registry.addService(ResolvedGroup.Source.MDNS, "node-50",
+                new ResolvedService("uid-7", "group", "app", 0, null, null, null, 0));
+        registry.removeService(ResolvedGroup.Source.MDNS, "node-20");
+        List<ResolvedGroup> after = registry.getSnapshot();
+
+        CountingCallback counts = new CountingCallback();
+        diff(before, after).dispatchUpdatesTo(counts);
+        assertEquals(0, counts.mInserted);
+        assertEquals(1, counts.mRemoved);
+        assertEquals(0, counts.mChanged);
+        assertSame(before.get(7), after.get(7));
+    }
+
+    private static DiffUtil.DiffResult diff(final List<ResolvedGroup> oldList,
+                                            final List<ResolvedGroup> newList) {
+        return DiffUtil.calculateDiff(new DiffUtil.Callback() {
+            @Override
+            public int getOldListSize() {
+                return oldList.size();
+            }
+
+            @Override
+            public int getNewListSize() {
+                return newList.size();
+            }
+
+            @Override
+            public boolean areItemsTheSame(int oldPosition, int newPosition) {
+                return ServicesListAdapter.DIFF_CALLBACK.areItemsTheSame(oldList.get(oldPosition),
+                        newList.get(newPosition));
+            }
+
+            @Override
+            public boolean areContentsTheSame(int oldPosition, int newPosition) {
+                return ServicesListAdapter.DIFF_CALLBACK.areContentsTheSame(oldList.get(oldPosition),
+                        newList.get(newPosition));
+            }
+        });
+    }
+
+    private static List<ResolvedGroup> replay(List<ResolvedGroup> oldList, final List<ResolvedGroup> newList) {
+        final List<ResolvedGroup> list = new ArrayList<>(oldList);
+        diff(oldList, newList).dispatchUpdatesTo(new ListUpdateCallback() {
+            @Override
+            public void onInserted(int position, int count) {
+                // updates are dispatched back to front, so the final position of an insertion is
+                // not known yet, a placeholder is filled in by the final pass below
+                for (int i = 0; i < count; i++) {
+                    list.add(position, null);
+                }
+            }
+
+            @Override
+            public void onRemoved(int position, int count) {
+                for (int i = 0; i < count; i++) {
+                    list.remove(position);
+                }
+            }
+
+            @Override
+            public void onMoved(int fromPosition, int toPosition) {
+                list.add(toPosition, list.remove(fromPosition));
+            }
+
+            @Override
+            public void onChanged(int position, int count, @Nullable Object payload) {
+                // contents only, the items stay in place
+            }
+        });
+
+        // inserted rows are bound from the new list, everything else must already be in place
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i) == null) {
+                list.set(i, newList.get(i));
+            }
+        }
+        return list;
+    }
+
+    private static class CountingCallback implements ListUpdateCallback {
+        int mInserted;
+        int mRemoved;
+        int mChanged;
+
+        @Override
+        public void onInserted(int position, int count) {
+            mInserted += count;
+        }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            mRemoved += count;
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+        }
+
+        @Override
+        public void onChanged(int position, int count, @Nullable Object payload) {
+            mChanged += count;
+        }
+    }
+}
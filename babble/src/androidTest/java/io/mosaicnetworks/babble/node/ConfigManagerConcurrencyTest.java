@@ -0,0 +1,148 @@
+package io.mosaicnetworks.babble.node;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.moandjiezana.toml.Toml;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import io.mosaicnetworks.babble.service.BabbleService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class ConfigManagerConcurrencyTest {
+
+    private static final int GROUPS = 8;
+    private static final int ROUNDS = 10;
+
+    private ConfigManager mConfigManager;
+    private ConfigManager.ConfigDirectoryBackupPolicy mPolicy;
+    private final List<GroupDescriptor> mGroups = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mConfigManager = ConfigManager.getInstance(context);
+        mPolicy = mConfigManager.getConfigDirectoryBackupPolicy();
+        mConfigManager.setConfigDirectoryBackupPolicy(ConfigManager.ConfigDirectoryBackupPolicy.SINGLE_BACKUP);
+        for (int i = 0; i < GROUPS; i++) {
+            mGroups.add(new GroupDescriptor("stress " + i,
+                    String.format(Locale.US, "stress%06d", i)));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mConfigManager.setConfigDirectoryBackupPolicy(mPolicy);
+        for (ConfigDirectory d : mConfigManager.getDirectories()) {
+            if (d.uniqueId.startsWith("stress")) {
+                mConfigManager.deleteDirectoryAndBackups(d.directoryName, false);
+            }
+        }
+    }
+
+    /**
+     * Configures several groups from as many threads at once, and checks that each configuration
+     * only ever contains the settings of its own group.
+     */
+    @Test
+    public void concurrentGroupsStressTest() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(GROUPS);
+        final CountDownLatch start = new CountDownLatch(1);
+
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < GROUPS; i++) {
+            final int group = i;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    for (int round = 0; round < ROUNDS; round++) {
+                        configureGroup(group, round);
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        start.countDown();
+        for (Future<Void> future : futures) {
+            future.get(2, TimeUnit.MINUTES);
+        }
+        executor.shutdown();
+
+        // each group is left with its live config and a single backup
+        for (int i = 0; i < GROUPS; i++) {
+            int versions = 0;
+            for (ConfigDirectory d : mConfigManager.getDirectories()) {
+                if (d.uniqueId.equals(mGroups.get(i).getUid())) {
+                    versions++;
+                }
+            }
+            assertEquals(2, versions);
+        }
+    }
+
+    /**
+     * Configures a group again without a profile, which keeps the profile of its live config
+     */
+    @Test
+    public void profileIsKeptWhenReconfiguredTest() {
+        String configDir = mConfigManager.createConfigNewGroup(mGroups.get(0), "node",
+                "127.0.0.1", "127.0.0.1", BabbleService.NETWORK_WIFI,
+                NodeConfig.Profile.LOW_LATENCY);
+        assertEquals(NodeConfig.Profile.LOW_LATENCY, mConfigManager.getProfile(configDir));
+
+        configDir = mConfigManager.createConfigNewGroup(mGroups.get(0), "node", "127.0.0.1",
+                "127.0.0.1", BabbleService.NETWORK_WIFI);
+        assertEquals(NodeConfig.Profile.LOW_LATENCY, mConfigManager.getProfile(configDir));
+
+        configDir = mConfigManager.createConfigNewGroup(mGroups.get(1), "node", "127.0.0.1",
+                "127.0.0.1", BabbleService.NETWORK_WIFI);
+        assertEquals(NodeConfig.Profile.BALANCED, mConfigManager.getProfile(configDir));
+    }
+
+    private void configureGroup(int group, int round) {
+        String moniker = "node-" + group + "-" + round;
+        int port = 7000 + group;
+
+        String configDir = mConfigManager.createConfigNewGroup(mGroups.get(group), moniker,
+                "127.0.0.1", "127.0.0.1", port, BabbleService.NETWORK_WIFI);
+        assertTomlBelongsTo(configDir, group, moniker, "127.0.0.1:" + port);
+
+        String archiveDir = mConfigManager.setGroupToArchive(
+                new ConfigDirectory(new File(configDir).getName()), "127.0.0.2", port);
+        assertEquals(configDir, archiveDir);
+        assertTomlBelongsTo(archiveDir, group, moniker, "127.0.0.2:" + port);
+        assertEquals(moniker, mConfigManager.getMoniker(archiveDir));
+    }
+
+    private void assertTomlBelongsTo(String configDir, int group, String moniker, String listen) {
+        assertTrue(new File(configDir).getName().contains(mGroups.get(group).getUid()));
+
+        Toml toml = new Toml().read(new File(configDir, "babble.toml"));
+        assertEquals(moniker, toml.getString("moniker"));
+        assertEquals(listen, toml.getString("listen"));
+        assertEquals(configDir, toml.getString("datadir"));
+        assertEquals(configDir + File.separator + "badger_db", toml.getString("db"));
+    }
+}
@@ -0,0 +1,99 @@
+package io.mosaicnetworks.babble.node;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Times a cold {@link ConfigManager#getInstance(Context)} followed by the first
+ * {@link ConfigManager#getPublicKey()}, with the key pair generated in the calling thread before
+ * the instance is created, as the constructor used to do, and generated in the background, as it
+ * now is.
+ */
+@RunWith(AndroidJUnit4.class)
+public class KeyPoolBenchmarkTest {
+
+    private static final String TAG = "KeyPoolBenchmark";
+    private static final int ROUNDS = 10;
+
+    private long mInstanceNanos;
+    private long mPublicKeyNanos;
+
+    @After
+    public void tearDown() {
+        ConfigManager.resetInstance();
+        ConfigManager.setKeyProvider(new MobileKeyProvider());
+    }
+
+    @Test
+    public void coldStartTest() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        final KeyProvider provider = new MobileKeyProvider();
+
+        // warm up the Go runtime, which is started by the first call
+        provider.generateKeyPair();
+
+        // before: the constructor generated the key pair itself
+        mInstanceNanos = 0;
+        mPublicKeyNanos = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            ConfigManager.resetInstance();
+            long start = System.nanoTime();
+            final KeyPair keyPair = provider.generateKeyPair();
+            ConfigManager.setKeyProvider(new KeyProvider() {
+                @Override
+                public KeyPair generateKeyPair() {
+                    return keyPair;
+                }
+            });
+            coldStart(context, start, keyPair.publicKey);
+        }
+        long beforeInstanceNanos = mInstanceNanos / ROUNDS;
+        long beforePublicKeyNanos = mPublicKeyNanos / ROUNDS;
+
+        // after: the key pair is generated in the background
+        ConfigManager.resetInstance();
+        ConfigManager.setKeyProvider(provider);
+        mInstanceNanos = 0;
+        mPublicKeyNanos = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            ConfigManager.resetInstance();
+            coldStart(context, System.nanoTime(), null);
+        }
+        long afterInstanceNanos = mInstanceNanos / ROUNDS;
+        long afterPublicKeyNanos = mPublicKeyNanos / ROUNDS;
+
+        Log.i(TAG, "before: getInstance " + micros(beforeInstanceNanos) + "us, first key " +
+                micros(beforePublicKeyNanos) + "us; after: getInstance " +
+                micros(afterInstanceNanos) + "us, first key " + micros(afterPublicKeyNanos) + "us");
+        assertTrue(afterInstanceNanos < beforeInstanceNanos);
+    }
+
+    private void coldStart(Context context, long start, String expectedPublicKey) {
+        ConfigManager configManager = ConfigManager.getInstance(context);
+        long created = System.nanoTime();
+        String publicKey = configManager.getPublicKey();
+        long end = System.nanoTime();
+
+        if (expectedPublicKey != null) {
+            assertEquals(expectedPublicKey, publicKey);
+        }
+        mInstanceNanos += created - start;
+        mPublicKeyNanos += end - start;
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
@@ -0,0 +1,183 @@
+package io.mosaicnetworks.babble.servicediscovery.mdns;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.rule.GrantPermissionRule;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.mosaicnetworks.babble.node.Peer;
+import io.mosaicnetworks.babble.servicediscovery.ResolvedService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class ParallelPeerDiscoveryRequestTest {
+
+    @Rule
+    public GrantPermissionRule mRuntimePermissionRule = GrantPermissionRule.grant(
+            android.Manifest.permission.INTERNET);
+
+    private static final String PEERS_JSON_A = "[{\"NetAddr\":\"localhost:6666\",\"PubKeyHex\":\"0X04AAAA\",\"Moniker\":\"alice\"}]\n";
+    private static final String PEERS_JSON_B = "[{\"NetAddr\":\"localhost:6667\",\"PubKeyHex\":\"0X04BBBB\",\"Moniker\":\"bob\"}]\n";
+
+    private final List<HttpPeerDiscoveryServer> mServers = new ArrayList<>();
+    private ResolvedService mWinner;
+    private List<Peer> mGenesisPeers;
+    private ResponseListener.Error mError;
+
+    @After
+    public void tearDown() {
+        for (HttpPeerDiscoveryServer server : mServers) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void fastestServiceWinsTest() throws Exception {
+        List<ResolvedService> services = new ArrayList<>();
+        services.add(startService(8990, PEERS_JSON_A, 1500));
+        services.add(startService(8991, PEERS_JSON_A, 0));
+        services.add(startService(8992, PEERS_JSON_A, 1500));
+
+        long start = System.currentTimeMillis();
+        sendAndAwait(services, 1);
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertNotNull(mWinner);
+        assertEquals(8991, mWinner.getPort());
+        assertTrue("slow services should not hold up the result", elapsed < 1500);
+    }
+
+    @Test
+    public void failedServiceIsReplacedTest() throws Exception {
+        PeerLatencyTracker tracker = new PeerLatencyTracker();
+
+        List<ResolvedService> services = new ArrayList<>();
+        services.add(createService(8993)); // nothing listening here
+        services.add(startService(8994, PEERS_JSON_A, 0));
+
+        final CountDownLatch lock = new CountDownLatch(1);
+        ParallelPeerDiscoveryRequest request = new ParallelPeerDiscoveryRequest(services,
+                getContext(), tracker);
+        request.setMaxParallelRequests(1);
+        request.setRetryPolicy(500, 0, 1);
+        request.send(new LatchListener(lock));
+
+        lock.await(5000, TimeUnit.MILLISECONDS);
+
+        assertNotNull(mWinner);
+        assertEquals(8994, mWinner.getPort());
+        assertTrue(tracker.getEstimate("127.0.0.1", 8993) > tracker.getEstimate("127.0.0.1", 8994));
+    }
+
+    @Test
+    public void quorumTest() throws Exception {
+        List<ResolvedService> services = new ArrayList<>();
+        services.add(startService(8995, PEERS_JSON_B, 0));
+        services.add(startService(8996, PEERS_JSON_A, 200));
+        services.add(startService(8997, PEERS_JSON_A, 400));
+
+        sendAndAwait(services, 2);
+
+        assertNotNull(mGenesisPeers);
+        assertEquals("alice", mGenesisPeers.get(0).moniker);
+    }
+
+    @Test
+    public void allFailTest() throws Exception {
+        List<ResolvedService> services = new ArrayList<>();
+        services.add(createService(8998));
+        services.add(createService(8999));
+
+        final CountDownLatch lock = new CountDownLatch(1);
+        ParallelPeerDiscoveryRequest request = new ParallelPeerDiscoveryRequest(services,
+                getContext(), new PeerLatencyTracker());
+        request.setRetryPolicy(500, 0, 1);
+        request.send(new LatchListener(lock));
+
+        lock.await(5000, TimeUnit.MILLISECONDS);
+
+        assertNotNull(mError);
+    }
+
+    private void sendAndAwait(List<ResolvedService> services, int quorum) throws InterruptedException {
+        final CountDownLatch lock = new CountDownLatch(1);
+        ParallelPeerDiscoveryRequest request = new ParallelPeerDiscoveryRequest(services,
+                getContext(), new PeerLatencyTracker());
+        request.setQuorum(quorum);
+        request.send(new LatchListener(lock));
+
+        lock.await(5000, TimeUnit.MILLISECONDS);
+    }
+
+    private ResolvedService startService(int port, final String peersJSON, final int delayMs)
+            throws IOException {
+        HttpPeerDiscoveryServer server = new HttpPeerDiscoveryServer("localhost", port,
+                new PeersProvider() {
+                    @Override
+                    public String getGenesisPeers() {
+                        try {
+                            Thread.sleep(delayMs);
+                        } catch (InterruptedException e) {
+                            throw new RuntimeException();
+                        }
+                        return peersJSON;
+                    }
+
+                    @Override
+                    public String getCurrentPeers() {
+                        return peersJSON;
+                    }
+                });
+        server.start();
+        mServers.add(server);
+        return createService(port);
+    }
+
+    private ResolvedService createService(int port) throws IOException {
+        return new ResolvedService("uid", "group", "app", 0, new ArrayList<Peer>(),
+                new ArrayList<Peer>(), InetAddress.getByName("127.0.0.1"), port);
+    }
+
+    private Context getContext() {
+        return InstrumentationRegistry.getInstrumentation().getTargetContext();
+    }
+
+    private class LatchListener implements ParallelPeerDiscoveryRequest.ResultListener {
+
+        private final CountDownLatch mLock;
+
+        LatchListener(CountDownLatch lock) {
+            mLock = lock;
+        }
+
+        @Override
+        public void onReceivePeers(ResolvedService service, List<Peer> genesisPeers,
+                                   List<Peer> currentPeers) {
+            mWinner = service;
+            mGenesisPeers = genesisPeers;
+            mLock.countDown();
+        }
+
+        @Override
+        public void onFailure(ResponseListener.Error error) {
+            mError = error;
+            mLock.countDown();
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package io.mosaicnetworks.babble.servicediscovery.webrtc;
+
+import android.content.Context;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.rule.GrantPermissionRule;
+
+import com.google.gson.Gson;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fi.iki.elonen.NanoHTTPD;
+import io.mosaicnetworks.babble.node.GroupDescriptor;
+import io.mosaicnetworks.babble.node.Peer;
+import io.mosaicnetworks.babble.servicediscovery.mdns.PeersProvider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WebRTCAdvertiserTest {
+
+    private static final int PORT = 8990;
+
+    @Rule
+    public GrantPermissionRule mRuntimePermissionRule = GrantPermissionRule.grant(
+            android.Manifest.permission.INTERNET);
+
+    private final Gson mGson = new Gson();
+    private StubRegistryServer mServer;
+    private WebRTCAdvertiser mAdvertiser;
+    private FakePeers mPeers;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new StubRegistryServer();
+        mServer.start();
+
+        Context appContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mAdvertiser = new WebRTCAdvertiser(new GroupDescriptor("group", "uid-1"), appContext,
+                "http://localhost:" + PORT, 500);
+
+        mPeers = new FakePeers();
+        mPeers.addPeer(new Peer("0X01", "relay:1", "alice"));
+    }
+
+    @After
+    public void tearDown() {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mAdvertiser.stopHeartbeat();
+            }
+        });
+        mServer.stop();
+    }
+
+    @Test
+    public void peerChangesAreSentAsUpdatesTest() throws InterruptedException {
+        mAdvertiser.advertise(mPeers, "0X01");
+
+        Received registration = mServer.next();
+        assertEquals(NanoHTTPD.Method.POST, registration.mMethod);
+        assertEquals("/group", registration.mUri);
+        DiscoGroup group = mGson.fromJson(registration.mBody, DiscoGroup.class);
+        assertEquals("uid-1", group.GroupUID);
+        assertEquals(1, group.Peers.size());
+
+        // heartbeats carry no peers
+        Received heartbeat = mServer.next();
+        assertEquals(NanoHTTPD.Method.PATCH, heartbeat.mMethod);
+        assertEquals("/groups/uid-1", heartbeat.mUri);
+        assertTrue(mGson.fromJson(heartbeat.mBody, DiscoGroupUpdate.class).AddedPeers.isEmpty());
+
+        mPeers.addPeer(new Peer("0X02", "relay:2", "bob"));
+        mAdvertiser.onPeersChanged();
+
+        DiscoGroupUpdate update = null;
+        while (update == null || !update.hasPeerChanges()) {
+            update = mGson.fromJson(mServer.next().mBody, DiscoGroupUpdate.class);
+        }
+        assertEquals(1, update.AddedPeers.size());
+        assertEquals("bob", update.AddedPeers.get(0).moniker);
+        assertTrue(update.RemovedPeers.isEmpty());
+    }
+
+    @Test
+    public void expiredGroupIsRegisteredAgainTest() throws InterruptedException {
+        mServer.mRejectUpdates.set(1);
+        mAdvertiser.advertise(mPeers, "0X01");
+        assertEquals(NanoHTTPD.Method.POST, mServer.next().mMethod);
+        assertEquals(NanoHTTPD.Method.PATCH, mServer.next().mMethod);
+
+        // the rejected update is followed by a full registration
+        Received registration = mServer.next();
+        assertEquals(NanoHTTPD.Method.POST, registration.mMethod);
+        assertNotNull(mGson.fromJson(registration.mBody, DiscoGroup.class).Peers);
+    }
+
+    @Test
+    public void stopBeforeRegistrationTest() throws InterruptedException {
+        mAdvertiser.advertise(mPeers, "0X01");
+        mAdvertiser.stopHeartbeat();
+
+        assertNull(mServer.poll(2000));
+    }
+
+    private static class FakePeers implements PeersProvider {
+        private final List<Peer> mCurrent = new ArrayList<>();
+        private final Gson mGson = new Gson();
+
+        synchronized void addPeer(Peer peer) {
+            mCurrent.add(peer);
+        }
+
+        @Override
+        public synchronized String getGenesisPeers() {
+            return mGson.toJson(new ArrayList<>(mCurrent.subList(0, 1)));
+        }
+
+        @Override
+        public synchronized String getCurrentPeers() {
+            return mGson.toJson(mCurrent);
+        }
+    }
+
+    private static class Received {
+        final NanoHTTPD.Method mMethod;
+        final String mUri;
+        final String mBody;
+
+        Received(NanoHTTPD.Method method, String uri, String body) {
+            mMethod = method;
+            mUri = uri;
+            mBody = body;
+        }
+    }
+
+    /**
+     * Records the registrations and updates it receives. A number of updates can be rejected
+     * with a 404, as if the group had expired.
+     */
+    private static class StubRegistryServer extends NanoHTTPD {
+
+        private final BlockingQueue<Received> mReceived = new LinkedBlockingQueue<>();
+        final AtomicInteger mRejectUpdates = new AtomicInteger();
+
+        StubRegistryServer() {
+            super("localhost", PORT);
+        }
+
+        Received next() throws InterruptedException {
+            Received received = mReceived.poll(10, TimeUnit.SECONDS);
+            assertNotNull(received);
+            return received;
+        }
+
+        Received poll(long timeoutMs) throws InterruptedException {
+            return mReceived.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public Response serve(IHTTPSession session) {
+            // NanoHTTPD only parses the bodies of POST and PUT requests, so read it here
+            String body;
+            try {
+                String length = session.getHeaders().get("content-length");
+                byte[] bytes = new byte[length == null ? 0 : Integer.parseInt(length)];
+                DataInputStream in = new DataInputStream(session.getInputStream());
+                in.readFully(bytes);
+                body = new String(bytes, StandardCharsets.UTF_8);
+            } catch (IOException ex) {
+                return newFixedLengthResponse(Response.Status.BAD_REQUEST, "text/plain", "");
+            }
+            // decide before the request can be seen by the test
+            boolean reject = session.getMethod() == Method.PATCH
+                    && mRejectUpdates.getAndDecrement() > 0;
+            mReceived.add(new Received(session.getMethod(), session.getUri(), body));
+
+            if (reject) {
+                return newFixedLengthResponse(Response.Status.NOT_FOUND, "text/plain", "");
+            }
+            return newFixedLengthResponse(Response.Status.OK, "application/json", "{}");
+        }
+    }
+}
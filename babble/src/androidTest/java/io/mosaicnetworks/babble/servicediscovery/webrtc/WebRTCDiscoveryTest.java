@@ -0,0 +1,334 @@
+package io.mosaicnetworks.babble.servicediscovery.webrtc;
+
+import android.content.Context;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.rule.GrantPermissionRule;
+
+import com.google.gson.Gson;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import fi.iki.elonen.NanoHTTPD;
+import io.mosaicnetworks.babble.fragments.discover.ServiceDiscoveryListener;
+import io.mosaicnetworks.babble.node.Peer;
+import io.mosaicnetworks.babble.servicediscovery.ResolvedGroup;
+import io.mosaicnetworks.babble.servicediscovery.ResolvedGroupRegistry;
+import io.mosaicnetworks.babble.servicediscovery.mdns.ResponseListener;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WebRTCDiscoveryTest {
+
+    private static final int PORT = 8989;
+    private static final int GROUPS = 5000;
+
+    @Rule
+    public GrantPermissionRule mRuntimePermissionRule = GrantPermissionRule.grant(
+            android.Manifest.permission.INTERNET);
+
+    private StubDiscoServer mServer;
+    private ResolvedGroupRegistry mRegistry;
+    private WebRTCDiscovery mDiscovery;
+    private CountDownLatch mLatch;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new StubDiscoServer();
+        for (int i = 0; i < GROUPS; i++) {
+            mServer.putGroup("uid-" + i, "localhost:" + i);
+        }
+        mServer.start();
+
+        final Context appContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mRegistry = new ResolvedGroupRegistry();
+        mDiscovery = new WebRTCDiscovery(appContext, mRegistry, new ServiceDiscoveryListener() {
+            @Override
+            public void onServiceListUpdated(boolean groupCountChange) {
+                mLatch.countDown();
+            }
+
+            @Override
+            public void onStartDiscoveryFailed() {
+            }
+        }, "http://localhost:" + PORT + "/groups?app-id=test");
+    }
+
+    @After
+    public void tearDown() {
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mDiscovery.stopDiscoverService();
+            }
+        });
+        mServer.close();
+    }
+
+    @Test
+    public void deltaPollTest() throws InterruptedException {
+        poll();
+        assertEquals(GROUPS, mRegistry.getSnapshot().size());
+        assertEquals(1, mServer.mFullResponses);
+
+        for (int i = 0; i < 10; i++) {
+            mServer.removeGroup("uid-" + i);
+            mServer.putGroup("uid-new-" + i, "localhost:new");
+        }
+        mServer.putGroup("uid-100", "localhost:moved");
+
+        poll();
+        assertEquals(1, mServer.mFullResponses);
+        assertEquals(GROUPS, mRegistry.getSnapshot().size());
+        assertFalse(mRegistry.containsService(ResolvedGroup.Source.WEBRTC, "uid-0"));
+        assertTrue(mRegistry.containsService(ResolvedGroup.Source.WEBRTC, "uid-new-9"));
+        assertEquals(mServer.getGroup("uid-100").LastUpdated,
+                mRegistry.getService(ResolvedGroup.Source.WEBRTC, "uid-100").mLastUpdated);
+
+        // the delta holds the changed groups only
+        assertTrue(mServer.mLastResponseSize * 100 < mServer.mFullResponseSize);
+    }
+
+    @Test
+    public void serverWithoutDeltaSupportTest() throws InterruptedException {
+        mServer.mDeltaSupported = false;
+        poll();
+
+        mServer.removeGroup("uid-7");
+        poll();
+
+        assertEquals(2, mServer.mFullResponses);
+        assertEquals(GROUPS - 1, mRegistry.getSnapshot().size());
+        assertFalse(mRegistry.containsService(ResolvedGroup.Source.WEBRTC, "uid-7"));
+    }
+
+    @Test
+    public void subscriptionTest() throws InterruptedException {
+        mLatch = new CountDownLatch(1);
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mDiscovery.subscribe();
+            }
+        });
+        assertTrue(mLatch.await(10, TimeUnit.SECONDS));
+        assertEquals(GROUPS, mRegistry.getSnapshot().size());
+
+        // the server holds the long poll, so an idle subscription sends few requests
+        Thread.sleep(3000);
+        int idleRequests = mServer.mRequests;
+        assertTrue(idleRequests <= 3);
+
+        // a change is pushed without waiting for a refresh
+        mLatch = new CountDownLatch(1);
+        long changedAt = System.currentTimeMillis();
+        mServer.putGroup("uid-pushed", "localhost:pushed");
+        assertTrue(mLatch.await(5, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - changedAt < 5000);
+        assertTrue(mRegistry.containsService(ResolvedGroup.Source.WEBRTC, "uid-pushed"));
+        assertEquals(1, mServer.mFullResponses);
+    }
+
+    @Test
+    public void serverWhichNeverHoldsRequestsTest() throws InterruptedException {
+        mServer.mHoldsRequests = false;
+        mLatch = new CountDownLatch(1);
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mDiscovery.subscribe();
+            }
+        });
+        assertTrue(mLatch.await(10, TimeUnit.SECONDS));
+
+        // the long poll after the full list is answered at once, which ends the subscription
+        Thread.sleep(3000);
+        assertEquals(2, mServer.mRequests);
+        final boolean[] subscribed = new boolean[1];
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                subscribed[0] = mDiscovery.isSubscribed();
+            }
+        });
+        assertFalse(subscribed[0]);
+
+        // the groups are still fetched on refresh
+        mServer.putGroup("uid-refreshed", "localhost:refreshed");
+        poll();
+        assertEquals(3, mServer.mRequests);
+        assertTrue(mRegistry.containsService(ResolvedGroup.Source.WEBRTC, "uid-refreshed"));
+    }
+
+    @Test
+    public void peersAreFetchedOnDemandTest() throws InterruptedException {
+        poll();
+
+        // the listing only holds summaries
+        assertNull(mRegistry.getService(ResolvedGroup.Source.WEBRTC, "uid-42").getCurrentPeers());
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final DiscoGroup[] received = new DiscoGroup[1];
+        final Context appContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        DiscoGroupRequest.createForUrl("http://localhost:" + PORT + "/groups/uid-42",
+                new DiscoGroupRequest.Listener() {
+                    @Override
+                    public void onReceiveGroup(DiscoGroup group) {
+                        received[0] = group;
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void onFailure(ResponseListener.Error error) {
+                        latch.countDown();
+                    }
+                }, appContext).send();
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertNotNull(received[0]);
+        assertEquals("localhost:42", received[0].Peers.get(0).netAddr);
+        assertEquals(1, received[0].InitialPeers.size());
+    }
+
+    private void poll() throws InterruptedException {
+        mLatch = new CountDownLatch(1);
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mDiscovery.discoverService();
+            }
+        });
+        assertTrue(mLatch.await(10, TimeUnit.SECONDS));
+    }
+
+    private static void runOnMainSync(Runnable runnable) {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(runnable);
+    }
+
+    /**
+     * Serves a map of groups, and deltas for requests with a watermark if delta support is on.
+     * A delta request with a wait parameter is held until a group changes, unless holding is
+     * off. A single group, with
+     * its peers, is served under /groups/{uid}. Time is a counter
+     * incremented on every change, so that each change gets its own LastUpdated value.
+     */
+    private static class StubDiscoServer extends NanoHTTPD {
+
+        private final Gson mGson = new Gson();
+        private final Map<String, DiscoGroup> mGroups = new LinkedHashMap<>();
+        private final Map<String, Integer> mRemoved = new HashMap<>();
+        private int mClock = 1;
+        private boolean mClosed = false;
+
+        volatile boolean mDeltaSupported = true;
+        volatile boolean mHoldsRequests = true;
+        volatile int mRequests = 0;
+        volatile int mFullResponses = 0;
+        volatile int mFullResponseSize = 0;
+        volatile int mLastResponseSize = 0;
+
+        StubDiscoServer() {
+            super("localhost", PORT);
+        }
+
+        synchronized void putGroup(String uid, String netAddr) {
+            List<Peer> peers = new ArrayList<>();
+            peers.add(new Peer("0X04", netAddr, "moniker"));
+            mClock++;
+            mGroups.put(uid, new DiscoGroup(uid, "group " + uid, "test", "key", mClock, 0,
+                    peers, peers));
+            mRemoved.remove(uid);
+            notifyAll();
+        }
+
+        synchronized void removeGroup(String uid) {
+            mClock++;
+            mGroups.remove(uid);
+            mRemoved.put(uid, mClock);
+            notifyAll();
+        }
+
+        synchronized DiscoGroup getGroup(String uid) {
+            return mGroups.get(uid);
+        }
+
+        synchronized void close() {
+            mClosed = true;
+            notifyAll();
+            stop();
+        }
+
+        @Override
+        public synchronized Response serve(IHTTPSession session) {
+            if (session.getUri().startsWith("/groups/")) {
+                DiscoGroup group = mGroups.get(session.getUri().substring("/groups/".length()));
+                if (group == null) {
+                    return newFixedLengthResponse(Response.Status.NOT_FOUND, "text/plain", "");
+                }
+                return newFixedLengthResponse(Response.Status.OK, "application/json", mGson.toJson(group));
+            }
+
+            List<String> since = session.getParameters().get("since");
+            List<String> wait = session.getParameters().get("wait");
+            String body;
+            mRequests++;
+
+            if (since != null && wait != null && mDeltaSupported && mHoldsRequests) {
+                long deadline = System.currentTimeMillis() + Integer.parseInt(wait.get(0)) * 1000;
+                while (!mClosed && mClock <= Integer.parseInt(since.get(0))
+                        && System.currentTimeMillis() < deadline) {
+                    try {
+                        wait(deadline - System.currentTimeMillis());
+                    } catch (InterruptedException ex) {
+                        break;
+                    }
+                }
+            }
+
+            if (since == null || !mDeltaSupported) {
+                body = mGson.toJson(mGroups);
+                mFullResponses++;
+                mFullResponseSize = body.length();
+            } else {
+                int watermark = Integer.parseInt(since.get(0));
+                Map<String, DiscoGroup> groups = new LinkedHashMap<>();
+                for (Map.Entry<String, DiscoGroup> entry : mGroups.entrySet()) {
+                    if (entry.getValue().LastUpdated >= watermark) {
+                        groups.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                List<String> removed = new ArrayList<>();
+                for (Map.Entry<String, Integer> entry : mRemoved.entrySet()) {
+                    if (entry.getValue() >= watermark) {
+                        removed.add(entry.getKey());
+                    }
+                }
+
+                Map<String, Object> delta = new LinkedHashMap<>();
+                delta.put("LastUpdated", mClock);
+                delta.put("Groups", groups);
+                delta.put("Removed", removed);
+                body = mGson.toJson(delta);
+            }
+
+            mLastResponseSize = body.length();
+            return newFixedLengthResponse(Response.Status.OK, "application/json", body);
+        }
+    }
+}
@@ -25,20 +25,27 @@
 package io.mosaicnetworks.babble.fragments.archive;
 
 import android.content.Context;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 
+import java.util.Collections;
+import java.util.Map;
+
 import androidx.annotation.NonNull;
 import androidx.recyclerview.widget.RecyclerView;
 
 import io.mosaicnetworks.babble.R;
+import io.mosaicnetworks.babble.node.ArchiveMetadata;
 import io.mosaicnetworks.babble.node.ConfigDirectory;
 
 class ArchivedGroupsAdapter extends RecyclerView.Adapter<ArchivedGroupsAdapter.ViewHolder> {
 
     private SelectableData<ConfigDirectory> mData;
+    private Map<String, ArchiveMetadata> mMetadata = Collections.emptyMap();
     private LayoutInflater mInflater;
     private ItemClickListener mClickListener;
     private Context mContext;
@@ -96,7 +103,19 @@ class ArchivedGroupsAdapter extends RecyclerView.Adapter<ArchivedGroupsAdapter.V
         String groupUid = configDirectory.uniqueId;
 
         holder.groupNameTextView.setText(serviceName);
-        holder.groupUidTextView.setText(groupUid);
+
+        ArchiveMetadata metadata = mMetadata.get(configDirectory.directoryName);
+        if (metadata == null) {
+            holder.groupUidTextView.setText(groupUid);
+        } else if (metadata.getLastTimestamp() == 0) {
+            holder.groupUidTextView.setText(mContext.getString(R.string.archive_summary_empty,
+                    groupUid, Formatter.formatShortFileSize(mContext, metadata.getDbSizeBytes())));
+        } else {
+            holder.groupUidTextView.setText(mContext.getString(R.string.archive_summary, groupUid,
+                    metadata.getMessageCount(),
+                    Formatter.formatShortFileSize(mContext, metadata.getDbSizeBytes()),
+                    DateUtils.getRelativeTimeSpanString(metadata.getLastTimestamp())));
+        }
 
         int colourGroupName;
         int colourGroupUid;
@@ -127,6 +146,15 @@ class ArchivedGroupsAdapter extends RecyclerView.Adapter<ArchivedGroupsAdapter.V
         }
     }
 
+    /**
+     * Set the metadata shown for each archive
+     * @param metadata the metadata keyed by config directory name, or null if not loaded yet
+     */
+    public void setMetadata(Map<String, ArchiveMetadata> metadata) {
+        mMetadata = metadata == null ? Collections.<String, ArchiveMetadata>emptyMap() : metadata;
+        notifyDataSetChanged();
+    }
+
     public void setClickListener(ItemClickListener itemClickListener) {
         this.mClickListener = itemClickListener;
     }
@@ -37,16 +37,25 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.LinearLayout;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.Executor;
 
 import androidx.annotation.NonNull;
+import androidx.core.content.ContextCompat;
+import androidx.lifecycle.Observer;
 import androidx.lifecycle.ViewModelProvider;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 import io.mosaicnetworks.babble.R;
 import io.mosaicnetworks.babble.fragments.OnFragmentInteractionListener;
+import io.mosaicnetworks.babble.node.ArchiveDeleter;
+import io.mosaicnetworks.babble.node.ArchiveMetadata;
 import io.mosaicnetworks.babble.node.ConfigDirectory;
 import io.mosaicnetworks.babble.node.ConfigManager;
 import io.mosaicnetworks.babble.service.BabbleService;
@@ -72,6 +81,7 @@ public class ArchivedGroupsFragment extends BabbleServiceBinder implements Archi
     private RecyclerView mRvArchivedGroups;
     private LinearLayout mLinearLayoutNoArchives;
     private String mMoniker;
+    private String mArchiveDir;
     private ProgressDialog mLoadingDialog;
     private int mBabbleArchivePort = 6666;
 
@@ -91,6 +101,16 @@ public class ArchivedGroupsFragment extends BabbleServiceBinder implements Archi
         initActionModeCallback();
 
         mViewModel = new ViewModelProvider(this, new ArchivedGroupsViewModelFactory(mConfigManager)).get(ArchivedGroupsViewModel.class);
+
+        // the metadata is read from the sidecar files after the list is shown
+        mViewModel.getArchiveMetadata().observe(this, new Observer<Map<String, ArchiveMetadata>>() {
+            @Override
+            public void onChanged(Map<String, ArchiveMetadata> metadata) {
+                if (mArchivedGroupsAdapter != null) {
+                    mArchivedGroupsAdapter.setMetadata(metadata);
+                }
+            }
+        });
     }
 
     @Override
@@ -123,8 +143,8 @@ public class ArchivedGroupsFragment extends BabbleServiceBinder implements Archi
 
             ConfigDirectory configDirectory = mArchivedList.get(position);
 
-            mConfigManager.setGroupToArchive(configDirectory, Utils.getIPAddr(Objects.requireNonNull(getContext())), mBabbleArchivePort);
-            mMoniker = mConfigManager.getMoniker();
+            mArchiveDir = mConfigManager.setGroupToArchive(configDirectory, Utils.getIPAddr(Objects.requireNonNull(getContext())), mBabbleArchivePort);
+            mMoniker = mConfigManager.getMoniker(mArchiveDir);
             getActivity().startService(new Intent(getActivity(), BabbleService.class));
             mLoadingDialog = DialogUtils.displayLoadingDialog(getContext());
             mLoadingDialog.show();
@@ -173,10 +193,12 @@ public class ArchivedGroupsFragment extends BabbleServiceBinder implements Archi
 
                 if (itemId == R.id.delete_contact) {
 
+                    List<String> directoryNames = new ArrayList<>();
                     for (int selectedPosition:mArchivedList.getAllSelected()) {
                         ConfigDirectory configDirectory = mArchivedList.get(selectedPosition);
-                        mConfigManager.deleteDirectoryAndBackups(configDirectory.directoryName, false);
+                        directoryNames.add(configDirectory.directoryName);
                     }
+                    deleteArchives(directoryNames);
 
                     mArchivedList.removeAllSelected();
 
@@ -206,10 +228,57 @@ public class ArchivedGroupsFragment extends BabbleServiceBinder implements Archi
         };
     }
 
+    private void deleteArchives(List<String> directoryNames) {
+        final ProgressDialog progressDialog = DialogUtils.displayLoadingDialog(getContext());
+        progressDialog.setTitle(R.string.deleting_archives);
+        progressDialog.show();
+
+        // the archives are deleted in the background, they have already gone from the list
+        Executor mainExecutor = ContextCompat.getMainExecutor(getContext());
+        Futures.addCallback(mConfigManager.deleteDirectoriesAndBackupsAsync(directoryNames, false,
+                new ArchiveDeleter.ProgressListener() {
+                    @Override
+                    public void onProgress(int done, int total) {
+                        if (isAdded()) {
+                            progressDialog.setMessage(getString(R.string.deleting_archives_progress, done, total));
+                        }
+                    }
+                }, mainExecutor), new FutureCallback<ArchiveDeleter.Result>() {
+            @Override
+            public void onSuccess(ArchiveDeleter.Result result) {
+                progressDialog.dismiss();
+                if (!result.getFailed().isEmpty()) {
+                    onDeleteFailed();
+                }
+            }
+
+            @Override
+            public void onFailure(@NonNull Throwable t) {
+                progressDialog.dismiss();
+                onDeleteFailed();
+            }
+        }, mainExecutor);
+    }
+
+    // the archives which could not be deleted are put back in the list
+    private void onDeleteFailed() {
+        if (!isAdded()) {
+            reloadArchive = true;
+            return;
+        }
+        if (mActionMode != null) {
+            mActionMode.finish();
+        }
+        mViewModel.loadArchiveList();
+        showArchiveList();
+        DialogUtils.displayOkAlertDialog(Objects.requireNonNull(getContext()),
+                R.string.delete_archives_fail_title, R.string.delete_archives_fail_message);
+    }
+
     @Override
     protected void onServiceConnected() {
         try {
-            mBoundService.startArchive(mConfigManager.getTomlDir());
+            mBoundService.startArchive(mArchiveDir);
             mListener.onArchiveLoaded(mMoniker, "Archived Group");
         } catch (IllegalArgumentException ex) {
             DialogUtils.displayOkAlertDialog(Objects.requireNonNull(getContext()), R.string.babble_init_fail_title, R.string.babble_init_fail_message);
@@ -264,16 +333,26 @@ public class ArchivedGroupsFragment extends BabbleServiceBinder implements Archi
             reloadArchive = false;
         }
 
+        showArchiveList();
+
+        if (mArchivedList.anySelected()) {
+            mActionMode = getActivity().startActionMode(mActionModeCallback);
+        }
+    }
+
+    private void showArchiveList() {
         mArchivedList = mViewModel.getArchivedList().getValue();
 
         mArchivedGroupsAdapter = new ArchivedGroupsAdapter(getContext(), mArchivedList);
+        mArchivedGroupsAdapter.setMetadata(mViewModel.getArchiveMetadata().getValue());
         mArchivedGroupsAdapter.setClickListener(this);
 
         mRvArchivedGroups.setLayoutManager(new LinearLayoutManager(getContext()));
         mRvArchivedGroups.setAdapter(mArchivedGroupsAdapter);
 
-        if (mArchivedList.anySelected()) {
-            mActionMode = getActivity().startActionMode(mActionModeCallback);
+        if (!mArchivedList.isEmpty()) {
+            mLinearLayoutNoArchives.setVisibility(View.GONE);
+            mRvArchivedGroups.setVisibility(View.VISIBLE);
         }
     }
 
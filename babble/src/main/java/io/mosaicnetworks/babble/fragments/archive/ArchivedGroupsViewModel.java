@@ -24,10 +24,18 @@
 
 package io.mosaicnetworks.babble.fragments.archive;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
 import androidx.lifecycle.MutableLiveData;
 import androidx.lifecycle.ViewModel;
+import io.mosaicnetworks.babble.node.ArchiveMetadata;
 import io.mosaicnetworks.babble.node.ConfigDirectory;
 import io.mosaicnetworks.babble.node.ConfigManager;
+import io.mosaicnetworks.babble.node.ConfigWriter;
 
 /**
  * This class extends {@link ViewModel} and exposes methods to populate
@@ -36,6 +44,7 @@ import io.mosaicnetworks.babble.node.ConfigManager;
 public class ArchivedGroupsViewModel extends ViewModel {
 
     private MutableLiveData<SelectableData<ConfigDirectory>> mArchivedList;
+    private MutableLiveData<Map<String, ArchiveMetadata>> mArchiveMetadata;
     private ConfigManager mConfigManager;
 
     /**
@@ -49,6 +58,7 @@ public class ArchivedGroupsViewModel extends ViewModel {
         mConfigManager = configManager;
 
         mArchivedList = new MutableLiveData<>();
+        mArchiveMetadata = new MutableLiveData<>();
         loadArchiveList();
     }
 
@@ -59,6 +69,30 @@ public class ArchivedGroupsViewModel extends ViewModel {
         SelectableData<ConfigDirectory> data = new SelectableData<>();
         data.addAll(mConfigManager.getDirectories());
         mArchivedList.setValue(data);
+
+        loadArchiveMetadata(new ArrayList<>(mConfigManager.getDirectories()));
+    }
+
+    /**
+     * Reads the sidecar metadata of the archives on the config writer thread, so it is read after
+     * any pending metadata write, and publishes it keyed by directory name
+     */
+    private void loadArchiveMetadata(final List<ConfigDirectory> directories) {
+        ConfigWriter.getInstance().submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                Map<String, ArchiveMetadata> metadata = new HashMap<>();
+                for (ConfigDirectory directory : directories) {
+                    ArchiveMetadata archiveMetadata =
+                            mConfigManager.readArchiveMetadata(directory.directoryName);
+                    if (archiveMetadata != null) {
+                        metadata.put(directory.directoryName, archiveMetadata);
+                    }
+                }
+                mArchiveMetadata.postValue(metadata);
+                return null;
+            }
+        });
     }
 
     /**
@@ -69,5 +103,14 @@ public class ArchivedGroupsViewModel extends ViewModel {
         return mArchivedList;
     }
 
+    /**
+     * Getter to retrieve the archive metadata loaded by {@link #loadArchiveList()}, keyed by
+     * config directory name. Archives with no recorded metadata are absent.
+     * @return the metadata
+     */
+    public MutableLiveData<Map<String, ArchiveMetadata>> getArchiveMetadata() {
+        return mArchiveMetadata;
+    }
+
 }
 
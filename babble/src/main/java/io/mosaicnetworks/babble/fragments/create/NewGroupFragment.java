@@ -29,6 +29,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -36,9 +37,13 @@ import android.view.inputmethod.InputMethodManager;
 import android.widget.EditText;
 import android.widget.Switch;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+
 import java.util.Objects;
 
 import androidx.annotation.NonNull;
+import androidx.core.content.ContextCompat;
 import io.mosaicnetworks.babble.R;
 import io.mosaicnetworks.babble.fragments.BaseConfigActivity;
 import io.mosaicnetworks.babble.fragments.OnFragmentInteractionListener;
@@ -60,6 +65,7 @@ import io.mosaicnetworks.babble.utils.Utils;
  */
 public class NewGroupFragment extends BabbleServiceBinder {
 
+    private static final String TAG = "NewGroupFragment";
     private String mConfigDirectory;
     private ProgressDialog mLoadingDialog;
     private GroupDescriptor mGroupDescriptor;
@@ -173,8 +179,28 @@ public class NewGroupFragment extends BabbleServiceBinder {
     private void configAndStartBabble(String peersAddr, String babbleAddr, int serviceType) {
         ConfigManager configManager =
                 ConfigManager.getInstance(getContext().getApplicationContext());
-        mConfigDirectory = configManager.createConfigNewGroup(mGroupDescriptor, mMoniker, peersAddr, babbleAddr, serviceType);
-        startBabbleService();
+
+        // the config is written off the main thread, the service is started once it is on disk
+        Futures.addCallback(configManager.createConfigNewGroupAsync(mGroupDescriptor, mMoniker,
+                peersAddr, babbleAddr, serviceType), new FutureCallback<String>() {
+            @Override
+            public void onSuccess(String configDirectory) {
+                if (!isAdded()) {
+                    return;
+                }
+                mConfigDirectory = configDirectory;
+                startBabbleService();
+            }
+
+            @Override
+            public void onFailure(@NonNull Throwable t) {
+                Log.e(TAG, "Failed to write the config: " + t);
+                if (!isAdded()) {
+                    return;
+                }
+                DialogUtils.displayOkAlertDialog(Objects.requireNonNull(getContext()), R.string.babble_init_fail_title, R.string.babble_init_fail_message);
+            }
+        }, ContextCompat.getMainExecutor(getContext()));
     }
 
     public void startBabbleService() {
@@ -170,7 +170,8 @@ public class DiscoverGroupsFragment extends Fragment {
 
         mServiceInfoList = mViewModel.getmServiceInfoList();
 
-        mServicesListAdapter = new ServicesListAdapter(getContext(), mServiceInfoList);
+        mServicesListAdapter = new ServicesListAdapter(getContext());
+        mServicesListAdapter.submitList(mServiceInfoList);
         mRvDiscoveredGroups.setLayoutManager(new LinearLayoutManager(getContext()));
         mRvDiscoveredGroups.setAdapter(mServicesListAdapter);
 
@@ -185,6 +186,8 @@ public class DiscoverGroupsFragment extends Fragment {
             @Override
             public void onChanged(@Nullable final List<ResolvedGroup> updatedList) {
 
+                mServiceInfoList = updatedList;
+
                 if (mServiceInfoList.isEmpty()) {
                     mSwipeRefreshServiceSearch.setVisibility(View.VISIBLE);
                     mSwipeRefreshDiscoveryFailed.setVisibility(View.GONE);
@@ -195,7 +198,7 @@ public class DiscoverGroupsFragment extends Fragment {
                     mSwipeRefreshServicesDisplaying.setVisibility(View.VISIBLE);
                 }
 
-                mServicesListAdapter.notifyDataSetChanged();
+                mServicesListAdapter.submitList(mServiceInfoList);
             }
         };
 
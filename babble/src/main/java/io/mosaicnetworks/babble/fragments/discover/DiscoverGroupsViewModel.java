@@ -26,14 +26,14 @@ package io.mosaicnetworks.babble.fragments.discover;
 
 import android.app.Application;
 import android.content.Context;
-import android.os.Handler;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import androidx.lifecycle.AndroidViewModel;
 import androidx.lifecycle.MutableLiveData;
+import io.mosaicnetworks.babble.servicediscovery.DiscoveryCoordinator;
 import io.mosaicnetworks.babble.servicediscovery.ResolvedGroup;
+import io.mosaicnetworks.babble.servicediscovery.ResolvedGroupRegistry;
 import io.mosaicnetworks.babble.servicediscovery.mdns.MdnsDiscovery;
 import io.mosaicnetworks.babble.servicediscovery.webrtc.WebRTCDiscovery;
 
@@ -44,9 +44,12 @@ public class DiscoverGroupsViewModel extends AndroidViewModel {
 
     private Context mAppContext;
 
-    private List<ResolvedGroup> mServiceInfoList = new ArrayList<>();
+    // shared by the mDNS and WebRTC discovery mechanisms
+    private final ResolvedGroupRegistry mRegistry = new ResolvedGroupRegistry();
     private MutableLiveData<List<ResolvedGroup>> mMutableServiceInfoList;
 
+    private DiscoveryCoordinator mCoordinator;
+    private DiscoveryEventBus mEventBus;
     private MdnsDiscovery mMdnsDiscovery;
     private WebRTCDiscovery mWebRTCDiscovery;
 
@@ -60,36 +63,51 @@ public class DiscoverGroupsViewModel extends AndroidViewModel {
         initialise();
 
         mMdnsDiscovery.discoverServices();
-        mWebRTCDiscovery.discoverService();
+
+        // global groups are followed for as long as the view model lives, rather than only
+        // fetched when the user refreshes the list, if the server holds long polls
+        mWebRTCDiscovery.subscribe();
     }
 
     public void refreshDiscovery() {
         mWebRTCDiscovery.discoverService();
+        mCoordinator.refresh();
     }
 
     private void initialise() {
-        ServiceDiscoveryListener listener = new ServiceDiscoveryListener() {
+        // mDNS and WebRTC updates are merged, so a burst of discovered services results in a
+        // single update of the list
+        mEventBus = new DiscoveryEventBus(new ServiceDiscoveryListener() {
             @Override
             public void onServiceListUpdated (boolean groupCountChange){
-                Handler mainHandler = new Handler(mAppContext.getMainLooper());
-
-                Runnable myRunnable = new Runnable() {
-                    @Override
-                    public void run() {
-                        mMutableServiceInfoList.setValue(mServiceInfoList);
-                    }
-                };
-                mainHandler.post(myRunnable);
+                mMutableServiceInfoList.setValue(mCoordinator.getGroups());
             }
 
             @Override
             public void onStartDiscoveryFailed () {
                 //TODO: how should mdns discovery start failures be handled?
             }
-        };
+        });
+
+        // a group found by both mechanisms is listed once, and probe results re-rank the list
+        mCoordinator = new DiscoveryCoordinator(mRegistry, new DiscoveryCoordinator.Listener() {
+            @Override
+            public void onRankingChanged() {
+                mEventBus.onServiceListUpdated(false);
+            }
+        });
+
+        mMdnsDiscovery = new MdnsDiscovery(mAppContext, mRegistry, mEventBus);
+        mWebRTCDiscovery = new WebRTCDiscovery(mAppContext, mRegistry, mEventBus);
+    }
 
-        mMdnsDiscovery = new MdnsDiscovery(mAppContext, mServiceInfoList, listener);
-        mWebRTCDiscovery = new WebRTCDiscovery(mAppContext, mServiceInfoList, listener);
+    @Override
+    protected void onCleared() {
+        super.onCleared();
+        mMdnsDiscovery.stopDiscovery();
+        mWebRTCDiscovery.stopDiscoverService();
+        mCoordinator.close();
+        mEventBus.cancel();
     }
 
     public MutableLiveData<List<ResolvedGroup>> getServiceInfoList() {
@@ -97,6 +115,6 @@ public class DiscoverGroupsViewModel extends AndroidViewModel {
     }
 
     public List<ResolvedGroup> getmServiceInfoList() {
-        return mServiceInfoList;
+        return mCoordinator.getGroups();
     }
 }
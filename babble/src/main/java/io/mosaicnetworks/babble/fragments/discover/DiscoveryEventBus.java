@@ -0,0 +1,245 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018- Mosaic Networks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.mosaicnetworks.babble.fragments.discover;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+/**
+ * Merges the updates of several discovery mechanisms into a single debounced stream on the main
+ * thread. Updates may arrive on any thread. They are delivered to the downstream listener once
+ * no update has arrived for a quiet window, or once the oldest undelivered update has waited for
+ * the maximum delay, whichever comes first. Delivery happens in a frame callback, so the
+ * downstream listener sees at most one consolidated update per frame.
+ *
+ * Start failures are not debounced, they are posted to the main thread straight away.
+ */
+public final class DiscoveryEventBus implements ServiceDiscoveryListener {
+
+    /**
+     * Time source and executor for the bus, abstracted so that tests can control time
+     */
+    interface Scheduler {
+
+        /**
+         * @return the current time in milliseconds on a monotonic clock
+         */
+        long now();
+
+        /**
+         * Run a task on the delivery thread after a delay
+         */
+        void postDelayed(Runnable task, long delayMs);
+
+        /**
+         * Run a task on the delivery thread at the start of the next frame
+         */
+        void postFrame(Runnable task);
+
+        /**
+         * Cancel a task posted with {@link #postDelayed(Runnable, long)}
+         */
+        void removeCallbacks(Runnable task);
+    }
+
+    public static final long DEFAULT_WINDOW_MS = 50;
+    public static final long DEFAULT_MAX_WAIT_MS = 250;
+
+    private final ServiceDiscoveryListener mDownstream;
+    private final Scheduler mScheduler;
+    private final long mWindowMs;
+    private final long mMaxWaitMs;
+
+    private final Object mLock = new Object();
+    private boolean mPending = false;
+    private boolean mGroupCountChange = false;
+    private long mFirstEventAt;
+    private long mLastEventAt;
+    private boolean mTimerPosted = false;
+    private long mDeliveredCount = 0;
+
+    private final Runnable mTimer = new Runnable() {
+        @Override
+        public void run() {
+            onTimer();
+        }
+    };
+
+    private final Runnable mDeliver = new Runnable() {
+        @Override
+        public void run() {
+            deliver();
+        }
+    };
+
+    /**
+     * Create a bus with the default windows, delivering on the main thread
+     * @param downstream the listener receiving the consolidated updates
+     */
+    public DiscoveryEventBus(ServiceDiscoveryListener downstream) {
+        this(downstream, DEFAULT_WINDOW_MS, DEFAULT_MAX_WAIT_MS);
+    }
+
+    /**
+     * Create a bus delivering on the main thread
+     * @param downstream the listener receiving the consolidated updates
+     * @param windowMs the quiet time after the last update before it is delivered
+     * @param maxWaitMs the longest an update can be held back by a continuous stream of updates
+     */
+    public DiscoveryEventBus(ServiceDiscoveryListener downstream, long windowMs, long maxWaitMs) {
+        this(downstream, windowMs, maxWaitMs, new MainThreadScheduler());
+    }
+
+    DiscoveryEventBus(ServiceDiscoveryListener downstream, long windowMs, long maxWaitMs,
+                      Scheduler scheduler) {
+        if (windowMs < 0 || maxWaitMs < windowMs) {
+            throw new IllegalArgumentException("Window must not be negative or longer than the maximum wait");
+        }
+        mDownstream = downstream;
+        mWindowMs = windowMs;
+        mMaxWaitMs = maxWaitMs;
+        mScheduler = scheduler;
+    }
+
+    @Override
+    public void onServiceListUpdated(boolean groupCountChange) {
+        synchronized (mLock) {
+            long now = mScheduler.now();
+            if (!mPending) {
+                mPending = true;
+                mFirstEventAt = now;
+            }
+            mGroupCountChange |= groupCountChange;
+            mLastEventAt = now;
+
+            // the timer is not moved on every update, when it fires it works out whether the
+            // window has really elapsed
+            if (!mTimerPosted) {
+                mTimerPosted = true;
+                mScheduler.postDelayed(mTimer, mWindowMs);
+            }
+        }
+    }
+
+    @Override
+    public void onStartDiscoveryFailed() {
+        mScheduler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                mDownstream.onStartDiscoveryFailed();
+            }
+        }, 0);
+    }
+
+    /**
+     * Drop any undelivered update, e.g. when discovery is stopped. Later updates are delivered as
+     * usual.
+     */
+    public void cancel() {
+        synchronized (mLock) {
+            mPending = false;
+            mTimerPosted = false;
+        }
+        mScheduler.removeCallbacks(mTimer);
+    }
+
+    /**
+     * @return the number of consolidated updates delivered
+     */
+    public long getDeliveredCount() {
+        synchronized (mLock) {
+            return mDeliveredCount;
+        }
+    }
+
+    private void onTimer() {
+        synchronized (mLock) {
+            if (!mTimerPosted) {
+                return;
+            }
+
+            long now = mScheduler.now();
+            long due = Math.min(mLastEventAt + mWindowMs, mFirstEventAt + mMaxWaitMs);
+            if (now < due) {
+                mScheduler.postDelayed(mTimer, due - now);
+                return;
+            }
+            mTimerPosted = false;
+        }
+
+        mScheduler.postFrame(mDeliver);
+    }
+
+    private void deliver() {
+        boolean groupCountChange;
+        synchronized (mLock) {
+            if (!mPending) {
+                return;
+            }
+            groupCountChange = mGroupCountChange;
+            mPending = false;
+            mGroupCountChange = false;
+            mDeliveredCount++;
+        }
+
+        mDownstream.onServiceListUpdated(groupCountChange);
+    }
+
+    /**
+     * Runs tasks on the main thread, with frame callbacks from the main thread's Choreographer
+     */
+    private static final class MainThreadScheduler implements Scheduler {
+
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public long now() {
+            return SystemClock.uptimeMillis();
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delayMs) {
+            mHandler.postDelayed(task, delayMs);
+        }
+
+        @Override
+        public void postFrame(final Runnable task) {
+            // only called from tasks run by the handler, so we are on the main thread
+            Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    task.run();
+                }
+            });
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            mHandler.removeCallbacks(task);
+        }
+    }
+}
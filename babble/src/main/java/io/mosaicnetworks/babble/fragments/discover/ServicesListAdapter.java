@@ -31,13 +31,42 @@ import android.view.ViewGroup;
 import android.widget.TextView;
 
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.AsyncDifferConfig;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListAdapter;
 import androidx.recyclerview.widget.RecyclerView;
 import io.mosaicnetworks.babble.R;
 import io.mosaicnetworks.babble.servicediscovery.ResolvedGroup;
 
-public class ServicesListAdapter extends RecyclerView.Adapter<ServicesListAdapter.ViewHolder> {
+/**
+ * Displays a list of groups. New lists are submitted as snapshots with
+ * {@link #submitList(List)}, the differences with the displayed list are computed on a
+ * background thread and only the rows that changed are rebound.
+ */
+public class ServicesListAdapter extends ListAdapter<ResolvedGroup, ServicesListAdapter.ViewHolder> {
+
+    // A row shows the group name, UID and source. The UID and source identify the group and never
+    // change, so only the name needs comparing.
+    static final DiffUtil.ItemCallback<ResolvedGroup> DIFF_CALLBACK = new DiffUtil.ItemCallback<ResolvedGroup>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull ResolvedGroup oldItem, @NonNull ResolvedGroup newItem) {
+            return oldItem.getStableId() == newItem.getStableId()
+                    && oldItem.getSource() == newItem.getSource()
+                    && oldItem.getGroupUid().equals(newItem.getGroupUid());
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull ResolvedGroup oldItem, @NonNull ResolvedGroup newItem) {
+            return oldItem.getGroupName().equals(newItem.getGroupName());
+        }
+    };
+
+    // a single thread, so that the diffs of successive snapshots are computed in order
+    private static final Executor DIFF_EXECUTOR = Executors.newSingleThreadExecutor();
 
     // stores and recycles views as they are scrolled off screen
     public class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
@@ -53,19 +82,36 @@ public class ServicesListAdapter extends RecyclerView.Adapter<ServicesListAdapte
 
         @Override
         public void onClick(View view) {
-            if (mClickListener != null) mClickListener.onItemClick(view, getAdapterPosition());
+            int position = getAdapterPosition();
+            if (mClickListener != null && position != RecyclerView.NO_POSITION) {
+                mClickListener.onItemClick(view, position);
+            }
         }
     }
 
-    private List<ResolvedGroup> mData;
     private LayoutInflater mInflater;
     private ItemClickListener mClickListener;
-    private Context mContext;
+    private final int mColourMdns;
+    private final int mColourGroupName;
+    private final int mColourGroupUid;
+
+    public ServicesListAdapter(Context context) {
+        super(new AsyncDifferConfig.Builder<>(DIFF_CALLBACK)
+                .setBackgroundThreadExecutor(DIFF_EXECUTOR)
+                .build());
+        this.mInflater = LayoutInflater.from(context);
+        setHasStableIds(true);
+
+        // resolve the colours once rather than on every bind
+        Context appContext = context.getApplicationContext();
+        mColourMdns = appContext.getResources().getColor(R.color.colorArchivedGroup);
+        mColourGroupName = appContext.getResources().getColor(android.R.color.primary_text_light);
+        mColourGroupUid = appContext.getResources().getColor(android.R.color.secondary_text_light);
+    }
 
     public ServicesListAdapter(Context context, List<ResolvedGroup> data) {
-        this.mInflater = LayoutInflater.from(context);
-        this.mData = data;
-        mContext = context.getApplicationContext();
+        this(context);
+        submitList(data);
     }
 
     // inflates the row layout from xml when needed
@@ -78,42 +124,38 @@ public class ServicesListAdapter extends RecyclerView.Adapter<ServicesListAdapte
 
     // binds the data to the TextView in each row
     @Override
-    public void onBindViewHolder(ViewHolder holder, int position) {
-        ResolvedGroup groupInfo = mData.get(position);
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        ResolvedGroup groupInfo = getItem(position);
 
         int colourGroupName;
         int colourGroupUid;
         switch (groupInfo.getSource()) {
             case MDNS:
-                colourGroupName = R.color.colorArchivedGroup;
-                colourGroupUid = R.color.colorArchivedGroup;
+                colourGroupName = mColourMdns;
+                colourGroupUid = mColourMdns;
                 break;
             default:
-                colourGroupName = android.R.color.primary_text_light;
-                colourGroupUid = android.R.color.secondary_text_light;
+                colourGroupName = mColourGroupName;
+                colourGroupUid = mColourGroupUid;
                 break;
         }
 
-        holder.serviceNameTextView.setTextColor(mContext.getResources().getColor(colourGroupName));
-        holder.groupUidTextView.setTextColor(mContext.getResources().getColor(colourGroupUid));
+        holder.serviceNameTextView.setTextColor(colourGroupName);
+        holder.groupUidTextView.setTextColor(colourGroupUid);
 
         holder.groupUidTextView.setText(groupInfo.getGroupUid());
         holder.serviceNameTextView.setText(groupInfo.getGroupName());
     }
 
-    // total number of rows
     @Override
-    public int getItemCount() {
-        if (mData == null) {
-            return 0;
-        } else {
-            return mData.size();
-        }
+    public long getItemId(int position) {
+        return getItem(position).getStableId();
     }
 
     // convenience method for getting data at click position
-    public ResolvedGroup getItem(int id) {
-        return mData.get(id);
+    @Override
+    public ResolvedGroup getItem(int position) {
+        return super.getItem(position);
     }
 
     // allows clicks events to be caught
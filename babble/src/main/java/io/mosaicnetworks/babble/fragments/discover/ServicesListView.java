@@ -25,23 +25,19 @@
 package io.mosaicnetworks.babble.fragments.discover;
 
 import android.content.Context;
-import android.os.Handler;
 import android.util.AttributeSet;
 import android.view.View;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Objects;
-
 import androidx.annotation.Nullable;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
-import io.mosaicnetworks.babble.servicediscovery.ResolvedGroup;
+import io.mosaicnetworks.babble.servicediscovery.ResolvedGroupRegistry;
 import io.mosaicnetworks.babble.servicediscovery.mdns.MdnsDiscovery;
 
 public class ServicesListView extends RecyclerView {
-    private List<ResolvedGroup> mServiceInfoList = new ArrayList<>();
+    private final ResolvedGroupRegistry mRegistry = new ResolvedGroupRegistry();
     private ServicesListListener mServicesListListener;
+    private DiscoveryEventBus mEventBus;
     private MdnsDiscovery mMdnsDiscovery;
     private boolean mPrevIsEmpty = true;
 
@@ -64,7 +60,7 @@ public class ServicesListView extends RecyclerView {
 
         setLayoutManager(new LinearLayoutManager(context));
 
-        final ServicesListAdapter adapter = new ServicesListAdapter(context, mServiceInfoList);
+        final ServicesListAdapter adapter = new ServicesListAdapter(context);
 
         adapter.setClickListener(new ServicesListAdapter.ItemClickListener() {
             @Override
@@ -75,35 +71,17 @@ public class ServicesListView extends RecyclerView {
 
         setAdapter(adapter);
 
-        mMdnsDiscovery = new MdnsDiscovery(context, mServiceInfoList, new ServiceDiscoveryListener() {
+        mEventBus = new DiscoveryEventBus(new ServiceDiscoveryListener() {
             @Override
             public void onServiceListUpdated(boolean groupCountChange) {
-                // let the adapter know
-                Handler mainHandler = new Handler(context.getMainLooper());
-
-                Runnable myRunnable = new Runnable() {
-                    @Override
-                    public void run() {
-                        Objects.requireNonNull(getAdapter()).notifyDataSetChanged();
-                    }
-                };
-                mainHandler.post(myRunnable);
+                // let the adapter know, we are on the main thread
+                adapter.submitList(mRegistry.getSnapshot());
 
                 // if the service list info's empty status has changed, let the service listener
                 // know
-                //TODO: can we use the groupCountChange (or a suitable return) to make this easier?
-                final boolean curIsEmpty = mServiceInfoList.isEmpty();
+                boolean curIsEmpty = mRegistry.getSnapshot().isEmpty();
                 if (mPrevIsEmpty ^ curIsEmpty) {
-                    //service list info's empty status has changed
-
-                    Runnable emptyStatus = new Runnable() {
-                        @Override
-                        public void run() {
-                            mServicesListListener.onListEmptyStatusChange(curIsEmpty);
-                        }
-                    };
-                    mainHandler.post(emptyStatus);
-
+                    mServicesListListener.onListEmptyStatusChange(curIsEmpty);
                 }
 
                 mPrevIsEmpty = curIsEmpty;
@@ -114,6 +92,8 @@ public class ServicesListView extends RecyclerView {
                 mServicesListListener.onDiscoveryStartFailure();
             }
         });
+
+        mMdnsDiscovery = new MdnsDiscovery(context, mRegistry, mEventBus);
     }
 
     public void startDiscovery(ServicesListListener servicesListListener) {
@@ -123,6 +103,7 @@ public class ServicesListView extends RecyclerView {
 
     public void stopDiscovery() {
         mMdnsDiscovery.stopDiscovery();
+        mEventBus.cancel();
     }
 
 }
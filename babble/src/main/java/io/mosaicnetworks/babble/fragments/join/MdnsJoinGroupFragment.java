@@ -37,15 +37,18 @@ import android.view.ViewGroup;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.EditText;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+
 import java.util.List;
 import java.util.Objects;
-import java.util.Random;
 
 import androidx.annotation.NonNull;
+import androidx.core.content.ContextCompat;
 import io.mosaicnetworks.babble.R;
 import io.mosaicnetworks.babble.fragments.BaseConfigActivity;
 import io.mosaicnetworks.babble.fragments.OnFragmentInteractionListener;
-import io.mosaicnetworks.babble.servicediscovery.mdns.HttpPeerDiscoveryRequest;
+import io.mosaicnetworks.babble.servicediscovery.mdns.ParallelPeerDiscoveryRequest;
 import io.mosaicnetworks.babble.node.Peer;
 import io.mosaicnetworks.babble.servicediscovery.mdns.ResponseListener;
 import io.mosaicnetworks.babble.node.ConfigManager;
@@ -66,18 +69,15 @@ import io.mosaicnetworks.babble.utils.Utils;
  * interface to handle interaction events. Use the {@link MdnsJoinGroupFragment#newInstance} factory
  * method to create an instance of this fragment.
  */
-public class MdnsJoinGroupFragment extends BabbleServiceBinder implements ResponseListener {
+public class MdnsJoinGroupFragment extends BabbleServiceBinder implements ParallelPeerDiscoveryRequest.ResultListener {
 
     private static String TAG="MdnsJoinFragment";
     private OnFragmentInteractionListener mListener;
     private ProgressDialog mLoadingDialog;
     private String mMoniker;
-    private HttpPeerDiscoveryRequest mHttpGenesisPeerDiscoveryRequest;
-    private HttpPeerDiscoveryRequest mHttpCurrentPeerDiscoveryRequest;
-    private List<Peer> mGenesisPeers;
+    private ParallelPeerDiscoveryRequest mPeerDiscoveryRequest;
     private ResolvedGroup mResolvedGroup;
     private ResolvedService mResolvedService;
-    private static Random randomGenerator = new Random();
     private GroupDescriptor mGroupDescriptor;
     private String mConfigDirectory;
 
@@ -148,53 +148,27 @@ public class MdnsJoinGroupFragment extends BabbleServiceBinder implements Respon
             return;
         }
 
-        //We are choosing a random resolved service - if we try again we may get a different
-        //service.
-        mResolvedService = resolvedServices.get(randomGenerator.nextInt(resolvedServices.size()));
-
-        final String peerIP = mResolvedService.getInetAddress().getHostAddress();
-        final int peerPort = mResolvedService.getPort();
-
-        // Store moniker and host entered
+        // Store moniker entered
         SharedPreferences sharedPref = Objects.requireNonNull(getActivity()).getSharedPreferences(
                 BaseConfigActivity.PREFERENCE_FILE_KEY, Context.MODE_PRIVATE);
 
         SharedPreferences.Editor editor = sharedPref.edit();
         editor.putString("moniker", mMoniker);
-        editor.putString("host", peerIP);
         editor.apply();
 
-        getPeers(peerIP, peerPort);
+        getPeers(resolvedServices);
     }
 
-    private void getPeers(final String peerIP, final int peerPort) {
-        try {
-            mHttpGenesisPeerDiscoveryRequest = HttpPeerDiscoveryRequest.createGenesisPeersRequest(peerIP,
-                    peerPort, new ResponseListener() {
-                        @Override
-                        public void onReceivePeers(List<Peer> genesisPeers) {
-                            mGenesisPeers = genesisPeers;
-
-                            mHttpCurrentPeerDiscoveryRequest =
-                                    HttpPeerDiscoveryRequest.createCurrentPeersRequest(
-                                            peerIP, peerPort,
-                                            MdnsJoinGroupFragment.this, getContext());
-
-                            mHttpCurrentPeerDiscoveryRequest.send();
-                        }
-
-                        @Override
-                        public void onFailure(Error error) {
-                            MdnsJoinGroupFragment.this.onFailure(error);
-                        }
-                    }, getContext());
-        } catch (IllegalArgumentException ex) {
-            DialogUtils.displayOkAlertDialog(Objects.requireNonNull(getContext()), R.string.invalid_hostname_alert_title, R.string.invalid_hostname_alert_message);
-            return;
-        }
+    // All services in the group are asked for peers, fastest first, and the first consistent
+    // answer is used. This avoids stalling on a single unresponsive peer.
+    private void getPeers(List<ResolvedService> resolvedServices) {
+        cancelRequests();
+
+        mPeerDiscoveryRequest = new ParallelPeerDiscoveryRequest(resolvedServices,
+                Objects.requireNonNull(getContext()));
 
         mLoadingDialog.show();
-        mHttpGenesisPeerDiscoveryRequest.send();
+        mPeerDiscoveryRequest.send(this);
     }
 
     @Override
@@ -218,16 +192,45 @@ public class MdnsJoinGroupFragment extends BabbleServiceBinder implements Respon
     }
 
     @Override
-    public void onReceivePeers(List<Peer> currentPeers) {
+    public void onReceivePeers(ResolvedService service, List<Peer> genesisPeers,
+                               List<Peer> currentPeers) {
+        mResolvedService = service;
+
+        // Store the host that answered
+        SharedPreferences sharedPref = Objects.requireNonNull(getActivity()).getSharedPreferences(
+                BaseConfigActivity.PREFERENCE_FILE_KEY, Context.MODE_PRIVATE);
+
+        SharedPreferences.Editor editor = sharedPref.edit();
+        editor.putString("host", service.getInetAddress().getHostAddress());
+        editor.apply();
 
         mGroupDescriptor = new GroupDescriptor(mResolvedService.getGroupName(), mResolvedService.getGroupUid());
 
         ConfigManager configManager =
                 ConfigManager.getInstance(getContext().getApplicationContext());
 
-        mConfigDirectory = configManager.createConfigJoinGroup(mGenesisPeers, currentPeers, mGroupDescriptor, mMoniker, Utils.getIPAddr(getContext()), BabbleService.NETWORK_WIFI);
+        // the config is written off the main thread, the service is started once it is on disk
+        Futures.addCallback(configManager.createConfigJoinGroupAsync(genesisPeers, currentPeers,
+                mGroupDescriptor, mMoniker, Utils.getIPAddr(getContext()), BabbleService.NETWORK_WIFI), new FutureCallback<String>() {
+            @Override
+            public void onSuccess(String configDirectory) {
+                if (!isAdded()) {
+                    return;
+                }
+                mConfigDirectory = configDirectory;
+                startBabbleService();
+            }
 
-        startBabbleService();
+            @Override
+            public void onFailure(@NonNull Throwable t) {
+                Log.e(TAG, "Failed to write the config: " + t);
+                if (!isAdded()) {
+                    return;
+                }
+                mLoadingDialog.dismiss();
+                DialogUtils.displayOkAlertDialog(Objects.requireNonNull(getContext()), R.string.babble_init_fail_title, R.string.babble_init_fail_message);
+            }
+        }, ContextCompat.getMainExecutor(getContext()));
     }
 
     public void startBabbleService() {
@@ -278,12 +281,9 @@ public class MdnsJoinGroupFragment extends BabbleServiceBinder implements Respon
     }
 
     private void cancelRequests() {
-        if (mHttpCurrentPeerDiscoveryRequest!=null) {
-            mHttpCurrentPeerDiscoveryRequest.cancel();
-        }
-
-        if (mHttpGenesisPeerDiscoveryRequest!=null) {
-            mHttpGenesisPeerDiscoveryRequest.cancel();
+        if (mPeerDiscoveryRequest!=null) {
+            mPeerDiscoveryRequest.cancel();
+            mPeerDiscoveryRequest = null;
         }
     }
 
@@ -37,11 +37,15 @@ import android.view.ViewGroup;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.EditText;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+
 import java.util.List;
 import java.util.Objects;
 import java.util.Random;
 
 import androidx.annotation.NonNull;
+import androidx.core.content.ContextCompat;
 import io.mosaicnetworks.babble.R;
 import io.mosaicnetworks.babble.fragments.BaseConfigActivity;
 import io.mosaicnetworks.babble.fragments.OnFragmentInteractionListener;
@@ -54,6 +58,9 @@ import io.mosaicnetworks.babble.service.BabbleService;
 import io.mosaicnetworks.babble.service.BabbleServiceBinder;
 import io.mosaicnetworks.babble.servicediscovery.ResolvedGroup;
 import io.mosaicnetworks.babble.servicediscovery.ResolvedService;
+import io.mosaicnetworks.babble.servicediscovery.webrtc.DiscoGroup;
+import io.mosaicnetworks.babble.servicediscovery.webrtc.DiscoGroupRequest;
+import io.mosaicnetworks.babble.servicediscovery.webrtc.WebRTCJoinPreparer;
 import io.mosaicnetworks.babble.utils.DialogUtils;
 import io.mosaicnetworks.babble.utils.Utils;
 
@@ -67,11 +74,14 @@ import io.mosaicnetworks.babble.utils.Utils;
 public class WebRTCJoinGroupFragment extends BabbleServiceBinder implements ResponseListener {
 
     private static String TAG="WebRTCJoinFragment";
+    private static final String ARG_GROUP_UID = "group_uid";
+    private static final String ARG_GROUP_NAME = "group_name";
     private OnFragmentInteractionListener mListener;
     private ProgressDialog mLoadingDialog;
     private String mMoniker;
     private HttpPeerDiscoveryRequest mHttpGenesisPeerDiscoveryRequest;
     private HttpPeerDiscoveryRequest mHttpCurrentPeerDiscoveryRequest;
+    private WebRTCJoinPreparer mJoinPreparer;
     private List<Peer> mGenesisPeers;
     private ResolvedGroup mResolvedGroup;
     private ResolvedService mResolvedService;
@@ -89,6 +99,12 @@ public class WebRTCJoinGroupFragment extends BabbleServiceBinder implements Resp
         Log.i(TAG, "newInstance: "+ resolvedGroup.getGroupName());
         WebRTCJoinGroupFragment webRTCJoinGroupFragment = new WebRTCJoinGroupFragment();
         webRTCJoinGroupFragment.mResolvedGroup = resolvedGroup;
+
+        // the resolved group does not survive the fragment being recreated, its identity does
+        Bundle args = new Bundle();
+        args.putString(ARG_GROUP_UID, resolvedGroup.getGroupUid());
+        args.putString(ARG_GROUP_NAME, resolvedGroup.getGroupName());
+        webRTCJoinGroupFragment.setArguments(args);
         return webRTCJoinGroupFragment;
     }
 
@@ -96,6 +112,22 @@ public class WebRTCJoinGroupFragment extends BabbleServiceBinder implements Resp
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         initLoadingDialog();
+
+        Bundle args = Objects.requireNonNull(getArguments());
+        mGroupDescriptor = new GroupDescriptor(args.getString(ARG_GROUP_NAME),
+                args.getString(ARG_GROUP_UID));
+
+        ConfigManager configManager = ConfigManager.getInstance(getContext().getApplicationContext());
+        mJoinPreparer = new WebRTCJoinPreparer(getContext(), mGroupDescriptor.getUid(),
+                configManager.getNodeConfig(BabbleService.NETWORK_GLOBAL));
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+
+        // fetch the peers and look up the servers while the user enters their moniker
+        mJoinPreparer.prepare();
     }
 
     @Override
@@ -135,16 +167,21 @@ public class WebRTCJoinGroupFragment extends BabbleServiceBinder implements Resp
             return;
         }
 
-        List<ResolvedService> resolvedServices = mResolvedGroup.getResolvedServices();
+        // after the fragment has been recreated, the group is only known by its UID and the peers
+        // are fetched by the preparer
+        mResolvedService = null;
+        if (mResolvedGroup != null) {
+            List<ResolvedService> resolvedServices = mResolvedGroup.getResolvedServices();
 
-        if (resolvedServices.size() < 1) {
-            DialogUtils.displayOkAlertDialog(Objects.requireNonNull(getContext()), R.string.no_service_alert_title, R.string.no_service_alert_message);
-            return;
-        }
+            if (resolvedServices.size() < 1) {
+                DialogUtils.displayOkAlertDialog(Objects.requireNonNull(getContext()), R.string.no_service_alert_title, R.string.no_service_alert_message);
+                return;
+            }
 
-        //We are choosing a random resolved service - if we try again we may get a different
-        //service.
-        mResolvedService = resolvedServices.get(randomGenerator.nextInt(resolvedServices.size()));
+            //We are choosing a random resolved service - if we try again we may get a different
+            //service.
+            mResolvedService = resolvedServices.get(randomGenerator.nextInt(resolvedServices.size()));
+        }
 
         // Store moniker and host entered
         SharedPreferences sharedPref = Objects.requireNonNull(getActivity()).getSharedPreferences(
@@ -154,8 +191,26 @@ public class WebRTCJoinGroupFragment extends BabbleServiceBinder implements Resp
         editor.putString("moniker", mMoniker);
         editor.apply();
 
-        mGenesisPeers = mResolvedService.getInitialPeers();
-        onReceivePeers(mResolvedService.getCurrentPeers());
+        if (mResolvedService != null && mResolvedService.getCurrentPeers() != null) {
+            mGenesisPeers = mResolvedService.getInitialPeers();
+            onReceivePeers(mResolvedService.getCurrentPeers());
+            return;
+        }
+
+        // the group listing does not include the peers, they are fetched by the preparer
+        mLoadingDialog.show();
+        mJoinPreparer.getGroup(new DiscoGroupRequest.Listener() {
+            @Override
+            public void onReceiveGroup(DiscoGroup group) {
+                mGenesisPeers = group.InitialPeers;
+                onReceivePeers(group.Peers);
+            }
+
+            @Override
+            public void onFailure(Error error) {
+                WebRTCJoinGroupFragment.this.onFailure(error);
+            }
+        });
     }
 
     @Override
@@ -181,14 +236,31 @@ public class WebRTCJoinGroupFragment extends BabbleServiceBinder implements Resp
     @Override
     public void onReceivePeers(List<Peer> currentPeers) {
 
-        mGroupDescriptor = new GroupDescriptor(mResolvedService.getGroupName(), mResolvedService.getGroupUid());
-
         ConfigManager configManager =
                 ConfigManager.getInstance(getContext().getApplicationContext());
 
-        mConfigDirectory = configManager.createConfigJoinGroup(mGenesisPeers, currentPeers, mGroupDescriptor, mMoniker, Utils.getIPAddr(getContext()), BabbleService.NETWORK_GLOBAL);
+        // the config is written off the main thread, the service is started once it is on disk
+        Futures.addCallback(configManager.createConfigJoinGroupAsync(mGenesisPeers, currentPeers,
+                mGroupDescriptor, mMoniker, Utils.getIPAddr(getContext()), BabbleService.NETWORK_GLOBAL), new FutureCallback<String>() {
+            @Override
+            public void onSuccess(String configDirectory) {
+                if (!isAdded()) {
+                    return;
+                }
+                mConfigDirectory = configDirectory;
+                startBabbleService();
+            }
 
-        startBabbleService();
+            @Override
+            public void onFailure(@NonNull Throwable t) {
+                Log.e(TAG, "Failed to write the config: " + t);
+                if (!isAdded()) {
+                    return;
+                }
+                mLoadingDialog.dismiss();
+                DialogUtils.displayOkAlertDialog(Objects.requireNonNull(getContext()), R.string.babble_init_fail_title, R.string.babble_init_fail_message);
+            }
+        }, ContextCompat.getMainExecutor(getContext()));
     }
 
     public void startBabbleService() {
@@ -243,6 +315,10 @@ public class WebRTCJoinGroupFragment extends BabbleServiceBinder implements Resp
         if (mHttpGenesisPeerDiscoveryRequest!=null) {
             mHttpGenesisPeerDiscoveryRequest.cancel();
         }
+
+        if (mJoinPreparer!=null) {
+            mJoinPreparer.cancel();
+        }
     }
 
     @Override
@@ -0,0 +1,347 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018- Mosaic Networks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.mosaicnetworks.babble.node;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A persisted index of the config directories under the babble root directory. The catalog saves
+ * the {@link ConfigManager} from listing the root directory and parsing every directory name each
+ * time a config is created, backed up or deleted. Instead the catalog is updated as each change is
+ * made and written back to disk atomically.
+ *
+ * Directories are indexed by the unique ID of their group, which is derived from the group UID, so
+ * the live config and the backups of a group are found without looking at the other groups. Each
+ * directory also carries its size and the index of the last block committed while it was in use,
+ * as recorded by {@link #updateMetadata(String, long, long)}.
+ *
+ * The root directory is only rescanned if the catalog file is missing or cannot be read.
+ */
+public final class ArchiveCatalog {
+
+    /**
+     * The name of the catalog file in the babble root directory
+     */
+    public static final String CATALOG_FILE = "catalog.json";
+
+    /**
+     * The block index recorded for a directory in which no block has been seen
+     */
+    public static final long NO_BLOCK = -1;
+
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * The catalog entry for a config directory
+     */
+    public static final class Entry {
+
+        private final String directoryName;
+        private final long sizeBytes;
+        private final long lastBlockIndex;
+        private transient ConfigDirectory mConfigDirectory;
+
+        Entry(String directoryName, long sizeBytes, long lastBlockIndex) {
+            this.directoryName = directoryName;
+            this.sizeBytes = sizeBytes;
+            this.lastBlockIndex = lastBlockIndex;
+        }
+
+        /**
+         * @return the parsed directory name
+         */
+        public ConfigDirectory getConfigDirectory() {
+            if (mConfigDirectory == null) {
+                mConfigDirectory = new ConfigDirectory(directoryName);
+            }
+            return mConfigDirectory;
+        }
+
+        /**
+         * @return the size of the directory in bytes, as last measured
+         */
+        public long getSizeBytes() {
+            return sizeBytes;
+        }
+
+        /**
+         * @return the index of the last block committed, or {@link #NO_BLOCK}
+         */
+        public long getLastBlockIndex() {
+            return lastBlockIndex;
+        }
+    }
+
+    // the persisted form of the catalog
+    private static final class Stored {
+        int version;
+        List<Entry> entries;
+    }
+
+    private final File mRootDir;
+    private final File mCatalogFile;
+    private final Gson mGson = new Gson();
+    private final Map<String, Entry> mEntries = new LinkedHashMap<>();
+    private final Map<String, List<String>> mByUniqueId = new HashMap<>();
+
+    /**
+     * Load the catalog of a babble root directory, rebuilding it if it is missing or corrupt
+     * @param rootDir the babble root directory, which must exist
+     * @return the catalog
+     */
+    public static ArchiveCatalog load(File rootDir) {
+        ArchiveCatalog catalog = new ArchiveCatalog(rootDir);
+        if (!catalog.read()) {
+            catalog.rebuild();
+        }
+        return catalog;
+    }
+
+    private ArchiveCatalog(File rootDir) {
+        mRootDir = rootDir;
+        mCatalogFile = new File(rootDir, CATALOG_FILE);
+    }
+
+    /**
+     * @return the config directories, in the order they were added
+     */
+    public synchronized List<ConfigDirectory> getDirectories() {
+        List<ConfigDirectory> directories = new ArrayList<>(mEntries.size());
+        for (Entry entry : mEntries.values()) {
+            directories.add(entry.getConfigDirectory());
+        }
+        return directories;
+    }
+
+    /**
+     * Get the live config and the backups of a group
+     * @param uniqueId the unique ID of the group, see {@link ConfigDirectory#uniqueId}
+     * @return the config directories of the group, empty if there are none
+     */
+    public synchronized List<ConfigDirectory> getVersions(String uniqueId) {
+        List<String> names = mByUniqueId.get(uniqueId);
+        if (names == null) {
+            return Collections.emptyList();
+        }
+        List<ConfigDirectory> versions = new ArrayList<>(names.size());
+        for (String name : names) {
+            versions.add(mEntries.get(name).getConfigDirectory());
+        }
+        return versions;
+    }
+
+    /**
+     * @param directoryName the config directory name
+     * @return the entry for the directory, or null if it is not in the catalog
+     */
+    public synchronized Entry getEntry(String directoryName) {
+        return mEntries.get(directoryName);
+    }
+
+    /**
+     * @param directoryName the config directory name
+     * @return true if the directory is in the catalog
+     */
+    public synchronized boolean contains(String directoryName) {
+        return mEntries.containsKey(directoryName);
+    }
+
+    /**
+     * Add a newly created config directory. Names which are not valid config directory names are
+     * ignored, as they are when the root directory is scanned.
+     * @param directoryName the config directory name
+     */
+    public synchronized void add(String directoryName) {
+        if (mEntries.containsKey(directoryName) || !index(new Entry(directoryName,
+                directorySize(new File(mRootDir, directoryName)), NO_BLOCK))) {
+            return;
+        }
+        write();
+    }
+
+    /**
+     * Record that a config directory has been renamed, e.g. when it was backed up. The metadata
+     * moves with the directory.
+     * @param fromName the old directory name
+     * @param toName the new directory name
+     */
+    public synchronized void rename(String fromName, String toName) {
+        Entry entry = unindex(fromName);
+        long size = entry == null ? directorySize(new File(mRootDir, toName)) : entry.sizeBytes;
+        long lastBlockIndex = entry == null ? NO_BLOCK : entry.lastBlockIndex;
+        unindex(toName);
+        index(new Entry(toName, size, lastBlockIndex));
+        write();
+    }
+
+    /**
+     * Record that a config directory has been deleted
+     * @param directoryName the config directory name
+     */
+    public synchronized void remove(String directoryName) {
+        if (unindex(directoryName) != null) {
+            write();
+        }
+    }
+
+    /**
+     * Record the size and last block of a config directory, e.g. after the node using it stopped
+     * @param directoryName the config directory name
+     * @param sizeBytes the size of the directory
+     * @param lastBlockIndex the index of the last block committed, or {@link #NO_BLOCK}
+     */
+    public synchronized void updateMetadata(String directoryName, long sizeBytes, long lastBlockIndex) {
+        if (!mEntries.containsKey(directoryName)) {
+            return;
+        }
+        // replacing the entry in place keeps the order of the catalog
+        mEntries.put(directoryName, new Entry(directoryName, sizeBytes, lastBlockIndex));
+        write();
+    }
+
+    /**
+     * Rebuild the catalog from the contents of the root directory. The last block indexes are lost.
+     */
+    public synchronized void rebuild() {
+        mEntries.clear();
+        mByUniqueId.clear();
+
+        String[] names = mRootDir.list();
+        if (names != null) {
+            for (String name : names) {
+                File dir = new File(mRootDir, name);
+                if (dir.isDirectory()) {
+                    index(new Entry(name, directorySize(dir), NO_BLOCK));
+                }
+            }
+        }
+        write();
+    }
+
+    /**
+     * Get the total size of the files in a directory
+     * @param file a directory or file
+     * @return the size in bytes
+     */
+    public static long directorySize(File file) {
+        if (!file.isDirectory()) {
+            return file.length();
+        }
+        long size = 0;
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                size += directorySize(child);
+            }
+        }
+        return size;
+    }
+
+    private boolean index(Entry entry) {
+        String uniqueId;
+        try {
+            uniqueId = entry.getConfigDirectory().uniqueId;
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+        mEntries.put(entry.directoryName, entry);
+        List<String> names = mByUniqueId.get(uniqueId);
+        if (names == null) {
+            names = new ArrayList<>(2);
+            mByUniqueId.put(uniqueId, names);
+        }
+        names.add(entry.directoryName);
+        return true;
+    }
+
+    private Entry unindex(String directoryName) {
+        Entry entry = mEntries.remove(directoryName);
+        if (entry != null) {
+            String uniqueId = entry.getConfigDirectory().uniqueId;
+            List<String> names = mByUniqueId.get(uniqueId);
+            names.remove(directoryName);
+            if (names.isEmpty()) {
+                mByUniqueId.remove(uniqueId);
+            }
+        }
+        return entry;
+    }
+
+    private boolean read() {
+        if (!mCatalogFile.exists()) {
+            return false;
+        }
+
+        Stored stored;
+        try (Reader reader = new InputStreamReader(new FileInputStream(mCatalogFile),
+                StandardCharsets.UTF_8)) {
+            stored = mGson.fromJson(reader, Stored.class);
+        } catch (IOException | JsonParseException ex) {
+            return false;
+        }
+
+        if (stored == null || stored.version != FORMAT_VERSION || stored.entries == null) {
+            return false;
+        }
+        for (Entry entry : stored.entries) {
+            if (entry == null || entry.directoryName == null || !index(entry)) {
+                mEntries.clear();
+                mByUniqueId.clear();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void write() {
+        Stored stored = new Stored();
+        stored.version = FORMAT_VERSION;
+        stored.entries = new ArrayList<>(mEntries.values());
+        try {
+            ConfigWriter.writeFile(mCatalogFile, mGson.toJson(stored));
+        } catch (IOException ex) {
+            // a stale catalog must not be read back, without it the catalog is rebuilt on the
+            // next load
+            if (!mCatalogFile.delete()) {
+                mCatalogFile.deleteOnExit();
+            }
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018- Mosaic Networks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.mosaicnetworks.babble.node;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Deletes config directories without blocking the calling thread. Each directory is first moved
+ * into a trash directory under the babble root and removed from the {@link ArchiveCatalog}, which
+ * is a single rename on the config writer thread. The trees are then deleted in parallel on an I/O
+ * pool. If the process dies before a tree is deleted, it is deleted by the next {@link #purge()}.
+ * The rename is made under the group's lock, see {@link GroupLocks}, so that it cannot interleave
+ * with the config of the same group being written.
+ *
+ * A directory which cannot be moved to the trash is reported as failed, and is left in place and
+ * in the catalog. A tree which cannot be fully deleted from the trash is not reported, it has
+ * already gone from the user's point of view and is retried by the next purge.
+ */
+public final class ArchiveDeleter {
+
+    /**
+     * The trash directory under the babble root. Its name is not a valid config directory name, so
+     * it is never listed as an archive.
+     */
+    public static final String TRASH_DIR = ".trash";
+
+    private static final int IO_THREADS = 3;
+
+    /**
+     * Receives the progress of a deletion
+     */
+    public interface ProgressListener {
+
+        /**
+         * Called each time a directory has been deleted, or has failed to be deleted
+         * @param done the number of directories dealt with so far
+         * @param total the number of directories to delete
+         */
+        void onProgress(int done, int total);
+    }
+
+    /**
+     * Supplies the locks guarding the config directories of each group
+     */
+    public interface GroupLocks {
+
+        /**
+         * Take the lock guarding a config directory and its other versions
+         * @param directoryName the config directory name, with no path
+         * @return the lock, which the caller unlocks
+         */
+        Lock lock(String directoryName);
+    }
+
+    /**
+     * The outcome of a deletion
+     */
+    public static final class Result {
+
+        private final List<String> mDeleted;
+        private final List<String> mFailed;
+
+        Result(List<String> deleted, List<String> failed) {
+            mDeleted = Collections.unmodifiableList(deleted);
+            mFailed = Collections.unmodifiableList(failed);
+        }
+
+        /**
+         * @return the directories which have been removed
+         */
+        public List<String> getDeleted() {
+            return mDeleted;
+        }
+
+        /**
+         * @return the directories which could not be removed and are still in place
+         */
+        public List<String> getFailed() {
+            return mFailed;
+        }
+    }
+
+    private final File mRootDir;
+    private final File mTrashDir;
+    private final ArchiveCatalog mCatalog;
+    private final GroupLocks mLocks;
+    private final ConfigWriter mWriter;
+    private final ListeningExecutorService mIoExecutor;
+
+    /**
+     * @param rootDir the babble root directory
+     * @param catalog the catalog of the root directory
+     * @param locks the locks of the groups, held while a directory is moved to the trash
+     */
+    public ArchiveDeleter(File rootDir, ArchiveCatalog catalog, GroupLocks locks) {
+        this(rootDir, catalog, locks, ConfigWriter.getInstance(), Executors.newFixedThreadPool(IO_THREADS,
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "babble-delete-" + mCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }));
+    }
+
+    ArchiveDeleter(File rootDir, ArchiveCatalog catalog, GroupLocks locks, ConfigWriter writer,
+                   ExecutorService ioExecutor) {
+        mRootDir = rootDir;
+        mTrashDir = new File(rootDir, TRASH_DIR);
+        mCatalog = catalog;
+        mLocks = locks;
+        mWriter = writer;
+        mIoExecutor = MoreExecutors.listeningDecorator(ioExecutor);
+    }
+
+    /**
+     * Delete config directories
+     * @param directoryNames the config directory names, with no path
+     * @param listener receives progress, may be null
+     * @param listenerExecutor the executor the listener is called on, e.g. the main thread
+     * @return a future completed once every directory has been dealt with
+     */
+    public ListenableFuture<Result> delete(final List<String> directoryNames,
+                                           final ProgressListener listener,
+                                           final Executor listenerExecutor) {
+        final int total = directoryNames.size();
+        final AtomicInteger done = new AtomicInteger();
+        final List<String> deleted = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> failed = Collections.synchronizedList(new ArrayList<String>());
+
+        ListenableFuture<List<File>> tombstones = mWriter.submit(new Callable<List<File>>() {
+            @Override
+            public List<File> call() {
+                List<File> tombstones = new ArrayList<>(total);
+                for (String name : directoryNames) {
+                    Lock lock = mLocks.lock(name);
+                    try {
+                        if (!new File(mRootDir, name).exists()) {
+                            // already gone, there is only the catalog to put right
+                            mCatalog.remove(name);
+                            deleted.add(name);
+                            reportProgress(done.incrementAndGet(), total, listener, listenerExecutor);
+                            continue;
+                        }
+
+                        File tombstone = moveToTrash(name);
+                        if (tombstone == null) {
+                            failed.add(name);
+                            reportProgress(done.incrementAndGet(), total, listener, listenerExecutor);
+                        } else {
+                            deleted.add(name);
+                            tombstones.add(tombstone);
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+                return tombstones;
+            }
+        });
+
+        return Futures.transformAsync(tombstones, new AsyncFunction<List<File>, Result>() {
+            @Override
+            public ListenableFuture<Result> apply(List<File> tombstones) {
+                List<ListenableFuture<Boolean>> deletions = new ArrayList<>(tombstones.size());
+                for (final File tombstone : tombstones) {
+                    ListenableFuture<Boolean> deletion = mIoExecutor.submit(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() {
+                            return deleteTree(tombstone);
+                        }
+                    });
+                    deletion.addListener(new Runnable() {
+                        @Override
+                        public void run() {
+                            reportProgress(done.incrementAndGet(), total, listener, listenerExecutor);
+                        }
+                    }, MoreExecutors.directExecutor());
+                    deletions.add(deletion);
+                }
+
+                // trash left behind is purged later, so individual failures do not fail the result
+                return Futures.whenAllComplete(deletions).call(new Callable<Result>() {
+                    @Override
+                    public Result call() {
+                        return new Result(new ArrayList<>(deleted), new ArrayList<>(failed));
+                    }
+                }, MoreExecutors.directExecutor());
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Delete anything left in the trash, e.g. by a deletion interrupted when the process died
+     * @return a future completed with true if the trash is empty
+     */
+    public ListenableFuture<Boolean> purge() {
+        return mIoExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                File[] tombstones = mTrashDir.listFiles();
+                boolean empty = true;
+                if (tombstones != null) {
+                    for (File tombstone : tombstones) {
+                        empty &= deleteTree(tombstone);
+                    }
+                }
+                return empty;
+            }
+        });
+    }
+
+    /**
+     * Delete a file or directory tree, carrying on past failures
+     * @param file the file or directory
+     * @return true if everything was deleted
+     */
+    static boolean deleteTree(File file) {
+        boolean deleted = true;
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children == null) {
+                return false;
+            }
+            for (File child : children) {
+                deleted &= deleteTree(child);
+            }
+        }
+        return file.delete() && deleted;
+    }
+
+    private File moveToTrash(String directoryName) {
+        File directory = new File(mRootDir, directoryName);
+        if (!mTrashDir.isDirectory() && !mTrashDir.mkdirs()) {
+            return null;
+        }
+
+        // tombstones are unique, the same name may be deleted again before its trash is purged
+        File tombstone = new File(mTrashDir, directoryName + "-" + UUID.randomUUID());
+        if (!directory.renameTo(tombstone)) {
+            return null;
+        }
+        mCatalog.remove(directoryName);
+        return tombstone;
+    }
+
+    private static void reportProgress(final int done, final int total, final ProgressListener listener,
+                                       Executor listenerExecutor) {
+        if (listener == null) {
+            return;
+        }
+        listenerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onProgress(done, total);
+            }
+        });
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018- Mosaic Networks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.mosaicnetworks.babble.node;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A summary of the blocks committed in a config directory, kept in a small sidecar file next to
+ * the babble configuration. It lets an archive be described without starting a node on its
+ * database. The metadata is recorded by an {@link ArchiveMetadataRecorder} while the node runs.
+ *
+ * Blocks do not carry a time, so the timestamps are the wall clock times at which the first and
+ * last blocks were committed on this device.
+ */
+public final class ArchiveMetadata {
+
+    /**
+     * The name of the sidecar file in the config directory
+     */
+    public static final String FILE_NAME = "archive.json";
+
+    /**
+     * The database sub directory, as written by the {@link ConfigManager}
+     */
+    public static final String DB_SUB_DIR = "badger_db";
+
+    /**
+     * The block index recorded when no block has been committed
+     */
+    public static final long NO_BLOCK = -1;
+
+    private static final Gson sGson = new Gson();
+
+    private final long lastBlockIndex;
+    private final long messageCount;
+    private final long firstTimestamp;
+    private final long lastTimestamp;
+    private final long dbSizeBytes;
+
+    /**
+     * @param lastBlockIndex the index of the last block committed, or {@link #NO_BLOCK}
+     * @param messageCount the number of transactions committed
+     * @param firstTimestamp the time the first block was committed, in milliseconds since the
+     *                       epoch, or 0 if no block was committed
+     * @param lastTimestamp the time the last block was committed, or 0
+     * @param dbSizeBytes the size of the database directory
+     */
+    public ArchiveMetadata(long lastBlockIndex, long messageCount, long firstTimestamp,
+                           long lastTimestamp, long dbSizeBytes) {
+        this.lastBlockIndex = lastBlockIndex;
+        this.messageCount = messageCount;
+        this.firstTimestamp = firstTimestamp;
+        this.lastTimestamp = lastTimestamp;
+        this.dbSizeBytes = dbSizeBytes;
+    }
+
+    /**
+     * Read the metadata of a config directory
+     * @param configDir the config directory
+     * @return the metadata, or null if the directory has no readable sidecar file
+     */
+    public static ArchiveMetadata read(File configDir) {
+        File file = new File(configDir, FILE_NAME);
+        if (!file.exists()) {
+            return null;
+        }
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            return sGson.fromJson(reader, ArchiveMetadata.class);
+        } catch (IOException | JsonParseException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Write the metadata to the sidecar file of a config directory, replacing it atomically
+     * @param configDir the config directory
+     * @throws IOException if the file could not be written
+     */
+    public void write(File configDir) throws IOException {
+        ConfigWriter.writeFile(new File(configDir, FILE_NAME), sGson.toJson(this));
+    }
+
+    /**
+     * @return the index of the last block committed, or {@link #NO_BLOCK}
+     */
+    public long getLastBlockIndex() {
+        return lastBlockIndex;
+    }
+
+    /**
+     * @return the number of transactions committed
+     */
+    public long getMessageCount() {
+        return messageCount;
+    }
+
+    /**
+     * @return the time the first block was committed, in milliseconds since the epoch, or 0
+     */
+    public long getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    /**
+     * @return the time the last block was committed, in milliseconds since the epoch, or 0
+     */
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    /**
+     * @return the size of the database directory in bytes
+     */
+    public long getDbSizeBytes() {
+        return dbSizeBytes;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018- Mosaic Networks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.mosaicnetworks.babble.node;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+
+/**
+ * Accumulates the {@link ArchiveMetadata} of a config directory as blocks are committed. Blocks
+ * are counted in memory, the sidecar file is written on the {@link ConfigWriter} thread at most
+ * once per flush interval, and when {@link #flush()} is called as the node stops. The database is
+ * only measured when the sidecar is written.
+ *
+ * Recording starts from an empty summary, as a new config directory is created each time a group
+ * is created or joined.
+ */
+public final class ArchiveMetadataRecorder {
+
+    /**
+     * The minimum time between two writes of the sidecar file while blocks are committed
+     */
+    public static final long FLUSH_INTERVAL_MS = 5000;
+
+    private final File mConfigDir;
+    private final ConfigWriter mWriter;
+
+    private final Object mLock = new Object();
+    private long mLastBlockIndex = ArchiveMetadata.NO_BLOCK;
+    private long mMessageCount = 0;
+    private long mFirstTimestamp = 0;
+    private long mLastTimestamp = 0;
+    private long mLastFlushAt = 0;
+
+    /**
+     * @param configDir the config directory used by the node
+     */
+    public ArchiveMetadataRecorder(File configDir) {
+        this(configDir, ConfigWriter.getInstance());
+    }
+
+    ArchiveMetadataRecorder(File configDir, ConfigWriter writer) {
+        mConfigDir = configDir;
+        mWriter = writer;
+    }
+
+    /**
+     * Record a committed block, at the current time
+     * @param block the block
+     */
+    public void onBlockCommitted(Block block) {
+        onBlockCommitted(block, System.currentTimeMillis());
+    }
+
+    void onBlockCommitted(Block block, long nowMs) {
+        boolean flush;
+        synchronized (mLock) {
+            mLastBlockIndex = block.body.index;
+            mMessageCount += block.body.transactions.length;
+            if (mFirstTimestamp == 0) {
+                mFirstTimestamp = nowMs;
+            }
+            mLastTimestamp = nowMs;
+
+            flush = nowMs - mLastFlushAt >= FLUSH_INTERVAL_MS;
+            if (flush) {
+                mLastFlushAt = nowMs;
+            }
+        }
+
+        if (flush) {
+            flush();
+        }
+    }
+
+    /**
+     * Write the sidecar file with the blocks recorded so far
+     * @return a future completed with the metadata written, or with the write error
+     */
+    public ListenableFuture<ArchiveMetadata> flush() {
+        final long lastBlockIndex;
+        final long messageCount;
+        final long firstTimestamp;
+        final long lastTimestamp;
+        synchronized (mLock) {
+            lastBlockIndex = mLastBlockIndex;
+            messageCount = mMessageCount;
+            firstTimestamp = mFirstTimestamp;
+            lastTimestamp = mLastTimestamp;
+        }
+
+        return mWriter.submit(new Callable<ArchiveMetadata>() {
+            @Override
+            public ArchiveMetadata call() throws Exception {
+                ArchiveMetadata metadata = new ArchiveMetadata(lastBlockIndex, messageCount,
+                        firstTimestamp, lastTimestamp,
+                        ArchiveCatalog.directorySize(new File(mConfigDir, ArchiveMetadata.DB_SUB_DIR)));
+                metadata.write(mConfigDir);
+                return metadata;
+            }
+        });
+    }
+}
@@ -0,0 +1,504 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018- Mosaic Networks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.mosaicnetworks.babble.node;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningScheduledExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies a {@link RetentionPolicy} to the config directories in the {@link ArchiveCatalog}, on a
+ * background thread. Backups are pruned for exceeding the number of backups of their group, then
+ * for their age, then, oldest first, until all the directories fit in the space allowed. The
+ * backups which are kept can then be compacted into exported files.
+ *
+ * A backup is as old as the last block committed to it, or as its directory if it has no
+ * metadata. Directories in use by a node, and the live directory of each group, are never touched.
+ * Backups already compacted into {@link #COMPACTED_DIR} count towards the policy too, and are
+ * pruned by deleting their file.
+ */
+public final class ArchiveRetention {
+
+    /**
+     * The directory under the babble root holding compacted backups. Its name is not a valid
+     * config directory name, so it is never listed as an archive.
+     */
+    public static final String COMPACTED_DIR = ".compacted";
+
+    /**
+     * Compacts a backup, abstracted so that it can be done under the config manager's locks
+     */
+    public interface Compactor {
+
+        /**
+         * Compact a backup into a single file, removing its directory
+         * @param directoryName the config directory name, with no path
+         * @return the number of bytes saved, or 0 if the backup was kept as it is
+         * @throws IOException if the backup could not be compacted, in which case it is kept
+         */
+        long compact(String directoryName) throws IOException;
+    }
+
+    /**
+     * Receives a report after each scheduled run
+     */
+    public interface Listener {
+
+        /**
+         * Called on the retention thread
+         * @param report the outcome of the run
+         */
+        void onRetentionRun(Report report);
+    }
+
+    /**
+     * The outcome of a run
+     */
+    public static final class Report {
+
+        private final int mPrunedCount;
+        private final int mCompactedCount;
+        private final int mFailedCount;
+        private final long mReclaimedBytes;
+
+        Report(int prunedCount, int compactedCount, int failedCount, long reclaimedBytes) {
+            mPrunedCount = prunedCount;
+            mCompactedCount = compactedCount;
+            mFailedCount = failedCount;
+            mReclaimedBytes = reclaimedBytes;
+        }
+
+        /**
+         * @return the number of backups deleted
+         */
+        public int getPrunedCount() {
+            return mPrunedCount;
+        }
+
+        /**
+         * @return the number of backups compacted
+         */
+        public int getCompactedCount() {
+            return mCompactedCount;
+        }
+
+        /**
+         * @return the number of backups which could not be deleted or compacted
+         */
+        public int getFailedCount() {
+            return mFailedCount;
+        }
+
+        /**
+         * @return the space freed by deleting and compacting backups, in bytes
+         */
+        public long getReclaimedBytes() {
+            return mReclaimedBytes;
+        }
+    }
+
+    /**
+     * A config directory, as seen by the policy
+     */
+    static final class Candidate {
+        final String directoryName;
+        final String uniqueId;
+        final boolean isBackup;
+        final int backupVersion;
+        final long sizeBytes;
+        final long lastUsedMs;
+        // false for live directories and directories in use
+        final boolean removable;
+        // the file of a compacted backup, null for a config directory
+        final File compactedFile;
+
+        Candidate(String directoryName, String uniqueId, boolean isBackup, int backupVersion,
+                  long sizeBytes, long lastUsedMs, boolean removable) {
+            this(directoryName, uniqueId, isBackup, backupVersion, sizeBytes, lastUsedMs, removable,
+                    null);
+        }
+
+        Candidate(String directoryName, String uniqueId, boolean isBackup, int backupVersion,
+                  long sizeBytes, long lastUsedMs, boolean removable, File compactedFile) {
+            this.directoryName = directoryName;
+            this.uniqueId = uniqueId;
+            this.isBackup = isBackup;
+            this.backupVersion = backupVersion;
+            this.sizeBytes = sizeBytes;
+            this.lastUsedMs = lastUsedMs;
+            this.removable = removable;
+            this.compactedFile = compactedFile;
+        }
+    }
+
+    private static final Comparator<Candidate> OLDEST_FIRST = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate a, Candidate b) {
+            if (a.lastUsedMs != b.lastUsedMs) {
+                return a.lastUsedMs < b.lastUsedMs ? -1 : 1;
+            }
+            return Integer.compare(a.backupVersion, b.backupVersion);
+        }
+    };
+
+    private final File mRootDir;
+    private final ArchiveCatalog mCatalog;
+    private final ArchiveDeleter mDeleter;
+    private final Compactor mCompactor;
+    private final ListeningScheduledExecutorService mExecutor;
+    private final Set<String> mInUse = new HashSet<>();
+
+    private ScheduledFuture<?> mSchedule;
+    private Report mLastReport;
+    private long mTotalReclaimedBytes = 0;
+
+    /**
+     * @param rootDir the babble root directory
+     * @param catalog the catalog of the root directory
+     * @param deleter the deleter of the root directory
+     * @param compactor compacts backups
+     */
+    public ArchiveRetention(File rootDir, ArchiveCatalog catalog, ArchiveDeleter deleter,
+                            Compactor compactor) {
+        this(rootDir, catalog, deleter, compactor, Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "babble-retention");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                }));
+    }
+
+    ArchiveRetention(File rootDir, ArchiveCatalog catalog, ArchiveDeleter deleter,
+                     Compactor compactor, ScheduledExecutorService executor) {
+        mRootDir = rootDir;
+        mCatalog = catalog;
+        mDeleter = deleter;
+        mCompactor = compactor;
+        mExecutor = MoreExecutors.listeningDecorator(executor);
+    }
+
+    /**
+     * Mark a config directory as in use by a node, or no longer in use. A directory in use is
+     * never pruned or compacted.
+     * @param directoryName the config directory name, with no path
+     * @param inUse true if the directory is in use
+     */
+    public void setInUse(String directoryName, boolean inUse) {
+        synchronized (mInUse) {
+            if (inUse) {
+                mInUse.add(directoryName);
+            } else {
+                mInUse.remove(directoryName);
+            }
+        }
+    }
+
+    /**
+     * Apply a policy once, in the background
+     * @param policy the policy
+     * @return a future completed with the report of the run
+     */
+    public ListenableFuture<Report> run(final RetentionPolicy policy) {
+        return mExecutor.submit(new Callable<Report>() {
+            @Override
+            public Report call() throws Exception {
+                return apply(policy);
+            }
+        });
+    }
+
+    /**
+     * Apply a policy periodically, replacing any previous schedule. The first run is after one
+     * interval.
+     * @param policy the policy
+     * @param intervalMs the time between the end of a run and the start of the next
+     * @param listener receives the report of each run, may be null
+     */
+    public synchronized void schedule(final RetentionPolicy policy, long intervalMs,
+                                      final Listener listener) {
+        cancel();
+        mSchedule = mExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                Report report;
+                try {
+                    report = apply(policy);
+                } catch (Exception e) {
+                    // the next run starts from the catalog afresh
+                    return;
+                }
+                if (listener != null) {
+                    listener.onRetentionRun(report);
+                }
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the periodic runs. A run in progress is completed.
+     */
+    public synchronized void cancel() {
+        if (mSchedule != null) {
+            mSchedule.cancel(false);
+            mSchedule = null;
+        }
+    }
+
+    /**
+     * @return the report of the last run, or null if there has been none
+     */
+    public synchronized Report getLastReport() {
+        return mLastReport;
+    }
+
+    /**
+     * @return the space freed by all the runs so far, in bytes
+     */
+    public synchronized long getTotalReclaimedBytes() {
+        return mTotalReclaimedBytes;
+    }
+
+    private Report apply(RetentionPolicy policy) throws Exception {
+        long now = System.currentTimeMillis();
+        List<Candidate> candidates = collectCandidates();
+
+        Map<String, Candidate> pruned = new HashMap<>();
+        List<Candidate> prunedFiles = new ArrayList<>();
+        for (Candidate candidate : select(candidates, policy, now)) {
+            if (candidate.compactedFile == null) {
+                pruned.put(candidate.directoryName, candidate);
+            } else {
+                prunedFiles.add(candidate);
+            }
+        }
+
+        int prunedCount = 0;
+        int failedCount = 0;
+        long reclaimedBytes = 0;
+        for (Candidate candidate : prunedFiles) {
+            // a restore in progress keeps reading the file it has opened
+            if (candidate.compactedFile.delete() || !candidate.compactedFile.exists()) {
+                prunedCount++;
+                reclaimedBytes += candidate.sizeBytes;
+            } else {
+                failedCount++;
+            }
+        }
+        if (!pruned.isEmpty()) {
+            ArchiveDeleter.Result result = mDeleter.delete(new ArrayList<>(pruned.keySet()), null,
+                    MoreExecutors.directExecutor()).get();
+            for (String name : result.getDeleted()) {
+                prunedCount++;
+                reclaimedBytes += pruned.get(name).sizeBytes;
+            }
+            failedCount += result.getFailed().size();
+        }
+
+        int compactedCount = 0;
+        for (Candidate candidate : selectForCompaction(candidates, pruned.keySet(), policy, now)) {
+            if (isInUse(candidate.directoryName)) {
+                continue;
+            }
+            try {
+                long saved = mCompactor.compact(candidate.directoryName);
+                if (saved > 0) {
+                    compactedCount++;
+                    reclaimedBytes += saved;
+                }
+            } catch (IOException e) {
+                failedCount++;
+            }
+        }
+
+        Report report = new Report(prunedCount, compactedCount, failedCount, reclaimedBytes);
+        synchronized (this) {
+            mLastReport = report;
+            mTotalReclaimedBytes += reclaimedBytes;
+        }
+        return report;
+    }
+
+    private List<Candidate> collectCandidates() {
+        List<Candidate> candidates = new ArrayList<>();
+        for (ConfigDirectory directory : mCatalog.getDirectories()) {
+            File dir = new File(mRootDir, directory.directoryName);
+            ArchiveCatalog.Entry entry = mCatalog.getEntry(directory.directoryName);
+
+            long size = entry == null ? 0 : entry.getSizeBytes();
+            if (size <= 0) {
+                size = ArchiveCatalog.directorySize(dir);
+            }
+
+            ArchiveMetadata metadata = ArchiveMetadata.read(dir);
+            long lastUsed = metadata != null && metadata.getLastTimestamp() > 0
+                    ? metadata.getLastTimestamp()
+                    : dir.lastModified();
+
+            candidates.add(new Candidate(directory.directoryName, directory.uniqueId,
+                    directory.isBackup, directory.BackUpVersion, size, lastUsed,
+                    directory.isBackup && !isInUse(directory.directoryName)));
+        }
+
+        File[] files = new File(mRootDir, COMPACTED_DIR).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.endsWith(ArchiveTransfer.FILE_EXTENSION)) {
+                    continue;
+                }
+                // the file is named after the directory it was compacted from
+                ConfigDirectory directory;
+                try {
+                    directory = new ConfigDirectory(name.substring(0,
+                            name.length() - ArchiveTransfer.FILE_EXTENSION.length()));
+                } catch (IllegalArgumentException e) {
+                    continue;
+                }
+                if (!directory.isBackup) {
+                    continue;
+                }
+                candidates.add(new Candidate(name, directory.uniqueId, true,
+                        directory.BackUpVersion, file.length(), file.lastModified(), true, file));
+            }
+        }
+        return candidates;
+    }
+
+    private boolean isInUse(String directoryName) {
+        synchronized (mInUse) {
+            return mInUse.contains(directoryName);
+        }
+    }
+
+    /**
+     * Work out which directories a policy prunes
+     * @param candidates all the config directories
+     * @param policy the policy
+     * @param now the current time in milliseconds
+     * @return the directories to prune, in the order the policy selected them
+     */
+    static List<Candidate> select(List<Candidate> candidates, RetentionPolicy policy, long now) {
+        Set<Candidate> pruned = new LinkedHashSet<>();
+
+        if (policy.maxBackupsPerGroup != RetentionPolicy.UNLIMITED) {
+            Map<String, List<Candidate>> groups = new HashMap<>();
+            for (Candidate candidate : candidates) {
+                if (candidate.isBackup) {
+                    List<Candidate> group = groups.get(candidate.uniqueId);
+                    if (group == null) {
+                        group = new ArrayList<>();
+                        groups.put(candidate.uniqueId, group);
+                    }
+                    group.add(candidate);
+                }
+            }
+            for (List<Candidate> group : groups.values()) {
+                // the highest version is the newest backup
+                Collections.sort(group, new Comparator<Candidate>() {
+                    @Override
+                    public int compare(Candidate a, Candidate b) {
+                        return Integer.compare(b.backupVersion, a.backupVersion);
+                    }
+                });
+                for (int i = (int) policy.maxBackupsPerGroup; i < group.size(); i++) {
+                    if (group.get(i).removable) {
+                        pruned.add(group.get(i));
+                    }
+                }
+            }
+        }
+
+        if (policy.maxAgeMs != RetentionPolicy.UNLIMITED) {
+            for (Candidate candidate : candidates) {
+                if (candidate.removable && now - candidate.lastUsedMs > policy.maxAgeMs) {
+                    pruned.add(candidate);
+                }
+            }
+        }
+
+        if (policy.maxTotalBytes != RetentionPolicy.UNLIMITED) {
+            long total = 0;
+            List<Candidate> remaining = new ArrayList<>();
+            for (Candidate candidate : candidates) {
+                if (!pruned.contains(candidate)) {
+                    total += candidate.sizeBytes;
+                    if (candidate.removable) {
+                        remaining.add(candidate);
+                    }
+                }
+            }
+            Collections.sort(remaining, OLDEST_FIRST);
+            for (int i = 0; i < remaining.size() && total > policy.maxTotalBytes; i++) {
+                pruned.add(remaining.get(i));
+                total -= remaining.get(i).sizeBytes;
+            }
+        }
+
+        return new ArrayList<>(pruned);
+    }
+
+    /**
+     * Work out which of the directories kept by a policy are compacted
+     */
+    static List<Candidate> selectForCompaction(List<Candidate> candidates, Set<String> pruned,
+                                               RetentionPolicy policy, long now) {
+        List<Candidate> compacted = new ArrayList<>();
+        if (policy.compactAfterMs == RetentionPolicy.UNLIMITED) {
+            return compacted;
+        }
+        for (Candidate candidate : candidates) {
+            if (candidate.removable && candidate.compactedFile == null &&
+                    !pruned.contains(candidate.directoryName) &&
+                    now - candidate.lastUsedMs > policy.compactAfterMs) {
+                compacted.add(candidate);
+            }
+        }
+        Collections.sort(compacted, OLDEST_FIRST);
+        return compacted;
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018- Mosaic Networks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.mosaicnetworks.babble.node;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Streams a config directory, i.e. the babble configuration and the database holding the group's
+ * committed blocks, to and from a single portable file. Both directions read and write one chunk
+ * at a time, so the memory used does not depend on the size of the archive.
+ *
+ * The file starts with a header holding the name of the exported directory. Each file of the
+ * directory follows as its relative path and a sequence of chunks, ended by an empty chunk. Each
+ * chunk is compressed on its own and carries the CRC32 of its uncompressed bytes, so corruption
+ * is detected in the chunk where it happens. The file ends with an end marker, so a truncated file
+ * is never mistaken for a complete one.
+ *
+ * The private key of the exporting node is never exported.
+ */
+public final class ArchiveTransfer {
+
+    /**
+     * The recommended extension of an exported archive
+     */
+    public static final String FILE_EXTENSION = ".babble";
+
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final byte[] MAGIC = {'B', 'A', 'B', 'L', 'A', 'R', 'C', 'H'};
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int ENTRY_END = 0;
+    private static final int ENTRY_FILE = 1;
+
+    // the worst case size of a deflated chunk, with room for the stored block headers
+    private static final int MAX_COMPRESSED_CHUNK = CHUNK_SIZE + CHUNK_SIZE / 1024 + 64;
+
+    private static final String PRIV_KEY_FILE = "priv_key";
+
+    private ArchiveTransfer() {
+    }
+
+    /**
+     * Export a config directory to a stream, in the calling thread
+     * @param directory the config directory
+     * @param outputStream the stream to write to, which is not closed
+     * @throws IOException if the directory could not be read or the stream written
+     */
+    public static void export(File directory, OutputStream outputStream) throws IOException {
+        if (!directory.isDirectory()) {
+            throw new IOException("Not a directory: " + directory);
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream, CHUNK_SIZE));
+        out.write(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeUTF(directory.getName());
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            exportTree(directory, "", out, new byte[CHUNK_SIZE], deflater,
+                    new ByteArrayOutputStream(MAX_COMPRESSED_CHUNK));
+        } finally {
+            deflater.end();
+        }
+
+        out.writeByte(ENTRY_END);
+        out.flush();
+    }
+
+    /**
+     * Import an exported config directory from a stream, in the calling thread. The files are
+     * written to a directory which must not already hold any of them. On failure, the files
+     * imported so far are left in place for the caller to delete.
+     * @param inputStream the stream to read from, which is not closed
+     * @param directory the directory to import into, created if needed
+     * @return the name of the directory which was exported
+     * @throws IOException if the stream is not a valid archive or is corrupt, or if the directory
+     * could not be written
+     */
+    public static String importInto(InputStream inputStream, File directory) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream, CHUNK_SIZE));
+
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a babble archive");
+        }
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported archive format version " + version);
+        }
+        String directoryName = in.readUTF();
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+
+        byte[] raw = new byte[CHUNK_SIZE];
+        byte[] compressed = new byte[MAX_COMPRESSED_CHUNK];
+        Inflater inflater = new Inflater();
+        try {
+            while (true) {
+                int entry = in.readUnsignedByte();
+                if (entry == ENTRY_END) {
+                    return directoryName;
+                }
+                if (entry != ENTRY_FILE) {
+                    throw new IOException("Corrupt archive: unknown entry " + entry);
+                }
+                importFile(in, resolve(directory, in.readUTF()), raw, compressed, inflater);
+            }
+        } catch (EOFException e) {
+            throw new IOException("Corrupt archive: truncated", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void exportTree(File directory, String prefix, DataOutputStream out, byte[] raw,
+                                   Deflater deflater, ByteArrayOutputStream compressed)
+            throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Could not list " + directory);
+        }
+        // a stable order makes two exports of the same directory identical
+        Arrays.sort(files);
+
+        for (File file : files) {
+            String path = prefix + file.getName();
+            if (file.isDirectory()) {
+                exportTree(file, path + "/", out, raw, deflater, compressed);
+            } else if (!isExcluded(path)) {
+                out.writeByte(ENTRY_FILE);
+                out.writeUTF(path);
+                exportFile(file, out, raw, deflater, compressed);
+            }
+        }
+    }
+
+    private static boolean isExcluded(String path) {
+        return path.equals(PRIV_KEY_FILE) || path.endsWith(ConfigWriter.TEMP_SUFFIX);
+    }
+
+    private static void exportFile(File file, DataOutputStream out, byte[] raw, Deflater deflater,
+                                   ByteArrayOutputStream compressed) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[8 * 1024];
+
+        try (InputStream in = new FileInputStream(file)) {
+            int length;
+            while ((length = readChunk(in, raw)) > 0) {
+                deflater.reset();
+                deflater.setInput(raw, 0, length);
+                deflater.finish();
+                compressed.reset();
+                while (!deflater.finished()) {
+                    compressed.write(buffer, 0, deflater.deflate(buffer));
+                }
+
+                crc.reset();
+                crc.update(raw, 0, length);
+
+                out.writeInt(length);
+                out.writeInt(compressed.size());
+                out.writeInt((int) crc.getValue());
+                compressed.writeTo(out);
+            }
+        }
+        out.writeInt(0);
+    }
+
+    private static void importFile(DataInputStream in, File file, byte[] raw, byte[] compressed,
+                                   Inflater inflater) throws IOException {
+        if (file.exists()) {
+            throw new IOException("Corrupt archive: duplicate file " + file.getName());
+        }
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+        }
+
+        CRC32 crc = new CRC32();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            int length;
+            while ((length = in.readInt()) != 0) {
+                int compressedLength = in.readInt();
+                int expectedCrc = in.readInt();
+                if (length < 0 || length > CHUNK_SIZE || compressedLength < 0 ||
+                        compressedLength > MAX_COMPRESSED_CHUNK) {
+                    throw new IOException("Corrupt archive: bad chunk in " + file.getName());
+                }
+                in.readFully(compressed, 0, compressedLength);
+
+                inflater.reset();
+                inflater.setInput(compressed, 0, compressedLength);
+                int inflated;
+                try {
+                    inflated = inflater.inflate(raw, 0, length);
+                } catch (DataFormatException e) {
+                    throw new IOException("Corrupt archive: bad chunk in " + file.getName(), e);
+                }
+
+                crc.reset();
+                crc.update(raw, 0, inflated);
+                if (inflated != length || !inflater.finished() || (int) crc.getValue() != expectedCrc) {
+                    throw new IOException("Corrupt archive: checksum mismatch in " + file.getName());
+                }
+                out.write(raw, 0, length);
+            }
+            out.flush();
+            out.getFD().sync();
+        }
+    }
+
+    // the paths come from the file, so they must not be allowed to escape the target directory
+    private static File resolve(File directory, String path) throws IOException {
+        if (path.isEmpty() || path.startsWith("/")) {
+            throw new IOException("Corrupt archive: bad path " + path);
+        }
+        File file = directory;
+        for (String part : path.split("/")) {
+            if (part.isEmpty() || part.equals(".") || part.equals("..")) {
+                throw new IOException("Corrupt archive: bad path " + path);
+            }
+            file = new File(file, part);
+        }
+        return file;
+    }
+
+    private static int readChunk(InputStream in, byte[] chunk) throws IOException {
+        int length = 0;
+        while (length < chunk.length) {
+            int read = in.read(chunk, length, chunk.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+        return length;
+    }
+}
@@ -58,17 +58,20 @@ public final class Block {
      */
     public static final class BlockBody {
 
+        // not final, a final field initialised with a constant is inlined by the compiler, so the
+        // values set by Gson would never be read
+
         /**
          * The block index
          */
         @SerializedName("Index")
-        public final int index = 0;
+        public int index = 0;
 
         /**
          * Round received parameter
          */
         @SerializedName("RoundReceived")
-        public final int roundReceived = 0;
+        public int roundReceived = 0;
 
         /**
          * The State Hash of the block
@@ -118,6 +118,17 @@ public final class ConfigDirectory {
         return tempArray[0]+"_"+tempArray[1]+"_"+tempArray[2]+"_";
     }
 
+    /**
+     * Checks that a unique ID is safe to use in a config directory name, i.e. that it is made of
+     * letters and digits only, as the IDs generated for groups are. A unique ID read from an
+     * untrusted source, such as an imported archive, must be checked before it is used.
+     * @param uniqueId the unique ID
+     * @return true if the unique ID is not empty and strictly alphanumeric
+     */
+    public static boolean isValidUniqueId(String uniqueId) {
+        return uniqueId != null && uniqueId.matches("[a-zA-Z0-9]+");
+    }
+
     /**
      * Encodes the description to make it filename safe. Spaces become minus signs, all other
      * non-alphanumeric characters are striped
@@ -27,21 +27,29 @@ package io.mosaicnetworks.babble.node;
 import android.content.Context;
 import android.util.Log;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Striped;
 import com.google.gson.Gson;
-import com.moandjiezana.toml.Toml;
 import com.moandjiezana.toml.TomlWriter;
 
 import java.io.File;
-import java.io.FileWriter;
-import java.io.FilenameFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Lock;
 
 import io.mosaicnetworks.babble.service.BabbleService;
 import io.mosaicnetworks.babble.servicediscovery.webrtc.Constants;
@@ -67,14 +75,40 @@ public final class ConfigManager {
         ABORT
     }
 
+    /**
+     * The number of locks shared between the groups. Operations on groups with different locks
+     * run concurrently, operations on the same group always run one at a time.
+     */
+    private static final int GROUP_LOCK_STRIPES = 32;
+
+    /**
+     * The directory under the babble root in which archives are imported before they are given
+     * their final name. Its name is not a valid config directory name, so it is never listed.
+     */
+    private static final String IMPORT_DIR = ".import";
+
+    /**
+     * The number of key pairs generated ahead of time
+     */
+    private static final int KEY_POOL_SIZE = 1;
+
+    private static KeyProvider sKeyProvider = new MobileKeyProvider();
+
     private static ConfigManager INSTANCE;
-    private int mUniqueIdLength = 12;
+    private volatile int mUniqueIdLength = 12;
     private String mRootDir = "";
-    private String mTomlDir = "";
-    private String mMoniker = "";
+    // the directory and moniker of the last group configured, for the benefit of older callers
+    private volatile String mTomlDir = "";
+    private volatile String mMoniker = "";
+    private final Striped<Lock> mGroupLocks = Striped.lock(GROUP_LOCK_STRIPES);
     private final String mAppId;
     private static ConfigDirectoryBackupPolicy sConfigDirectoryBackupPolicy = ConfigDirectoryBackupPolicy.SINGLE_BACKUP;
-    private ArrayList<ConfigDirectory> mDirectories = new ArrayList<>();
+    private static volatile boolean sSeedFromBackup = false;
+    private ArchiveCatalog mCatalog;
+    private ArchiveDeleter mDeleter;
+    private ArchiveRetention mRetention;
+    private final TomlConfigCache mTomlCache = new TomlConfigCache();
+    private final KeyPool mKeyPool;
     private KeyPair mKeyPair;
     private String mBabbleRootDir = "babble";
     private int mDefaultBabblePort = 6666;
@@ -91,7 +125,7 @@ public final class ConfigManager {
      * @param context Context. Used to call getFilesDir to find the path to the babble config dirs
      * @return an instance of ConfigManager
      */
-    public static ConfigManager getInstance(Context context) {
+    public static synchronized ConfigManager getInstance(Context context) {
         if (INSTANCE==null) {
             INSTANCE = new ConfigManager(context.getApplicationContext());
         }
@@ -99,6 +133,27 @@ public final class ConfigManager {
         return INSTANCE;
     }
 
+    /**
+     * Set the provider of the node's key pairs, e.g. a pure Java provider in tests. This must be
+     * called before the first call to {@link #getInstance(Context)}.
+     * @param keyProvider the key provider
+     * @throws IllegalStateException if the ConfigManager has already been created
+     */
+    public static synchronized void setKeyProvider(KeyProvider keyProvider) {
+        if (INSTANCE != null) {
+            throw new IllegalStateException("The key provider must be set before the ConfigManager is created");
+        }
+        sKeyProvider = keyProvider;
+    }
+
+    /**
+     * Forget the instance, so that the next call to {@link #getInstance(Context)} creates one
+     * afresh, as on a cold start. Only for benchmarks.
+     */
+    static synchronized void resetInstance() {
+        INSTANCE = null;
+    }
+
     /**
      * Create an object to manage multiple Babble Configs
      * @param appContext the application context
@@ -109,16 +164,45 @@ public final class ConfigManager {
         }
 
         mAppId = appContext.getPackageName();
-        mKeyPair = new KeyPair(); //TODO:  how should the key be handled??
+        // the key pair is generated in the background, it is only waited for when first needed
+        mKeyPool = new KeyPool(sKeyProvider, KEY_POOL_SIZE);
+        mKeyPool.fill();
         File babbleDir = new File(mRootDir, mBabbleRootDir);
 
-        if (babbleDir.exists()) {
-            populateDirectories(babbleDir);
-        } else { // First run, so we create the root dir - clearly no sub dirs yet
+        if (!babbleDir.exists()) { // First run, so we create the root dir - clearly no sub dirs yet
             if ( ( ! babbleDir.mkdirs() ) && (! babbleDir.exists())) {
                 throw new RuntimeException("Could not make babble config directory");
             }
         }
+
+        // the directories are read from the catalog, the root dir is only scanned if it is lost
+        mCatalog = ArchiveCatalog.load(babbleDir);
+
+        // imports interrupted when the app last stopped are thrown away with the trash
+        File importDir = new File(babbleDir, IMPORT_DIR);
+        File trashDir = new File(babbleDir, ArchiveDeleter.TRASH_DIR);
+        if (importDir.exists() && (trashDir.isDirectory() || trashDir.mkdirs())) {
+            if (!importDir.renameTo(new File(trashDir, IMPORT_DIR + "-" + UUID.randomUUID()))) {
+                Log.w("ConfigManager", "Could not clear interrupted imports");
+            }
+        }
+
+        // finish any deletion interrupted when the app last stopped
+        mDeleter = new ArchiveDeleter(babbleDir, mCatalog, new ArchiveDeleter.GroupLocks() {
+            @Override
+            public Lock lock(String directoryName) {
+                return lockGroup(getHandle(directoryName));
+            }
+        });
+        mDeleter.purge();
+
+        mRetention = new ArchiveRetention(babbleDir, mCatalog, mDeleter,
+                new ArchiveRetention.Compactor() {
+                    @Override
+                    public long compact(String directoryName) throws IOException {
+                        return compactArchive(directoryName);
+                    }
+                });
     }
     
     /**
@@ -147,6 +231,28 @@ public final class ConfigManager {
         ConfigManager.sConfigDirectoryBackupPolicy = mConfigDirectoryBackupPolicy;
     }
 
+    /**
+     * Whether a new config directory replacing a backed up one is seeded with the backup's
+     * database. See {@link #setSeedFromBackup(boolean)}.
+     * @return true if new config directories are seeded
+     */
+    public boolean isSeedFromBackup() {
+        return sSeedFromBackup;
+    }
+
+    /**
+     * When set, and the backup policy is SINGLE_BACKUP or COMPLETE_BACKUP, a group's new config
+     * directory starts with a snapshot of the database of the directory it replaces, and the node
+     * bootstraps from it. Rejoining a group then only syncs the blocks committed since the node
+     * left, rather than the whole history. The snapshot shares the database tables and the
+     * rotated value logs with the backup through hard links. Only the newest value log and the
+     * manifest are copied, so it takes little time or space. Defaults to false.
+     * @param seedFromBackup true to seed new config directories
+     */
+    public void setSeedFromBackup(boolean seedFromBackup) {
+        sSeedFromBackup = seedFromBackup;
+    }
+
     /**
      * Getter method for Unique ID Length
      *
@@ -198,6 +304,18 @@ public final class ConfigManager {
         return createConfigNewGroup(groupDescriptor, moniker, peersInetAddress, babbleInetAddress, mDefaultBabblePort, networkType);
     }
 
+    /**
+     * Configure the service to create a new group using the default ports and a performance
+     * profile
+     * @param moniker node moniker
+     * @param profile the gossip settings of the node in this group, or null to keep those of the
+     *                group's live config, if any, and otherwise {@link NodeConfig.Profile#BALANCED}
+     * @throws IllegalStateException if the service is currently running
+     */
+    public String createConfigNewGroup(GroupDescriptor groupDescriptor, String moniker,  String peersInetAddress, String babbleInetAddress, int networkType, NodeConfig.Profile profile) {
+        return createConfigNewGroup(groupDescriptor, moniker, peersInetAddress, babbleInetAddress, mDefaultBabblePort, networkType, profile);
+    }
+
     /**
      * Configure the service to create a new group, overriding the default ports
      * @param moniker node moniker
@@ -206,15 +324,28 @@ public final class ConfigManager {
      * @throws IllegalStateException if the service is currently running
      */
     public String createConfigNewGroup(GroupDescriptor groupDescriptor, String moniker,  String peersInetAddress, String babbleInetAddress, int babblingPort, int networkType) {
+        return createConfigNewGroup(groupDescriptor, moniker, peersInetAddress, babbleInetAddress, babblingPort, networkType, null);
+    }
+
+    /**
+     * Configure the service to create a new group, overriding the default ports and with a
+     * performance profile
+     * @param moniker node moniker
+     * @param babblingPort the port used for Babble consensus
+     * @param profile the gossip settings of the node in this group, or null to keep those of the
+     *                group's live config, if any, and otherwise {@link NodeConfig.Profile#BALANCED}
+     * @throws IllegalStateException if the service is currently running
+     */
+    public String createConfigNewGroup(GroupDescriptor groupDescriptor, String moniker,  String peersInetAddress, String babbleInetAddress, int babblingPort, int networkType, NodeConfig.Profile profile) {
 
         // In WebRTC mode, the NetAddress is the public key, so we no not append the port number.
         String suffix = peersInetAddress.startsWith("0X") ? "" : ":" + babblingPort;
 
         List<Peer> genesisPeers = new ArrayList<>();
-        genesisPeers.add(new Peer(mKeyPair.publicKey, peersInetAddress +suffix, moniker));
+        genesisPeers.add(new Peer(getKeyPair().publicKey, peersInetAddress +suffix, moniker));
 
         List<Peer> currentPeers = new ArrayList<>();
-        currentPeers.add(new Peer(mKeyPair.publicKey, peersInetAddress + suffix, moniker));
+        currentPeers.add(new Peer(getKeyPair().publicKey, peersInetAddress + suffix, moniker));
 
         return createConfig(
                 genesisPeers,
@@ -223,7 +354,46 @@ public final class ConfigManager {
                 moniker,
                 babbleInetAddress,
                 babblingPort,
-                networkType);
+                networkType,
+                profile);
+    }
+
+    /**
+     * Configure the service to create a new group using the default ports, without blocking the
+     * calling thread. The configuration is written on the {@link ConfigWriter} thread.
+     * @param moniker node moniker
+     * @return a future completed with the config directory
+     */
+    public ListenableFuture<String> createConfigNewGroupAsync(final GroupDescriptor groupDescriptor,
+                                                              final String moniker,
+                                                              final String peersInetAddress,
+                                                              final String babbleInetAddress,
+                                                              final int networkType) {
+        return createConfigNewGroupAsync(groupDescriptor, moniker, peersInetAddress,
+                babbleInetAddress, networkType, null);
+    }
+
+    /**
+     * Configure the service to create a new group using the default ports and a performance
+     * profile, without blocking the calling thread
+     * @param moniker node moniker
+     * @param profile the gossip settings of the node in this group, or null to keep those of the
+     *                group's live config, if any, and otherwise {@link NodeConfig.Profile#BALANCED}
+     * @return a future completed with the config directory
+     */
+    public ListenableFuture<String> createConfigNewGroupAsync(final GroupDescriptor groupDescriptor,
+                                                              final String moniker,
+                                                              final String peersInetAddress,
+                                                              final String babbleInetAddress,
+                                                              final int networkType,
+                                                              final NodeConfig.Profile profile) {
+        return ConfigWriter.getInstance().submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return createConfigNewGroup(groupDescriptor, moniker, peersInetAddress,
+                        babbleInetAddress, networkType, profile);
+            }
+        });
     }
 
     /**
@@ -241,7 +411,7 @@ public final class ConfigManager {
      * @param babblingPort the port used for Babble consensus
      */
     public String setGroupToArchive(ConfigDirectory configDirectory, String inetAddress, int babblingPort) {
-        setTomlDir(configDirectory.directoryName);
+        GroupConfigHandle handle = getHandle(configDirectory.directoryName);
         Map<String, Object> configChanges = new HashMap<>();
         configChanges.put("maintenance-mode", true);
         configChanges.put("listen", inetAddress + ":" + babblingPort);
@@ -249,11 +419,18 @@ public final class ConfigManager {
 
         //TODO: possibly move these amendments into the backup config processing to avoid having to
         //      set them here
-        configChanges.put("datadir", mTomlDir);
-        configChanges.put("db",  mTomlDir + File.separator+ mDbSubDir);
-        amendTomlSettings(configChanges);
+        configChanges.put("datadir", handle.getPath());
+        configChanges.put("db",  handle.getPath() + File.separator+ mDbSubDir);
 
-        return mTomlDir;
+        Lock lock = lockGroup(handle);
+        try {
+            amendTomlSettings(handle, configChanges);
+        } finally {
+            lock.unlock();
+        }
+
+        mTomlDir = handle.getPath();
+        return handle.getPath();
     }
 
     /**
@@ -265,7 +442,68 @@ public final class ConfigManager {
      * @throws IllegalStateException if the service is currently running
      */
     public String createConfigJoinGroup(List<Peer> genesisPeers, List<Peer> currentPeers, GroupDescriptor groupDescriptor, String moniker, String inetAddress, int networkType) {
-        return createConfig(genesisPeers, currentPeers, groupDescriptor, moniker, inetAddress, mDefaultBabblePort, networkType);
+        return createConfig(genesisPeers, currentPeers, groupDescriptor, moniker, inetAddress, mDefaultBabblePort, networkType, null);
+    }
+
+    /**
+     * Configure the service to join an existing group using the default ports and a performance
+     * profile
+     * @param genesisPeers list of genesis peers
+     * @param currentPeers list of current peers
+     * @param moniker node moniker
+     * @param inetAddress the IPv4 address of the interface to which the Babble node will bind
+     * @param profile the gossip settings of the node in this group, or null to keep those of the
+     *                group's live config, if any, and otherwise {@link NodeConfig.Profile#BALANCED}
+     * @throws IllegalStateException if the service is currently running
+     */
+    public String createConfigJoinGroup(List<Peer> genesisPeers, List<Peer> currentPeers, GroupDescriptor groupDescriptor, String moniker, String inetAddress, int networkType, NodeConfig.Profile profile) {
+        return createConfig(genesisPeers, currentPeers, groupDescriptor, moniker, inetAddress, mDefaultBabblePort, networkType, profile);
+    }
+
+    /**
+     * Configure the service to join an existing group using the default ports, without blocking
+     * the calling thread. The configuration is written on the {@link ConfigWriter} thread.
+     * @param genesisPeers list of genesis peers
+     * @param currentPeers list of current peers
+     * @param moniker node moniker
+     * @param inetAddress the IPv4 address of the interface to which the Babble node will bind
+     * @return a future completed with the config directory
+     */
+    public ListenableFuture<String> createConfigJoinGroupAsync(final List<Peer> genesisPeers,
+                                                               final List<Peer> currentPeers,
+                                                               final GroupDescriptor groupDescriptor,
+                                                               final String moniker,
+                                                               final String inetAddress,
+                                                               final int networkType) {
+        return createConfigJoinGroupAsync(genesisPeers, currentPeers, groupDescriptor, moniker,
+                inetAddress, networkType, null);
+    }
+
+    /**
+     * Configure the service to join an existing group using the default ports and a performance
+     * profile, without blocking the calling thread
+     * @param genesisPeers list of genesis peers
+     * @param currentPeers list of current peers
+     * @param moniker node moniker
+     * @param inetAddress the IPv4 address of the interface to which the Babble node will bind
+     * @param profile the gossip settings of the node in this group, or null to keep those of the
+     *                group's live config, if any, and otherwise {@link NodeConfig.Profile#BALANCED}
+     * @return a future completed with the config directory
+     */
+    public ListenableFuture<String> createConfigJoinGroupAsync(final List<Peer> genesisPeers,
+                                                               final List<Peer> currentPeers,
+                                                               final GroupDescriptor groupDescriptor,
+                                                               final String moniker,
+                                                               final String inetAddress,
+                                                               final int networkType,
+                                                               final NodeConfig.Profile profile) {
+        return ConfigWriter.getInstance().submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return createConfigJoinGroup(genesisPeers, currentPeers, groupDescriptor, moniker,
+                        inetAddress, networkType, profile);
+            }
+        });
     }
 
     /**
@@ -279,28 +517,78 @@ public final class ConfigManager {
      * @throws IllegalStateException if the service is currently running
      */
     public String createConfigJoinGroup(List<Peer> genesisPeers, List<Peer> currentPeers, GroupDescriptor groupDescriptor, String moniker, String inetAddress, int babblingPort, int networkType) throws CannotStartBabbleNodeException, IOException{
-        return createConfig(genesisPeers, currentPeers, groupDescriptor, moniker, inetAddress, babblingPort, networkType); //TODO: group name
+        return createConfig(genesisPeers, currentPeers, groupDescriptor, moniker, inetAddress, babblingPort, networkType, null); //TODO: group name
     }
 
     private String createConfig(List<Peer> genesisPeers, List<Peer> currentPeers, GroupDescriptor groupDescriptor,
-                                String moniker, String inetAddress, int babblingPort, int networkType) {
+                                String moniker, String inetAddress, int babblingPort, int networkType,
+                                NodeConfig.Profile profile) {
+
+        GroupConfigHandle handle = getHandle(getCompositeConfigDir(groupDescriptor));
+
+        // the four files are written as one batch, babble.toml last as it marks a usable config
+        Gson gson = new Gson();
+        Map<String, String> files = new LinkedHashMap<>();
+        files.put(mPeersJsonFile, gson.toJson(currentPeers));
+        files.put(mPeersGenesisJsonFile, gson.toJson(genesisPeers));
+        files.put(mPrivKeyFile, getKeyPair().privateKey);
+
+        Lock lock = lockGroup(handle);
+        try {
+            // read before the live config is backed up
+            if (profile == null) {
+                profile = getLiveProfile(handle);
+            }
+            Map<String, Object> tomlMap = buildTomlMap(handle, getNodeConfig(networkType, profile),
+                    inetAddress, babblingPort, moniker);
+            if (prepareConfigDirectory(handle)) {
+                tomlMap.put("bootstrap", true);
+            }
+            files.put(mBabbleTomlFile, new TomlWriter().write(tomlMap));
+            try {
+                ConfigWriter.writeFiles(handle.directory, files);
+            } catch (IOException e) {
+                Log.e("createConfig", e.toString());
+                throw new RuntimeException(e.toString());
+            } finally {
+                mTomlCache.invalidate(handle.getFile(mBabbleTomlFile));
+            }
+
+            if (isNotExistingConfigDirectory(handle.compositeName)) {
+                addConfigDirectoryToList(handle.compositeName);
+            }
+        } finally {
+            lock.unlock();
+        }
 
-        String compositeGroupName = getCompositeConfigDir(groupDescriptor);
+        mMoniker = moniker;
+        mTomlDir = handle.getPath();
+        return handle.getPath();
+    }
+
+    /**
+     * Get the node configuration written by the createConfig methods, e.g. to look up the signal
+     * and TURN servers a node will use before its configuration is written
+     * @param networkType the network type, as defined in {@link BabbleService}
+     * @return the node configuration
+     */
+    public NodeConfig getNodeConfig(int networkType) {
+        return getNodeConfig(networkType, NodeConfig.Profile.BALANCED);
+    }
 
-        NodeConfig nodeConfig = new NodeConfig.Builder()
+    /**
+     * Get the node configuration written by the createConfig methods for a performance profile
+     * @param networkType the network type, as defined in {@link BabbleService}
+     * @param profile the performance profile
+     * @return the node configuration
+     */
+    public NodeConfig getNodeConfig(int networkType, NodeConfig.Profile profile) {
+        return new NodeConfig.Builder()
+                .profile(profile)
                 .webrtc(networkType == BabbleService.NETWORK_GLOBAL)
                 .signalAddress(networkType == BabbleService.NETWORK_GLOBAL ? Constants.RELAY_SEVER_ADDRESS : "")
                 .skipVerify(mSkipVerify)
                 .build();
-        mMoniker = moniker;
-
-        String fullPath = writeBabbleTomlFiles(nodeConfig, compositeGroupName, inetAddress, babblingPort, moniker);
-        writePeersJsonFiles(fullPath, genesisPeers, currentPeers);
-
-        // private key -- does not overwrite
-        writePrivateKey(fullPath, mKeyPair.privateKey);
-
-        return fullPath;
     }
 
     /**
@@ -310,9 +598,7 @@ public final class ConfigManager {
      */
     public void writePrivateKey(String targetDir, String privateKeyHex) {
         try {
-            FileWriter fileWriter = new FileWriter(new File(targetDir, mPrivKeyFile) );
-            fileWriter.write(privateKeyHex);
-            fileWriter.close();
+            ConfigWriter.writeFile(new File(targetDir, mPrivKeyFile), privateKeyHex);
         } catch (Exception e) {
             // Log.e("writePrivateKey", e.toString());
         }
@@ -326,27 +612,25 @@ public final class ConfigManager {
      */
     public void writePeersJsonFiles(String targetDir, List<Peer> genesisPeers, List<Peer> currentPeers) {
         Gson gson = new Gson();
+        Map<String, String> files = new LinkedHashMap<>();
+        files.put(mPeersJsonFile, gson.toJson(currentPeers));
+        files.put(mPeersGenesisJsonFile, gson.toJson(genesisPeers));
         try {
-            FileWriter fileWriter = new FileWriter(new File(targetDir, mPeersJsonFile));
-            gson.toJson(currentPeers, fileWriter);
-            fileWriter.close();
-        } catch (IOException e) {
-            throw new RuntimeException(e.getMessage());
-        }
-
-        try {
-            FileWriter fileWriter = new FileWriter(new File(targetDir, mPeersGenesisJsonFile));
-            gson.toJson(genesisPeers, fileWriter);
-            fileWriter.close();
+            ConfigWriter.writeFiles(new File(targetDir), files);
         } catch (IOException e) {
             throw new RuntimeException(e.getMessage());
         }
     }
 
     /**
-     * Getter to get  the tomlDir to the full path to the folder containing the babble toml
+     * Getter to get  the tomlDir to the full path to the folder containing the babble toml. This
+     * is the directory of the last group configured by any thread, callers should prefer the path
+     * returned by the method that configured their group.
      * @return the full file path
+     * @deprecated the directory is shared by all threads, use the path returned by the method
+     * that configured the group
      */
+    @Deprecated
     public String getTomlDir() {
         return mTomlDir;
     }
@@ -354,10 +638,13 @@ public final class ConfigManager {
     /**
      * Setter to set the tomlDir to the full path to the folder containing the babble toml
       * @param compositeName the directory name for the config folder. NB this must be the composite version, not the human readable one.
+     * @deprecated the directory is shared by all threads, pass the config directory to
+     * {@link #readTomlFile(String)}, {@link #writeTomlFile(String, Map)} or
+     * {@link #amendTomlSettings(String, Map)} instead
      */
+    @Deprecated
     public void setTomlDir(String compositeName) {
-        mTomlDir = mRootDir + File.separator + mBabbleRootDir + File.separator + compositeName;
-        this.mTomlDir = mTomlDir;
+        mTomlDir = getHandle(compositeName).getPath();
     }
 
     /**
@@ -367,13 +654,38 @@ public final class ConfigManager {
      * @return the composite path where the babble.toml file was written
      */
     public String writeBabbleTomlFiles(NodeConfig nodeConfig, String compositeGroupName, String inetAddress, int port, String moniker) {
+        GroupConfigHandle handle = getHandle(compositeGroupName);
 
-        //TODO: add inetAddress, port and moniker to nodeConfig??
-        Map<String, Object> babble = new HashMap<>();
+        Lock lock = lockGroup(handle);
+        try {
+            Map<String, Object> tomlMap = buildTomlMap(handle, nodeConfig, inetAddress, port, moniker);
+            if (prepareConfigDirectory(handle)) {
+                tomlMap.put("bootstrap", true);
+            }
+            writeTomlFile(handle, tomlMap);
 
-        setTomlDir(compositeGroupName);
+            if (isNotExistingConfigDirectory(compositeGroupName)) {
+                addConfigDirectoryToList(compositeGroupName);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        mTomlDir = handle.getPath();
+        return handle.getPath();
+    }
 
-        File babbleDir = new File(mTomlDir, mDbSubDir);
+    /**
+     * Make a config directory for a group, applying the backup policy to any existing config. The
+     * database is empty, unless it has been seeded from the backup. The caller must hold the
+     * group's lock.
+     * @param handle the config directory
+     * @return true if the database has been seeded
+     */
+    private boolean prepareConfigDirectory(GroupConfigHandle handle) {
+        String compositeGroupName = handle.compositeName;
+        File babbleDir = handle.getFile(mDbSubDir);
+        String backupName = null;
         if (babbleDir.exists()){
             // We have a clash.
             switch (sConfigDirectoryBackupPolicy) {
@@ -382,7 +694,7 @@ public final class ConfigManager {
                 case COMPLETE_BACKUP:
                 case SINGLE_BACKUP:
                     // Rename
-                    backupOldConfigs(compositeGroupName);
+                    backupName = backupOldConfigs(compositeGroupName);
                     break;
                 case DELETE:
                     deleteDirectory(compositeGroupName);
@@ -394,8 +706,42 @@ public final class ConfigManager {
             throw new IllegalArgumentException("Cannot create new Config directory (no previous backup)");
         }
 
-        babble.put("datadir", mTomlDir) ;
-        babble.put("db",  mTomlDir + File.separator + mDbSubDir) ;
+        return backupName != null && sSeedFromBackup &&
+                seedDatabase(getHandle(backupName).getFile(mDbSubDir), babbleDir);
+    }
+
+    /**
+     * Seed an empty database from a backup. A failure is not fatal, the database is emptied and
+     * the node syncs from scratch.
+     * @return true if the database has been seeded
+     */
+    private boolean seedDatabase(File fromDb, File toDb) {
+        DbSnapshot snapshot = new DbSnapshot();
+        try {
+            snapshot.seed(fromDb, toDb);
+            Log.i("seedDatabase", "Linked " + snapshot.getLinkedCount() + " tables, copied " +
+                    snapshot.getCopiedBytes() + " bytes");
+            return true;
+        } catch (IOException e) {
+            Log.e("seedDatabase", e.toString());
+            deleteDir(toDb);
+            if (!toDb.mkdirs() && !toDb.exists()) {
+                throw new IllegalArgumentException("Cannot create new Config directory (no previous backup)");
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Build the contents of the babble.toml file of a config directory
+     */
+    private Map<String, Object> buildTomlMap(GroupConfigHandle handle, NodeConfig nodeConfig, String inetAddress, int port, String moniker) {
+
+        //TODO: add inetAddress, port and moniker to nodeConfig??
+        Map<String, Object> babble = new HashMap<>();
+
+        babble.put("datadir", handle.getPath()) ;
+        babble.put("db",  handle.getPath() + File.separator + mDbSubDir) ;
 
         babble.put("log", nodeConfig.logLevel);
         babble.put("listen", inetAddress + ":" + port);
@@ -427,67 +773,142 @@ public final class ConfigManager {
         babble.put("ice-addr", nodeConfig.turnAddr);
         babble.put("ice-username", nodeConfig.turnUser);
         babble.put("ice-password", nodeConfig.turnPass);
+        babble.put("profile", nodeConfig.profile.configName);
 
-        writeTomlFile(babble);
-
-        if (isNotExistingConfigDirectory(compositeGroupName)) {
-            addConfigDirectoryToList(compositeGroupName);
-        }
-
-        return mTomlDir;
+        return babble;
     }
 
     /**
-     * Loads the Babble Config TOML file. This function relies on mTomlDir being set.
+     * Loads the Babble Config TOML file. This function relies on mTomlDir being set. The file is
+     * only parsed if it is not cached, or has changed since it was cached.
      * @return A HashMap object containing the data from the Toml File.
+     * @deprecated use {@link #readTomlFile(String)}
      */
+    @Deprecated
     protected Map<String, Object> readTomlFile(){
-        File tomlFile =  new File(mTomlDir, mBabbleTomlFile);
-        Toml toml = new Toml().read(tomlFile);
+        return readTomlFile(mTomlDir);
+    }
 
-        return toml.toMap();
+    /**
+     * Loads the Babble Config TOML file of a config directory. The file is only parsed if it is
+     * not cached, or has changed since it was cached.
+     * @param configDirectory the full path to the config directory
+     * @return A HashMap object containing the data from the Toml File.
+     */
+    protected Map<String, Object> readTomlFile(String configDirectory) {
+        return mTomlCache.read(getHandleForPath(configDirectory).getFile(mBabbleTomlFile));
     }
 
     /**
      * Writes the Babble Config TOML file. This function relies on mTomlDir being set.
      * @param configHashMap A HashMap object containing the config data to be written the Toml File.
+     * @deprecated use {@link #writeTomlFile(String, Map)}
      */
+    @Deprecated
     protected void writeTomlFile(Map<String, Object> configHashMap) {
+        writeTomlFile(mTomlDir, configHashMap);
+    }
+
+    /**
+     * Writes the Babble Config TOML file of a config directory
+     * @param configDirectory the full path to the config directory
+     * @param configHashMap A HashMap object containing the config data to be written the Toml File.
+     */
+    protected void writeTomlFile(String configDirectory, Map<String, Object> configHashMap) {
+        GroupConfigHandle handle = getHandleForPath(configDirectory);
 
+        Lock lock = lockGroup(handle);
         try {
-            TomlWriter tomlWriter = new TomlWriter();
-            tomlWriter.write(configHashMap, new File(mTomlDir, mBabbleTomlFile));
-        } catch (IOException e) {
-            // Log and rethrow
-            Log.e("writeTomlFile", e.toString());
-            throw new RuntimeException(e.toString());
+            writeTomlFile(handle, configHashMap);
+        } finally {
+            lock.unlock();
         }
-
     }
 
     /**
-     * Amends the Babble Config TOML file. This function relies on mTomlDir being set.
+     * Amends the Babble Config TOML file. This function relies on mTomlDir being set. The changes
+     * are applied to the cached config, and the file is only rewritten if a value has changed.
      * @param configHashMapChanges A HashMap object containing the changed config data to be written the Toml File.
+     * @deprecated use {@link #amendTomlSettings(String, Map)}
      */
+    @Deprecated
     public void amendTomlSettings(Map<String, Object> configHashMapChanges) {
-        boolean hasChanged = false;
+        amendTomlSettings(mTomlDir, configHashMapChanges);
+    }
 
-        Map<String, Object> configMap = readTomlFile();
+    /**
+     * Amends the Babble Config TOML file of a config directory. The changes are applied to the
+     * cached config, and the file is only rewritten if a value has changed.
+     * @param configDirectory the full path to the config directory
+     * @param configHashMapChanges A HashMap object containing the changed config data to be written the Toml File.
+     */
+    public void amendTomlSettings(String configDirectory, Map<String, Object> configHashMapChanges) {
+        GroupConfigHandle handle = getHandleForPath(configDirectory);
 
-        for (Map.Entry<String,Object> entry : configHashMapChanges.entrySet()) {
-            if (
-                ( configMap.containsKey(entry.getKey())) &&
-                        (Objects.requireNonNull(configMap.get(entry.getKey())).equals(entry.getValue()))
-            ) { continue ; }    // If key exists and value matches, there is nothing to do
-            hasChanged = true;
-            configMap.put(entry.getKey(), entry.getValue());
+        Lock lock = lockGroup(handle);
+        try {
+            amendTomlSettings(handle, configHashMapChanges);
+        } finally {
+            lock.unlock();
         }
+    }
 
-        if (hasChanged) {
-                writeTomlFile(configMap);
+    /**
+     * Gets the moniker recorded in the babble.toml file of a config directory
+     * @param configDirectory the full path to the config directory
+     * @return the moniker, or an empty string if none is recorded
+     */
+    public String getMoniker(String configDirectory) {
+        Object moniker = mTomlCache.read(new File(configDirectory, mBabbleTomlFile)).get("moniker");
+        return moniker == null ? "" : moniker.toString();
+    }
+
+    /**
+     * Gets the performance profile recorded in the babble.toml file of a config directory
+     * @param configDirectory the full path to the config directory
+     * @return the profile, {@link NodeConfig.Profile#BALANCED} for configs written before
+     * profiles were recorded
+     */
+    public NodeConfig.Profile getProfile(String configDirectory) {
+        Object profile = mTomlCache.read(new File(configDirectory, mBabbleTomlFile)).get("profile");
+        return profile == null ? NodeConfig.Profile.BALANCED
+                : NodeConfig.Profile.fromConfigName(profile.toString());
+    }
+
+    private NodeConfig.Profile getLiveProfile(GroupConfigHandle handle) {
+        if (!handle.getFile(mBabbleTomlFile).exists()) {
+            return NodeConfig.Profile.BALANCED;
         }
+        try {
+            return getProfile(handle.getPath());
+        } catch (RuntimeException e) {
+            Log.w("getLiveProfile", "Could not read " + handle.getFile(mBabbleTomlFile), e);
+            return NodeConfig.Profile.BALANCED;
+        }
+    }
 
+    private void writeTomlFile(GroupConfigHandle handle, Map<String, Object> configHashMap) {
+        try {
+            mTomlCache.write(handle.getFile(mBabbleTomlFile), configHashMap);
+        } catch (IOException e) {
+            // Log and rethrow
+            Log.e("writeTomlFile", e.toString());
+            throw new RuntimeException(e.toString());
+        }
+    }
+
+    private void amendTomlSettings(GroupConfigHandle handle, Map<String, Object> configHashMapChanges) {
+        File tomlFile = handle.getFile(mBabbleTomlFile);
+
+        try {
+            mTomlCache.amend(tomlFile, configHashMapChanges);
+        } catch (IOException e) {
+            // Log and rethrow
+            Log.e("amendTomlSettings", e.toString());
+            throw new RuntimeException(e.toString());
+        }
 
+        Map<String, Object> configMap = mTomlCache.read(tomlFile);
         if (configMap.containsKey("moniker"))
         {
             mMoniker = Objects.requireNonNull(configMap.get("moniker")).toString();
@@ -499,7 +920,43 @@ public final class ConfigManager {
      * @return An ArrayList<String> of the directory names with no path
      */
     public ArrayList<ConfigDirectory> getDirectories() {
-        return mDirectories;
+        return new ArrayList<>(mCatalog.getDirectories());
+    }
+
+    /**
+     * Reads the archive metadata of a configuration directory from its sidecar file, without
+     * opening its database
+     * @param directoryName the configuration directory name, with no path
+     * @return the metadata, or null if none was recorded
+     */
+    public ArchiveMetadata readArchiveMetadata(String directoryName) {
+        return ArchiveMetadata.read(new File(mRootDir + File.separator + mBabbleRootDir +
+                File.separator + directoryName));
+    }
+
+    /**
+     * Gets the catalog of configuration directories, which holds the size and last block of each
+     * @return the catalog
+     */
+    public ArchiveCatalog getCatalog() {
+        return mCatalog;
+    }
+
+    /**
+     * Record the size and last block of a configuration directory once the node using it has
+     * stopped. The directory is measured on the {@link ConfigWriter} thread.
+     * @param configDirectory the full path to the configuration directory
+     * @param lastBlockIndex the index of the last block committed, or {@link ArchiveCatalog#NO_BLOCK}
+     */
+    public void updateArchiveMetadata(final String configDirectory, final long lastBlockIndex) {
+        ConfigWriter.getInstance().submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                File dir = new File(configDirectory);
+                mCatalog.updateMetadata(dir.getName(), ArchiveCatalog.directorySize(dir), lastBlockIndex);
+                return null;
+            }
+        });
     }
 
     /**
@@ -518,12 +975,7 @@ public final class ConfigManager {
      * @return returns true if it already exists
      */
     private boolean isNotExistingConfigDirectory(String subConfigDir) {
-        for (ConfigDirectory d : mDirectories) {
-            if (d.directoryName.equals(subConfigDir)) {
-                return false;
-            }
-        }
-        return true;
+        return !mCatalog.contains(subConfigDir);
     }
 
     /**
@@ -550,6 +1002,32 @@ public final class ConfigManager {
         return mAppId + "_" + trimmedUnique + "_" + ConfigDirectory.encodeDescription(groupDescriptor.getName()) + "_";
     }
 
+    /**
+     * Get the handle of a config directory
+     * @param compositeName the composite name of the directory, with no path
+     * @return the handle
+     */
+    private GroupConfigHandle getHandle(String compositeName) {
+        return new GroupConfigHandle(new File(mRootDir, mBabbleRootDir), compositeName);
+    }
+
+    private GroupConfigHandle getHandleForPath(String configDirectory) {
+        return getHandle(new File(configDirectory).getName());
+    }
+
+    /**
+     * Take the lock guarding every version of a group's config directory. It is reentrant, so a
+     * thread holding it can call other locking methods.
+     * @param handle a config directory of the group
+     * @return the lock, which the caller must unlock
+     */
+    private Lock lockGroup(GroupConfigHandle handle) {
+        Lock lock = mGroupLocks.get(handle.lockKey);
+        lock.lock();
+        return lock;
+    }
+
+    // the caller must hold the group's lock
     private boolean deleteDirectory(String subConfigDir) {
 
         if (isNotExistingConfigDirectory(subConfigDir)) { // Doesn't exist
@@ -560,33 +1038,48 @@ public final class ConfigManager {
         File dir = new File(mRootDir + File.separator + mBabbleRootDir +
                 File.separator + subConfigDir);
 
-        return deleteDir(dir);
+        boolean deleted = deleteDir(dir);
+        // a partly deleted directory stays in the catalog, so it can be deleted again
+        if (!dir.exists()) {
+            mCatalog.remove(subConfigDir);
+        }
+        return deleted;
     }
 
     // delete directory and contents
     private boolean deleteDir(File file) {
-        try {
-            if (file.isDirectory())
-                for (String child : Objects.requireNonNull(file.list()))
-                    deleteDir(new File(file, child));
-            if (! file.delete() ) {return false;}  // delete child file or empty directory
-        } catch (Exception e) {  //TODO: narrow the scope of thus catch
-            return false;
-        }
-
-        return true;
+        return ArchiveDeleter.deleteTree(file);
     }
 
     private void addConfigDirectoryToList(String directoryName ) {
+        // malformed names are ignored by the catalog
+        mCatalog.add(directoryName);
+    }
+
+    /**
+     * Get the config directories whose names start with a composite name, from the catalog entries
+     * of the group rather than from all directories
+     * @param compositeName the full underscore separated name of the group
+     * @return the live and backup directories of the group
+     */
+    private List<ConfigDirectory> getGroupDirectories(String compositeName) {
+        String uniqueId;
         try {
-            ConfigDirectory configDirectory = new ConfigDirectory(directoryName);
-            mDirectories.add(configDirectory);
-        } catch (Exception e) {
-            // Do nothing, but swallow e
+            uniqueId = new ConfigDirectory(compositeName).uniqueId;
+        } catch (IllegalArgumentException e) {
+            return new ArrayList<>();
+        }
+
+        List<ConfigDirectory> directories = new ArrayList<>();
+        for (ConfigDirectory d : mCatalog.getVersions(uniqueId)) {
+            if (d.directoryName.startsWith(compositeName)) {
+                directories.add(d);
+            }
         }
+        return directories;
     }
     
-    private void renameConfigDirectory(String oldSubConfigDir, int newSuffix) {
+    private String renameConfigDirectory(String oldSubConfigDir, int newSuffix) {
         File oldFile = new File(mRootDir + File.separator + mBabbleRootDir +
                 File.separator + oldSubConfigDir);
         File newFile = new File(mRootDir + File.separator + mBabbleRootDir +
@@ -596,35 +1089,37 @@ public final class ConfigManager {
             Log.e("Rename ","Fails");
             throw new RuntimeException("Cannot backup the old configuration directory");
         }
+
+        mCatalog.rename(oldSubConfigDir, newFile.getName());
+        return newFile.getName();
     }
 
-    private void backupOldConfigs(String compositeName) {
+    // returns the name of the backup
+    private String backupOldConfigs(String compositeName) {
         
         if (sConfigDirectoryBackupPolicy == ConfigDirectoryBackupPolicy.SINGLE_BACKUP) {
 
-            for (ConfigDirectory d : mDirectories) {
-                if ((d.isBackup) && (d.directoryName.startsWith(compositeName))) {
+            for (ConfigDirectory d : getGroupDirectories(compositeName)) {
+                if (d.isBackup) {
                     deleteDirectory(d.directoryName);
                 }
             }
 
-            renameConfigDirectory(compositeName,1);
+            return renameConfigDirectory(compositeName,1);
 
         } else { 
             // MULTIPLE_BACKUP
             int newestInt = 0;
-            for (ConfigDirectory d : mDirectories) {
-                if ((d.isBackup) && (d.directoryName.startsWith(compositeName))) {
+            for (ConfigDirectory d : getGroupDirectories(compositeName)) {
+                if (d.isBackup) {
                     if (newestInt < d.BackUpVersion) {
                         newestInt = d.BackUpVersion;
                     }
                 }
             }
 
-            renameConfigDirectory(compositeName,newestInt + 1);
+            return renameConfigDirectory(compositeName,newestInt + 1);
         }
-
-        populateDirectories(new File(mRootDir, mBabbleRootDir));
     }
 
 
@@ -637,40 +1132,283 @@ public final class ConfigManager {
      */
 
     public void deleteDirectoryAndBackups(String compositeName, boolean onlyDeleteBackups) {
-        for (ConfigDirectory d : mDirectories) {
-            if ((d.isBackup || (!onlyDeleteBackups)) && (d.directoryName.startsWith(compositeName))) {
-                deleteDirectory(d.directoryName);
+        Lock lock = lockGroup(getHandle(compositeName));
+        try {
+            for (ConfigDirectory d : getGroupDirectories(compositeName)) {
+                if (d.isBackup || (!onlyDeleteBackups)) {
+                    deleteDirectory(d.directoryName);
+                }
             }
+        } finally {
+            lock.unlock();
         }
+    }
 
-        // Rebuild directory list after pruning backups
-        populateDirectories(new File(mRootDir, mBabbleRootDir));
+    /**
+     * Function to delete the config folders of several groups in the background, e.g. when the
+     * user deletes archives. The folders disappear from {@link #getDirectories()} as soon as they
+     * have been moved to the trash, their contents are then deleted in parallel. Call the static
+     * function ConfigDirectory.rootDirectoryName() on each composite name to delete every version
+     * of a group.
+     * @param compositeNames the full underscore separated names of the groups
+     * @param onlyDeleteBackups if set to false the "live" copy is deleted too
+     * @param listener receives the progress of the deletion, may be null
+     * @param listenerExecutor the executor the listener is called on
+     * @return a future completed when every folder has been dealt with
+     */
+    public ListenableFuture<ArchiveDeleter.Result> deleteDirectoriesAndBackupsAsync(
+            List<String> compositeNames, boolean onlyDeleteBackups,
+            ArchiveDeleter.ProgressListener listener, Executor listenerExecutor) {
+        Set<String> directoryNames = new LinkedHashSet<>();
+        for (String compositeName : compositeNames) {
+            for (ConfigDirectory d : getGroupDirectories(compositeName)) {
+                if (d.isBackup || (!onlyDeleteBackups)) {
+                    directoryNames.add(d.directoryName);
+                }
+            }
+        }
+
+        return mDeleter.delete(new ArrayList<>(directoryNames), listener, listenerExecutor);
     }
 
-    public String getPublicKey() throws IllegalAccessError {
-        if (mKeyPair != null) {
-            return mKeyPair.publicKey;
-        } else {
-            throw  new IllegalAccessError();
+    /**
+     * Export a config directory, including the group's committed blocks, to a single compressed
+     * file written to a stream. The private key is not exported. This reads the whole directory,
+     * so it must not be called from the main thread, nor while a node is running on the directory.
+     * @param directoryName the config directory name, with no path
+     * @param outputStream the stream to write to, which is not closed
+     * @throws IOException if the directory could not be read or the stream written
+     */
+    public void exportArchive(String directoryName, OutputStream outputStream) throws IOException {
+        GroupConfigHandle handle = getHandle(directoryName);
+
+        Lock lock = lockGroup(handle);
+        try {
+            if (isNotExistingConfigDirectory(directoryName)) {
+                throw new IOException("No such config directory: " + directoryName);
+            }
+            ArchiveTransfer.export(handle.directory, outputStream);
+        } finally {
+            lock.unlock();
         }
     }
 
-    private void populateDirectories(File babbleDir) {
-        ArrayList<String> directories = new ArrayList<>();
+    /**
+     * Import a config directory exported by {@link #exportArchive(String, OutputStream)}, e.g. on
+     * another device. It is added as the newest backup of its group, with a new private key. This
+     * writes the whole directory, so it must not be called from the main thread.
+     * @param inputStream the stream to read from, which is not closed
+     * @return the imported config directory
+     * @throws IOException if the stream is not a valid archive, or the directory could not be
+     * written. Nothing is imported in this case.
+     */
+    public ConfigDirectory importArchive(InputStream inputStream) throws IOException {
+        File babbleDir = new File(mRootDir, mBabbleRootDir);
+        File staging = new File(new File(babbleDir, IMPORT_DIR), UUID.randomUUID().toString());
+
+        ConfigDirectory exported;
+        try {
+            exported = new ConfigDirectory(ArchiveTransfer.importInto(inputStream, staging));
+        } catch (IOException | IllegalArgumentException e) {
+            deleteDir(staging);
+            throw e instanceof IOException ? (IOException) e : new IOException("Not a config directory archive", e);
+        }
+
+        // the unique ID comes from the archive, it must not be able to name a path outside the
+        // babble root
+        if (!ConfigDirectory.isValidUniqueId(exported.uniqueId)) {
+            deleteDir(staging);
+            throw new IOException("Invalid group ID in archive");
+        }
 
-        mDirectories = new ArrayList<>();
+        // the directory is renamed for this app, after the group's existing versions
+        String compositeName = mAppId + "_" + exported.uniqueId + "_" +
+                ConfigDirectory.encodeDescription(exported.description) + "_";
+        GroupConfigHandle root = getHandle(compositeName);
 
-        Collections.addAll(directories,
-                Objects.requireNonNull(babbleDir.list(new FilenameFilter() {
-                    @Override
-                    public boolean accept(File current, String name) {
-                        return new File(current, name).isDirectory();
-                    }
-                })));
+        Lock lock = lockGroup(root);
+        try {
+            int newestInt = 0;
+            for (ConfigDirectory d : getGroupDirectories(compositeName)) {
+                if (d.isBackup && newestInt < d.BackUpVersion) {
+                    newestInt = d.BackUpVersion;
+                }
+            }
+            GroupConfigHandle handle = getHandle(compositeName + (newestInt + 1));
+
+            if (!staging.renameTo(handle.directory)) {
+                deleteDir(staging);
+                throw new IOException("Could not move the imported archive into place");
+            }
+
+            try {
+                ConfigWriter.writeFile(handle.getFile(mPrivKeyFile), getKeyPair().privateKey);
+
+                Map<String, Object> configChanges = new HashMap<>();
+                configChanges.put("datadir", handle.getPath());
+                configChanges.put("db",  handle.getPath() + File.separator + mDbSubDir);
+                mTomlCache.amend(handle.getFile(mBabbleTomlFile), configChanges);
+            } catch (IOException | RuntimeException e) {
+                deleteDir(handle.directory);
+                mTomlCache.invalidate(handle.getFile(mBabbleTomlFile));
+                throw e;
+            }
+
+            addConfigDirectoryToList(handle.compositeName);
+            return new ConfigDirectory(handle.compositeName);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the retention engine, which bounds the storage used by backups
+     * @return the retention engine
+     */
+    public ArchiveRetention getRetention() {
+        return mRetention;
+    }
+
+    /**
+     * Apply a retention policy to the backups periodically, in the background, logging the space
+     * reclaimed by each run. This replaces any previous schedule.
+     * @param policy the policy
+     * @param intervalMs the time between runs in milliseconds
+     */
+    public void scheduleRetention(RetentionPolicy policy, long intervalMs) {
+        mRetention.schedule(policy, intervalMs, new ArchiveRetention.Listener() {
+            @Override
+            public void onRetentionRun(ArchiveRetention.Report report) {
+                Log.i("scheduleRetention", "Pruned " + report.getPrunedCount() + ", compacted " +
+                        report.getCompactedCount() + ", failed " + report.getFailedCount() +
+                        ", reclaimed " + report.getReclaimedBytes() + " bytes");
+            }
+        });
+    }
+
+    /**
+     * Mark a config directory as in use by a node, so that retention leaves it alone
+     * @param configDirectory the full path to the config directory
+     * @param inUse true when a node starts on the directory, false once it has stopped
+     */
+    public void setDirectoryInUse(String configDirectory, boolean inUse) {
+        mRetention.setInUse(new File(configDirectory).getName(), inUse);
+    }
+
+    /**
+     * Gets the backups compacted by the retention policy, which are not listed by
+     * {@link #getDirectories()}
+     * @return the compacted files
+     */
+    public List<File> getCompactedArchives() {
+        List<File> compacted = new ArrayList<>();
+        File[] files = new File(new File(mRootDir, mBabbleRootDir), ArchiveRetention.COMPACTED_DIR)
+                .listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(ArchiveTransfer.FILE_EXTENSION)) {
+                    compacted.add(file);
+                }
+            }
+        }
+        return compacted;
+    }
+
+    /**
+     * Restore a compacted backup as a config directory. This must not be called from the main
+     * thread.
+     * @param compactedArchive a file from {@link #getCompactedArchives()}
+     * @return the restored config directory
+     * @throws IOException if the backup could not be restored, in which case the file is kept
+     */
+    public ConfigDirectory restoreCompactedArchive(File compactedArchive) throws IOException {
+        ConfigDirectory configDirectory;
+        try (InputStream inputStream = new FileInputStream(compactedArchive)) {
+            configDirectory = importArchive(inputStream);
+        }
+        if (!compactedArchive.delete()) {
+            Log.w("restoreCompacted", "Could not delete " + compactedArchive);
+        }
+        return configDirectory;
+    }
+
+    /**
+     * Compact a backup into an exported file, then move its directory to the trash. The backup is
+     * kept as it is if compacting does not save any space.
+     * @return the number of bytes saved
+     */
+    private long compactArchive(String directoryName) throws IOException {
+        File babbleDir = new File(mRootDir, mBabbleRootDir);
+        File compactedDir = new File(babbleDir, ArchiveRetention.COMPACTED_DIR);
+        if (!compactedDir.isDirectory() && !compactedDir.mkdirs()) {
+            throw new IOException("Could not create " + compactedDir);
+        }
+        File compacted = new File(compactedDir, directoryName + ArchiveTransfer.FILE_EXTENSION);
+        File temp = new File(compactedDir, compacted.getName() + ConfigWriter.TEMP_SUFFIX);
+
+        GroupConfigHandle handle = getHandle(directoryName);
+        long saved;
+        Lock lock = lockGroup(handle);
+        try {
+            if (isNotExistingConfigDirectory(directoryName)) {
+                return 0;
+            }
+
+            long directorySize = ArchiveCatalog.directorySize(handle.directory);
+            ArchiveMetadata metadata = ArchiveMetadata.read(handle.directory);
+            long lastUsed = metadata != null && metadata.getLastTimestamp() > 0
+                    ? metadata.getLastTimestamp()
+                    : handle.directory.lastModified();
+            try (FileOutputStream outputStream = new FileOutputStream(temp)) {
+                ArchiveTransfer.export(handle.directory, outputStream);
+                outputStream.getFD().sync();
+            }
+            if (temp.length() >= directorySize) {
+                return 0;
+            }
+            if (!temp.renameTo(compacted)) {
+                throw new IOException("Could not rename " + temp);
+            }
+            // the retention policy ages the file as it aged the backup
+            if (!compacted.setLastModified(lastUsed)) {
+                Log.w("compactArchive", "Could not date " + compacted);
+            }
+
+            // the directory goes the same way as a deleted one, its tree is deleted by the purge
+            File trashDir = new File(babbleDir, ArchiveDeleter.TRASH_DIR);
+            if ((!trashDir.isDirectory() && !trashDir.mkdirs()) || !handle.directory.renameTo(
+                    new File(trashDir, directoryName + "-" + UUID.randomUUID()))) {
+                deleteDir(compacted);
+                throw new IOException("Could not remove " + directoryName);
+            }
+            mCatalog.remove(directoryName);
+            mTomlCache.invalidate(handle.getFile(mBabbleTomlFile));
+            saved = directorySize - compacted.length();
+        } finally {
+            lock.unlock();
+            if (temp.exists() && !temp.delete()) {
+                temp.deleteOnExit();
+            }
+        }
+
+        mDeleter.purge();
+        return saved;
+    }
 
-        // Populate mDirectories with the results
-        for (String s : directories) {
-            addConfigDirectoryToList(s);
+    public String getPublicKey() throws IllegalAccessError {
+        return getKeyPair().publicKey;
+    }
+
+    /**
+     * Get the key pair of this node, the same for every group. It is taken from the key pool the
+     * first time it is needed, which only waits if it has not been generated yet. The pool is not
+     * refilled, as the node never needs another key pair.
+     * @return the key pair
+     */
+    private synchronized KeyPair getKeyPair() {
+        if (mKeyPair == null) {
+            mKeyPair = mKeyPool.take(false);
         }
+        return mKeyPair;
     }
 }
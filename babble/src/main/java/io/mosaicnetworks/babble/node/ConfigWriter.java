@@ -0,0 +1,158 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018- Mosaic Networks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.mosaicnetworks.babble.node;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Writes configuration files so that a crash never leaves a half written file behind. Each file is
+ * written to a temporary file in the same directory, flushed to the storage device and then
+ * renamed over the target, which is atomic on the same file system.
+ *
+ * Config tasks are run on a single background thread, so they are carried out in the order they
+ * are submitted and never block the main thread.
+ */
+public final class ConfigWriter {
+
+    /**
+     * The suffix of the temporary files, left behind only if the process dies mid write
+     */
+    public static final String TEMP_SUFFIX = ".tmp";
+
+    private static ConfigWriter sInstance;
+
+    private final ListeningExecutorService mExecutor;
+
+    /**
+     * Get the process wide writer
+     * @return the shared writer
+     */
+    public static synchronized ConfigWriter getInstance() {
+        if (sInstance == null) {
+            sInstance = new ConfigWriter(Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "babble-config-writer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }));
+        }
+        return sInstance;
+    }
+
+    ConfigWriter(ExecutorService executor) {
+        mExecutor = MoreExecutors.listeningDecorator(executor);
+    }
+
+    /**
+     * Run a config task on the writer thread
+     * @param task the task
+     * @param <T> the result type
+     * @return a future completed with the task's result, or with the exception it threw
+     */
+    public <T> ListenableFuture<T> submit(Callable<T> task) {
+        return mExecutor.submit(task);
+    }
+
+    /**
+     * Write a set of files to a directory as a batch, in the calling thread. All the temporary
+     * files are written and synced before any of them is renamed, so a failure while writing leaves
+     * all the existing files untouched.
+     * @param directory the directory, which must exist
+     * @param files the file contents, keyed by file name
+     * @throws IOException if a file could not be written or renamed
+     */
+    public static void writeFiles(File directory, Map<String, String> files) throws IOException {
+        List<File> temps = new ArrayList<>(files.size());
+        try {
+            for (Map.Entry<String, String> entry : files.entrySet()) {
+                File temp = new File(directory, entry.getKey() + TEMP_SUFFIX);
+                temps.add(temp);
+                writeSynced(temp, entry.getValue());
+            }
+
+            int i = 0;
+            for (String name : files.keySet()) {
+                rename(temps.get(i++), new File(directory, name));
+            }
+        } finally {
+            for (File temp : temps) {
+                if (temp.exists() && !temp.delete()) {
+                    temp.deleteOnExit();
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a single file atomically, in the calling thread
+     * @param file the target file
+     * @param contents the contents, encoded as UTF-8
+     * @throws IOException if the file could not be written or renamed
+     */
+    public static void writeFile(File file, String contents) throws IOException {
+        File temp = new File(file.getParentFile(), file.getName() + TEMP_SUFFIX);
+        try {
+            writeSynced(temp, contents);
+            rename(temp, file);
+        } finally {
+            if (temp.exists() && !temp.delete()) {
+                temp.deleteOnExit();
+            }
+        }
+    }
+
+    private static void writeSynced(File file, String contents) throws IOException {
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(contents.getBytes(StandardCharsets.UTF_8));
+            outputStream.flush();
+            // the data must be on disk before the rename makes it visible
+            outputStream.getFD().sync();
+        }
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        // File.renameTo replaces an existing target on Android, as it uses rename(2)
+        if (!from.renameTo(to)) {
+            throw new IOException("Could not rename " + from + " to " + to);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018- Mosaic Networks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.mosaicnetworks.babble.node;
+
+import android.system.ErrnoException;
+import android.system.Os;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Seeds a new badger database from the database of a backup, so that a node rejoining a group
+ * starts from the blocks it already has rather than syncing the whole history again.
+ *
+ * Badger never modifies its table files (.sst) once they are written, nor a value log (.vlog)
+ * once it has been rotated, so these are hard linked and cost neither time nor space. As events
+ * are stored in the value logs, that is nearly all of the database. Only the newest value log and
+ * the manifest are appended to, so they are copied, otherwise the node would write into the
+ * backup through the links. A file which cannot be linked, e.g. because the file system does not
+ * support it, is copied instead.
+ */
+final class DbSnapshot {
+
+    /**
+     * Creates hard links, abstracted so that tests can run without the Android runtime
+     */
+    interface Linker {
+
+        /**
+         * Create a hard link
+         * @param existing the existing file
+         * @param link the link to create
+         * @throws IOException if the link could not be created
+         */
+        void link(File existing, File link) throws IOException;
+    }
+
+    static final String TABLE_SUFFIX = ".sst";
+    static final String VALUE_LOG_SUFFIX = ".vlog";
+
+    private static final Linker OS_LINKER = new Linker() {
+        @Override
+        public void link(File existing, File link) throws IOException {
+            try {
+                Os.link(existing.getPath(), link.getPath());
+            } catch (ErrnoException e) {
+                throw new IOException("Could not link " + existing, e);
+            }
+        }
+    };
+
+    private final Linker mLinker;
+    private int mLinked;
+    private long mCopiedBytes;
+
+    DbSnapshot() {
+        this(OS_LINKER);
+    }
+
+    DbSnapshot(Linker linker) {
+        mLinker = linker;
+    }
+
+    /**
+     * Seed a database directory from another, in the calling thread
+     * @param fromDb the database to seed from, which is not modified
+     * @param toDb the database to seed, which must be empty
+     * @throws IOException if a file could not be linked or copied. The target may then hold part
+     * of the database, and must be emptied by the caller.
+     */
+    void seed(File fromDb, File toDb) throws IOException {
+        File[] files = fromDb.listFiles();
+        if (files == null) {
+            throw new IOException("Could not list " + fromDb);
+        }
+        if (!toDb.isDirectory() && !toDb.mkdirs()) {
+            throw new IOException("Could not create " + toDb);
+        }
+
+        long headLog = headValueLog(files);
+        for (File file : files) {
+            File target = new File(toDb, file.getName());
+            if (file.isDirectory()) {
+                seed(file, target);
+            } else if (!isImmutable(file.getName(), headLog) || !tryLink(file, target)) {
+                copy(file, target);
+            }
+        }
+    }
+
+    private static boolean isImmutable(String name, long headLog) {
+        if (name.endsWith(TABLE_SUFFIX)) {
+            return true;
+        }
+        long id = valueLogId(name);
+        return id >= 0 && id < headLog;
+    }
+
+    // the value log being written to is the one with the highest ID
+    private static long headValueLog(File[] files) {
+        long head = -1;
+        for (File file : files) {
+            head = Math.max(head, valueLogId(file.getName()));
+        }
+        return head;
+    }
+
+    /**
+     * @param name a file name
+     * @return the ID of the value log, or -1 if the file is not a value log
+     */
+    static long valueLogId(String name) {
+        if (!name.endsWith(VALUE_LOG_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(0, name.length() - VALUE_LOG_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the number of files linked so far
+     */
+    int getLinkedCount() {
+        return mLinked;
+    }
+
+    /**
+     * @return the number of bytes copied so far
+     */
+    long getCopiedBytes() {
+        return mCopiedBytes;
+    }
+
+    private boolean tryLink(File existing, File link) {
+        try {
+            mLinker.link(existing, link);
+            mLinked++;
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void copy(File from, File to) throws IOException {
+        try (FileInputStream in = new FileInputStream(from);
+             FileOutputStream out = new FileOutputStream(to)) {
+            FileChannel source = in.getChannel();
+            FileChannel target = out.getChannel();
+            long size = source.size();
+            long position = 0;
+            while (position < size) {
+                long transferred = source.transferTo(position, size - position, target);
+                if (transferred <= 0) {
+                    throw new IOException("Could not copy " + from);
+                }
+                position += transferred;
+            }
+            out.getFD().sync();
+            mCopiedBytes += size;
+        }
+    }
+}
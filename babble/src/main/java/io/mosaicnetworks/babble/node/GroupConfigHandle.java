@@ -0,0 +1,80 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018- Mosaic Networks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.mosaicnetworks.babble.node;
+
+import java.io.File;
+
+/**
+ * The location of one configuration directory, fixed when the handle is created. The
+ * {@link ConfigManager} operations work on a handle rather than on shared state, so an operation
+ * on one group can never write into the directory of another.
+ */
+final class GroupConfigHandle {
+
+    /**
+     * The composite name of the directory, with no path
+     */
+    final String compositeName;
+
+    /**
+     * The key of the lock guarding every version of the group's configuration, i.e. the group's
+     * unique ID
+     */
+    final String lockKey;
+
+    /**
+     * The configuration directory
+     */
+    final File directory;
+
+    GroupConfigHandle(File babbleRootDir, String compositeName) {
+        this.compositeName = compositeName;
+        this.directory = new File(babbleRootDir, compositeName);
+
+        String key;
+        try {
+            key = new ConfigDirectory(compositeName).uniqueId;
+        } catch (IllegalArgumentException e) {
+            key = compositeName;
+        }
+        this.lockKey = key;
+    }
+
+    /**
+     * @return the full path to the configuration directory
+     */
+    String getPath() {
+        return directory.getPath();
+    }
+
+    /**
+     * @param fileName a file name, with no path
+     * @return the file in the configuration directory
+     */
+    File getFile(String fileName) {
+        return new File(directory, fileName);
+    }
+}
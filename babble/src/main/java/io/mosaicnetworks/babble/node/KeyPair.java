@@ -27,11 +27,15 @@ package io.mosaicnetworks.babble.node;
 import mobile.Mobile;
 
 /**
- * A public/private key pair for use with a {@link BabbleNode}. A random key pair is generated on
- * construction
+ * A public/private key pair for use with a {@link BabbleNode}. Generating a key pair takes a call
+ * into the Go crypto library, so key pairs are usually taken from a {@link KeyPool} rather than
+ * generated where they are needed.
  */
 public final class KeyPair {
 
+    // the separator used by Mobile.getPrivPublKeys(), keys are hex so won't contain it
+    private static final String SEPARATOR = "=!@#@!=";
+
     /**
      * Public key
      */
@@ -46,10 +50,26 @@ public final class KeyPair {
      * Constructs a random key pair
      */
     public KeyPair() {
-        String keyPair = Mobile.getPrivPublKeys(); //publicKey=!@#@!=privateKey
-        String[] separated =  keyPair.split("=!@#@!="); //keys are hex so won't contain these characters!
+        this(Mobile.getPrivPublKeys()); //publicKey=!@#@!=privateKey
+    }
+
+    /**
+     * Constructs a key pair from existing keys
+     * @param publicKey the public key
+     * @param privateKey the private key
+     */
+    public KeyPair(String publicKey, String privateKey) {
+        this.publicKey = publicKey;
+        this.privateKey = privateKey;
+    }
+
+    private KeyPair(String keyPair) {
+        int separator = keyPair.indexOf(SEPARATOR);
+        if (separator < 0) {
+            throw new IllegalStateException("Malformed key pair");
+        }
 
-        publicKey = separated[0].trim();
-        privateKey = separated[1].trim();
+        publicKey = keyPair.substring(0, separator).trim();
+        privateKey = keyPair.substring(separator + SEPARATOR.length()).trim();
     }
 }
@@ -0,0 +1,158 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018- Mosaic Networks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.mosaicnetworks.babble.node;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A small pool of key pairs generated ahead of time on a background thread, so that taking a key
+ * pair does not wait for it to be generated. The pool is refilled in the background each time a
+ * key pair is taken. If the pool is empty, a key pair being generated in the background is waited
+ * for, and otherwise one is generated in the calling thread.
+ */
+public final class KeyPool {
+
+    private final KeyProvider mProvider;
+    private final int mCapacity;
+    private final ExecutorService mExecutor;
+
+    private final Object mLock = new Object();
+    private final Deque<KeyPair> mKeyPairs = new ArrayDeque<>();
+    private boolean mRefilling = false;
+
+    /**
+     * @param provider generates the key pairs
+     * @param capacity the number of key pairs kept ready
+     */
+    public KeyPool(KeyProvider provider, int capacity) {
+        this(provider, capacity, Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "babble-keygen");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }));
+    }
+
+    KeyPool(KeyProvider provider, int capacity, ExecutorService executor) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The pool must hold at least one key pair");
+        }
+        mProvider = provider;
+        mCapacity = capacity;
+        mExecutor = executor;
+    }
+
+    /**
+     * Start filling the pool in the background, if it is not full
+     */
+    public void fill() {
+        synchronized (mLock) {
+            if (mRefilling || mKeyPairs.size() >= mCapacity) {
+                return;
+            }
+            mRefilling = true;
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                refill();
+            }
+        });
+    }
+
+    /**
+     * Take a key pair from the pool, each key pair is only ever handed out once
+     * @return the key pair
+     */
+    public KeyPair take() {
+        return take(true);
+    }
+
+    /**
+     * Take a key pair from the pool, each key pair is only ever handed out once
+     * @param refill false if no more key pairs are needed, so no replacement is generated
+     * @return the key pair
+     */
+    public KeyPair take(boolean refill) {
+        KeyPair keyPair;
+        synchronized (mLock) {
+            // a key pair on its way is quicker than starting a new one
+            while (mKeyPairs.isEmpty() && mRefilling) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            keyPair = mKeyPairs.pollFirst();
+        }
+
+        if (refill) {
+            fill();
+        }
+        return keyPair != null ? keyPair : mProvider.generateKeyPair();
+    }
+
+    /**
+     * @return the number of key pairs ready to be taken
+     */
+    public int size() {
+        synchronized (mLock) {
+            return mKeyPairs.size();
+        }
+    }
+
+    private void refill() {
+        try {
+            while (true) {
+                synchronized (mLock) {
+                    if (mKeyPairs.size() >= mCapacity) {
+                        return;
+                    }
+                }
+
+                KeyPair keyPair = mProvider.generateKeyPair();
+                synchronized (mLock) {
+                    mKeyPairs.addLast(keyPair);
+                    mLock.notifyAll();
+                }
+            }
+        } finally {
+            synchronized (mLock) {
+                mRefilling = false;
+                mLock.notifyAll();
+            }
+        }
+    }
+}
@@ -42,6 +42,79 @@ public final class NodeConfig {
         TRACE
     }
 
+    /**
+     * A named set of gossip settings, trading latency and throughput against battery and network
+     * use. Selecting a profile sets the heartbeats, the connection pool, the cache size and the
+     * sync limit, any of which can then be overridden individually.
+     */
+    public enum Profile {
+
+        /**
+         * The builder defaults, suitable for small groups with light traffic
+         */
+        BALANCED("balanced", 100, 200, 2, 50000, 100, 10000),
+
+        /**
+         * Frequent small syncs, so that transactions are committed as soon as possible
+         */
+        LOW_LATENCY("low-latency", 20, 100, 3, 50000, 50, 5000),
+
+        /**
+         * Large syncs over more connections, so that a sustained stream of transactions is
+         * committed without a backlog building up
+         */
+        HIGH_THROUGHPUT("high-throughput", 50, 200, 4, 100000, 500, 10000),
+
+        /**
+         * Infrequent syncs, especially when there is nothing to gossip about, to keep the radio
+         * idle. Transactions take longer to be committed.
+         */
+        BATTERY_SAVER("battery-saver", 500, 2000, 1, 20000, 200, 10000),
+
+        /**
+         * More connections, a larger cache and a longer timeout for groups of many peers, some of
+         * which are slow to answer
+         */
+        LARGE_GROUP("large-group", 100, 400, 5, 100000, 300, 15000);
+
+        /**
+         * The name of the profile, as written to babble.toml
+         */
+        public final String configName;
+
+        final int heartbeat;
+        final int slowHeartbeat;
+        final int maxPool;
+        final int cacheSize;
+        final int syncLimit;
+        final int tcpTimeout;
+
+        Profile(String configName, int heartbeat, int slowHeartbeat, int maxPool, int cacheSize,
+                int syncLimit, int tcpTimeout) {
+            this.configName = configName;
+            this.heartbeat = heartbeat;
+            this.slowHeartbeat = slowHeartbeat;
+            this.maxPool = maxPool;
+            this.cacheSize = cacheSize;
+            this.syncLimit = syncLimit;
+            this.tcpTimeout = tcpTimeout;
+        }
+
+        /**
+         * Look up a profile by the name written to babble.toml
+         * @param configName the name
+         * @return the profile, or {@link #BALANCED} if the name is unknown
+         */
+        public static Profile fromConfigName(String configName) {
+            for (Profile profile : values()) {
+                if (profile.configName.equals(configName)) {
+                    return profile;
+                }
+            }
+            return BALANCED;
+        }
+    }
+
     /**
      * A builder pattern is used to construct the config
      */
@@ -71,8 +144,26 @@ public final class NodeConfig {
         private String mTurnAddr = "turn:disco.babble.io:3478";
         private String mTurnUser = "test";
         private String mTurnPass = "test";
+        private Profile mProfile = Profile.BALANCED;
 
 
+        /**
+         * Apply a performance profile. Settings made before this call are overwritten by the
+         * profile, settings made after it override the profile.
+         * @param profile the profile
+         * @return modified builder
+         */
+        public Builder profile(Profile profile) {
+            mProfile = profile;
+            mHeartbeat = profile.heartbeat;
+            mSlowHeartbeat = profile.slowHeartbeat;
+            mMaxPool = profile.maxPool;
+            mCacheSize = profile.cacheSize;
+            mSyncLimit = profile.syncLimit;
+            mTcpTimeout = profile.tcpTimeout;
+            return this;
+        }
+
         /**
          * Set the Database Directory
          * @param databaseDir the location of the badger DB database
@@ -389,6 +480,11 @@ public final class NodeConfig {
      */
     public final Boolean enableFastSync;  //enable fast sync
 
+    /**
+     * The performance profile the gossip settings were taken from
+     */
+    public final Profile profile;
+
     private NodeConfig(Builder builder) {
         heartbeat = builder.mHeartbeat;
         slowHeartbeat = builder.mSlowHeartbeat;
@@ -411,6 +507,7 @@ public final class NodeConfig {
         turnAddr = builder.mTurnAddr;
         turnUser = builder.mTurnUser;
         turnPass = builder.mTurnPass;
+        profile = builder.mProfile;
     }
 
 
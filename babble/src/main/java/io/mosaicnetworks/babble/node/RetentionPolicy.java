@@ -0,0 +1,128 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018- Mosaic Networks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.mosaicnetworks.babble.node;
+
+/**
+ * An immutable policy bounding the storage used by archived groups, applied by
+ * {@link ArchiveRetention}. Only backups are ever pruned or compacted, the live config directory
+ * of a group is always kept.
+ */
+public final class RetentionPolicy {
+
+    /**
+     * The value of a limit which is not applied
+     */
+    public static final long UNLIMITED = -1;
+
+    /**
+     * A builder pattern is used to construct the policy. By default nothing is limited.
+     */
+    public static final class Builder {
+
+        private long mMaxBackupsPerGroup = UNLIMITED;
+        private long mMaxAgeMs = UNLIMITED;
+        private long mMaxTotalBytes = UNLIMITED;
+        private long mCompactAfterMs = UNLIMITED;
+
+        /**
+         * Limit the number of backups kept for each group, the oldest are pruned first
+         * @param maxBackupsPerGroup the number of backups, or {@link #UNLIMITED}
+         * @return modified builder
+         */
+        public Builder maxBackupsPerGroup(long maxBackupsPerGroup) {
+            mMaxBackupsPerGroup = maxBackupsPerGroup;
+            return this;
+        }
+
+        /**
+         * Prune backups which have not been used for a time
+         * @param maxAgeMs the age in milliseconds, or {@link #UNLIMITED}
+         * @return modified builder
+         */
+        public Builder maxAgeMs(long maxAgeMs) {
+            mMaxAgeMs = maxAgeMs;
+            return this;
+        }
+
+        /**
+         * Limit the space used by all the config directories. The oldest backups are pruned until
+         * the total fits.
+         * @param maxTotalBytes the space in bytes, or {@link #UNLIMITED}
+         * @return modified builder
+         */
+        public Builder maxTotalBytes(long maxTotalBytes) {
+            mMaxTotalBytes = maxTotalBytes;
+            return this;
+        }
+
+        /**
+         * Compact the backups which are kept but have not been used for a time into single
+         * exported files, see {@link ArchiveTransfer}. A compacted backup is no longer listed
+         * until it is imported again.
+         * @param compactAfterMs the age in milliseconds, or {@link #UNLIMITED} to never compact
+         * @return modified builder
+         */
+        public Builder compactAfterMs(long compactAfterMs) {
+            mCompactAfterMs = compactAfterMs;
+            return this;
+        }
+
+        /**
+         * Builds the policy object
+         * @return the built {@link RetentionPolicy}
+         */
+        public RetentionPolicy build() {
+            return new RetentionPolicy(this);
+        }
+    }
+
+    /**
+     * The number of backups kept for each group, or {@link #UNLIMITED}
+     */
+    public final long maxBackupsPerGroup;
+
+    /**
+     * The age in milliseconds after which a backup is pruned, or {@link #UNLIMITED}
+     */
+    public final long maxAgeMs;
+
+    /**
+     * The space in bytes used by all the config directories, or {@link #UNLIMITED}
+     */
+    public final long maxTotalBytes;
+
+    /**
+     * The age in milliseconds after which a kept backup is compacted, or {@link #UNLIMITED}
+     */
+    public final long compactAfterMs;
+
+    private RetentionPolicy(Builder builder) {
+        maxBackupsPerGroup = builder.mMaxBackupsPerGroup;
+        maxAgeMs = builder.mMaxAgeMs;
+        maxTotalBytes = builder.mMaxTotalBytes;
+        compactAfterMs = builder.mCompactAfterMs;
+    }
+}
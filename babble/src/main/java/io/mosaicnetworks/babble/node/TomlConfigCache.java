@@ -0,0 +1,177 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018- Mosaic Networks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.mosaicnetworks.babble.node;
+
+import com.moandjiezana.toml.Toml;
+import com.moandjiezana.toml.TomlWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the parsed contents of recently used babble.toml files in memory, so that a config is
+ * parsed once rather than on every read or amendment. A cached config is only trusted while the
+ * modification time and length of its file match those recorded when it was loaded or written,
+ * so a file changed by anyone else is parsed again.
+ *
+ * Amendments are applied to the cached config, and the file is only rewritten if a value actually
+ * changed.
+ */
+final class TomlConfigCache {
+
+    /**
+     * The number of config files kept in memory, more than enough for the configs in use at once
+     */
+    static final int MAX_ENTRIES = 8;
+
+    private final Map<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private int mLoadCount = 0;
+
+    /**
+     * Get the contents of a config file, parsing it only if it is not cached or has changed
+     * @param tomlFile the config file
+     * @return a copy of the config, which the caller is free to modify
+     */
+    synchronized Map<String, Object> read(File tomlFile) {
+        return new HashMap<>(load(tomlFile).mConfig);
+    }
+
+    /**
+     * Apply a set of changes to a config file. The file is written atomically, and only if one of
+     * the changed values differs from the current one.
+     * @param tomlFile the config file
+     * @param changes the new values, keyed by config key
+     * @return true if the file was rewritten
+     * @throws IOException if the file could not be written, in which case it is left untouched
+     */
+    synchronized boolean amend(File tomlFile, Map<String, Object> changes) throws IOException {
+        Entry entry = load(tomlFile);
+
+        Map<String, Object> config = null;
+        for (Map.Entry<String, Object> change : changes.entrySet()) {
+            if (entry.mConfig.containsKey(change.getKey()) &&
+                    valuesEqual(entry.mConfig.get(change.getKey()), change.getValue())) {
+                continue;
+            }
+            if (config == null) {
+                config = new HashMap<>(entry.mConfig);
+            }
+            config.put(change.getKey(), change.getValue());
+        }
+
+        if (config == null) {
+            return false;
+        }
+        write(tomlFile, config);
+        return true;
+    }
+
+    /**
+     * Replace the contents of a config file, writing it atomically
+     * @param tomlFile the config file
+     * @param config the config
+     * @throws IOException if the file could not be written, in which case it is left untouched
+     */
+    synchronized void write(File tomlFile, Map<String, Object> config) throws IOException {
+        String key = tomlFile.getAbsolutePath();
+        try {
+            ConfigWriter.writeFile(tomlFile, new TomlWriter().write(config));
+        } catch (IOException e) {
+            mEntries.remove(key);
+            throw e;
+        }
+        mEntries.put(key, new Entry(new HashMap<>(config), tomlFile.lastModified(),
+                tomlFile.length()));
+    }
+
+    /**
+     * Forget a config file, e.g. after it has been written without going through the cache
+     * @param tomlFile the config file
+     */
+    synchronized void invalidate(File tomlFile) {
+        mEntries.remove(tomlFile.getAbsolutePath());
+    }
+
+    /**
+     * @return the number of times a config file has been parsed
+     */
+    synchronized int getLoadCount() {
+        return mLoadCount;
+    }
+
+    private Entry load(File tomlFile) {
+        String key = tomlFile.getAbsolutePath();
+        long lastModified = tomlFile.lastModified();
+        long length = tomlFile.length();
+
+        Entry entry = mEntries.get(key);
+        if (entry != null && entry.mLastModified == lastModified && entry.mLength == length) {
+            return entry;
+        }
+
+        mLoadCount++;
+        entry = new Entry(new Toml().read(tomlFile).toMap(), lastModified, length);
+        mEntries.put(key, entry);
+        return entry;
+    }
+
+    // toml4j reads all integers as Long, so numbers are compared by value rather than by type
+    private static boolean valuesEqual(Object current, Object value) {
+        if (current instanceof Number && value instanceof Number) {
+            if (isIntegral(current) && isIntegral(value)) {
+                return ((Number) current).longValue() == ((Number) value).longValue();
+            }
+            return ((Number) current).doubleValue() == ((Number) value).doubleValue();
+        }
+        return current == null ? value == null : current.equals(value);
+    }
+
+    private static boolean isIntegral(Object number) {
+        return number instanceof Long || number instanceof Integer || number instanceof Short ||
+                number instanceof Byte;
+    }
+
+    private static final class Entry {
+        final Map<String, Object> mConfig;
+        final long mLastModified;
+        final long mLength;
+
+        Entry(Map<String, Object> config, long lastModified, long length) {
+            mConfig = config;
+            mLastModified = lastModified;
+            mLength = length;
+        }
+    }
+}
@@ -37,17 +37,21 @@ import android.os.Build;
 import android.os.IBinder;
 import android.util.Log;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
 import androidx.annotation.NonNull;
 import androidx.core.app.NotificationCompat;
 import io.mosaicnetworks.babble.R;
+import io.mosaicnetworks.babble.node.ArchiveCatalog;
+import io.mosaicnetworks.babble.node.ArchiveMetadataRecorder;
 import io.mosaicnetworks.babble.node.BabbleNode;
 import io.mosaicnetworks.babble.node.BabbleState;
 import io.mosaicnetworks.babble.node.BabbleTx;
 import io.mosaicnetworks.babble.node.Block;
 import io.mosaicnetworks.babble.node.BlockConsumer;
+import io.mosaicnetworks.babble.node.ConfigManager;
 import io.mosaicnetworks.babble.node.LeaveResponseListener;
 import io.mosaicnetworks.babble.node.NodeStateChangeHandler;
 import io.mosaicnetworks.babble.servicediscovery.ServiceAdvertiser;
@@ -101,6 +105,12 @@ public class BabbleService extends Service {
     // By advertising a group, other users can discover and join it.
     private ServiceAdvertiser mServiceAdvertiser;
 
+    // recorded in the archive catalog when the node stops
+    private String mConfigDirectory;
+    private volatile long mLastBlockIndex = ArchiveCatalog.NO_BLOCK;
+    // summarises the blocks of a live group for the archive list, null in archive mode
+    private ArchiveMetadataRecorder mMetadataRecorder;
+
 
     /**
      * Start the service and advertise the group if serviceAdvertiser is not null. The service
@@ -118,14 +128,42 @@ public class BabbleService extends Service {
         }
 
         mServiceAdvertiser = serviceAdvertiser;
+        mConfigDirectory = configDirectory;
+        mLastBlockIndex = ArchiveCatalog.NO_BLOCK;
+        mMetadataRecorder = new ArchiveMetadataRecorder(new File(configDirectory));
+        // marked before the node opens the directory, so that retention leaves it alone
+        ConfigManager configManager = ConfigManager.getInstance(getApplicationContext());
+        configManager.setDirectoryInUse(configDirectory, true);
+
+        try {
+            startNode(configDirectory);
+        } catch (RuntimeException e) {
+            mBabbleNode = null;
+            mMetadataRecorder = null;
+            configManager.setDirectoryInUse(configDirectory, false);
+            throw e;
+        }
+
+        if (mServiceAdvertiser != null) {
+            mServiceAdvertiser.advertise(mBabbleNode);
+        }
+
+        mState = State.RUNNING;
+    }
 
+    private void startNode(String configDirectory) {
         mBabbleNode = BabbleNode.create(
                 new BlockConsumer() {
                     @Override
                     public Block onReceiveBlock(Block block) {
                         Log.i("ProcessBlock", "Process block");
                         Block processedBlock = mAppState.processBlock(block);
+                        mLastBlockIndex = block.body.index;
+                        mMetadataRecorder.onBlockCommitted(block);
                         notifyObservers();
+                        if (mServiceAdvertiser != null) {
+                            mServiceAdvertiser.onBlockCommitted(block);
+                        }
                         return processedBlock;
                     }
                 },
@@ -140,12 +178,6 @@ public class BabbleService extends Service {
         );
 
         mBabbleNode.run();
-
-        if (mServiceAdvertiser != null) {
-            mServiceAdvertiser.advertise(mBabbleNode);
-        }
-
-        mState = State.RUNNING;
     }
 
 
@@ -161,6 +193,10 @@ public class BabbleService extends Service {
         }
 
         mState = State.ARCHIVE;
+        mConfigDirectory = configDirectory;
+        mLastBlockIndex = ArchiveCatalog.NO_BLOCK;
+        mMetadataRecorder = null;
+        ConfigManager.getInstance(getApplicationContext()).setDirectoryInUse(configDirectory, true);
 
         new Thread(new Runnable() {
             public void run() {
@@ -170,6 +206,7 @@ public class BabbleService extends Service {
                         public Block onReceiveBlock(Block block) {
                             Log.i("ProcessBlock", "Process block");
                             Block processedBlock = mAppState.processBlock(block);
+                            mLastBlockIndex = block.body.index;
                             notifyObservers();
                             return processedBlock;
                         }
@@ -220,6 +257,8 @@ public class BabbleService extends Service {
         if (mBabbleNode==null) {
             //If an archive fails to load then the babble node can be null
             mState = State.STOPPED;
+            ConfigManager.getInstance(getApplicationContext())
+                    .setDirectoryInUse(mConfigDirectory, false);
             mAppState.reset();
             stopSelf();
 
@@ -234,6 +273,13 @@ public class BabbleService extends Service {
                 public void onComplete() {
                     mBabbleNode = null;
                     mState = State.STOPPED;
+                    if (mMetadataRecorder != null) {
+                        mMetadataRecorder.flush();
+                        mMetadataRecorder = null;
+                    }
+                    ConfigManager configManager = ConfigManager.getInstance(getApplicationContext());
+                    configManager.updateArchiveMetadata(mConfigDirectory, mLastBlockIndex);
+                    configManager.setDirectoryInUse(mConfigDirectory, false);
                     mAppState.reset();
                     stopSelf();
 
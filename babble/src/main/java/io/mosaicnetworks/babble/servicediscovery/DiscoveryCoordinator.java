@@ -0,0 +1,524 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018- Mosaic Networks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.mosaicnetworks.babble.servicediscovery;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import io.mosaicnetworks.babble.servicediscovery.mdns.PeerLatencyTracker;
+import io.mosaicnetworks.babble.servicediscovery.webrtc.Constants;
+
+/**
+ * Merges the groups found by the mDNS and WebRTC discovery mechanisms into a single list. A group
+ * seen by both mechanisms has the same group UID, and is listed once. The listed entry is the
+ * {@link ResolvedGroup} of the transport that ranks best, so callers can keep routing on
+ * {@link ResolvedGroup#getSource()}.
+ *
+ * Groups are ranked by measured reachability and latency. Each LAN group is probed with a TCP
+ * connection to its services, and the relay is probed once with a connection to the discovery
+ * server, as all WebRTC groups are reached through it. The ranking, best first, is: reachable LAN
+ * groups, LAN groups not yet measured, reachable relay groups, relay groups not yet measured and
+ * finally unreachable groups. Within each tier groups are ordered by latency, then by name.
+ * Measurements are checked regularly, and a host is probed again once its measurement is older
+ * than {@link #PROBE_TTL_MS}, so a group that was unreachable can move back up the list. The old
+ * measurement is used until the new one is recorded.
+ *
+ * The coordinator listens to the registry, but does not notify on every registry change, as the
+ * discovery mechanisms already do. It only notifies its listener when a probe completes and the
+ * ranking may have changed. The list is rebuilt lazily, on the first call to {@link #getGroups()}
+ * after a change.
+ */
+public final class DiscoveryCoordinator implements ResolvedGroupRegistry.Listener {
+
+    /**
+     * Receives notice that the ranking may have changed
+     */
+    public interface Listener {
+
+        /**
+         * Called on a probe thread after a measurement has been recorded
+         */
+        void onRankingChanged();
+    }
+
+    /**
+     * Measures how long it takes to reach a host, abstracted so that tests can supply latencies
+     */
+    interface Prober {
+
+        /**
+         * @param service an mDNS service
+         * @return the time taken to reach the service in milliseconds, or {@link #UNREACHABLE}
+         */
+        long probeLan(ResolvedService service);
+
+        /**
+         * @return the time taken to reach the relay in milliseconds, or {@link #UNREACHABLE}
+         */
+        long probeRelay();
+    }
+
+    /**
+     * Time source, abstracted so that tests can control the age of measurements
+     */
+    interface Clock {
+
+        /**
+         * @return the current time in milliseconds on a monotonic clock
+         */
+        long now();
+    }
+
+    /**
+     * The latency reported for a host that could not be reached
+     */
+    public static final long UNREACHABLE = -1;
+
+    /**
+     * How long a measurement is used before the host is probed again
+     */
+    public static final long PROBE_TTL_MS = 60000;
+
+    // how often measurements are checked for expiry
+    static final long SWEEP_INTERVAL_MS = 5000;
+
+    // a group is reachable if any of its services is, there is no need to probe every node
+    static final int MAX_LAN_PROBES = 3;
+
+    private static final int PROBE_THREADS = 4;
+    private static final int CONNECT_TIMEOUT_MS = 1500;
+
+    private static final int TIER_LAN = 0;
+    private static final int TIER_LAN_UNMEASURED = 1;
+    private static final int TIER_RELAY = 2;
+    private static final int TIER_RELAY_UNMEASURED = 3;
+    private static final int TIER_UNREACHABLE = 4;
+
+    private final ResolvedGroupRegistry mRegistry;
+    private final Listener mListener;
+    private final Prober mProber;
+    private final ExecutorService mExecutor;
+    private final ScheduledExecutorService mTimer;
+    private final Clock mClock;
+
+    private final Object mLock = new Object();
+    // LAN measurements are keyed by group UID, the relay measurement is shared by all groups
+    private final Map<String, Measurement> mLanMeasurements = new HashMap<>();
+    private final Set<String> mLanProbing = new HashSet<>();
+    private Measurement mRelayMeasurement;
+    private boolean mRelayProbing = false;
+    private boolean mDirty = true;
+    private List<ResolvedGroup> mGroups = Collections.emptyList();
+    private boolean mClosed = false;
+
+    /**
+     * Create a coordinator probing hosts over TCP. The coordinator starts listening to the
+     * registry straight away, and groups already in the registry are probed.
+     * @param registry the registry shared by the discovery mechanisms
+     * @param listener notified when the ranking may have changed
+     */
+    public DiscoveryCoordinator(ResolvedGroupRegistry registry, Listener listener) {
+        this(registry, listener, new SocketProber(PeerLatencyTracker.getInstance()),
+                Executors.newFixedThreadPool(PROBE_THREADS),
+                Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "babble-probe-sweep");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }), SYSTEM_CLOCK);
+    }
+
+    DiscoveryCoordinator(ResolvedGroupRegistry registry, Listener listener, Prober prober,
+                         ExecutorService executor) {
+        this(registry, listener, prober, executor, null, SYSTEM_CLOCK);
+    }
+
+    /**
+     * @param timer runs the regular check for expired measurements, or null if the caller runs
+     *              {@link #reprobeStale()} itself
+     */
+    DiscoveryCoordinator(ResolvedGroupRegistry registry, Listener listener, Prober prober,
+                         ExecutorService executor, ScheduledExecutorService timer, Clock clock) {
+        mRegistry = registry;
+        mListener = listener;
+        mProber = prober;
+        mExecutor = executor;
+        mTimer = timer;
+        mClock = clock;
+
+        mRegistry.addListener(this);
+        for (ResolvedGroup group : mRegistry.getSnapshot()) {
+            scheduleProbe(group);
+        }
+
+        if (mTimer != null) {
+            mTimer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    reprobeStale();
+                }
+            }, SWEEP_INTERVAL_MS, SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void onRegistryChanged(ResolvedGroupRegistry.ChangeEvent event) {
+        ResolvedGroup group = event.getGroup();
+        synchronized (mLock) {
+            mDirty = true;
+            if (event.getType() == ResolvedGroupRegistry.ChangeEvent.Type.GROUP_REMOVED
+                    && group.getSource() == ResolvedGroup.Source.MDNS) {
+                mLanMeasurements.remove(group.getGroupUid());
+            }
+        }
+
+        if (event.getType() == ResolvedGroupRegistry.ChangeEvent.Type.GROUP_ADDED) {
+            scheduleProbe(group);
+        }
+    }
+
+    /**
+     * Get the deduplicated list of groups, best ranked first
+     * @return an unmodifiable list with one group per group UID
+     */
+    public List<ResolvedGroup> getGroups() {
+        final Map<String, Measurement> lanMeasurements;
+        final Measurement relayMeasurement;
+        synchronized (mLock) {
+            if (!mDirty) {
+                return mGroups;
+            }
+            // cleared before the registry is read, so a change made while the list is built marks
+            // it dirty again
+            mDirty = false;
+            lanMeasurements = new HashMap<>(mLanMeasurements);
+            relayMeasurement = mRelayMeasurement;
+        }
+
+        Comparator<ResolvedGroup> ranking = new Comparator<ResolvedGroup>() {
+            @Override
+            public int compare(ResolvedGroup a, ResolvedGroup b) {
+                Measurement ma = measurementOf(a, lanMeasurements, relayMeasurement);
+                Measurement mb = measurementOf(b, lanMeasurements, relayMeasurement);
+                int result = Integer.compare(tierOf(a, ma), tierOf(b, mb));
+                if (result == 0) {
+                    result = Long.compare(latencyOf(ma), latencyOf(mb));
+                }
+                if (result == 0) {
+                    result = a.getGroupName().compareToIgnoreCase(b.getGroupName());
+                }
+                if (result == 0) {
+                    result = a.getGroupUid().compareTo(b.getGroupUid());
+                }
+                return result;
+            }
+        };
+
+        Map<String, ResolvedGroup> best = new LinkedHashMap<>();
+        for (ResolvedGroup group : mRegistry.getSnapshot()) {
+            ResolvedGroup current = best.get(group.getGroupUid());
+            if (current == null || ranking.compare(group, current) < 0) {
+                best.put(group.getGroupUid(), group);
+            }
+        }
+
+        List<ResolvedGroup> groups = new ArrayList<>(best.values());
+        Collections.sort(groups, ranking);
+        groups = Collections.unmodifiableList(groups);
+
+        synchronized (mLock) {
+            mGroups = groups;
+        }
+        return groups;
+    }
+
+    /**
+     * Get the groups with a given UID, one per transport it was discovered on, best ranked first
+     * @param groupUid the group UID
+     * @return the groups, empty if the group is not known
+     */
+    public List<ResolvedGroup> getTransports(String groupUid) {
+        List<ResolvedGroup> transports = new ArrayList<>(ResolvedGroup.Source.values().length);
+        for (ResolvedGroup.Source source : ResolvedGroup.Source.values()) {
+            ResolvedGroup group = mRegistry.getGroup(source, groupUid);
+            if (group != null) {
+                transports.add(group);
+            }
+        }
+
+        final Map<String, Measurement> lanMeasurements;
+        final Measurement relayMeasurement;
+        synchronized (mLock) {
+            lanMeasurements = new HashMap<>(mLanMeasurements);
+            relayMeasurement = mRelayMeasurement;
+        }
+        Collections.sort(transports, new Comparator<ResolvedGroup>() {
+            @Override
+            public int compare(ResolvedGroup a, ResolvedGroup b) {
+                return Integer.compare(tierOf(a, measurementOf(a, lanMeasurements, relayMeasurement)),
+                        tierOf(b, measurementOf(b, lanMeasurements, relayMeasurement)));
+            }
+        });
+        return transports;
+    }
+
+    /**
+     * Forget all measurements and probe the groups in the registry again, e.g. when the network
+     * has changed
+     */
+    public void refresh() {
+        synchronized (mLock) {
+            mLanMeasurements.clear();
+            mRelayMeasurement = null;
+            mDirty = true;
+        }
+        for (ResolvedGroup group : mRegistry.getSnapshot()) {
+            scheduleProbe(group);
+        }
+    }
+
+    /**
+     * Probe again the hosts whose measurement has expired. Hosts with a fresh measurement or a
+     * probe in progress are skipped.
+     */
+    void reprobeStale() {
+        for (ResolvedGroup group : mRegistry.getSnapshot()) {
+            scheduleProbe(group);
+        }
+    }
+
+    /**
+     * Stop listening to the registry and stop probing. Probes in progress are abandoned.
+     */
+    public void close() {
+        synchronized (mLock) {
+            mClosed = true;
+        }
+        mRegistry.removeListener(this);
+        if (mTimer != null) {
+            mTimer.shutdownNow();
+        }
+        mExecutor.shutdownNow();
+    }
+
+    private void scheduleProbe(ResolvedGroup group) {
+        if (group.getSource() == ResolvedGroup.Source.MDNS) {
+            scheduleLanProbe(group);
+        } else {
+            scheduleRelayProbe();
+        }
+    }
+
+    private void scheduleLanProbe(final ResolvedGroup group) {
+        final String groupUid = group.getGroupUid();
+        synchronized (mLock) {
+            if (mClosed || mLanProbing.contains(groupUid) || isFresh(mLanMeasurements.get(groupUid))) {
+                return;
+            }
+            mLanProbing.add(groupUid);
+        }
+
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                long best = UNREACHABLE;
+                int probes = 0;
+                for (ResolvedService service : group.getResolvedServices()) {
+                    if (probes++ == MAX_LAN_PROBES) {
+                        break;
+                    }
+                    long latency = mProber.probeLan(service);
+                    if (latency != UNREACHABLE && (best == UNREACHABLE || latency < best)) {
+                        best = latency;
+                    }
+                }
+
+                synchronized (mLock) {
+                    mLanProbing.remove(groupUid);
+                    // the group may have been lost while it was probed
+                    if (mRegistry.getGroup(ResolvedGroup.Source.MDNS, groupUid) != null) {
+                        mLanMeasurements.put(groupUid, new Measurement(best, mClock.now()));
+                    }
+                    mDirty = true;
+                }
+                mListener.onRankingChanged();
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mLock) {
+                    mLanProbing.remove(groupUid);
+                }
+            }
+        });
+    }
+
+    private void scheduleRelayProbe() {
+        synchronized (mLock) {
+            if (mClosed || mRelayProbing || isFresh(mRelayMeasurement)) {
+                return;
+            }
+            mRelayProbing = true;
+        }
+
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                long latency = mProber.probeRelay();
+                synchronized (mLock) {
+                    mRelayProbing = false;
+                    mRelayMeasurement = new Measurement(latency, mClock.now());
+                    mDirty = true;
+                }
+                mListener.onRankingChanged();
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mLock) {
+                    mRelayProbing = false;
+                }
+            }
+        });
+    }
+
+    private void submit(Runnable probe, Runnable onRejected) {
+        try {
+            mExecutor.execute(probe);
+        } catch (RejectedExecutionException ex) {
+            // closed while the probe was being scheduled
+            onRejected.run();
+        }
+    }
+
+    private boolean isFresh(Measurement measurement) {
+        return measurement != null && mClock.now() - measurement.mMeasuredAt < PROBE_TTL_MS;
+    }
+
+    private static Measurement measurementOf(ResolvedGroup group, Map<String, Measurement> lanMeasurements,
+                                             Measurement relayMeasurement) {
+        return group.getSource() == ResolvedGroup.Source.MDNS
+                ? lanMeasurements.get(group.getGroupUid()) : relayMeasurement;
+    }
+
+    private static int tierOf(ResolvedGroup group, Measurement measurement) {
+        boolean lan = group.getSource() == ResolvedGroup.Source.MDNS;
+        if (measurement == null) {
+            return lan ? TIER_LAN_UNMEASURED : TIER_RELAY_UNMEASURED;
+        }
+        if (measurement.mLatencyMs == UNREACHABLE) {
+            return TIER_UNREACHABLE;
+        }
+        return lan ? TIER_LAN : TIER_RELAY;
+    }
+
+    private static long latencyOf(Measurement measurement) {
+        return measurement == null || measurement.mLatencyMs == UNREACHABLE
+                ? Long.MAX_VALUE : measurement.mLatencyMs;
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long now() {
+            return System.nanoTime() / 1000000;
+        }
+    };
+
+    private static final class Measurement {
+        final long mLatencyMs;
+        final long mMeasuredAt;
+
+        Measurement(long latencyMs, long measuredAt) {
+            mLatencyMs = latencyMs;
+            mMeasuredAt = measuredAt;
+        }
+    }
+
+    /**
+     * Measures the time taken to open a TCP connection. LAN results are also recorded with the
+     * {@link PeerLatencyTracker}, so the peers request made on joining asks the fastest node first.
+     */
+    private static final class SocketProber implements Prober {
+
+        private final PeerLatencyTracker mLatencyTracker;
+
+        SocketProber(PeerLatencyTracker latencyTracker) {
+            mLatencyTracker = latencyTracker;
+        }
+
+        @Override
+        public long probeLan(ResolvedService service) {
+            if (service.getInetAddress() == null) {
+                return UNREACHABLE;
+            }
+            String host = service.getInetAddress().getHostAddress();
+            long latency = connect(new InetSocketAddress(service.getInetAddress(), service.getPort()));
+            if (latency == UNREACHABLE) {
+                mLatencyTracker.recordFailure(host, service.getPort());
+            } else {
+                mLatencyTracker.recordSuccess(host, service.getPort(), latency);
+            }
+            return latency;
+        }
+
+        @Override
+        public long probeRelay() {
+            return connect(new InetSocketAddress(Constants.DISCOVER_SERVER_HOST,
+                    Constants.DISCOVER_SERVER_PORT));
+        }
+
+        private static long connect(InetSocketAddress address) {
+            if (address.isUnresolved()) {
+                return UNREACHABLE;
+            }
+            long start = System.nanoTime();
+            try (Socket socket = new Socket()) {
+                socket.connect(address, CONNECT_TIMEOUT_MS);
+                return (System.nanoTime() - start) / 1000000;
+            } catch (IOException ex) {
+                return UNREACHABLE;
+            }
+        }
+    }
+}
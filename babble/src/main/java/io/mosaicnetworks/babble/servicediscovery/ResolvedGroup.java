@@ -25,7 +25,10 @@
 package io.mosaicnetworks.babble.servicediscovery;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * This represents a group of resolved services with the same group UID. Services with a matching
@@ -41,8 +44,11 @@ public class ResolvedGroup {
 
     private final String mGroupName;
     private final String mGroupUid;
-    private final List<ResolvedService> mResolvedServices = new ArrayList<>();
+    // services are compared by identity, so membership checks are constant time
+    private final Set<ResolvedService> mResolvedServices = new LinkedHashSet<>();
     private final Source mSource;
+    private final long mStableId;
+    private List<ResolvedService> mSnapshot;
 
     /**
      * Constructor, the group is initialised from a resolved service
@@ -53,13 +59,14 @@ public class ResolvedGroup {
         mGroupUid = resolvedService.getGroupUid();
         mResolvedServices.add(resolvedService);
         mSource = source;
+        mStableId = stableId(source, mGroupUid);
     }
 
     /**
      * Adds a resolved service to this group's list of resolved services
      * @param resolvedService
      */
-    public void addService(ResolvedService resolvedService) {
+    public synchronized void addService(ResolvedService resolvedService) {
         if (mResolvedServices.contains(resolvedService)) {
             throw new IllegalArgumentException("Cannot add service: Group already contains this service");
         }
@@ -73,6 +80,7 @@ public class ResolvedGroup {
         }
 
         mResolvedServices.add(resolvedService);
+        mSnapshot = null;
     }
 
     /**
@@ -80,23 +88,34 @@ public class ResolvedGroup {
      * @param resolvedService the service to be removed
      * @return  <tt>true</tt> if this list contained the specified ResolvedServer
      */
-    public boolean removeService(ResolvedService resolvedService) {
+    public synchronized boolean removeService(ResolvedService resolvedService) {
 
-        if (!mResolvedServices.contains(resolvedService)) {
+        if (!mResolvedServices.remove(resolvedService)) {
             throw new IllegalArgumentException("Cannot remove service: Group does not contain this service");
         }
-
-        mResolvedServices.remove(resolvedService);
+        mSnapshot = null;
 
         return mResolvedServices.isEmpty();
     }
 
     /**
-     * Get the list of resolved services associated with this group
-     * @return a shallow copy of the list of services associated with this group
+     * Get the list of resolved services associated with this group. The list is only rebuilt after
+     * the group has changed, so repeated calls are cheap.
+     * @return an unmodifiable snapshot of the services associated with this group
      */
-    public List<ResolvedService> getResolvedServices() {
-        return new ArrayList<>(mResolvedServices);
+    public synchronized List<ResolvedService> getResolvedServices() {
+        if (mSnapshot == null) {
+            mSnapshot = Collections.unmodifiableList(new ArrayList<>(mResolvedServices));
+        }
+        return mSnapshot;
+    }
+
+    /**
+     * Get the number of services in this group
+     * @return the number of services
+     */
+    public synchronized int size() {
+        return mResolvedServices.size();
     }
 
     /**
@@ -115,6 +134,15 @@ public class ResolvedGroup {
         return mGroupUid;
     }
 
+    /**
+     * Get an identifier derived from the source and group UID, which stays the same for as long as
+     * the group is discovered, e.g. for use as a RecyclerView stable ID
+     * @return the stable ID
+     */
+    public long getStableId() {
+        return mStableId;
+    }
+
     /**
      * Get the source of this group descriptor
      * @return the source type
@@ -122,4 +150,15 @@ public class ResolvedGroup {
     public Source getSource() {
         return mSource;
     }
+
+    // 64 bit FNV-1a hash, collisions between the handful of groups on display are vanishingly rare
+    private static long stableId(Source source, String groupUid) {
+        String key = source.name() + ":" + groupUid;
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
 }
@@ -0,0 +1,334 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018- Mosaic Networks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.mosaicnetworks.babble.servicediscovery;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Holds the groups found by every discovery mechanism. Groups are indexed by source and group UID,
+ * and services by source and service key (the mDNS service name, or the group UID for groups
+ * found through the discovery server), so adding and removing a service takes constant time.
+ *
+ * The registry can be written to from any thread. Readers get an immutable snapshot of the groups,
+ * which is only rebuilt when a group is added or removed. Every change increments the registry
+ * version and is reported to listeners, in version order, without the registry lock held.
+ */
+public final class ResolvedGroupRegistry {
+
+    /**
+     * Describes a change to the registry
+     */
+    public static final class ChangeEvent {
+
+        public enum Type {
+            /** A service was added to a new group */
+            GROUP_ADDED,
+            /** A service was added to an existing group */
+            SERVICE_ADDED,
+            /** A service was removed, its group still has other services */
+            SERVICE_REMOVED,
+            /** The last service of a group was removed, and the group with it */
+            GROUP_REMOVED
+        }
+
+        private final long mVersion;
+        private final Type mType;
+        private final ResolvedGroup mGroup;
+        private final ResolvedService mService;
+
+        ChangeEvent(long version, Type type, ResolvedGroup group, ResolvedService service) {
+            mVersion = version;
+            mType = type;
+            mGroup = group;
+            mService = service;
+        }
+
+        /**
+         * @return the registry version this change produced
+         */
+        public long getVersion() {
+            return mVersion;
+        }
+
+        /**
+         * @return the type of change
+         */
+        public Type getType() {
+            return mType;
+        }
+
+        /**
+         * @return the group that was changed
+         */
+        public ResolvedGroup getGroup() {
+            return mGroup;
+        }
+
+        /**
+         * @return the service that was added or removed
+         */
+        public ResolvedService getService() {
+            return mService;
+        }
+
+        /**
+         * @return true if the number of groups has changed
+         */
+        public boolean isGroupCountChange() {
+            return mType == Type.GROUP_ADDED || mType == Type.GROUP_REMOVED;
+        }
+    }
+
+    /**
+     * Receives the changes made to the registry
+     */
+    public interface Listener {
+
+        /**
+         * Called after the registry has changed, on one of the threads changing the registry
+         * @param event the change
+         */
+        void onRegistryChanged(ChangeEvent event);
+    }
+
+    private final Object mLock = new Object();
+    private final Map<String, ResolvedGroup> mGroups = new LinkedHashMap<>();
+    private final Map<String, ResolvedService> mServices = new HashMap<>();
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private final Queue<ChangeEvent> mPendingEvents = new ConcurrentLinkedQueue<>();
+    private final Object mDispatchLock = new Object();
+    private volatile List<ResolvedGroup> mSnapshot = Collections.emptyList();
+    private volatile long mVersion = 0;
+
+    /**
+     * Add a listener for changes
+     * @param listener the listener
+     */
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    /**
+     * Remove a listener
+     * @param listener the listener
+     */
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Add a service to the group with the same source and group UID, creating the group if needed.
+     * The service is assigned to the group.
+     * @param source the discovery mechanism the service was found by
+     * @param serviceKey a key identifying the service among those from the same source
+     * @param service the service
+     * @return the change made
+     * @throws IllegalArgumentException if a service with the same key is already registered, or the
+     * service already belongs to a group
+     */
+    public ChangeEvent addService(ResolvedGroup.Source source, String serviceKey, ResolvedService service) {
+        ChangeEvent event;
+        synchronized (mLock) {
+            String key = serviceKey(source, serviceKey);
+            if (mServices.containsKey(key)) {
+                throw new IllegalArgumentException("Cannot add service: Service is already registered");
+            }
+            if (service.getResolvedGroup() != null) {
+                throw new IllegalArgumentException("Cannot add service: Service is already assigned to a group");
+            }
+
+            String groupKey = groupKey(source, service.getGroupUid());
+            ResolvedGroup group = mGroups.get(groupKey);
+            if (group == null) {
+                group = new ResolvedGroup(service, source);
+                mGroups.put(groupKey, group);
+                mSnapshot = Collections.unmodifiableList(new ArrayList<>(mGroups.values()));
+                event = newEvent(ChangeEvent.Type.GROUP_ADDED, group, service);
+            } else {
+                group.addService(service);
+                event = newEvent(ChangeEvent.Type.SERVICE_ADDED, group, service);
+            }
+
+            service.setResolvedGroup(group);
+            mServices.put(key, service);
+        }
+
+        dispatch();
+        return event;
+    }
+
+    /**
+     * Remove a service, and its group if the service was the last one in it
+     * @param source the discovery mechanism the service was found by
+     * @param serviceKey the key the service was added with
+     * @return the change made, or null if no such service is registered
+     */
+    public ChangeEvent removeService(ResolvedGroup.Source source, String serviceKey) {
+        ChangeEvent event;
+        synchronized (mLock) {
+            event = removeServiceLocked(serviceKey(source, serviceKey));
+        }
+
+        dispatch();
+        return event;
+    }
+
+    /**
+     * Remove the services from a source whose keys are not in the given collection, e.g. the
+     * groups no longer listed by the discovery server
+     * @param source the discovery mechanism
+     * @param serviceKeys the keys of the services to keep
+     * @return the number of services removed
+     */
+    public int retainServices(ResolvedGroup.Source source, Collection<String> serviceKeys) {
+        int removed = 0;
+        synchronized (mLock) {
+            String prefix = source.name() + ":";
+            List<String> stale = new ArrayList<>();
+            for (String key : mServices.keySet()) {
+                if (key.startsWith(prefix) && !serviceKeys.contains(key.substring(prefix.length()))) {
+                    stale.add(key);
+                }
+            }
+
+            for (String key : stale) {
+                removeServiceLocked(key);
+                removed++;
+            }
+        }
+
+        dispatch();
+        return removed;
+    }
+
+    /**
+     * Remove all the services from a source
+     * @param source the discovery mechanism
+     */
+    public void clear(ResolvedGroup.Source source) {
+        retainServices(source, Collections.<String>emptySet());
+    }
+
+    /**
+     * @param source the discovery mechanism
+     * @param serviceKey the key the service was added with
+     * @return true if the service is registered
+     */
+    public boolean containsService(ResolvedGroup.Source source, String serviceKey) {
+        synchronized (mLock) {
+            return mServices.containsKey(serviceKey(source, serviceKey));
+        }
+    }
+
+    /**
+     * @param source the discovery mechanism
+     * @param serviceKey the key the service was added with
+     * @return the service, or null if it is not registered
+     */
+    public ResolvedService getService(ResolvedGroup.Source source, String serviceKey) {
+        synchronized (mLock) {
+            return mServices.get(serviceKey(source, serviceKey));
+        }
+    }
+
+    /**
+     * @param source the discovery mechanism
+     * @param groupUid the group UID
+     * @return the group, or null if there is no such group
+     */
+    public ResolvedGroup getGroup(ResolvedGroup.Source source, String groupUid) {
+        synchronized (mLock) {
+            return mGroups.get(groupKey(source, groupUid));
+        }
+    }
+
+    /**
+     * Get the groups, in the order they were found. The list is not affected by later changes.
+     * @return an unmodifiable snapshot of the groups
+     */
+    public List<ResolvedGroup> getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * @return the version of the registry, incremented on every change
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    private ChangeEvent removeServiceLocked(String key) {
+        ResolvedService service = mServices.remove(key);
+        if (service == null) {
+            return null;
+        }
+
+        ResolvedGroup group = service.getResolvedGroup();
+        if (!group.removeService(service)) {
+            return newEvent(ChangeEvent.Type.SERVICE_REMOVED, group, service);
+        }
+
+        mGroups.remove(groupKey(group.getSource(), group.getGroupUid()));
+        mSnapshot = Collections.unmodifiableList(new ArrayList<>(mGroups.values()));
+        return newEvent(ChangeEvent.Type.GROUP_REMOVED, group, service);
+    }
+
+    // Called with the lock held, so events are queued in version order
+    private ChangeEvent newEvent(ChangeEvent.Type type, ResolvedGroup group, ResolvedService service) {
+        mVersion++;
+        ChangeEvent event = new ChangeEvent(mVersion, type, group, service);
+        mPendingEvents.add(event);
+        return event;
+    }
+
+    // Only one thread delivers events at a time, draining the queue in order
+    private void dispatch() {
+        synchronized (mDispatchLock) {
+            ChangeEvent event;
+            while ((event = mPendingEvents.poll()) != null) {
+                for (Listener listener : mListeners) {
+                    listener.onRegistryChanged(event);
+                }
+            }
+        }
+    }
+
+    private static String groupKey(ResolvedGroup.Source source, String groupUid) {
+        return source.name() + ":" + groupUid;
+    }
+
+    private static String serviceKey(ResolvedGroup.Source source, String serviceKey) {
+        return source.name() + ":" + serviceKey;
+    }
+}
@@ -26,6 +26,7 @@ package io.mosaicnetworks.babble.servicediscovery;
 
 
 import io.mosaicnetworks.babble.node.BabbleNode;
+import io.mosaicnetworks.babble.node.Block;
 import io.mosaicnetworks.babble.service.BabbleService;
 
 /**
@@ -40,4 +41,11 @@ public interface ServiceAdvertiser {
 
     void stopAdvertising();
 
+    /**
+     * Called for each block committed by the advertised node, on the thread committing blocks, so
+     * that the advertisement can be kept up to date
+     * @param block the committed block
+     */
+    void onBlockCommitted(Block block);
+
 }
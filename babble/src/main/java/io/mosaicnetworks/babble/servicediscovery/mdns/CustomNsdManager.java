@@ -27,10 +27,13 @@ package io.mosaicnetworks.babble.servicediscovery.mdns;
 import android.content.Context;
 import android.net.nsd.NsdManager;
 import android.net.nsd.NsdServiceInfo;
+import android.net.wifi.WifiManager;
 import android.util.Log;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 
@@ -41,21 +44,71 @@ public class CustomNsdManager {
     private NsdManager mNsdManager;
     private boolean AttemptStockResolveFirst = true;
     private static final int RESOLVE_TIMEOUT = 12000;
+    private final MdnsRecordCache mRecordCache = new MdnsRecordCache();
+    private final MdnsResolver mResolver = new MdnsResolver(mRecordCache);
+    private final WifiManager.MulticastLock mMulticastLock;
+    private MdnsPassiveListener mPassiveListener;
+    // the multicast lock and the sockets are only held while discovery is running
+    private boolean mDiscovering = false;
 
     public CustomNsdManager(Context context) {
         mNsdManager = (NsdManager) context.getSystemService(Context.NSD_SERVICE);
+        WifiManager wifiManager = (WifiManager) context.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+        mMulticastLock = wifiManager.createMulticastLock(TAG);
+        mMulticastLock.setReferenceCounted(false);
     }
 
-    public void discoverServices(String serviceType, int protocolType, NsdManager.DiscoveryListener listener) {
+    public synchronized void discoverServices(String serviceType, int protocolType, NsdManager.DiscoveryListener listener) {
+        mDiscovering = true;
         mNsdManager.discoverServices(serviceType, protocolType, listener);
+
+        // The resolver keeps cached records fresh while discovery is running
+        try {
+            mResolver.start();
+        } catch (IOException ex) {
+            Log.i(TAG, "discoverServices: Could not start resolver: " + ex.getMessage());
+        }
+
+        // Overhearing the answers sent to other hosts fills the cache without sending queries
+        // of our own, which needs multicast packets to be let through by the Wi-Fi driver
+        mMulticastLock.acquire();
+        if (mPassiveListener == null) {
+            mPassiveListener = new MdnsPassiveListener(mRecordCache, serviceType + "local");
+        }
+        try {
+            mPassiveListener.start();
+        } catch (IOException ex) {
+            Log.i(TAG, "discoverServices: Could not start passive listener: " + ex.getMessage());
+        }
     }
 
+    /**
+     * Stop discovery, and release the multicast lock and the sockets acquired when it started
+     * @param listener the listener passed to {@link #discoverServices(String, int, NsdManager.DiscoveryListener)}
+     */
     public void stopServiceDiscovery(NsdManager.DiscoveryListener listener) {
         mNsdManager.stopServiceDiscovery(listener);
+        shutdown();
     }
 
     public void resolveService(final NsdServiceInfo serviceInfo, final NsdManager.ResolveListener listener) {
 
+        // A service that was resolved recently, and whose records have been kept fresh, does not
+        // need to be resolved again
+        String fullName = fullServiceName(serviceInfo.getServiceName(), serviceInfo.getServiceType());
+        MdnsCustomResolve.Result cached = mRecordCache.getResult(fullName, MdnsRecordCache.now());
+        if (cached != null) {
+            try {
+                // records overheard before are refreshed now that the service has been resolved
+                NsdServiceInfo resolved = toNsdServiceInfo(serviceInfo, cached);
+                mRecordCache.track(fullName);
+                listener.onServiceResolved(resolved);
+                return;
+            } catch (IOException | IllegalArgumentException ex) {
+                Log.i(TAG, "resolveService: Ignoring cached records: " + ex.getMessage());
+            }
+        }
+
         // If using alternative method by preference
         if (! AttemptStockResolveFirst) {
             resolveServiceAlternative(serviceInfo, listener);
@@ -74,6 +127,7 @@ public class CustomNsdManager {
                         ResolvedService resolvedService;
                         try {
                             resolvedService = new ResolvedService(nsdServiceInfo);
+                            cacheStockResult(serviceInfo, nsdServiceInfo);
                             // No error so we make stock return
                             listener.onServiceResolved(nsdServiceInfo);
                         } catch (IllegalArgumentException ex) {
@@ -84,34 +138,43 @@ public class CustomNsdManager {
                 }  );
     }
 
-    private void resolveServiceAlternative(NsdServiceInfo serviceInfo, NsdManager.ResolveListener listener) {
+    private void resolveServiceAlternative(final NsdServiceInfo serviceInfo, final NsdManager.ResolveListener listener) {
 
         Log.i(TAG, "resolveServiceAlternative: Using Alternative Resolution");
         AttemptStockResolveFirst = true;
 
+        String serviceName = fullServiceName(serviceInfo.getServiceName(), serviceInfo.getServiceType());
+
         try {
-            // We have to transform the Result to an NsdServiceInfo instance so that the
-            // stock listeners can be used for either resolving method.
-
-            String serviceName = serviceInfo.getServiceName()+"."+ serviceInfo.getServiceType()+"local"; //TODO something better than hardcoding local
-            MdnsCustomResolve.Result result = MdnsCustomResolve.resolve(serviceName, RESOLVE_TIMEOUT) ;
-            NsdServiceInfo nsdServiceInfo = new NsdServiceInfo();
-            nsdServiceInfo.setServiceType(serviceInfo.getServiceType());
-            nsdServiceInfo.setServiceName(serviceInfo.getServiceName());
-            InetAddress inetAddress = InetAddress.getByName(result.a.ipaddr)   ;
-            nsdServiceInfo.setHost(inetAddress);
-            nsdServiceInfo.setPort(result.srv.port);
-
-            // Iterate through the TXT record to set the NsdServiceInfo attributes
-            Iterator<Map.Entry<String, String>> itr = result.txt.dict.entrySet().iterator();
-            while(itr.hasNext())
-            {
-                Map.Entry<String, String> entry = itr.next();
-                nsdServiceInfo.setAttribute(entry.getKey(), entry.getValue());
+            // One resolver is shared by all alternative resolutions, so that the queries for
+            // services discovered together are batched onto a single socket. It is not reopened
+            // for a resolution completing after discovery has stopped.
+            synchronized (this) {
+                if (!mDiscovering) {
+                    listener.onResolveFailed(serviceInfo, 98);
+                    return;
+                }
+                mResolver.start();
             }
+            mResolver.resolve(serviceName, RESOLVE_TIMEOUT, new MdnsResolver.ResolveListener() {
+                @Override
+                public void onServiceResolved(String serviceName, MdnsCustomResolve.Result result) {
+                    try {
+                        NsdServiceInfo nsdServiceInfo = toNsdServiceInfo(serviceInfo, result);
+                        Log.i(TAG, "resolveServiceAlternative: Used Alternative Resolution");
+                        listener.onServiceResolved(nsdServiceInfo);
+                    } catch (IOException | IllegalArgumentException ex) {
+                        Log.i(TAG, "resolveServiceAlternative Exception: " + ex.getMessage());
+                        listener.onResolveFailed(serviceInfo, 98);
+                    }
+                }
 
-            Log.i(TAG, "resolveServiceAlternative: Used Alternative Resolution");
-            listener.onServiceResolved(nsdServiceInfo);
+                @Override
+                public void onResolveFailed(String serviceName, MdnsCustomResolve.Result partialResult) {
+                    Log.i(TAG, "resolveServiceAlternative: Timed out resolving " + serviceName);
+                    listener.onResolveFailed(serviceInfo, 98);
+                }
+            });
         } catch (IOException ex) {
             Log.i(TAG, "resolveServiceAlternative Exception: " + ex.getMessage());
             ex.printStackTrace();
@@ -119,6 +182,91 @@ public class CustomNsdManager {
         }
     }
 
+    // We have to transform the Result to an NsdServiceInfo instance so that the stock listeners can
+    // be used for either resolving method.
+    private static NsdServiceInfo toNsdServiceInfo(NsdServiceInfo serviceInfo,
+                                                   MdnsCustomResolve.Result result) throws IOException {
+        NsdServiceInfo nsdServiceInfo = new NsdServiceInfo();
+        nsdServiceInfo.setServiceType(serviceInfo.getServiceType());
+        nsdServiceInfo.setServiceName(serviceInfo.getServiceName());
+        InetAddress inetAddress = InetAddress.getByName(result.a.ipaddr)   ;
+        nsdServiceInfo.setHost(inetAddress);
+        nsdServiceInfo.setPort(result.srv.port);
+
+        // Iterate through the TXT record to set the NsdServiceInfo attributes
+        Iterator<Map.Entry<String, String>> itr = result.txt.dict.entrySet().iterator();
+        while(itr.hasNext())
+        {
+            Map.Entry<String, String> entry = itr.next();
+            nsdServiceInfo.setAttribute(entry.getKey(), entry.getValue());
+        }
 
+        return nsdServiceInfo;
+    }
 
+    // The stock resolver does not expose TTLs or the host name, so the result is cached with the
+    // default TTL and the host address standing in for the host name. Nothing refreshes these
+    // records, so their expiry is not taken as the service being lost, NsdManager reports that.
+    private void cacheStockResult(NsdServiceInfo serviceInfo, NsdServiceInfo resolved) {
+        if (resolved.getHost() == null) {
+            return;
+        }
+
+        String serviceName = fullServiceName(serviceInfo.getServiceName(), serviceInfo.getServiceType());
+        String host = resolved.getHost().getHostAddress();
+
+        MdnsCustomResolve.Result result = new MdnsCustomResolve.Result();
+        result.srv = new MdnsCustomResolve.SRV();
+        result.srv.fqdn = serviceName;
+        result.srv.ttl = MdnsRecordCache.DEFAULT_TTL_SECONDS;
+        result.srv.port = resolved.getPort();
+        result.srv.target = host;
+
+        result.txt = new MdnsCustomResolve.TXT();
+        result.txt.fqdn = serviceName;
+        result.txt.ttl = MdnsRecordCache.DEFAULT_TTL_SECONDS;
+        result.txt.dict = new HashMap<>();
+        for (Map.Entry<String, byte[]> entry : resolved.getAttributes().entrySet()) {
+            byte[] value = entry.getValue();
+            result.txt.dict.put(entry.getKey(), value == null ? null : new String(value, StandardCharsets.UTF_8));
+        }
+
+        result.a = new MdnsCustomResolve.A();
+        result.a.fqdn = host;
+        result.a.ttl = MdnsRecordCache.DEFAULT_TTL_SECONDS;
+        result.a.ipaddr = host;
+
+        mRecordCache.putSynthesizedResult(result, MdnsRecordCache.now());
+    }
+
+    /**
+     * Build the fully qualified name of a service instance, as used in DNS records
+     * @param serviceName the service instance name
+     * @param serviceType the service type as reported by NsdManager, e.g. "_babble._tcp."
+     * @return the fully qualified name
+     */
+    static String fullServiceName(String serviceName, String serviceType) {
+        return serviceName + "." + serviceType + "local"; //TODO something better than hardcoding local
+    }
+
+    /**
+     * @return the cache holding the records of resolved services
+     */
+    public MdnsRecordCache getRecordCache() {
+        return mRecordCache;
+    }
+
+    /**
+     * Release the sockets used by the alternative resolution mechanism and the passive listener,
+     * and the multicast lock, e.g. when discovery failed to start. They are reopened when
+     * discovery is started again.
+     */
+    public synchronized void shutdown() {
+        mDiscovering = false;
+        mResolver.stop();
+        if (mPassiveListener != null) {
+            mPassiveListener.stop();
+        }
+        mMulticastLock.release();
+    }
 }
@@ -0,0 +1,495 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018- Mosaic Networks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.mosaicnetworks.babble.servicediscovery.mdns;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Decodes the A, SRV and TXT records of a DNS packet by indexing directly into the packet bytes.
+ * Labels, names and TXT strings are interned, and the decoded records are pooled in a reusable
+ * {@link Message}, so a steady stream of the same few records decodes without allocating.
+ *
+ * The decoding rules, including the detection of cyclic compression pointers, are the same as
+ * the original stream based decoder. A parser is not thread safe.
+ */
+final class DnsPacketParser {
+
+    private static final int HEADER_SIZE = 12;
+    private static final int INTERNER_CAPACITY = 1024;
+
+    /**
+     * Holds the records decoded from one packet. The records belong to the message and are
+     * overwritten by the next parse, use {@link #copyOf} to keep a record.
+     */
+    static final class Message {
+
+        private final List<MdnsCustomResolve.Record> mRecords = new ArrayList<>();
+        private final List<MdnsCustomResolve.A> mAPool = new ArrayList<>();
+        private final List<MdnsCustomResolve.SRV> mSrvPool = new ArrayList<>();
+        private final List<MdnsCustomResolve.TXT> mTxtPool = new ArrayList<>();
+        private int mACount;
+        private int mSrvCount;
+        private int mTxtCount;
+
+        /**
+         * @return the number of A, SRV and TXT records in the packet
+         */
+        int size() {
+            return mRecords.size();
+        }
+
+        /**
+         * @param index the index of the record, records are kept in packet order
+         * @return the record
+         */
+        MdnsCustomResolve.Record get(int index) {
+            return mRecords.get(index);
+        }
+
+        private void reset() {
+            mRecords.clear();
+            mACount = 0;
+            mSrvCount = 0;
+            mTxtCount = 0;
+        }
+
+        private MdnsCustomResolve.A nextA() {
+            if (mACount == mAPool.size()) {
+                mAPool.add(new MdnsCustomResolve.A());
+            }
+            return mAPool.get(mACount++);
+        }
+
+        private MdnsCustomResolve.SRV nextSrv() {
+            if (mSrvCount == mSrvPool.size()) {
+                mSrvPool.add(new MdnsCustomResolve.SRV());
+            }
+            return mSrvPool.get(mSrvCount++);
+        }
+
+        private MdnsCustomResolve.TXT nextTxt() {
+            if (mTxtCount == mTxtPool.size()) {
+                MdnsCustomResolve.TXT txt = new MdnsCustomResolve.TXT();
+                txt.dict = new HashMap<>();
+                mTxtPool.add(txt);
+            }
+            MdnsCustomResolve.TXT txt = mTxtPool.get(mTxtCount++);
+            txt.dict.clear();
+            return txt;
+        }
+    }
+
+    private final ByteInterner mByteInterner = new ByteInterner(INTERNER_CAPACITY);
+    private final NameInterner mNameInterner = new NameInterner(INTERNER_CAPACITY);
+    private final StringBuilder mName = new StringBuilder();
+    private final byte[] mAddress = new byte[15];
+    private byte[] mPacket;
+    private int mBase;
+    private int mLength;
+    // the position just after the last name read, in the stream the name was read from
+    private int mNameEnd;
+
+    /**
+     * Decode a packet
+     * @param packet the packet data
+     * @param packetLength the length of the packet
+     * @param message receives the records. If the packet is malformed it holds the records decoded
+     *                before the error.
+     * @throws IOException if the packet is malformed
+     */
+    void parse(byte[] packet, int packetLength, Message message) throws IOException {
+        parse(packet, 0, packetLength, message);
+    }
+
+    /**
+     * Decode the remaining bytes of a heap buffer. The buffer's position is not changed.
+     * @param buffer the buffer containing the packet
+     * @param message receives the records
+     * @throws IOException if the packet is malformed
+     */
+    void parse(ByteBuffer buffer, Message message) throws IOException {
+        if (!buffer.hasArray()) {
+            throw new IllegalArgumentException("Only heap buffers are supported");
+        }
+        parse(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), message);
+    }
+
+    private void parse(byte[] packet, int base, int length, Message message) throws IOException {
+        message.reset();
+        mPacket = packet;
+        mBase = base;
+        mLength = length;
+
+        try {
+            require(0, HEADER_SIZE, length);
+            int questions = readUnsignedShort(4);
+            int records = readUnsignedShort(6) + readUnsignedShort(8) + readUnsignedShort(10);
+            int pos = HEADER_SIZE;
+
+            for (int i = 0; i < questions; i++) {
+                readName(pos, length);
+                pos = mNameEnd;
+                require(pos, 4, length);
+                pos += 4;
+            }
+
+            for (int i = 0; i < records; i++) {
+                String fqdn = readName(pos, length);
+                pos = mNameEnd;
+                require(pos, 10, length);
+                int type = readUnsignedShort(pos);
+                int ttl = readInt(pos + 4);
+                int dataLength = readUnsignedShort(pos + 8);
+                int dataStart = pos + 10;
+                int dataEnd = dataStart + dataLength;
+                require(dataStart, dataLength, length);
+                pos = dataEnd;
+
+                MdnsCustomResolve.Record record = null;
+                switch (type) {
+                    case MdnsCustomResolve.QTYPE_A:
+                        record = parseA(dataStart, dataLength, message);
+                        break;
+                    case MdnsCustomResolve.QTYPE_SRV:
+                        record = parseSrv(dataStart, dataEnd, message);
+                        break;
+                    case MdnsCustomResolve.QTYPE_PTR:
+                        readName(dataStart, dataEnd);
+                        break;
+                    case MdnsCustomResolve.QTYPE_TXT:
+                        record = parseTxt(dataStart, dataEnd, message);
+                        break;
+                    default:
+                        break;
+                }
+                if (record != null) {
+                    record.fqdn = fqdn;
+                    record.ttl = ttl;
+                    message.mRecords.add(record);
+                }
+            }
+        } finally {
+            mPacket = null;
+        }
+    }
+
+    /**
+     * Copy a record so that it can outlive the message it was decoded into
+     * @param record the record
+     * @return an independent copy
+     */
+    static MdnsCustomResolve.Record copyOf(MdnsCustomResolve.Record record) {
+        MdnsCustomResolve.Record copy;
+        if (record instanceof MdnsCustomResolve.A) {
+            MdnsCustomResolve.A a = new MdnsCustomResolve.A();
+            a.ipaddr = ((MdnsCustomResolve.A) record).ipaddr;
+            copy = a;
+        } else if (record instanceof MdnsCustomResolve.SRV) {
+            MdnsCustomResolve.SRV source = (MdnsCustomResolve.SRV) record;
+            MdnsCustomResolve.SRV srv = new MdnsCustomResolve.SRV();
+            srv.priority = source.priority;
+            srv.weight = source.weight;
+            srv.port = source.port;
+            srv.target = source.target;
+            copy = srv;
+        } else if (record instanceof MdnsCustomResolve.TXT) {
+            MdnsCustomResolve.TXT txt = new MdnsCustomResolve.TXT();
+            txt.dict = new HashMap<>(((MdnsCustomResolve.TXT) record).dict);
+            copy = txt;
+        } else {
+            throw new IllegalArgumentException("Unknown record type");
+        }
+        copy.fqdn = record.fqdn;
+        copy.ttl = record.ttl;
+        return copy;
+    }
+
+    private MdnsCustomResolve.A parseA(int start, int length, Message message) throws IOException {
+        if (length < 4) throw new IOException("expected 4 bytes for IPv4 addr");
+
+        // format the dotted quad into a scratch buffer so that it can be interned
+        int pos = 0;
+        for (int i = 0; i < 4; i++) {
+            if (i > 0) {
+                mAddress[pos++] = '.';
+            }
+            pos = writeDecimal(mPacket[mBase + start + i] & 0xff, mAddress, pos);
+        }
+
+        MdnsCustomResolve.A a = message.nextA();
+        a.ipaddr = mByteInterner.intern(mAddress, 0, pos);
+        return a;
+    }
+
+    private MdnsCustomResolve.SRV parseSrv(int start, int end, Message message) throws IOException {
+        require(start, 6, end);
+        MdnsCustomResolve.SRV srv = message.nextSrv();
+        srv.priority = readUnsignedShort(start);
+        srv.weight = readUnsignedShort(start + 2);
+        srv.port = readUnsignedShort(start + 4);
+        srv.target = readName(start + 6, end);
+        return srv;
+    }
+
+    private MdnsCustomResolve.TXT parseTxt(int start, int end, Message message) throws IOException {
+        MdnsCustomResolve.TXT txt = message.nextTxt();
+        int pos = start;
+        while (pos < end) {
+            int length = mPacket[mBase + pos++] & 0xff;
+            require(pos, length, end);
+
+            int separator = -1;
+            for (int i = pos; i < pos + length; i++) {
+                if (mPacket[mBase + i] == '=') {
+                    separator = i;
+                    break;
+                }
+            }
+
+            String key;
+            String value = null;
+            if (separator != -1) {
+                key = mByteInterner.intern(mPacket, mBase + pos, separator - pos);
+                value = mByteInterner.intern(mPacket, mBase + separator + 1, pos + length - separator - 1);
+            } else {
+                key = mByteInterner.intern(mPacket, mBase + pos, length);
+            }
+
+            if (!txt.dict.containsKey(key)) {
+                // from RFC6763
+                // If a client receives a TXT record containing the same key more than once, then
+                // the client MUST silently ignore all but the first occurrence of that attribute."
+                txt.dict.put(key, value);
+            }
+            pos += length;
+        }
+        return txt;
+    }
+
+    /**
+     * Read a possibly compressed domain name. On return {@link #mNameEnd} holds the position
+     * following the name in the stream it started in.
+     * @param start the position of the first label
+     * @param limit the end of the stream the name starts in. Names reached through a pointer may
+     *              extend to the end of the packet.
+     */
+    private String readName(int start, int limit) throws IOException {
+        mName.setLength(0);
+        int pos = start;
+        int end = -1;
+        boolean dot = false;
+        while (true) {
+            int pointerHopCount = 0;
+            int length;
+            while (true) {
+                require(pos, 1, limit);
+                length = mPacket[mBase + pos++] & 0xff;
+                if (length == 0) {
+                    mNameEnd = end == -1 ? pos : end;
+                    return mNameInterner.intern(mName);
+                }
+                if ((length & 0xc0) == 0xc0) {
+                    // this is a compression pointer, the remainder of the name is elsewhere in the
+                    // packet
+                    if ((++pointerHopCount) * 2 >= mLength) {
+                        // We must have visited one of the possible pointers more than once => cycle
+                        // this doesn't add to the domain length, but decoding would be non-terminating
+                        throw new IOException("cyclic empty references in domain name");
+                    }
+                    require(pos, 1, limit);
+                    int offset = ((length & 0x3f) << 8) | (mPacket[mBase + pos++] & 0xff);
+                    if (end == -1) {
+                        end = pos;
+                    }
+                    pos = offset;
+                    limit = mLength;
+                } else {
+                    break;
+                }
+            }
+            require(pos, length, limit);
+            if (dot) mName.append('.');
+            dot = true;
+            mName.append(mByteInterner.intern(mPacket, mBase + pos, length));
+            pos += length;
+            if (mName.length() > mLength) {
+                // If we get here, we must be following cyclic references, since non-cyclic
+                // references can't encode a domain name longer than the total length of the packet.
+                throw new IOException("cyclic non-empty references in domain name");
+            }
+        }
+    }
+
+    private static void require(int pos, int count, int limit) throws EOFException {
+        if (pos + count > limit) {
+            throw new EOFException();
+        }
+    }
+
+    private int readUnsignedShort(int pos) {
+        return ((mPacket[mBase + pos] & 0xff) << 8) | (mPacket[mBase + pos + 1] & 0xff);
+    }
+
+    private int readInt(int pos) {
+        return (readUnsignedShort(pos) << 16) | readUnsignedShort(pos + 2);
+    }
+
+    private static int writeDecimal(int value, byte[] out, int pos) {
+        if (value >= 100) {
+            out[pos++] = (byte) ('0' + value / 100);
+        }
+        if (value >= 10) {
+            out[pos++] = (byte) ('0' + (value / 10) % 10);
+        }
+        out[pos++] = (byte) ('0' + value % 10);
+        return pos;
+    }
+
+    /**
+     * Maps byte sequences to their UTF-8 decoded strings. The table is flushed when it fills up,
+     * which bounds its memory no matter how many distinct strings are seen on the network.
+     */
+    private static final class ByteInterner {
+        private final byte[][] mKeys;
+        private final String[] mValues;
+        private final int mMask;
+        private int mSize = 0;
+
+        ByteInterner(int capacity) {
+            mKeys = new byte[capacity][];
+            mValues = new String[capacity];
+            mMask = capacity - 1;
+        }
+
+        String intern(byte[] data, int offset, int length) {
+            int hash = 0x811c9dc5;
+            for (int i = offset; i < offset + length; i++) {
+                hash = (hash ^ data[i]) * 0x01000193;
+            }
+
+            int slot = hash & mMask;
+            while (mKeys[slot] != null) {
+                if (equals(mKeys[slot], data, offset, length)) {
+                    return mValues[slot];
+                }
+                slot = (slot + 1) & mMask;
+            }
+
+            if (mSize >= mKeys.length / 2) {
+                clear();
+                slot = hash & mMask;
+            }
+
+            byte[] key = new byte[length];
+            System.arraycopy(data, offset, key, 0, length);
+            String value = new String(data, offset, length, StandardCharsets.UTF_8);
+            mKeys[slot] = key;
+            mValues[slot] = value;
+            mSize++;
+            return value;
+        }
+
+        private void clear() {
+            for (int i = 0; i < mKeys.length; i++) {
+                mKeys[i] = null;
+                mValues[i] = null;
+            }
+            mSize = 0;
+        }
+
+        private static boolean equals(byte[] key, byte[] data, int offset, int length) {
+            if (key.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (key[i] != data[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Maps character sequences to equal strings, so that repeated names share one instance.
+     */
+    private static final class NameInterner {
+        private final String[] mValues;
+        private final int mMask;
+        private int mSize = 0;
+
+        NameInterner(int capacity) {
+            mValues = new String[capacity];
+            mMask = capacity - 1;
+        }
+
+        String intern(CharSequence chars) {
+            int hash = 0;
+            for (int i = 0; i < chars.length(); i++) {
+                hash = 31 * hash + chars.charAt(i);
+            }
+
+            // spread the bits, String.hashCode clusters in the low bits for similar names
+            int slot = (hash ^ (hash >>> 16)) & mMask;
+            while (mValues[slot] != null) {
+                if (contentEquals(mValues[slot], chars)) {
+                    return mValues[slot];
+                }
+                slot = (slot + 1) & mMask;
+            }
+
+            if (mSize >= mValues.length / 2) {
+                for (int i = 0; i < mValues.length; i++) {
+                    mValues[i] = null;
+                }
+                mSize = 0;
+                slot = (hash ^ (hash >>> 16)) & mMask;
+            }
+
+            String value = chars.toString();
+            mValues[slot] = value;
+            mSize++;
+            return value;
+        }
+
+        private static boolean contentEquals(String value, CharSequence chars) {
+            if (value.length() != chars.length()) {
+                return false;
+            }
+            for (int i = 0; i < value.length(); i++) {
+                if (value.charAt(i) != chars.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
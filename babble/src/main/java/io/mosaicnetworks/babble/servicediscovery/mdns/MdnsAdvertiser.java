@@ -32,6 +32,7 @@ import java.io.IOException;
 import java.util.Objects;
 
 import io.mosaicnetworks.babble.node.BabbleNode;
+import io.mosaicnetworks.babble.node.Block;
 import io.mosaicnetworks.babble.node.GroupDescriptor;
 import io.mosaicnetworks.babble.servicediscovery.ServiceAdvertiser;
 import io.mosaicnetworks.babble.utils.RandomString;
@@ -106,6 +107,11 @@ public class MdnsAdvertiser implements ServiceAdvertiser {
         }
     }
 
+    @Override
+    public void onBlockCommitted(Block block) {
+        // the peers are served from the node when requested, so there is nothing to update
+    }
+
     private void initializeRegistrationListener() {
         mRegistrationListener = new NsdManager.RegistrationListener()  {
 
@@ -38,17 +38,15 @@ licensed under the MIT license.
 
 package io.mosaicnetworks.babble.servicediscovery.mdns;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.EOFException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -57,20 +55,34 @@ import java.util.Map;
  */
 public class MdnsCustomResolve {
 
-    private static final short QTYPE_A   = 0x0001;
+    static final short QTYPE_A   = 0x0001;
     static final short QTYPE_PTR = 0x000c;
     static final short QTYPE_TXT = 0x0010;
     static final short QTYPE_SRV = 0x0021;
 
     static final short QCLASS_INTERNET = 0x0001;
     static final short CLASS_FLAG_UNICAST = (short) 0x8000;
-    private static final int PORT = 5353;
+    static final int PORT = 5353;
 
-    private static final String MULTICAST_GROUP_ADDRESS = "224.0.0.251";
+    static final String MULTICAST_GROUP_ADDRESS = "224.0.0.251";
 
-    private static final boolean DEBUG = true;
+    private static final boolean DEBUG = false;
 
 
+    private static final ThreadLocal<DnsPacketParser> PARSER = new ThreadLocal<DnsPacketParser>() {
+        @Override
+        protected DnsPacketParser initialValue() {
+            return new DnsPacketParser();
+        }
+    };
+
+    private static final ThreadLocal<DnsPacketParser.Message> MESSAGE = new ThreadLocal<DnsPacketParser.Message>() {
+        @Override
+        protected DnsPacketParser.Message initialValue() {
+            return new DnsPacketParser.Message();
+        }
+    };
+
     public interface Callback {
         void onResult(Result result);
     }
@@ -150,7 +162,7 @@ public class MdnsCustomResolve {
         return result;
     }
 
-    private static void writeFQDN(String name, OutputStream out) throws IOException {
+    static void writeFQDN(String name, OutputStream out) throws IOException {
         for (String part : name.split("\\.")) {
             out.write(part.length());
             out.write(part.getBytes());
@@ -223,163 +235,36 @@ public class MdnsCustomResolve {
 
 
     static void decode(byte[] packet, int packetLength, Result result) throws IOException {
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(packet, 0, packetLength));
-        short transactionID = dis.readShort();
-        short flags = dis.readShort();
-        int questions = dis.readUnsignedShort();
-        int answers = dis.readUnsignedShort();
-        int authorityRRs = dis.readUnsignedShort();
-        int additionalRRs = dis.readUnsignedShort();
-        // decode the queries
-        for (int i = 0; i < questions; i++) {
-            String fqdn = decodeFQDN(dis, packet, packetLength);
-            short type = dis.readShort();
-            short qclass = dis.readShort();
-        }
-        // decode the answers
-        for (int i = 0; i < answers + authorityRRs + additionalRRs; i++) {
-            String fqdn = decodeFQDN(dis, packet, packetLength);
-            short type = dis.readShort();
-            short aclass = dis.readShort();
-            if (DEBUG) System.out.printf("%s record%n", typeString(type));
-            if (DEBUG) System.out.println("Name: " + fqdn);
-            int ttl = dis.readInt();
-            int length = dis.readUnsignedShort();
-            byte[] data = new byte[length];
-            dis.readFully(data);
-            Record record = null;
-            switch (type) {
-                case QTYPE_A:
-                    record = result.a = decodeA(data);
-                    break;
-                case QTYPE_SRV:
-                    record = result.srv = decodeSRV(data, packet, packetLength);
-                    break;
-                case QTYPE_PTR:
-                    decodePTR(data, packet, packetLength);
-                    break;
-                case QTYPE_TXT:
-                    record = result.txt = decodeTXT(data);
-                    break;
-                default:
-                    if (DEBUG) hexdump(data, 0, data.length);
-                    break;
-            }
-            if (record != null) {
-                record.fqdn = fqdn;
-                record.ttl = ttl;
+        List<Record> records = new ArrayList<>();
+        decodeRecords(packet, packetLength, records);
+        for (Record record : records) {
+            if (record instanceof A) {
+                result.a = (A) record;
+            } else if (record instanceof SRV) {
+                result.srv = (SRV) record;
+            } else if (record instanceof TXT) {
+                result.txt = (TXT) record;
             }
         }
     }
 
-    private static SRV decodeSRV(byte[] srvData, byte[] packetData, int packetLength) throws IOException {
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(srvData));
-        SRV srv = new SRV();
-        srv.priority = dis.readUnsignedShort();
-        srv.weight = dis.readUnsignedShort();
-        srv.port = dis.readUnsignedShort();
-        srv.target = decodeFQDN(dis, packetData, packetLength);
-        if (DEBUG) System.out.printf("Priority: %d Weight: %d Port: %d Target: %s%n", srv.priority, srv.weight, srv.port, srv.target);
-        return srv;
-    }
-
-    private static String typeString(short type) {
-        switch (type) {
-            case QTYPE_A:
-                return "A";
-            case QTYPE_PTR:
-                return "PTR";
-            case QTYPE_SRV:
-                return "SRV";
-            case QTYPE_TXT:
-                return "TXT";
-            default:
-                return "Unknown";
-        }
-    }
-
-    private static String decodePTR(byte[] ptrData, byte[] packet, int packetLength) throws IOException {
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(ptrData));
-        String fqdn = decodeFQDN(dis, packet, packetLength);
-        if (DEBUG) System.out.println(fqdn);
-        return fqdn;
-    }
-
-    private static A decodeA(byte[] data) throws IOException {
-        if (data.length < 4) throw new IOException("expected 4 bytes for IPv4 addr");
-        A a = new A();
-        a.ipaddr = (data[0] & 0xFF) + "." + (data[1] & 0xFF) + "." + (data[2] & 0xFF) + "." + (data[3] & 0xFF);
-        if (DEBUG) System.out.println("Ipaddr: " + a.ipaddr);
-        return a;
-    }
-
-    private static TXT decodeTXT(byte[] data) throws IOException {
-        TXT txt = new TXT();
-        txt.dict = new HashMap<>();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-        while (true) {
-            int length;
-            try {
-                length = dis.readUnsignedByte();
-            } catch (EOFException e) {
-                return txt;
-            }
-            byte[] segmentBytes = new byte[length];
-            dis.readFully(segmentBytes);
-            String segment = new String(segmentBytes);
-            int pos = segment.indexOf('=');
-            String key, value = null;
-            if (pos != -1) {
-                key = segment.substring(0, pos);
-                value = segment.substring(pos + 1);
-            } else {
-                key = segment;
-            }
-            if (DEBUG) System.out.println(key + "=" + value);
-            if (!txt.dict.containsKey(key)) {
-                // from RFC6763
-                // If a client receives a TXT record containing the same key more than once, then
-                // the client MUST silently ignore all but the first occurrence of that attribute."
-                txt.dict.put(key, value);
-            }
-        }
-    }
-
-    private static String decodeFQDN(DataInputStream dis, byte[] packet, int packetLength) throws IOException {
-        StringBuilder result = new StringBuilder();
-        boolean dot = false;
-        while (true) {
-            int pointerHopCount = 0;
-            int length;
-            while (true) {
-                length = dis.readUnsignedByte();
-                if (length == 0) return result.toString();
-                if ((length & 0xc0) == 0xc0) {
-                    // this is a compression method, the remainder of the string is a pointer to elsewhere in the packet
-                    // adjust the stream boundary and repeat processing
-                    if ((++pointerHopCount) * 2 >= packetLength) {
-                        // We must have visited one of the possible pointers more than once => cycle
-                        // this doesn't add to the domain length, but decoding would be non-terminating
-                        throw new IOException("cyclic empty references in domain name");
-                    }
-                    length &= 0x3f;
-                    int offset = (length << 8) | dis.readUnsignedByte();
-                    dis = new DataInputStream(new ByteArrayInputStream(packet, offset, packetLength - offset));
-                } else {
-                    break;
-                }
-            }
-            byte[] segment = new byte[length];
-            dis.readFully(segment);
-            if (dot) result.append('.');
-            dot = true;
-            result.append(new String(segment));
-            if (result.length() > packetLength) {
-                // If we get here, we must be following cyclic references, since non-cyclic
-                // references can't encode a domain name longer than the total length of the packet.
-                // The domain name would be infinitely long, so abort now rather than consume
-                // maximum heap.
-                throw new IOException("cyclic non-empty references in domain name");
+    /**
+     * Decode every A, SRV and TXT record in the answer, authority and additional sections of a
+     * packet. Unlike {@link #decode(byte[], int, Result)} no records are discarded, so a packet
+     * carrying answers for several services can be demultiplexed by the records' names.
+     * @param packet the packet data
+     * @param packetLength the length of the packet
+     * @param records the list to which the decoded records are appended, in packet order
+     * @throws IOException if the packet is malformed
+     */
+    static void decodeRecords(byte[] packet, int packetLength, List<Record> records) throws IOException {
+        DnsPacketParser.Message message = MESSAGE.get();
+        try {
+            PARSER.get().parse(packet, packetLength, message);
+        } finally {
+            // the message's records are reused by the next parse, so hand out copies
+            for (int i = 0; i < message.size(); i++) {
+                records.add(DnsPacketParser.copyOf(message.get(i)));
             }
         }
     }
@@ -28,11 +28,8 @@ import android.content.Context;
 import android.net.nsd.NsdManager;
 import android.net.nsd.NsdServiceInfo;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
 import io.mosaicnetworks.babble.servicediscovery.ResolvedGroup;
+import io.mosaicnetworks.babble.servicediscovery.ResolvedGroupRegistry;
 import io.mosaicnetworks.babble.servicediscovery.ResolvedService;
 import io.mosaicnetworks.babble.fragments.discover.ServiceDiscoveryListener;
 
@@ -41,36 +38,76 @@ import io.mosaicnetworks.babble.fragments.discover.ServiceDiscoveryListener;
  */
 public class MdnsDiscovery {
 
-    private final Map<String, ResolvedService> mResolvedServices = new HashMap<>();
-    private final List<ResolvedGroup> mResolvedGroups;
+    private final ResolvedGroupRegistry mRegistry;
     private CustomNsdManager mNsdManager;
     private NsdManager.DiscoveryListener mDiscoveryListener;
     private boolean mDiscoveryActive = false;
+    // set when discovery is stopped before NsdManager has reported it started
+    private boolean mStopRequested = false;
     private ServiceDiscoveryListener mServiceDiscoveryListener;
 
     private final String mPackageName;
 
     public MdnsDiscovery(Context context,
-                         List<ResolvedGroup> resolvedGroups,
+                         ResolvedGroupRegistry registry,
                          ServiceDiscoveryListener serviceDiscoveryListener) {
 
         Context appContext = context.getApplicationContext();
         mNsdManager = new CustomNsdManager(context);
-        mResolvedGroups = resolvedGroups;
+        mRegistry = registry;
         mServiceDiscoveryListener = serviceDiscoveryListener;
         mPackageName =  appContext.getPackageName() ;
 
         initializeDiscoveryListener(serviceDiscoveryListener);
+
+        // A service whose SRV record has expired without being refreshed has gone away, even if
+        // NsdManager has not reported it lost
+        mNsdManager.getRecordCache().addListener(new MdnsRecordCache.Listener() {
+            @Override
+            public void onRefreshDue(String name, int type) {
+                // the resolver sends the refresh queries
+            }
+
+            @Override
+            public void onRecordExpired(String name, int type) {
+                if (type != MdnsCustomResolve.QTYPE_SRV) {
+                    return;
+                }
+
+                String suffix = "." + MdnsAdvertiser.SERVICE_TYPE + "local";
+                if (name.length() > suffix.length()
+                        && name.regionMatches(true, name.length() - suffix.length(), suffix, 0, suffix.length())) {
+                    removeService(name.substring(0, name.length() - suffix.length()));
+                }
+            }
+        });
     }
 
+    /**
+     * Start discovery. The Wi-Fi multicast lock, the mDNS sockets and their threads are held
+     * until {@link #stopDiscovery()} is called.
+     */
     public void discoverServices() {
+        synchronized (this) {
+            mStopRequested = false;
+        }
         mNsdManager.discoverServices(
                 MdnsAdvertiser.SERVICE_TYPE, NsdManager.PROTOCOL_DNS_SD, mDiscoveryListener);
     }
 
+    /**
+     * Stop discovery and release the resources acquired by {@link #discoverServices()}
+     */
     public void stopDiscovery() {
-        if (mDiscoveryActive) {
+        boolean active;
+        synchronized (this) {
+            active = mDiscoveryActive;
+            mStopRequested = !active;
+        }
+        if (active) {
             mNsdManager.stopServiceDiscovery(mDiscoveryListener);
+        } else {
+            mNsdManager.shutdown();
         }
     }
 
@@ -78,13 +115,21 @@ public class MdnsDiscovery {
         mDiscoveryListener = new NsdManager.DiscoveryListener() {
             @Override
             public void onDiscoveryStarted(String regType) {
-                mDiscoveryActive = true;
+                boolean stopRequested;
+                synchronized (MdnsDiscovery.this) {
+                    mDiscoveryActive = true;
+                    stopRequested = mStopRequested;
+                }
+                // discovery was stopped while it was starting
+                if (stopRequested) {
+                    stopDiscovery();
+                }
             }
             @Override
             public void onServiceFound(NsdServiceInfo discoveredServiceInfo) {
                 if (discoveredServiceInfo.getServiceType().equals(MdnsAdvertiser.SERVICE_TYPE)) {
 
-                    if (mResolvedServices.containsKey(discoveredServiceInfo.getServiceName())) {
+                    if (mRegistry.containsService(ResolvedGroup.Source.MDNS, discoveredServiceInfo.getServiceName())) {
                         //we already have this service
                         return;
                     }
@@ -94,29 +139,19 @@ public class MdnsDiscovery {
             }
             @Override
             public void onServiceLost(NsdServiceInfo serviceInfo) {
-
-                if (mResolvedServices.containsKey(serviceInfo.getServiceName())) {
-                    ResolvedService lostService = mResolvedServices.get(serviceInfo.getServiceName());
-                    boolean empty = lostService.getResolvedGroup().removeService(lostService);
-                    mResolvedServices.remove(serviceInfo.getServiceName());
-
-                    if (empty) {
-                        mResolvedGroups.remove(lostService.getResolvedGroup());
-                    }
-
-                    serviceDiscoveryListener.onServiceListUpdated(empty);
-                }
-
+                removeService(serviceInfo.getServiceName());
             }
             @Override
             public void onDiscoveryStopped(String serviceType) {
-                mDiscoveryActive = false;
-                mResolvedServices.clear();
-                mResolvedGroups.clear();
+                synchronized (MdnsDiscovery.this) {
+                    mDiscoveryActive = false;
+                }
+                mRegistry.clear(ResolvedGroup.Source.MDNS);
                 serviceDiscoveryListener.onServiceListUpdated(true);
             }
             @Override
             public void onStartDiscoveryFailed(String serviceType, int errorCode) {
+                mNsdManager.shutdown();
                 serviceDiscoveryListener.onStartDiscoveryFailed();
             }
             @Override
@@ -126,6 +161,16 @@ public class MdnsDiscovery {
         };
     }
 
+    private void removeService(String serviceName) {
+        mNsdManager.getRecordCache().removeService(
+                CustomNsdManager.fullServiceName(serviceName, MdnsAdvertiser.SERVICE_TYPE));
+
+        ResolvedGroupRegistry.ChangeEvent event = mRegistry.removeService(ResolvedGroup.Source.MDNS, serviceName);
+        if (event != null) {
+            mServiceDiscoveryListener.onServiceListUpdated(event.isGroupCountChange());
+        }
+    }
+
     private void resolveService(final NsdServiceInfo serviceInfo) {
         mNsdManager.resolveService(serviceInfo, new NsdManager.ResolveListener() {
             @Override
@@ -137,7 +182,7 @@ public class MdnsDiscovery {
             public void onServiceResolved(NsdServiceInfo nsdServiceInfo) {
 
                 //TODO: is this check needed?
-                if (mResolvedServices.containsKey(nsdServiceInfo.getServiceName())) {
+                if (mRegistry.containsService(ResolvedGroup.Source.MDNS, nsdServiceInfo.getServiceName())) {
                     //we already have this service
                     return;
                 }
@@ -156,23 +201,15 @@ public class MdnsDiscovery {
                     return;
                 }
 
-                mResolvedServices.put(nsdServiceInfo.getServiceName(), resolvedService);
-
-                for (ResolvedGroup group:mResolvedGroups) {
-                    if (group.getGroupUid().equals(resolvedService.getGroupUid())) {
-                        resolvedService.setResolvedGroup(group);
-                        group.addService(resolvedService);
-
-                        mServiceDiscoveryListener.onServiceListUpdated(true);
-                        return;
-                    }
+                ResolvedGroupRegistry.ChangeEvent event;
+                try {
+                    event = mRegistry.addService(ResolvedGroup.Source.MDNS,
+                            nsdServiceInfo.getServiceName(), resolvedService);
+                } catch (IllegalArgumentException ex) {
+                    //resolved twice concurrently, or the group name does not match the group UID
+                    return;
                 }
-
-                //no matching group - create a new group
-                ResolvedGroup resolvedGroup = new ResolvedGroup(resolvedService, ResolvedGroup.Source.MDNS);
-                mResolvedGroups.add(resolvedGroup);
-                resolvedService.setResolvedGroup(resolvedGroup);
-                mServiceDiscoveryListener.onServiceListUpdated(false);
+                mServiceDiscoveryListener.onServiceListUpdated(event.isGroupCountChange());
 
             }
         });
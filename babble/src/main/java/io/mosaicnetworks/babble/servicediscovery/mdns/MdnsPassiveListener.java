@@ -0,0 +1,239 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018- Mosaic Networks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.mosaicnetworks.babble.servicediscovery.mdns;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.util.Locale;
+
+/**
+ * Listens on the mDNS port for responses multicast by other hosts, whether announcements or
+ * answers to someone else's queries, and adds the records of services of interest to a
+ * {@link MdnsRecordCache}. Services found this way can be resolved without sending a query.
+ *
+ * On Android, multicast packets are only delivered while a
+ * {@link android.net.wifi.WifiManager.MulticastLock} is held, which is the caller's responsibility.
+ */
+public final class MdnsPassiveListener {
+
+    private static final int MAX_PACKET_SIZE = 9000;
+
+    private final MdnsRecordCache mCache;
+    private final String mServiceSuffix;
+    private final int mPort;
+    private final InetAddress mGroup;
+    private final Object mLock = new Object();
+    private MulticastSocket mSocket;
+    private Thread mThread;
+    private volatile long mPacketCount = 0;
+    private volatile long mRecordCount = 0;
+
+    /**
+     * Create a listener for the standard mDNS port and multicast group
+     * @param cache the cache to fill
+     * @param serviceType the service type of interest, e.g. {@code "_babble._tcp.local"}
+     */
+    public MdnsPassiveListener(MdnsRecordCache cache, String serviceType) {
+        this(cache, serviceType, MdnsCustomResolve.PORT, getMulticastGroup());
+    }
+
+    /**
+     * Create a listener on the given port. Intended for tests.
+     * @param cache the cache to fill
+     * @param serviceType the service type of interest
+     * @param port the port to listen on, 0 for any
+     * @param group the multicast group to join, or null to only receive unicast packets
+     */
+    MdnsPassiveListener(MdnsRecordCache cache, String serviceType, int port, InetAddress group) {
+        mCache = cache;
+        mServiceSuffix = "." + toKey(serviceType);
+        mPort = port;
+        mGroup = group;
+    }
+
+    /**
+     * Open the socket and start listening. Does nothing if already listening.
+     * @throws IOException if the socket could not be opened
+     */
+    public void start() throws IOException {
+        synchronized (mLock) {
+            if (mSocket != null) {
+                return;
+            }
+
+            // The system mDNS responder owns the port too, so it has to be shared
+            final MulticastSocket socket = new MulticastSocket(null);
+            try {
+                socket.setReuseAddress(true);
+                socket.bind(new InetSocketAddress(mPort));
+                if (mGroup != null) {
+                    socket.joinGroup(mGroup);
+                }
+            } catch (IOException ex) {
+                socket.close();
+                throw ex;
+            }
+
+            mSocket = socket;
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    listen(socket);
+                }
+            }, "MdnsPassiveListener");
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+    }
+
+    /**
+     * Close the socket and wait for the listening thread to finish
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (mLock) {
+            if (mSocket == null) {
+                return;
+            }
+            mSocket.close();
+            mSocket = null;
+            thread = mThread;
+            mThread = null;
+        }
+
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return true if the listener has been started and not yet stopped
+     */
+    public boolean isRunning() {
+        synchronized (mLock) {
+            return mSocket != null;
+        }
+    }
+
+    /**
+     * @return the local port, or -1 if the listener is not running
+     */
+    int getLocalPort() {
+        synchronized (mLock) {
+            return mSocket == null ? -1 : mSocket.getLocalPort();
+        }
+    }
+
+    /**
+     * @return the number of packets received
+     */
+    public long getPacketCount() {
+        return mPacketCount;
+    }
+
+    /**
+     * @return the number of records added to the cache
+     */
+    public long getRecordCount() {
+        return mRecordCount;
+    }
+
+    private void listen(MulticastSocket socket) {
+        DnsPacketParser parser = new DnsPacketParser();
+        DnsPacketParser.Message message = new DnsPacketParser.Message();
+        byte[] buffer = new byte[MAX_PACKET_SIZE];
+
+        while (!socket.isClosed()) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+            } catch (IOException ex) {
+                // the socket has been closed
+                return;
+            }
+
+            // only responses carry records we can use, queries are ignored
+            if (packet.getLength() < 3 || (buffer[2] & 0x80) == 0) {
+                continue;
+            }
+
+            mPacketCount++;
+            try {
+                parser.parse(buffer, packet.getLength(), message);
+            } catch (IOException ex) {
+                // malformed packets are ignored, the records decoded before the error are still
+                // usable
+            }
+            cacheRecords(message);
+        }
+    }
+
+    private void cacheRecords(DnsPacketParser.Message message) {
+        long now = MdnsRecordCache.now();
+
+        // SRV and TXT first, so that the A records of their targets are tracked
+        for (int i = 0; i < message.size(); i++) {
+            MdnsCustomResolve.Record record = message.get(i);
+            if (record instanceof MdnsCustomResolve.A) {
+                continue;
+            }
+
+            int type = record instanceof MdnsCustomResolve.SRV ? MdnsCustomResolve.QTYPE_SRV
+                    : MdnsCustomResolve.QTYPE_TXT;
+            if (toKey(record.fqdn).endsWith(mServiceSuffix) || mCache.isTracked(record.fqdn, type)) {
+                mCache.putOverheard(record, now);
+                mRecordCount++;
+            }
+        }
+
+        for (int i = 0; i < message.size(); i++) {
+            MdnsCustomResolve.Record record = message.get(i);
+            if (record instanceof MdnsCustomResolve.A
+                    && mCache.isTracked(record.fqdn, MdnsCustomResolve.QTYPE_A)) {
+                mCache.putOverheard(record, now);
+                mRecordCount++;
+            }
+        }
+    }
+
+    // DNS names are case insensitive
+    private static String toKey(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    private static InetAddress getMulticastGroup() {
+        try {
+            return InetAddress.getByName(MdnsCustomResolve.MULTICAST_GROUP_ADDRESS);
+        } catch (IOException ex) {
+            // a literal address is never looked up, so this cannot happen
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,635 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018- Mosaic Networks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.mosaicnetworks.babble.servicediscovery.mdns;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Caches A, SRV and TXT records until their time to live runs out. As recommended by RFC 6762
+ * section 5.2, listeners are asked to refresh a record at 80%, 85%, 90% and 95% of its lifetime
+ * (plus up to 2% random jitter), and the record is expired if no fresh copy has arrived by then.
+ * Records overheard in answers to other devices' queries are cached, but are only refreshed once
+ * a service they belong to has been resolved, see {@link #putOverheard} and {@link #track}.
+ *
+ * Expiry is driven by a hashed timer wheel, so scheduling and expiring a record costs the same no
+ * matter how many records are cached. The wheel does not own a thread: {@link #advance(long)}
+ * must be called regularly, no later than {@link #getNextDeadline()}.
+ *
+ * Times are milliseconds on a monotonic clock, see {@link #now()}. The cache is thread safe and
+ * listeners are called without the cache lock held.
+ */
+public final class MdnsRecordCache {
+
+    /**
+     * Receives refresh and expiry events. Calls are made from the thread calling
+     * {@link #advance(long)}.
+     */
+    public interface Listener {
+
+        /**
+         * Called when a record has reached a refresh point and a query should be sent for it
+         * @param name the record name
+         * @param type the record type, e.g. {@link MdnsCustomResolve#QTYPE_SRV}
+         */
+        void onRefreshDue(String name, int type);
+
+        /**
+         * Called when a record has expired and been removed from the cache
+         * @param name the record name
+         * @param type the record type
+         */
+        void onRecordExpired(String name, int type);
+    }
+
+    /**
+     * TTL in seconds given to records that were not learnt from a DNS packet, such as services
+     * resolved by the stock NsdManager. This is the TTL RFC 6762 recommends for host name records.
+     * Such records are dropped from the cache when it runs out, but listeners are not told: as no
+     * one refreshes them, their expiry does not mean that the service has gone away.
+     */
+    public static final int DEFAULT_TTL_SECONDS = 120;
+
+    private static final int[] REFRESH_PERCENTAGES = {80, 85, 90, 95};
+    private static final int JITTER_PERCENTAGE = 2;
+    // RFC 6762 section 10.1, a goodbye record is deleted one second after it is received
+    private static final long GOODBYE_DELAY_MS = 1000;
+    private static final long DEFAULT_TICK_MS = 1000;
+    private static final int WHEEL_SIZE = 512;
+
+    // where a record came from, which decides the events raised for it
+    private enum Origin {
+        // learnt from an answer to a query of ours, or to a service we resolved
+        QUERIED,
+        // learnt from an answer to someone else's query
+        OVERHEARD,
+        // not learnt from a DNS packet, the TTL is made up
+        SYNTHESIZED
+    }
+
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    // number of cached SRV records targeting each host, so that A records can be tracked
+    private final Map<String, Integer> mTargets = new HashMap<>();
+    // the same, counting only the SRV records which are refreshed
+    private final Map<String, Integer> mRefreshedTargets = new HashMap<>();
+    private final TimerWheel mWheel;
+    private final Random mRandom;
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private long mHitCount = 0;
+    private long mMissCount = 0;
+    private long mRefreshCount = 0;
+    private long mExpiryCount = 0;
+
+    /**
+     * Constructor
+     */
+    public MdnsRecordCache() {
+        this(DEFAULT_TICK_MS, new Random());
+    }
+
+    MdnsRecordCache(long tickMs, Random random) {
+        mWheel = new TimerWheel(tickMs, WHEEL_SIZE);
+        mRandom = random;
+    }
+
+    /**
+     * @return the current time on the clock used by the cache
+     */
+    public static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Add a listener for refresh and expiry events
+     * @param listener the listener
+     */
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    /**
+     * Remove a listener
+     * @param listener the listener
+     */
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Insert or refresh a record. A record with a TTL of zero is a goodbye and causes the cached
+     * copy to expire one second later.
+     * @param record the record, a copy is stored
+     * @param now the current time
+     */
+    public void put(MdnsCustomResolve.Record record, long now) {
+        put(record, now, Origin.QUERIED);
+    }
+
+    /**
+     * Insert or refresh a record overheard in an answer to another device's query. A record of a
+     * service that has been resolved is refreshed as if it had been put with
+     * {@link #put(MdnsCustomResolve.Record, long)}. Any other record is used until its TTL runs
+     * out, and its expiry is reported, but no refresh events are raised for it: otherwise every
+     * device would keep the records of every other device alive with its own queries.
+     * @param record the record, a copy is stored
+     * @param now the current time
+     */
+    public void putOverheard(MdnsCustomResolve.Record record, long now) {
+        put(record, now, Origin.OVERHEARD);
+    }
+
+    private synchronized void put(MdnsCustomResolve.Record record, long now, Origin origin) {
+        int type = typeOf(record);
+        String key = key(record.fqdn, type);
+        Entry entry = mEntries.get(key);
+
+        if (record.ttl <= 0) {
+            if (entry != null && entry.mExpiresAt > now + GOODBYE_DELAY_MS) {
+                entry.mGeneration++;
+                entry.mExpiresAt = now + GOODBYE_DELAY_MS;
+                mWheel.schedule(new Timeout(entry, entry.mExpiresAt, true), now);
+            }
+            return;
+        }
+
+        if (entry == null) {
+            entry = new Entry(record.fqdn, type);
+            mEntries.put(key, entry);
+        } else if (type == MdnsCustomResolve.QTYPE_SRV) {
+            releaseTarget(entry);
+        }
+
+        entry.mRecord = DnsPacketParser.copyOf(record);
+        // an overheard copy of a record someone resolved is still refreshed, as is the address
+        // of a host a refreshed SRV record points at
+        entry.mRefreshed = origin == Origin.QUERIED || (origin == Origin.OVERHEARD
+                && (entry.mRefreshed || entry.mSynthesized || (type == MdnsCustomResolve.QTYPE_A
+                && mRefreshedTargets.containsKey(toKey(record.fqdn)))));
+        entry.mSynthesized = origin == Origin.SYNTHESIZED;
+        entry.mGeneration++;
+        entry.mExpiresAt = now + record.ttl * 1000L;
+
+        if (type == MdnsCustomResolve.QTYPE_SRV) {
+            retainTarget(entry);
+        }
+
+        long lifetime = entry.mExpiresAt - now;
+        for (int percentage : REFRESH_PERCENTAGES) {
+            long jitter = lifetime * mRandom.nextInt(JITTER_PERCENTAGE * 100 + 1) / 10000;
+            mWheel.schedule(new Timeout(entry, now + lifetime * percentage / 100 + jitter, false), now);
+        }
+        mWheel.schedule(new Timeout(entry, entry.mExpiresAt, true), now);
+    }
+
+    /**
+     * Insert the records of a resolved service
+     * @param result the resolved records, null records are ignored
+     * @param now the current time
+     */
+    public void putResult(MdnsCustomResolve.Result result, long now) {
+        putResult(result, now, Origin.QUERIED);
+    }
+
+    /**
+     * Insert the records of a service resolved by other means than DNS packets, whose TTLs are
+     * made up. The records are used until their TTL runs out, but no refresh or expiry events are
+     * raised for them. A record later learnt from a DNS packet replaces them as usual.
+     * @param result the resolved records, null records are ignored
+     * @param now the current time
+     */
+    public void putSynthesizedResult(MdnsCustomResolve.Result result, long now) {
+        putResult(result, now, Origin.SYNTHESIZED);
+    }
+
+    private void putResult(MdnsCustomResolve.Result result, long now, Origin origin) {
+        if (result.srv != null) put(result.srv, now, origin);
+        if (result.txt != null) put(result.txt, now, origin);
+        if (result.a != null) put(result.a, now, origin);
+    }
+
+    /**
+     * Have the overheard records of a service refreshed from now on, e.g. once the service has
+     * been resolved from the cache. Synthesized records are left as they are.
+     * @param serviceName the fully qualified service name
+     */
+    public synchronized void track(String serviceName) {
+        Entry srv = mEntries.get(key(serviceName, MdnsCustomResolve.QTYPE_SRV));
+        Entry txt = mEntries.get(key(serviceName, MdnsCustomResolve.QTYPE_TXT));
+        Entry a = srv == null ? null : mEntries.get(
+                key(((MdnsCustomResolve.SRV) srv.mRecord).target, MdnsCustomResolve.QTYPE_A));
+        for (Entry entry : new Entry[]{srv, txt, a}) {
+            if (entry != null && !entry.mSynthesized && !entry.mRefreshed) {
+                if (entry == srv) {
+                    releaseTarget(srv);
+                    entry.mRefreshed = true;
+                    retainTarget(srv);
+                } else {
+                    entry.mRefreshed = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param name the record name
+     * @param type the record type
+     * @return true if the record is cached and refresh events are raised for it
+     */
+    public synchronized boolean isRefreshed(String name, int type) {
+        Entry entry = mEntries.get(key(name, type));
+        return entry != null && entry.mRefreshed;
+    }
+
+    /**
+     * Look up the A, SRV and TXT records of a service. A lookup counts as a hit only if all three
+     * records are cached and unexpired.
+     * @param serviceName the fully qualified service name
+     * @param now the current time
+     * @return copies of the records with their remaining TTL, or null on a miss
+     */
+    public synchronized MdnsCustomResolve.Result getResult(String serviceName, long now) {
+        MdnsCustomResolve.Result result = new MdnsCustomResolve.Result();
+        result.srv = (MdnsCustomResolve.SRV) getValid(serviceName, MdnsCustomResolve.QTYPE_SRV, now);
+        result.txt = (MdnsCustomResolve.TXT) getValid(serviceName, MdnsCustomResolve.QTYPE_TXT, now);
+        if (result.srv != null) {
+            result.a = (MdnsCustomResolve.A) getValid(result.srv.target, MdnsCustomResolve.QTYPE_A, now);
+        }
+
+        if (result.srv == null || result.txt == null || result.a == null) {
+            mMissCount++;
+            return null;
+        }
+
+        mHitCount++;
+        return result;
+    }
+
+    /**
+     * @param name the record name
+     * @param type the record type
+     * @param now the current time
+     * @return a copy of the record with its remaining TTL, or null if it is not cached
+     */
+    public synchronized MdnsCustomResolve.Record get(String name, int type, long now) {
+        return getValid(name, type, now);
+    }
+
+    /**
+     * Look up a record to include in the known answer section of a query. RFC 6762 section 7.1
+     * only allows records with more than half of their TTL remaining, as responders would
+     * otherwise have to refresh them anyway.
+     * @param name the record name
+     * @param type the record type
+     * @param now the current time
+     * @return a copy of the record with its remaining TTL, or null
+     */
+    public synchronized MdnsCustomResolve.Record getKnownAnswer(String name, int type, long now) {
+        Entry entry = mEntries.get(key(name, type));
+        if (entry == null || (entry.mExpiresAt - now) * 2 <= entry.mRecord.ttl * 1000L) {
+            return null;
+        }
+        return getValid(name, type, now);
+    }
+
+    /**
+     * Whether records of this name and type are of interest. This is the case for any record that
+     * is cached, and for the A records of hosts targeted by cached SRV records.
+     * @param name the record name
+     * @param type the record type
+     * @return true if the record should be cached when seen
+     */
+    public synchronized boolean isTracked(String name, int type) {
+        if (mEntries.containsKey(key(name, type))) {
+            return true;
+        }
+        return type == MdnsCustomResolve.QTYPE_A && mTargets.containsKey(toKey(name));
+    }
+
+    /**
+     * Remove the SRV and TXT records of a service, e.g. when the service is known to be gone. The
+     * removal is not reported to listeners.
+     * @param serviceName the fully qualified service name
+     */
+    public synchronized void removeService(String serviceName) {
+        Entry srv = mEntries.remove(key(serviceName, MdnsCustomResolve.QTYPE_SRV));
+        if (srv != null) {
+            srv.mGeneration++;
+            releaseTarget(srv);
+        }
+
+        Entry txt = mEntries.remove(key(serviceName, MdnsCustomResolve.QTYPE_TXT));
+        if (txt != null) {
+            txt.mGeneration++;
+        }
+    }
+
+    /**
+     * Process the refresh points and expiries up to the given time
+     * @param now the current time
+     */
+    public void advance(long now) {
+        List<Timeout> due = new ArrayList<>();
+        List<Entry> expired = new ArrayList<>();
+        List<Entry> refresh = new ArrayList<>();
+
+        synchronized (this) {
+            mWheel.advance(now, due);
+            // process in deadline order, so that a record's refreshes are raised before it expires
+            Collections.sort(due, new Comparator<Timeout>() {
+                @Override
+                public int compare(Timeout a, Timeout b) {
+                    return Long.compare(a.mDeadline, b.mDeadline);
+                }
+            });
+            for (Timeout timeout : due) {
+                Entry entry = timeout.mEntry;
+                if (timeout.mGeneration != entry.mGeneration) {
+                    // the record has been replaced or removed since this timeout was scheduled
+                    continue;
+                }
+
+                if (timeout.mExpiry) {
+                    mEntries.remove(key(entry.mName, entry.mType));
+                    entry.mGeneration++;
+                    if (entry.mType == MdnsCustomResolve.QTYPE_SRV) {
+                        releaseTarget(entry);
+                    }
+                    mExpiryCount++;
+                    if (!entry.mSynthesized) {
+                        expired.add(entry);
+                    }
+                } else if (entry.mRefreshed) {
+                    mRefreshCount++;
+                    refresh.add(entry);
+                }
+            }
+        }
+
+        for (Entry entry : refresh) {
+            for (Listener listener : mListeners) {
+                listener.onRefreshDue(entry.mName, entry.mType);
+            }
+        }
+
+        for (Entry entry : expired) {
+            for (Listener listener : mListeners) {
+                listener.onRecordExpired(entry.mName, entry.mType);
+            }
+        }
+    }
+
+    /**
+     * @return the time by which {@link #advance(long)} should next be called, or
+     * {@link Long#MAX_VALUE} if nothing is scheduled
+     */
+    public synchronized long getNextDeadline() {
+        return mWheel.getNextDeadline();
+    }
+
+    /**
+     * @return the number of cached records
+     */
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return the number of service lookups answered from the cache
+     */
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return the number of service lookups that could not be answered from the cache
+     */
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return the number of refresh events raised
+     */
+    public synchronized long getRefreshCount() {
+        return mRefreshCount;
+    }
+
+    /**
+     * @return the number of records that have expired
+     */
+    public synchronized long getExpiryCount() {
+        return mExpiryCount;
+    }
+
+    private MdnsCustomResolve.Record getValid(String name, int type, long now) {
+        Entry entry = mEntries.get(key(name, type));
+        if (entry == null || entry.mExpiresAt <= now) {
+            return null;
+        }
+
+        MdnsCustomResolve.Record copy = DnsPacketParser.copyOf(entry.mRecord);
+        copy.ttl = (int) ((entry.mExpiresAt - now + 999) / 1000);
+        return copy;
+    }
+
+    private void retainTarget(Entry srv) {
+        String target = toKey(((MdnsCustomResolve.SRV) srv.mRecord).target);
+        retain(mTargets, target);
+        if (srv.mRefreshed) {
+            retain(mRefreshedTargets, target);
+        }
+    }
+
+    private void releaseTarget(Entry srv) {
+        String target = toKey(((MdnsCustomResolve.SRV) srv.mRecord).target);
+        release(mTargets, target);
+        if (srv.mRefreshed) {
+            release(mRefreshedTargets, target);
+        }
+    }
+
+    private static void retain(Map<String, Integer> counts, String target) {
+        Integer count = counts.get(target);
+        counts.put(target, count == null ? 1 : count + 1);
+    }
+
+    private static void release(Map<String, Integer> counts, String target) {
+        Integer count = counts.get(target);
+        if (count == null || count <= 1) {
+            counts.remove(target);
+        } else {
+            counts.put(target, count - 1);
+        }
+    }
+
+    private static int typeOf(MdnsCustomResolve.Record record) {
+        if (record instanceof MdnsCustomResolve.A) {
+            return MdnsCustomResolve.QTYPE_A;
+        } else if (record instanceof MdnsCustomResolve.SRV) {
+            return MdnsCustomResolve.QTYPE_SRV;
+        } else if (record instanceof MdnsCustomResolve.TXT) {
+            return MdnsCustomResolve.QTYPE_TXT;
+        }
+        throw new IllegalArgumentException("Unsupported record type");
+    }
+
+    // DNS names are case insensitive
+    private static String toKey(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    private static String key(String name, int type) {
+        return type + ":" + toKey(name);
+    }
+
+    private static final class Entry {
+        private final String mName;
+        private final int mType;
+        private MdnsCustomResolve.Record mRecord;
+        private long mExpiresAt;
+        // the TTL was made up rather than learnt from a DNS packet
+        private boolean mSynthesized = false;
+        // refresh events are raised, false for synthesized and overheard only records
+        private boolean mRefreshed = false;
+        // incremented whenever the record changes, invalidating timeouts scheduled before
+        private int mGeneration = 0;
+
+        Entry(String name, int type) {
+            mName = name;
+            mType = type;
+        }
+    }
+
+    private static final class Timeout {
+        private final Entry mEntry;
+        private final int mGeneration;
+        private final long mDeadline;
+        private final boolean mExpiry;
+        private long mTick;
+
+        Timeout(Entry entry, long deadline, boolean expiry) {
+            mEntry = entry;
+            mGeneration = entry.mGeneration;
+            mDeadline = deadline;
+            mExpiry = expiry;
+        }
+    }
+
+    /**
+     * A hashed timer wheel. Each slot holds the timeouts whose deadline falls on the slot's tick,
+     * in this or any later revolution of the wheel. Cancelled timeouts are not removed, they are
+     * skipped when they fall due.
+     */
+    private static final class TimerWheel {
+        private final long mTickMs;
+        private final List<List<Timeout>> mSlots;
+        private final int mMask;
+        private long mCurrentTick = -1;
+        private int mSize = 0;
+
+        TimerWheel(long tickMs, int wheelSize) {
+            mTickMs = tickMs;
+            mMask = wheelSize - 1;
+            mSlots = new ArrayList<>(wheelSize);
+            for (int i = 0; i < wheelSize; i++) {
+                mSlots.add(new ArrayList<Timeout>());
+            }
+        }
+
+        void schedule(Timeout timeout, long now) {
+            long tick = (timeout.mDeadline + mTickMs - 1) / mTickMs;
+            if (mCurrentTick == -1) {
+                mCurrentTick = now / mTickMs;
+            }
+            timeout.mTick = Math.max(tick, mCurrentTick + 1);
+            mSlots.get((int) (timeout.mTick & mMask)).add(timeout);
+            mSize++;
+        }
+
+        void advance(long now, List<Timeout> due) {
+            long targetTick = now / mTickMs;
+            if (mCurrentTick == -1) {
+                mCurrentTick = targetTick;
+                return;
+            }
+
+            if (targetTick - mCurrentTick > mSlots.size()) {
+                // we have fallen more than a revolution behind, visit every slot once
+                for (int i = 0; i < mSlots.size(); i++) {
+                    expireSlot(i, targetTick, due);
+                }
+                mCurrentTick = targetTick;
+                return;
+            }
+
+            while (mCurrentTick < targetTick) {
+                mCurrentTick++;
+                expireSlot((int) (mCurrentTick & mMask), mCurrentTick, due);
+            }
+        }
+
+        long getNextDeadline() {
+            if (mSize == 0) {
+                return Long.MAX_VALUE;
+            }
+
+            // look for the first slot with a timeout due in this revolution, so that an idle
+            // cache does not wake its caller on every tick
+            for (long tick = mCurrentTick + 1; tick <= mCurrentTick + mSlots.size(); tick++) {
+                for (Timeout timeout : mSlots.get((int) (tick & mMask))) {
+                    if (timeout.mTick == tick) {
+                        return tick * mTickMs;
+                    }
+                }
+            }
+            return (mCurrentTick + mSlots.size()) * mTickMs;
+        }
+
+        private void expireSlot(int index, long tick, List<Timeout> due) {
+            List<Timeout> slot = mSlots.get(index);
+            int kept = 0;
+            for (int i = 0; i < slot.size(); i++) {
+                Timeout timeout = slot.get(i);
+                if (timeout.mTick <= tick) {
+                    due.add(timeout);
+                    mSize--;
+                } else {
+                    slot.set(kept++, timeout);
+                }
+            }
+            // trim the slot, keeping the timeouts due in a later revolution
+            while (slot.size() > kept) {
+                slot.remove(slot.size() - 1);
+            }
+        }
+    }
+}
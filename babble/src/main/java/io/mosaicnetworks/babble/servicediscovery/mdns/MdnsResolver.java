@@ -0,0 +1,816 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018- Mosaic Networks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.mosaicnetworks.babble.servicediscovery.mdns;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.LinkedHashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Resolves the A, SRV and TXT records of many mDNS services over a single non-blocking socket.
+ * Questions for all outstanding services are batched into as few query packets as possible and
+ * the answers are demultiplexed by record name, so resolving dozens of services costs roughly the
+ * same as resolving one. When a SRV answer arrives without the matching A record, a follow up A
+ * query is sent for the SRV target.
+ *
+ * All work, including the listener callbacks, happens on a single selector thread. Listeners
+ * should hand off any lengthy work to another thread.
+ */
+public final class MdnsResolver {
+
+    /**
+     * Receives the outcome of a resolve request. Exactly one of the methods is called per request.
+     */
+    public interface ResolveListener {
+
+        /**
+         * Called when the A, SRV and TXT records of the service have all been received
+         * @param serviceName the service name as passed to {@link #resolve}
+         * @param result the decoded records
+         */
+        void onServiceResolved(String serviceName, MdnsCustomResolve.Result result);
+
+        /**
+         * Called when the request timed out or the resolver was stopped
+         * @param serviceName the service name as passed to {@link #resolve}
+         * @param partialResult whichever records were received before the failure
+         */
+        void onResolveFailed(String serviceName, MdnsCustomResolve.Result partialResult);
+    }
+
+    // Queries are kept within a typical Ethernet MTU so they are never fragmented
+    private static final int MAX_QUERY_SIZE = 1400;
+    // mDNS packets may be up to 9000 bytes (RFC 6762 section 17)
+    private static final int MAX_RESPONSE_SIZE = 9000;
+    private static final int HEADER_SIZE = 12;
+    private static final long INITIAL_RETRANSMIT_MS = 1000;
+    // NsdManager reports services found in bursts, so new requests are held back briefly to let
+    // them share a query packet
+    private static final long BATCH_DELAY_MS = 20;
+
+    private final SocketAddress mDestination;
+    private final MdnsRecordCache mCache;
+    private final Queue<PendingResolve> mNewRequests = new ConcurrentLinkedQueue<>();
+    // Only accessed from the selector thread
+    private final Map<String, PendingResolve> mPendingByName = new HashMap<>();
+    private final Map<String, List<PendingResolve>> mPendingByTarget = new HashMap<>();
+    private final ByteBuffer mReceiveBuffer = ByteBuffer.allocate(MAX_RESPONSE_SIZE);
+    private final DnsPacketParser mParser = new DnsPacketParser();
+    private final DnsPacketParser.Message mMessage = new DnsPacketParser.Message();
+    // names whose cached records are due a refresh, only accessed from the selector thread
+    private final Set<String> mRefreshNames = new LinkedHashSet<>();
+    private final Set<String> mRefreshHosts = new LinkedHashSet<>();
+    private final Object mLock = new Object();
+    private DatagramChannel mChannel;
+    private Selector mSelector;
+    private Thread mThread;
+    private volatile boolean mRunning = false;
+    private long mBatchDueAt = 0;
+
+    /**
+     * Create a resolver that sends its queries to the standard mDNS multicast group
+     */
+    public MdnsResolver() {
+        this(new MdnsRecordCache());
+    }
+
+    /**
+     * Create a resolver that sends its queries to the standard mDNS multicast group and keeps the
+     * records it receives in the given cache. While running, the resolver drives the cache's timer
+     * and sends a query whenever a cached record is due a refresh.
+     * @param cache the record cache
+     */
+    public MdnsResolver(MdnsRecordCache cache) {
+        this(new InetSocketAddress(getMulticastGroup(), MdnsCustomResolve.PORT), cache);
+    }
+
+    /**
+     * Create a resolver that sends its queries to the given address. Intended for tests.
+     * @param destination the address queries are sent to
+     */
+    MdnsResolver(SocketAddress destination) {
+        this(destination, new MdnsRecordCache());
+    }
+
+    MdnsResolver(SocketAddress destination, MdnsRecordCache cache) {
+        mDestination = destination;
+        mCache = cache;
+        mCache.addListener(new MdnsRecordCache.Listener() {
+            @Override
+            public void onRefreshDue(String name, int type) {
+                if (type == MdnsCustomResolve.QTYPE_A) {
+                    if (!isAddressLiteral(name)) {
+                        mRefreshHosts.add(name);
+                    }
+                } else {
+                    mRefreshNames.add(name);
+                }
+            }
+
+            @Override
+            public void onRecordExpired(String name, int type) {
+                // nothing to do, listeners registered by the owner of the cache act on expiry
+            }
+        });
+    }
+
+    /**
+     * @return the cache holding the records received by this resolver
+     */
+    public MdnsRecordCache getRecordCache() {
+        return mCache;
+    }
+
+    /**
+     * Open the socket and start the selector thread. Calling this method on a running resolver
+     * has no effect.
+     * @throws IOException if the socket could not be opened
+     */
+    public void start() throws IOException {
+        synchronized (mLock) {
+            if (mRunning) {
+                return;
+            }
+
+            mSelector = Selector.open();
+            mChannel = DatagramChannel.open();
+            mChannel.configureBlocking(false);
+            // DatagramChannel.bind requires API 24, so we bind through the legacy socket
+            mChannel.socket().bind(new InetSocketAddress(0));
+            mChannel.register(mSelector, SelectionKey.OP_READ);
+
+            mRunning = true;
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runLoop();
+                }
+            }, "MdnsResolver");
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+    }
+
+    /**
+     * Stop the selector thread and close the socket. Outstanding requests are failed.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (mLock) {
+            if (!mRunning) {
+                return;
+            }
+            mRunning = false;
+            thread = mThread;
+            mThread = null;
+            mSelector.wakeup();
+        }
+
+        if (thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return true if the resolver has been started and not yet stopped
+     */
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * @return the local port the resolver receives answers on, or -1 if it is not running
+     */
+    int getLocalPort() {
+        synchronized (mLock) {
+            return mRunning ? mChannel.socket().getLocalPort() : -1;
+        }
+    }
+
+    /**
+     * Ask for the A, SRV and TXT records of a service. Requests made within a few milliseconds of
+     * each other are sent together in one query packet. Concurrent requests for the same name share one query.
+     * @param serviceName the name of service to query in mDNS, e.g.
+     *                    {@code "device-1234._example._tcp.local"}
+     * @param timeout duration in milliseconds to wait for all the records
+     * @param listener receives the result on the selector thread
+     */
+    public void resolve(String serviceName, int timeout, ResolveListener listener) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("Timeout must be positive");
+        }
+
+        synchronized (mLock) {
+            if (!mRunning) {
+                throw new IllegalStateException("Resolver is not running");
+            }
+            mNewRequests.add(new PendingResolve(serviceName, now() + timeout, listener));
+            mSelector.wakeup();
+        }
+    }
+
+    private void runLoop() {
+        try {
+            while (mRunning) {
+                long now = now();
+                acceptNewRequests(now);
+                mCache.advance(now);
+                sendDueQueries(now);
+                expireRequests(now);
+
+                long next = nextWakeup();
+                long wait = next - now();
+                if (next == Long.MAX_VALUE) {
+                    mSelector.select();
+                } else if (wait > 0) {
+                    mSelector.select(wait);
+                } else {
+                    mSelector.selectNow();
+                }
+
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isReadable()) {
+                        readPackets();
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            // the socket is unusable, fall through and fail the outstanding requests
+        } finally {
+            synchronized (mLock) {
+                mRunning = false;
+            }
+            close();
+        }
+    }
+
+    private void close() {
+        try {
+            mChannel.close();
+            mSelector.close();
+        } catch (IOException ex) {
+            // nothing more we can do
+        }
+
+        acceptNewRequests(now());
+        List<PendingResolve> pending = new ArrayList<>(mPendingByName.values());
+        mPendingByName.clear();
+        mPendingByTarget.clear();
+        for (PendingResolve request : pending) {
+            request.fail();
+        }
+    }
+
+    private void acceptNewRequests(long now) {
+        PendingResolve request;
+        while ((request = mNewRequests.poll()) != null) {
+            PendingResolve existing = mPendingByName.get(request.mKey);
+            if (existing != null) {
+                existing.merge(request);
+            } else {
+                prefill(request, now);
+                if (request.isComplete()) {
+                    request.succeed();
+                    continue;
+                }
+
+                if (mBatchDueAt <= now) {
+                    mBatchDueAt = now + BATCH_DELAY_MS;
+                }
+                request.mNextQueryAt = mBatchDueAt;
+                mPendingByName.put(request.mKey, request);
+                if (request.mResult.srv != null) {
+                    registerTarget(request);
+                }
+            }
+        }
+    }
+
+    // Records that are already cached, e.g. overheard by the passive listener, are not asked for
+    // again
+    private void prefill(PendingResolve request, long now) {
+        // records overheard before are refreshed now that the service is resolved
+        mCache.track(request.mServiceName);
+        MdnsCustomResolve.Result result = request.mResult;
+        result.srv = (MdnsCustomResolve.SRV) mCache.get(request.mServiceName, MdnsCustomResolve.QTYPE_SRV, now);
+        result.txt = (MdnsCustomResolve.TXT) mCache.get(request.mServiceName, MdnsCustomResolve.QTYPE_TXT, now);
+        if (result.srv != null) {
+            result.a = (MdnsCustomResolve.A) mCache.get(result.srv.target, MdnsCustomResolve.QTYPE_A, now);
+        }
+    }
+
+    private void sendDueQueries(long now) throws IOException {
+        QueryBuilder builder = new QueryBuilder();
+
+        for (PendingResolve request : mPendingByName.values()) {
+            if (request.mNextQueryAt > now) {
+                continue;
+            }
+
+            if (request.mResult.srv == null || request.mResult.txt == null) {
+                sendIfFull(builder, request.mServiceName);
+                builder.addQuestion(request.mServiceName, MdnsCustomResolve.QTYPE_SRV,
+                        MdnsCustomResolve.QTYPE_TXT);
+                addKnownAnswers(builder, request.mServiceName, now);
+            }
+
+            if (request.mResult.srv != null && request.mResult.a == null) {
+                sendIfFull(builder, request.mResult.srv.target);
+                builder.addQuestion(request.mResult.srv.target, MdnsCustomResolve.QTYPE_A);
+                builder.addKnownAnswer(mCache.getKnownAnswer(request.mResult.srv.target,
+                        MdnsCustomResolve.QTYPE_A, now));
+            }
+
+            // exponential back off between retransmissions (RFC 6762 section 5.2)
+            request.mNextQueryAt = now + request.mRetransmitInterval;
+            request.mRetransmitInterval *= 2;
+        }
+
+        for (String name : mRefreshNames) {
+            if (!mPendingByName.containsKey(toKey(name))) {
+                sendIfFull(builder, name);
+                builder.addQuestion(name, MdnsCustomResolve.QTYPE_SRV, MdnsCustomResolve.QTYPE_TXT);
+                addKnownAnswers(builder, name, now);
+            }
+        }
+        mRefreshNames.clear();
+
+        for (String host : mRefreshHosts) {
+            sendIfFull(builder, host);
+            builder.addQuestion(host, MdnsCustomResolve.QTYPE_A);
+            builder.addKnownAnswer(mCache.getKnownAnswer(host, MdnsCustomResolve.QTYPE_A, now));
+        }
+        mRefreshHosts.clear();
+
+        send(builder);
+    }
+
+    // Known answers stop responders from repeating records we hold, RFC 6762 section 7.1. TXT
+    // records are never listed, as the decoded map cannot reproduce the record data exactly, and a
+    // known answer that does not match byte for byte suppresses nothing.
+    private void addKnownAnswers(QueryBuilder builder, String serviceName, long now) {
+        builder.addKnownAnswer(mCache.getKnownAnswer(serviceName, MdnsCustomResolve.QTYPE_SRV, now));
+    }
+
+    private void sendIfFull(QueryBuilder builder, String name) throws IOException {
+        if (!builder.hasRoomFor(name)) {
+            send(builder);
+            builder.reset();
+        }
+    }
+
+    private void send(QueryBuilder builder) throws IOException {
+        if (builder.isEmpty()) {
+            return;
+        }
+        // a full socket buffer drops the query, which is then covered by the retransmission
+        mChannel.send(ByteBuffer.wrap(builder.toByteArray()), mDestination);
+    }
+
+    private void expireRequests(long now) {
+        Iterator<PendingResolve> iterator = mPendingByName.values().iterator();
+        while (iterator.hasNext()) {
+            PendingResolve request = iterator.next();
+            if (request.mDeadline <= now) {
+                iterator.remove();
+                unregisterTarget(request);
+                request.fail();
+            }
+        }
+    }
+
+    private long nextWakeup() {
+        if (!mNewRequests.isEmpty() || !mRefreshHosts.isEmpty()) {
+            return 0;
+        }
+
+        long next = mCache.getNextDeadline();
+        for (PendingResolve request : mPendingByName.values()) {
+            next = Math.min(next, Math.min(request.mNextQueryAt, request.mDeadline));
+        }
+        return next;
+    }
+
+    private void readPackets() throws IOException {
+        while (true) {
+            mReceiveBuffer.clear();
+            if (mChannel.receive(mReceiveBuffer) == null) {
+                return;
+            }
+
+            try {
+                mParser.parse(mReceiveBuffer.array(), mReceiveBuffer.position(), mMessage);
+            } catch (IOException ex) {
+                // malformed packets are ignored, the records decoded before the error are still
+                // usable
+            }
+            handleRecords(mMessage);
+        }
+    }
+
+    // Records are only copied out of the reused message when they match a pending request or a
+    // cached record, so unrelated mDNS traffic is decoded without allocating
+    private void handleRecords(DnsPacketParser.Message records) {
+        long now = now();
+
+        cacheRecords(records, now);
+
+        // SRV and TXT first so that A records in the same packet can be matched to new targets
+        for (int i = 0; i < records.size(); i++) {
+            MdnsCustomResolve.Record record = records.get(i);
+            if (record instanceof MdnsCustomResolve.A) {
+                continue;
+            }
+
+            PendingResolve request = mPendingByName.get(toKey(record.fqdn));
+            if (request == null) {
+                continue;
+            }
+
+            if (record instanceof MdnsCustomResolve.SRV && request.mResult.srv == null) {
+                request.mResult.srv = (MdnsCustomResolve.SRV) DnsPacketParser.copyOf(record);
+                registerTarget(request);
+                // ask for the address straight away, should the answer not include it
+                request.mNextQueryAt = now;
+            } else if (record instanceof MdnsCustomResolve.TXT && request.mResult.txt == null) {
+                request.mResult.txt = (MdnsCustomResolve.TXT) DnsPacketParser.copyOf(record);
+            }
+        }
+
+        for (int i = 0; i < records.size(); i++) {
+            MdnsCustomResolve.Record record = records.get(i);
+            if (!(record instanceof MdnsCustomResolve.A)) {
+                continue;
+            }
+
+            List<PendingResolve> requests = mPendingByTarget.get(toKey(record.fqdn));
+            if (requests == null) {
+                continue;
+            }
+
+            for (PendingResolve request : requests) {
+                if (request.mResult.a == null) {
+                    request.mResult.a = (MdnsCustomResolve.A) DnsPacketParser.copyOf(record);
+                }
+            }
+        }
+
+        Iterator<PendingResolve> iterator = mPendingByName.values().iterator();
+        while (iterator.hasNext()) {
+            PendingResolve request = iterator.next();
+            if (request.isComplete()) {
+                iterator.remove();
+                unregisterTarget(request);
+                request.succeed();
+            }
+        }
+    }
+
+    private void cacheRecords(DnsPacketParser.Message records, long now) {
+        List<MdnsCustomResolve.SRV> refreshedSrvs = null;
+
+        // SRV and TXT first, as caching a SRV record makes the A record of its target of interest
+        for (int i = 0; i < records.size(); i++) {
+            MdnsCustomResolve.Record record = records.get(i);
+            if (record instanceof MdnsCustomResolve.A) {
+                continue;
+            }
+
+            int type = record instanceof MdnsCustomResolve.SRV ? MdnsCustomResolve.QTYPE_SRV
+                    : MdnsCustomResolve.QTYPE_TXT;
+            // records no one asked for keep refreshing only if they already were
+            if (mPendingByName.containsKey(toKey(record.fqdn))) {
+                mCache.put(record, now);
+            } else if (mCache.isTracked(record.fqdn, type)) {
+                mCache.putOverheard(record, now);
+            } else {
+                continue;
+            }
+            if (record instanceof MdnsCustomResolve.SRV) {
+                if (refreshedSrvs == null) {
+                    refreshedSrvs = new ArrayList<>();
+                }
+                refreshedSrvs.add((MdnsCustomResolve.SRV) record);
+            }
+        }
+
+        for (int i = 0; i < records.size(); i++) {
+            MdnsCustomResolve.Record record = records.get(i);
+            if (!(record instanceof MdnsCustomResolve.A)) {
+                continue;
+            }
+            if (mPendingByTarget.containsKey(toKey(record.fqdn))) {
+                mCache.put(record, now);
+            } else if (mCache.isTracked(record.fqdn, MdnsCustomResolve.QTYPE_A)) {
+                mCache.putOverheard(record, now);
+            }
+        }
+
+        if (refreshedSrvs != null) {
+            for (MdnsCustomResolve.SRV srv : refreshedSrvs) {
+                // a refreshed SRV record may point at a host we have no address for
+                if (srv.ttl > 0 && mCache.isRefreshed(srv.fqdn, MdnsCustomResolve.QTYPE_SRV)
+                        && mCache.get(srv.target, MdnsCustomResolve.QTYPE_A, now) == null
+                        && !mPendingByTarget.containsKey(toKey(srv.target))) {
+                    mRefreshHosts.add(srv.target);
+                }
+            }
+        }
+    }
+
+    private void registerTarget(PendingResolve request) {
+        String target = toKey(request.mResult.srv.target);
+        List<PendingResolve> requests = mPendingByTarget.get(target);
+        if (requests == null) {
+            requests = new ArrayList<>();
+            mPendingByTarget.put(target, requests);
+        }
+        requests.add(request);
+    }
+
+    private void unregisterTarget(PendingResolve request) {
+        if (request.mResult.srv == null) {
+            return;
+        }
+
+        String target = toKey(request.mResult.srv.target);
+        List<PendingResolve> requests = mPendingByTarget.get(target);
+        if (requests != null) {
+            requests.remove(request);
+            if (requests.isEmpty()) {
+                mPendingByTarget.remove(target);
+            }
+        }
+    }
+
+    // DNS names are case insensitive
+    private static String toKey(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    private static long now() {
+        return MdnsRecordCache.now();
+    }
+
+    private static boolean isAddressLiteral(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c != '.' && (c < '0' || c > '9')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static InetAddress getMulticastGroup() {
+        try {
+            return InetAddress.getByName(MdnsCustomResolve.MULTICAST_GROUP_ADDRESS);
+        } catch (IOException ex) {
+            // a literal address is never looked up, so this cannot happen
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static final class PendingResolve {
+        private final String mServiceName;
+        private final String mKey;
+        private final List<ResolveListener> mListeners = new ArrayList<>();
+        private final MdnsCustomResolve.Result mResult = new MdnsCustomResolve.Result();
+        private long mDeadline;
+        private long mNextQueryAt;
+        private long mRetransmitInterval = INITIAL_RETRANSMIT_MS;
+
+        PendingResolve(String serviceName, long deadline, ResolveListener listener) {
+            mServiceName = serviceName;
+            mKey = toKey(serviceName);
+            mDeadline = deadline;
+            mListeners.add(listener);
+        }
+
+        void merge(PendingResolve other) {
+            mListeners.addAll(other.mListeners);
+            mDeadline = Math.max(mDeadline, other.mDeadline);
+        }
+
+        boolean isComplete() {
+            return mResult.a != null && mResult.srv != null && mResult.txt != null;
+        }
+
+        void succeed() {
+            for (ResolveListener listener : mListeners) {
+                listener.onServiceResolved(mServiceName, mResult);
+            }
+        }
+
+        void fail() {
+            for (ResolveListener listener : mListeners) {
+                listener.onResolveFailed(mServiceName, mResult);
+            }
+        }
+    }
+
+    /**
+     * Builds a query packet with several questions. Names share their common suffixes through
+     * DNS name compression, so a batch of service names of the same type costs little more than
+     * the instance names themselves.
+     */
+    private static final class QueryBuilder {
+        private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream(MAX_QUERY_SIZE);
+        private final DataOutputStream mOut = new DataOutputStream(mBytes);
+        private final Map<String, Integer> mSuffixOffsets = new HashMap<>();
+        private final List<MdnsCustomResolve.Record> mKnownAnswers = new ArrayList<>();
+        private int mQuestionCount = 0;
+
+        QueryBuilder() {
+            reset();
+        }
+
+        void reset() {
+            mBytes.reset();
+            mSuffixOffsets.clear();
+            mKnownAnswers.clear();
+            mQuestionCount = 0;
+            try {
+                mOut.write(new byte[HEADER_SIZE]);
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        boolean isEmpty() {
+            return mQuestionCount == 0;
+        }
+
+        // Upper bound, assuming no compression and three question types
+        boolean hasRoomFor(String name) {
+            return isEmpty() || mBytes.size() + name.length() + 2 + 3 * 6 <= MAX_QUERY_SIZE;
+        }
+
+        void addQuestion(String name, short... qtypes) {
+            try {
+                int nameOffset = -1;
+                for (short qtype : qtypes) {
+                    if (nameOffset == -1) {
+                        nameOffset = mBytes.size();
+                        writeName(name);
+                    } else {
+                        writePointer(nameOffset);
+                    }
+                    mOut.writeShort(qtype);
+                    mOut.writeShort(MdnsCustomResolve.QCLASS_INTERNET | MdnsCustomResolve.CLASS_FLAG_UNICAST);
+                    mQuestionCount++;
+                }
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        /**
+         * Add a record to the known answer section. Known answers are written after all the
+         * questions, for as long as they fit in the packet.
+         * @param record the record, ignored if null
+         */
+        void addKnownAnswer(MdnsCustomResolve.Record record) {
+            if (record != null) {
+                mKnownAnswers.add(record);
+            }
+        }
+
+        byte[] toByteArray() {
+            int end = mBytes.size();
+            int answerCount = 0;
+            try {
+                for (MdnsCustomResolve.Record record : mKnownAnswers) {
+                    writeAnswer(record);
+                    if (mBytes.size() > MAX_QUERY_SIZE) {
+                        break;
+                    }
+                    end = mBytes.size();
+                    answerCount++;
+                }
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+
+            byte[] data = Arrays.copyOf(mBytes.toByteArray(), end);
+            data[4] = (byte) (mQuestionCount >> 8);
+            data[5] = (byte) mQuestionCount;
+            data[6] = (byte) (answerCount >> 8);
+            data[7] = (byte) answerCount;
+            return data;
+        }
+
+        private void writeAnswer(MdnsCustomResolve.Record record) throws IOException {
+            ByteArrayOutputStream rdata = new ByteArrayOutputStream();
+            short type;
+            if (record instanceof MdnsCustomResolve.SRV) {
+                MdnsCustomResolve.SRV srv = (MdnsCustomResolve.SRV) record;
+                type = MdnsCustomResolve.QTYPE_SRV;
+                DataOutputStream out = new DataOutputStream(rdata);
+                out.writeShort(srv.priority);
+                out.writeShort(srv.weight);
+                out.writeShort(srv.port);
+                MdnsCustomResolve.writeFQDN(srv.target, out);
+            } else if (record instanceof MdnsCustomResolve.A) {
+                type = MdnsCustomResolve.QTYPE_A;
+                for (String part : ((MdnsCustomResolve.A) record).ipaddr.split("\\.")) {
+                    rdata.write(Integer.parseInt(part));
+                }
+            } else {
+                throw new IllegalArgumentException("Unsupported known answer type");
+            }
+
+            writeName(record.fqdn);
+            mOut.writeShort(type);
+            mOut.writeShort(MdnsCustomResolve.QCLASS_INTERNET);
+            mOut.writeInt(record.ttl);
+            mOut.writeShort(rdata.size());
+            rdata.writeTo(mOut);
+        }
+
+        private void writeName(String name) throws IOException {
+            String[] labels = name.split("\\.");
+            for (int i = 0; i < labels.length; i++) {
+                String suffix = toKey(join(labels, i));
+                Integer offset = mSuffixOffsets.get(suffix);
+                if (offset != null) {
+                    writePointer(offset);
+                    return;
+                }
+
+                // pointers can only address the first 16KB of a packet
+                if (mBytes.size() < 0x3fff) {
+                    mSuffixOffsets.put(suffix, mBytes.size());
+                }
+
+                byte[] label = labels[i].getBytes();
+                mOut.write(label.length);
+                mOut.write(label);
+            }
+            mOut.write(0);
+        }
+
+        private void writePointer(int offset) throws IOException {
+            mOut.write(0xc0 | (offset >> 8));
+            mOut.write(offset & 0xff);
+        }
+
+        private static String join(String[] labels, int from) {
+            StringBuilder builder = new StringBuilder();
+            for (int i = from; i < labels.length; i++) {
+                if (i > from) {
+                    builder.append('.');
+                }
+                builder.append(labels[i]);
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,392 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018- Mosaic Networks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.mosaicnetworks.babble.servicediscovery.mdns;
+
+import android.content.Context;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import io.mosaicnetworks.babble.node.Peer;
+import io.mosaicnetworks.babble.servicediscovery.ResolvedService;
+
+/**
+ * Requests the genesis and current peers from several resolved services of a group at once. The
+ * services are asked in order of their measured latency (see {@link PeerLatencyTracker}) and the
+ * first consistent answer wins, at which point all outstanding requests are cancelled. If a
+ * quorum greater than one is set, the request only completes once that many services have
+ * returned the same genesis peers.
+ *
+ * All callbacks are delivered on the main thread, as with {@link HttpPeerDiscoveryRequest}.
+ */
+public final class ParallelPeerDiscoveryRequest {
+
+    /**
+     * Listener for the outcome of a {@link ParallelPeerDiscoveryRequest}
+     */
+    public interface ResultListener {
+
+        /**
+         * Called once with the winning answer
+         * @param service the service which provided the answer
+         * @param genesisPeers the genesis peers
+         * @param currentPeers the current peers
+         */
+        void onReceivePeers(ResolvedService service, List<Peer> genesisPeers, List<Peer> currentPeers);
+
+        /**
+         * Called once if no service could provide a consistent answer
+         * @param error the cause of the last failure
+         */
+        void onFailure(ResponseListener.Error error);
+    }
+
+    /**
+     * Default number of services queried at the same time
+     */
+    public static final int DEFAULT_MAX_PARALLEL_REQUESTS = 3;
+
+    private static final int DEFAULT_TIMEOUT_MS = 2500;
+
+    private final Context mAppContext;
+    private final List<ResolvedService> mRankedServices;
+    private final PeerLatencyTracker mLatencyTracker;
+    private final List<Attempt> mAttempts = new ArrayList<>();
+    private final List<Answer> mAnswers = new ArrayList<>();
+    private ResultListener mResultListener;
+    private int mMaxParallelRequests = DEFAULT_MAX_PARALLEL_REQUESTS;
+    private int mQuorum = 1;
+    private int mTimeoutMs = DEFAULT_TIMEOUT_MS;
+    private int mMaxNumRetries = 0;
+    private float mBackoffMultiplier = 1f;
+    private int mNextService = 0;
+    private int mOutstanding = 0;
+    private ResponseListener.Error mLastError = ResponseListener.Error.CONNECTION_ERROR;
+    private boolean mFinished = false;
+
+    /**
+     * Constructor
+     * @param services the resolved services of the group
+     * @param context the application context
+     */
+    public ParallelPeerDiscoveryRequest(List<ResolvedService> services, Context context) {
+        this(services, context, PeerLatencyTracker.getInstance());
+    }
+
+    ParallelPeerDiscoveryRequest(List<ResolvedService> services, Context context,
+                                 PeerLatencyTracker latencyTracker) {
+        if (services.isEmpty()) {
+            throw new IllegalArgumentException("At least one service is required");
+        }
+
+        mAppContext = context.getApplicationContext();
+        mLatencyTracker = latencyTracker;
+        mRankedServices = latencyTracker.rank(services);
+    }
+
+    /**
+     * Set the maximum number of services queried at the same time. When a service fails the next
+     * best ranked service is queried in its place.
+     * @param maxParallelRequests the number of concurrent services
+     */
+    public void setMaxParallelRequests(int maxParallelRequests) {
+        if (maxParallelRequests < 1) {
+            throw new IllegalArgumentException("At least one parallel request is required");
+        }
+        mMaxParallelRequests = maxParallelRequests;
+    }
+
+    /**
+     * Set the number of services that must agree on the genesis peers before an answer is
+     * returned. The quorum is capped at the number of available services.
+     * @param quorum the quorum, defaults to 1 i.e. the first answer wins
+     */
+    public void setQuorum(int quorum) {
+        if (quorum < 1) {
+            throw new IllegalArgumentException("Quorum must be at least 1");
+        }
+        mQuorum = quorum;
+    }
+
+    /**
+     * Set the retry policy applied to each individual request
+     * @param timeoutMs request timeout in milliseconds
+     * @param maxNumRetries num of retries before throwing an error
+     * @param backoffMultiplier back off multiplier value
+     */
+    public void setRetryPolicy(int timeoutMs, int maxNumRetries, float backoffMultiplier) {
+        mTimeoutMs = timeoutMs;
+        mMaxNumRetries = maxNumRetries;
+        mBackoffMultiplier = backoffMultiplier;
+    }
+
+    /**
+     * Send the requests
+     * @param resultListener receives the result
+     */
+    public void send(ResultListener resultListener) {
+        if (mResultListener != null) {
+            throw new IllegalStateException("Request has already been sent");
+        }
+
+        mResultListener = resultListener;
+        mQuorum = Math.min(mQuorum, mRankedServices.size());
+
+        while (mOutstanding < mMaxParallelRequests && launchNext()) {
+            // keep launching until the parallel limit is reached or we run out of services
+        }
+    }
+
+    /**
+     * Cancel all outstanding requests. No callbacks will be made after this call.
+     */
+    public void cancel() {
+        mFinished = true;
+        cancelOutstanding();
+    }
+
+    private boolean launchNext() {
+        if (mFinished || mNextService >= mRankedServices.size()) {
+            return false;
+        }
+
+        Attempt attempt = new Attempt(mRankedServices.get(mNextService++));
+        mAttempts.add(attempt);
+        mOutstanding++;
+        attempt.start();
+        return true;
+    }
+
+    private void onAttemptSucceeded(Attempt attempt, List<Peer> genesisPeers, List<Peer> currentPeers) {
+        mOutstanding--;
+
+        if (mFinished) {
+            return;
+        }
+
+        if (genesisPeers.isEmpty() || currentPeers.isEmpty()) {
+            onAttemptFailed(ResponseListener.Error.INVALID_JSON, false);
+            return;
+        }
+
+        Answer answer = new Answer(attempt.mService, genesisPeers, currentPeers);
+        mAnswers.add(answer);
+
+        if (countAgreeing(answer) >= mQuorum) {
+            finish(firstAgreeing(answer));
+            return;
+        }
+
+        launchReplacementOrFinish();
+    }
+
+    private void onAttemptFailed(ResponseListener.Error error, boolean decrement) {
+        if (decrement) {
+            mOutstanding--;
+        }
+
+        if (mFinished) {
+            return;
+        }
+
+        mLastError = error;
+        launchReplacementOrFinish();
+    }
+
+    private void launchReplacementOrFinish() {
+        if (mOutstanding < mMaxParallelRequests) {
+            launchNext();
+        }
+
+        if (mOutstanding > 0) {
+            return;
+        }
+
+        // every service has been tried and no quorum was reached, settle for the largest group of
+        // agreeing answers if there is one
+        Answer best = null;
+        int bestCount = 0;
+        for (Answer answer : mAnswers) {
+            int count = countAgreeing(answer);
+            if (count > bestCount) {
+                best = answer;
+                bestCount = count;
+            }
+        }
+
+        if (best != null) {
+            finish(firstAgreeing(best));
+        } else {
+            mFinished = true;
+            mResultListener.onFailure(mLastError);
+        }
+    }
+
+    private void finish(Answer answer) {
+        mFinished = true;
+        cancelOutstanding();
+        mResultListener.onReceivePeers(answer.mService, answer.mGenesisPeers, answer.mCurrentPeers);
+    }
+
+    private void cancelOutstanding() {
+        for (Attempt attempt : mAttempts) {
+            attempt.cancel();
+        }
+    }
+
+    private int countAgreeing(Answer answer) {
+        int count = 0;
+        for (Answer other : mAnswers) {
+            if (other.mGenesisKeys.equals(answer.mGenesisKeys)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private Answer firstAgreeing(Answer answer) {
+        for (Answer other : mAnswers) {
+            if (other.mGenesisKeys.equals(answer.mGenesisKeys)) {
+                return other;
+            }
+        }
+        return answer;
+    }
+
+    private static final class Answer {
+        private final ResolvedService mService;
+        private final List<Peer> mGenesisPeers;
+        private final List<Peer> mCurrentPeers;
+        private final Set<String> mGenesisKeys = new HashSet<>();
+
+        Answer(ResolvedService service, List<Peer> genesisPeers, List<Peer> currentPeers) {
+            mService = service;
+            mGenesisPeers = genesisPeers;
+            mCurrentPeers = currentPeers;
+            for (Peer peer : genesisPeers) {
+                mGenesisKeys.add(peer.pubKeyHex);
+            }
+        }
+    }
+
+    /**
+     * The genesis and current peers requests made to a single service
+     */
+    private final class Attempt {
+        private final ResolvedService mService;
+        private final String mHost;
+        private final int mPort;
+        private HttpPeerDiscoveryRequest mGenesisRequest;
+        private HttpPeerDiscoveryRequest mCurrentRequest;
+        private boolean mCancelled = false;
+
+        Attempt(ResolvedService service) {
+            mService = service;
+            mHost = service.getInetAddress().getHostAddress();
+            mPort = service.getPort();
+        }
+
+        void start() {
+            final long genesisStart = SystemClock.elapsedRealtime();
+
+            try {
+                mGenesisRequest = HttpPeerDiscoveryRequest.createGenesisPeersRequest(mHost, mPort,
+                        new ResponseListener() {
+                            @Override
+                            public void onReceivePeers(List<Peer> genesisPeers) {
+                                mLatencyTracker.recordSuccess(mHost, mPort,
+                                        SystemClock.elapsedRealtime() - genesisStart);
+                                requestCurrentPeers(genesisPeers);
+                            }
+
+                            @Override
+                            public void onFailure(Error error) {
+                                onRequestFailed(error);
+                            }
+                        }, mAppContext);
+            } catch (IllegalArgumentException ex) {
+                onRequestFailed(ResponseListener.Error.CONNECTION_ERROR);
+                return;
+            }
+
+            mGenesisRequest.setRetryPolicy(mTimeoutMs, mMaxNumRetries, mBackoffMultiplier);
+            mGenesisRequest.send();
+        }
+
+        private void requestCurrentPeers(final List<Peer> genesisPeers) {
+            if (mCancelled) {
+                return;
+            }
+
+            final long currentStart = SystemClock.elapsedRealtime();
+
+            mCurrentRequest = HttpPeerDiscoveryRequest.createCurrentPeersRequest(mHost, mPort,
+                    new ResponseListener() {
+                        @Override
+                        public void onReceivePeers(List<Peer> currentPeers) {
+                            mLatencyTracker.recordSuccess(mHost, mPort,
+                                    SystemClock.elapsedRealtime() - currentStart);
+                            if (!mCancelled) {
+                                onAttemptSucceeded(Attempt.this, genesisPeers, currentPeers);
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(Error error) {
+                            onRequestFailed(error);
+                        }
+                    }, mAppContext);
+
+            mCurrentRequest.setRetryPolicy(mTimeoutMs, mMaxNumRetries, mBackoffMultiplier);
+            mCurrentRequest.send();
+        }
+
+        private void onRequestFailed(ResponseListener.Error error) {
+            if (mCancelled) {
+                return;
+            }
+            mLatencyTracker.recordFailure(mHost, mPort);
+            onAttemptFailed(error, true);
+        }
+
+        void cancel() {
+            if (mCancelled) {
+                return;
+            }
+            mCancelled = true;
+
+            if (mGenesisRequest != null) {
+                mGenesisRequest.cancel();
+            }
+
+            if (mCurrentRequest != null) {
+                mCurrentRequest.cancel();
+            }
+        }
+    }
+}
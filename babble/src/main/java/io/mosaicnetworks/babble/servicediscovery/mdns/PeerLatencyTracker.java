@@ -0,0 +1,148 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018- Mosaic Networks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.mosaicnetworks.babble.servicediscovery.mdns;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.mosaicnetworks.babble.servicediscovery.ResolvedService;
+
+/**
+ * Keeps a smoothed estimate of the response time of each host that has served a peers request.
+ * The estimates are used to rank the resolved services of a group so that the fastest hosts are
+ * asked first. Failures are recorded as a penalty so that dead hosts sink to the bottom of the
+ * ranking.
+ */
+public final class PeerLatencyTracker {
+
+    /**
+     * The estimate used for hosts that have never been measured. It is deliberately optimistic so
+     * that new hosts get a chance to be measured.
+     */
+    public static final long DEFAULT_ESTIMATE_MS = 250;
+
+    /**
+     * The latency recorded against a host when a request to it fails
+     */
+    public static final long FAILURE_PENALTY_MS = 5000;
+
+    // weight given to the newest sample in the exponentially weighted moving average
+    private static final double ALPHA = 0.3;
+
+    private static final PeerLatencyTracker INSTANCE = new PeerLatencyTracker();
+
+    private final Map<String, Double> mEstimates = new ConcurrentHashMap<>();
+
+    /**
+     * Get the process wide tracker
+     * @return the shared tracker
+     */
+    public static PeerLatencyTracker getInstance() {
+        return INSTANCE;
+    }
+
+    PeerLatencyTracker() {
+    }
+
+    /**
+     * Record a successful response from a host
+     * @param host the host address
+     * @param port the port
+     * @param latencyMs the time taken for the response in milliseconds
+     */
+    public void recordSuccess(String host, int port, long latencyMs) {
+        recordSample(hostKey(host, port), latencyMs);
+    }
+
+    /**
+     * Record a failed request to a host
+     * @param host the host address
+     * @param port the port
+     */
+    public void recordFailure(String host, int port) {
+        recordSample(hostKey(host, port), FAILURE_PENALTY_MS);
+    }
+
+    /**
+     * Get the current latency estimate for a host
+     * @param host the host address
+     * @param port the port
+     * @return the estimate in milliseconds, or {@link #DEFAULT_ESTIMATE_MS} if the host has not
+     * been measured
+     */
+    public long getEstimate(String host, int port) {
+        Double estimate = mEstimates.get(hostKey(host, port));
+        return estimate == null ? DEFAULT_ESTIMATE_MS : Math.round(estimate);
+    }
+
+    /**
+     * Get the current latency estimate for a resolved service
+     * @param service the resolved service
+     * @return the estimate in milliseconds
+     */
+    public long getEstimate(ResolvedService service) {
+        if (service.getInetAddress() == null) {
+            return DEFAULT_ESTIMATE_MS;
+        }
+        return getEstimate(service.getInetAddress().getHostAddress(), service.getPort());
+    }
+
+    /**
+     * Rank services, fastest first. Services with equal estimates keep their relative order.
+     * @param services the services to be ranked
+     * @return a new list containing the ranked services
+     */
+    public List<ResolvedService> rank(List<ResolvedService> services) {
+        List<ResolvedService> ranked = new ArrayList<>(services);
+        Collections.sort(ranked, new Comparator<ResolvedService>() {
+            @Override
+            public int compare(ResolvedService a, ResolvedService b) {
+                return Long.compare(getEstimate(a), getEstimate(b));
+            }
+        });
+        return ranked;
+    }
+
+    /**
+     * Forget all estimates
+     */
+    public void clear() {
+        mEstimates.clear();
+    }
+
+    private void recordSample(String key, long sampleMs) {
+        Double previous = mEstimates.get(key);
+        double updated = previous == null ? sampleMs : (ALPHA * sampleMs) + ((1 - ALPHA) * previous);
+        mEstimates.put(key, updated);
+    }
+
+    private static String hostKey(String host, int port) {
+        return host + ":" + port;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018- Mosaic Networks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.mosaicnetworks.babble.servicediscovery.webrtc;
+
+import android.content.Context;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.TimeoutError;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.HttpHeaderParser;
+import com.android.volley.toolbox.Volley;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import io.mosaicnetworks.babble.servicediscovery.mdns.ResponseListener;
+import io.mosaicnetworks.babble.utils.HttpsTrustManager;
+
+/**
+ * Requests a single group, with its peer lists, from the discovery server. The group listing only
+ * holds {@link DiscoGroupSummary} objects, this request fetches the rest once a group is picked.
+ * The response is parsed on the Volley network thread.
+ */
+public final class DiscoGroupRequest {
+
+    /**
+     * Listener to a group request
+     */
+    public interface Listener {
+
+        /**
+         * Called on the main thread when the group is received
+         * @param group the group
+         */
+        void onReceiveGroup(DiscoGroup group);
+
+        /**
+         * Called on the main thread when the request fails
+         * @param error the error
+         */
+        void onFailure(ResponseListener.Error error);
+    }
+
+    /**
+     * Construct a request for a group
+     * @param groupUid the group UID
+     * @param listener a listener to return the result or error
+     * @param context the application context
+     * @return the request
+     */
+    public static DiscoGroupRequest create(String groupUid, Listener listener, Context context) {
+
+        // disable TLS verification if skip-verify is set
+        if (Constants.SKIP_VERIFY) {
+            HttpsTrustManager.allowAllSSL();
+        }
+
+        return createForUrl(String.format("https://%s:%d/%s/%s",
+                Constants.DISCOVER_SERVER_HOST,
+                Constants.DISCOVER_SERVER_PORT,
+                Constants.DISCOVER_END_POINT,
+                groupUid), listener, context);
+    }
+
+    static DiscoGroupRequest createForUrl(String url, final Listener listener, Context context) {
+        GroupRequest request = new GroupRequest(url, new Response.Listener<DiscoGroup>() {
+            @Override
+            public void onResponse(DiscoGroup group) {
+                listener.onReceiveGroup(group);
+            }
+        }, new Response.ErrorListener() {
+            @Override
+            public void onErrorResponse(VolleyError error) {
+                if (error instanceof ParseError) {
+                    listener.onFailure(ResponseListener.Error.INVALID_JSON);
+                } else if (error instanceof TimeoutError) {
+                    listener.onFailure(ResponseListener.Error.TIMEOUT);
+                } else {
+                    listener.onFailure(ResponseListener.Error.CONNECTION_ERROR);
+                }
+            }
+        });
+
+        return new DiscoGroupRequest(getQueue(context), request);
+    }
+
+    // all group requests share a queue, so that a request can reuse the connection left open by
+    // an earlier one
+    private static synchronized RequestQueue getQueue(Context context) {
+        if (sQueue == null) {
+            sQueue = Volley.newRequestQueue(context.getApplicationContext());
+        }
+        return sQueue;
+    }
+
+    private static RequestQueue sQueue;
+
+    private final RequestQueue mQueue;
+    private final GroupRequest mRequest;
+
+    private DiscoGroupRequest(RequestQueue queue, GroupRequest request) {
+        mQueue = queue;
+        mRequest = request;
+    }
+
+    /**
+     * Send the request
+     */
+    public void send() {
+        mQueue.add(mRequest);
+    }
+
+    /**
+     * Cancel the request
+     */
+    public void cancel() {
+        mRequest.cancel();
+    }
+
+    private static final class GroupRequest extends Request<DiscoGroup> {
+
+        private static final Gson sGson = new Gson();
+
+        private final Response.Listener<DiscoGroup> mListener;
+
+        GroupRequest(String url, Response.Listener<DiscoGroup> listener,
+                     Response.ErrorListener errorListener) {
+            super(Method.GET, url, errorListener);
+            mListener = listener;
+            setShouldCache(false);
+        }
+
+        @Override
+        protected Response<DiscoGroup> parseNetworkResponse(NetworkResponse response) {
+            String charset = HttpHeaderParser.parseCharset(response.headers, "UTF-8");
+            try (Reader reader = new InputStreamReader(new ByteArrayInputStream(response.data), charset)) {
+                DiscoGroup group = sGson.fromJson(reader, DiscoGroup.class);
+                if (group == null) {
+                    return Response.error(new ParseError());
+                }
+                return Response.success(group, HttpHeaderParser.parseCacheHeaders(response));
+            } catch (IOException | JsonParseException ex) {
+                return Response.error(new ParseError(ex));
+            }
+        }
+
+        @Override
+        protected void deliverResponse(DiscoGroup group) {
+            mListener.onResponse(group);
+        }
+    }
+}
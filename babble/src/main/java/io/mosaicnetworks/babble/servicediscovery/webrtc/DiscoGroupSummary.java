@@ -0,0 +1,82 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018- Mosaic Networks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.mosaicnetworks.babble.servicediscovery.webrtc;
+
+/**
+ * The fields of a {@link DiscoGroup} needed to list the group. The peer lists are left out, they
+ * are only fetched with a {@link DiscoGroupRequest} once the user picks the group.
+ */
+public final class DiscoGroupSummary {
+
+    private final String mGroupUid;
+    private final String mGroupName;
+    private final String mAppId;
+    private final int mLastUpdated;
+
+    public DiscoGroupSummary(String groupUid, String groupName, String appId, int lastUpdated) {
+        mGroupUid = groupUid;
+        mGroupName = groupName;
+        mAppId = appId;
+        mLastUpdated = lastUpdated;
+    }
+
+    /**
+     * @return the group UID
+     */
+    public String getGroupUid() {
+        return mGroupUid;
+    }
+
+    /**
+     * @return the group name
+     */
+    public String getGroupName() {
+        return mGroupName;
+    }
+
+    /**
+     * @return the app ID
+     */
+    public String getAppId() {
+        return mAppId;
+    }
+
+    /**
+     * @return the last update for this group in Unix time in seconds
+     */
+    public int getLastUpdated() {
+        return mLastUpdated;
+    }
+
+    @Override
+    public String toString() {
+        return "DiscoGroupSummary{" +
+                "GroupUID='" + mGroupUid + '\'' +
+                ", GroupName='" + mGroupName + '\'' +
+                ", AppID='" + mAppId + '\'' +
+                ", LastUpdated=" + mLastUpdated +
+                '}';
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018- Mosaic Networks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.mosaicnetworks.babble.servicediscovery.webrtc;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import io.mosaicnetworks.babble.servicediscovery.ResolvedGroup;
+import io.mosaicnetworks.babble.servicediscovery.ResolvedGroupRegistry;
+import io.mosaicnetworks.babble.servicediscovery.ResolvedService;
+
+/**
+ * Applies the responses of the discovery server to a {@link ResolvedGroupRegistry}, and keeps
+ * the watermark to send with the next request. Only the groups added, updated or removed are
+ * touched, so an unchanged poll costs nothing beyond the response itself.
+ *
+ * The watermark is inclusive: the server lists the groups updated at or after it. A group is
+ * only replaced when its LastUpdated value differs from the one already applied, so groups
+ * listed again are ignored. Every {@link #FULL_SYNC_INTERVAL} polls the watermark is dropped and
+ * the full list requested, to recover from any removal the server could not report.
+ *
+ * This class is not thread safe, it is used from the thread delivering the responses.
+ */
+final class DiscoGroupSync {
+
+    static final int FULL_SYNC_INTERVAL = 20;
+
+    private final ResolvedGroupRegistry mRegistry;
+    private final Map<String, Integer> mLastUpdated = new HashMap<>();
+    private long mWatermark = 0;
+    private int mDeltaCount = 0;
+
+    DiscoGroupSync(ResolvedGroupRegistry registry) {
+        mRegistry = registry;
+    }
+
+    /**
+     * @return the watermark to send with the next request, or 0 if the full list is needed
+     */
+    long getWatermark() {
+        if (mDeltaCount >= FULL_SYNC_INTERVAL) {
+            return 0;
+        }
+        return mWatermark;
+    }
+
+    /**
+     * Forget the watermark, so that the next request asks for the full list
+     */
+    void reset() {
+        mWatermark = 0;
+    }
+
+    /**
+     * Apply a response to the registry
+     * @param response the response
+     * @return the number of services added, replaced or removed
+     */
+    int apply(DiscoGroupsResponse response) {
+        int changes = 0;
+
+        for (Map.Entry<String, DiscoGroupSummary> entry : response.getGroups().entrySet()) {
+            if (applyGroup(entry.getKey(), entry.getValue())) {
+                changes++;
+            }
+        }
+
+        if (response.isFull()) {
+            changes += mRegistry.retainServices(ResolvedGroup.Source.WEBRTC,
+                    response.getGroups().keySet());
+            mLastUpdated.keySet().retainAll(response.getGroups().keySet());
+            mDeltaCount = 0;
+        } else {
+            for (String uid : response.getRemoved()) {
+                mLastUpdated.remove(uid);
+                if (mRegistry.removeService(ResolvedGroup.Source.WEBRTC, uid) != null) {
+                    changes++;
+                }
+            }
+            mDeltaCount++;
+        }
+
+        mWatermark = response.getWatermark();
+        return changes;
+    }
+
+    private boolean applyGroup(String uid, DiscoGroupSummary disco) {
+        Integer lastUpdated = mLastUpdated.get(uid);
+        boolean registered = mRegistry.containsService(ResolvedGroup.Source.WEBRTC, uid);
+        if (registered && lastUpdated != null && lastUpdated == disco.getLastUpdated()) {
+            return false;
+        }
+
+        // a resolved service is immutable, so an updated group replaces the service
+        if (registered) {
+            mRegistry.removeService(ResolvedGroup.Source.WEBRTC, uid);
+        }
+
+        // the peers are not listed, they are fetched when the group is joined
+        ResolvedService service = new ResolvedService(disco.getGroupUid(),
+                disco.getGroupName(),
+                disco.getAppId(),
+                disco.getLastUpdated(),
+                null,
+                null,
+                null,
+                0
+        );
+
+        // each group listed by the server is a group of one service, keyed by the group UID
+        mRegistry.addService(ResolvedGroup.Source.WEBRTC, uid, service);
+        mLastUpdated.put(uid, disco.getLastUpdated());
+        return true;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018- Mosaic Networks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.mosaicnetworks.babble.servicediscovery.webrtc;
+
+import com.google.gson.annotations.SerializedName;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.mosaicnetworks.babble.node.Peer;
+
+/**
+ * A compact update to a group registered with the discovery server, sent instead of the full
+ * {@link DiscoGroup} when the group is already registered. The server removes the peers with the
+ * listed public keys, then adds the listed peers, so a peer whose address changed is both removed
+ * and added. An update with no peers is a heartbeat, which only refreshes the last block index.
+ */
+public final class DiscoGroupUpdate {
+
+    /**
+     * The Last Block Index
+     */
+    @SerializedName("LastBlockIndex")
+    public final int LastBlockIndex;
+
+    /**
+     * The peers which joined the group, or whose address changed
+     */
+    @SerializedName("AddedPeers")
+    public final List<Peer> AddedPeers;
+
+    /**
+     * The public keys of the peers which left the group, or whose address changed
+     */
+    @SerializedName("RemovedPeers")
+    public final List<String> RemovedPeers;
+
+    public DiscoGroupUpdate(int lastBlockIndex, List<Peer> addedPeers, List<String> removedPeers) {
+        LastBlockIndex = lastBlockIndex;
+        AddedPeers = addedPeers;
+        RemovedPeers = removedPeers;
+    }
+
+    /**
+     * Build the update from the peers last advertised to the current peers
+     * @param advertised the peers last advertised
+     * @param current the current peers
+     * @param lastBlockIndex the last block index
+     * @return the update
+     */
+    public static DiscoGroupUpdate diff(List<Peer> advertised, List<Peer> current, int lastBlockIndex) {
+        Map<String, Peer> before = new HashMap<>();
+        for (Peer peer : advertised) {
+            before.put(peer.pubKeyHex, peer);
+        }
+
+        List<Peer> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        for (Peer peer : current) {
+            Peer previous = before.remove(peer.pubKeyHex);
+            if (previous == null) {
+                added.add(peer);
+            } else if (!previous.netAddr.equals(peer.netAddr) || !previous.moniker.equals(peer.moniker)) {
+                removed.add(peer.pubKeyHex);
+                added.add(peer);
+            }
+        }
+        removed.addAll(before.keySet());
+
+        return new DiscoGroupUpdate(lastBlockIndex, added, removed);
+    }
+
+    /**
+     * @return true if the peer set has changed
+     */
+    public boolean hasPeerChanges() {
+        return !AddedPeers.isEmpty() || !RemovedPeers.isEmpty();
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018- Mosaic Networks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.mosaicnetworks.babble.servicediscovery.webrtc;
+
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.toolbox.HttpHeaderParser;
+import com.google.gson.JsonParseException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+/**
+ * A request for the groups listed by the discovery server. The response is parsed on the Volley
+ * network thread, only the parsed {@link DiscoGroupsResponse} is delivered to the main thread.
+ *
+ * A request with a watermark can ask the server to hold the response for up to a number of
+ * seconds, until a group changes after the watermark. If nothing changed in that time, the server
+ * answers with the delta it would have sent straight away.
+ */
+final class DiscoGroupsRequest extends Request<DiscoGroupsResponse> {
+
+    private static final int TIMEOUT_MARGIN_SECONDS = 15;
+
+    private final Response.Listener<DiscoGroupsResponse> mListener;
+
+    /**
+     * @param groupsUrl the URL of the groups end point, including the app-id parameter
+     * @param watermark the watermark from the last response, or 0 to request the full list
+     * @param waitSeconds how long the server may hold the response, or 0 for an immediate one.
+     *                    Ignored when the full list is requested.
+     * @param listener receives the parsed response
+     * @param errorListener receives connection and parsing errors
+     */
+    DiscoGroupsRequest(String groupsUrl, long watermark, int waitSeconds,
+                       Response.Listener<DiscoGroupsResponse> listener,
+                       Response.ErrorListener errorListener) {
+        super(Method.GET, buildUrl(groupsUrl, watermark, waitSeconds), errorListener);
+        mListener = listener;
+
+        // every poll must reach the server
+        setShouldCache(false);
+
+        // a held response must not time out, and is not retried as the server may be down
+        if (watermark > 0 && waitSeconds > 0) {
+            setRetryPolicy(new DefaultRetryPolicy((waitSeconds + TIMEOUT_MARGIN_SECONDS) * 1000,
+                    0, DefaultRetryPolicy.DEFAULT_BACKOFF_MULT));
+        }
+    }
+
+    private static String buildUrl(String groupsUrl, long watermark, int waitSeconds) {
+        if (watermark <= 0) {
+            return groupsUrl;
+        }
+        String url = groupsUrl + "&since=" + watermark;
+        if (waitSeconds > 0) {
+            url += "&wait=" + waitSeconds;
+        }
+        return url;
+    }
+
+    @Override
+    protected Response<DiscoGroupsResponse> parseNetworkResponse(NetworkResponse response) {
+        String charset = HttpHeaderParser.parseCharset(response.headers, "UTF-8");
+        try (Reader reader = new InputStreamReader(new ByteArrayInputStream(response.data), charset)) {
+            return Response.success(DiscoGroupsResponse.parse(reader),
+                    HttpHeaderParser.parseCacheHeaders(response));
+        } catch (IOException | JsonParseException | IllegalStateException ex) {
+            return Response.error(new ParseError(ex));
+        }
+    }
+
+    @Override
+    protected void deliverResponse(DiscoGroupsResponse response) {
+        mListener.onResponse(response);
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018- Mosaic Networks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.mosaicnetworks.babble.servicediscovery.webrtc;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A list of groups returned by the discovery server. The server answers a request without a
+ * watermark, or a server without delta support answers any request, with the full map of groups
+ * keyed by group UID:
+ *
+ * {"uid-1": {...}, "uid-2": {...}}
+ *
+ * A request with a {@code since} watermark may instead be answered with a delta, holding only the
+ * groups updated at or after the watermark and the UIDs of the groups removed since then:
+ *
+ * {"LastUpdated": 1580000000, "Groups": {"uid-1": {...}}, "Removed": ["uid-2"]}
+ *
+ * Group UIDs are random strings, so they do not collide with the names of the delta members.
+ *
+ * The response is parsed as a stream into {@link DiscoGroupSummary} objects. The peer lists,
+ * which make up most of a listing, are skipped without being decoded.
+ */
+public final class DiscoGroupsResponse {
+
+    private final boolean mFull;
+    private final Map<String, DiscoGroupSummary> mGroups;
+    private final List<String> mRemoved;
+    private final long mWatermark;
+
+    private DiscoGroupsResponse(boolean full, Map<String, DiscoGroupSummary> groups, List<String> removed,
+                                long watermark) {
+        mFull = full;
+        mGroups = Collections.unmodifiableMap(groups);
+        mRemoved = Collections.unmodifiableList(removed);
+        mWatermark = watermark;
+    }
+
+    /**
+     * Parse a response from the discovery server
+     * @param reader the response body
+     * @return the parsed response
+     * @throws IOException if the body cannot be read
+     * @throws JsonParseException if the body is not a valid response
+     */
+    public static DiscoGroupsResponse parse(Reader reader) throws IOException {
+        JsonReader json = new JsonReader(reader);
+        Map<String, DiscoGroupSummary> groups = new LinkedHashMap<>();
+        List<String> removed = new ArrayList<>();
+        boolean delta = false;
+        long lastUpdated = -1;
+
+        json.beginObject();
+        while (json.hasNext()) {
+            String name = json.nextName();
+            JsonToken token = json.peek();
+
+            if (name.equals("Groups") && token == JsonToken.BEGIN_OBJECT) {
+                delta = true;
+                readGroups(json, groups);
+            } else if (name.equals("Removed") && token == JsonToken.BEGIN_ARRAY) {
+                delta = true;
+                json.beginArray();
+                while (json.hasNext()) {
+                    removed.add(json.nextString());
+                }
+                json.endArray();
+            } else if (name.equals("LastUpdated") && token == JsonToken.NUMBER) {
+                delta = true;
+                lastUpdated = json.nextLong();
+            } else if (token == JsonToken.BEGIN_OBJECT) {
+                groups.put(name, readGroup(json));
+            } else {
+                json.skipValue();
+            }
+        }
+        json.endObject();
+
+        // without a watermark from the server, the newest group seen is the watermark
+        long watermark = lastUpdated;
+        if (watermark < 0) {
+            watermark = 0;
+            for (DiscoGroupSummary group : groups.values()) {
+                watermark = Math.max(watermark, group.getLastUpdated());
+            }
+        }
+
+        return new DiscoGroupsResponse(!delta, groups, removed, watermark);
+    }
+
+    private static void readGroups(JsonReader json, Map<String, DiscoGroupSummary> groups) throws IOException {
+        json.beginObject();
+        while (json.hasNext()) {
+            String uid = json.nextName();
+            groups.put(uid, readGroup(json));
+        }
+        json.endObject();
+    }
+
+    // the member names are those of the serialized DiscoGroup
+    private static DiscoGroupSummary readGroup(JsonReader json) throws IOException {
+        String uid = null;
+        String name = null;
+        String appId = null;
+        int lastUpdated = 0;
+
+        json.beginObject();
+        while (json.hasNext()) {
+            String member = json.nextName();
+            if (json.peek() == JsonToken.NULL) {
+                json.skipValue();
+                continue;
+            }
+
+            switch (member) {
+                case "ID":
+                    uid = json.nextString();
+                    break;
+                case "Name":
+                    name = json.nextString();
+                    break;
+                case "AppID":
+                    appId = json.nextString();
+                    break;
+                case "LastUpdated":
+                    lastUpdated = (int) json.nextLong();
+                    break;
+                default:
+                    json.skipValue();
+            }
+        }
+        json.endObject();
+
+        return new DiscoGroupSummary(uid, name, appId, lastUpdated);
+    }
+
+    /**
+     * @return true if the response lists every group, false if it is a delta
+     */
+    public boolean isFull() {
+        return mFull;
+    }
+
+    /**
+     * @return the groups listed, keyed by group UID. For a delta, these are the groups added or
+     * updated since the watermark.
+     */
+    public Map<String, DiscoGroupSummary> getGroups() {
+        return mGroups;
+    }
+
+    /**
+     * @return the UIDs of the groups removed since the watermark, always empty for a full response
+     */
+    public List<String> getRemoved() {
+        return mRemoved;
+    }
+
+    /**
+     * @return the watermark to send with the next request
+     */
+    public long getWatermark() {
+        return mWatermark;
+    }
+}
@@ -25,6 +25,8 @@
 package io.mosaicnetworks.babble.servicediscovery.webrtc;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import com.android.volley.AuthFailureError;
@@ -36,21 +38,45 @@ import com.android.volley.toolbox.StringRequest;
 import com.android.volley.toolbox.Volley;
 import com.google.common.reflect.TypeToken;
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.Random;
 
 import io.mosaicnetworks.babble.node.BabbleNode;
+import io.mosaicnetworks.babble.node.Block;
 import io.mosaicnetworks.babble.node.ConfigManager;
 import io.mosaicnetworks.babble.node.GroupDescriptor;
 import io.mosaicnetworks.babble.node.Peer;
 import io.mosaicnetworks.babble.servicediscovery.ServiceAdvertiser;
+import io.mosaicnetworks.babble.servicediscovery.mdns.PeersProvider;
+import io.mosaicnetworks.babble.utils.ExponentialBackoff;
 import io.mosaicnetworks.babble.utils.HttpsTrustManager;
 
+/**
+ * Registers a group with the discovery server, and keeps the registration up to date for as long
+ * as the group is advertised.
+ *
+ * The full group is POSTed once. After that a heartbeat is sent every
+ * {@link #HEARTBEAT_INTERVAL_MS} milliseconds, give or take 20%, as a compact
+ * {@link DiscoGroupUpdate} PATCHed to the group: the changes to the peer set since the last
+ * successful update, and the last block index. A committed block with internal transactions may
+ * have changed the peer set, so it brings the next update forward. Failed requests are retried
+ * with an exponential backoff. If the server no longer knows the group, or does not accept
+ * compact updates, the full group is POSTed again.
+ *
+ * The registration is driven from the main thread.
+ */
 public class WebRTCAdvertiser implements ServiceAdvertiser {
     private static final String TAG = "WebRTCAdvertiser";
 
+    public static final long HEARTBEAT_INTERVAL_MS = 60000;
+    private static final double HEARTBEAT_JITTER = 0.2;
+    private static final long PEER_CHANGE_DELAY_MS = 1000;
+    private static final long RETRY_BASE_MS = 2000;
+    private static final long RETRY_MAX_MS = 300000;
+
     private static RequestQueue sQueue;
 
     private static String mGroupID;
@@ -58,7 +84,39 @@ public class WebRTCAdvertiser implements ServiceAdvertiser {
     private static String mAppID;
     private static DiscoGroup mDisco;
 
+    private final String mServerURL;
+    private final long mHeartbeatIntervalMs;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ExponentialBackoff mBackoff = new ExponentialBackoff(RETRY_BASE_MS, RETRY_MAX_MS);
+    private final Random mRandom = new Random();
+    private final Gson mGson = new Gson();
+
+    private PeersProvider mPeersProvider;
+    private String mPubKey;
+    private List<Peer> mGenesisPeers;
+    private List<Peer> mAdvertisedPeers;
+    private volatile int mLastBlockIndex = -1;
+    // set on the calling thread, so that a stop issued before the registration starts sticks
+    private volatile boolean mAdvertising = false;
+    private boolean mRegistered = false;
+    private Request<?> mInFlight;
+    private boolean mRefreshPending = false;
+
+    private final Runnable mRefreshTask = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+        }
+    };
+
     public WebRTCAdvertiser(GroupDescriptor groupDescriptor, Context context) {
+        this(groupDescriptor, context, String.format("https://%s:%d",
+                Constants.DISCOVER_SERVER_HOST,
+                Constants.DISCOVER_SERVER_PORT), HEARTBEAT_INTERVAL_MS);
+    }
+
+    WebRTCAdvertiser(GroupDescriptor groupDescriptor, Context context, String serverUrl,
+                     long heartbeatIntervalMs) {
         sQueue = Volley.newRequestQueue(context.getApplicationContext());
 
         // disable TLS verification if skip-verify is set
@@ -69,48 +127,93 @@ public class WebRTCAdvertiser implements ServiceAdvertiser {
         mGroupID = groupDescriptor.getUid();
         mGroupName = groupDescriptor.getName();
         mAppID = context.getApplicationContext().getPackageName();
+        mServerURL = serverUrl;
+        mHeartbeatIntervalMs = heartbeatIntervalMs;
     }
 
     @Override
     public boolean advertise(BabbleNode node) {
-        Gson gson = new Gson();
-
-        String currentPeersString = node.getCurrentPeers();
-        List<Peer> currentPeers = gson.fromJson(currentPeersString, new TypeToken<List<Peer>>(){}.getType());
+        return advertise(node, node.getPubKey());
+    }
 
-        String genesisPeersString = node.getGenesisPeers();
-        List<Peer> genesisPeers = gson.fromJson(genesisPeersString, new TypeToken<List<Peer>>(){}.getType());
+    boolean advertise(PeersProvider peersProvider, String pubKey) {
+        List<Peer> genesisPeers = parsePeers(peersProvider.getGenesisPeers());
+        if (genesisPeers == null) {
+            return false;
+        }
 
+        mPeersProvider = peersProvider;
+        mPubKey = pubKey;
+        mGenesisPeers = genesisPeers;
         mDisco = new DiscoGroup(
                 mGroupID,
                 mGroupName,
                 mAppID,
-                node.getPubKey(),
+                pubKey,
                 0,
-                -1,
-                currentPeers,
-                genesisPeers );
+                mLastBlockIndex,
+                parsePeers(peersProvider.getCurrentPeers()),
+                genesisPeers);
 
-        URL url;
-        try {
-            url = new URL(
-                    "https",
-                    Constants.DISCOVER_SERVER_HOST,
-                    Constants.DISCOVER_SERVER_PORT,
-                    Constants.REGISTER_END_POINT);
-        } catch (MalformedURLException e) {
-            //We should never arrive here!
-            throw new RuntimeException("Unexpected Invalid host exception");
+        mAdvertising = true;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mAdvertising) {
+                    return;
+                }
+                mRegistered = false;
+                mBackoff.reset();
+                refresh();
+            }
+        });
+
+        return true;
+    }
+
+    /**
+     * Record the last block index, and update the registration early if the block may have changed
+     * the peer set. Called from the thread committing blocks.
+     * @param block the committed block
+     */
+    @Override
+    public void onBlockCommitted(Block block) {
+        mLastBlockIndex = block.body.index;
+        if (block.body.internalTransactions.length > 0) {
+            onPeersChanged();
         }
+    }
 
-        // Build body before launching the request for cleaner tidy up
-        final String PostBody;
+    // the delay lets the node apply the block, the jitter spreads updates from several nodes
+    void onPeersChanged() {
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                refresh();
+            }
+        }, PEER_CHANGE_DELAY_MS + (long) (mRandom.nextDouble() * PEER_CHANGE_DELAY_MS));
+    }
 
-        PostBody = gson.toJson(mDisco);
+    @Override
+    public void stopAdvertising() {
+        stopHeartbeat();
 
-        StringRequest request = new StringRequest(
-                Request.Method.POST,
-                url.toString(),
+        if (mDisco == null) {
+            return;
+        }
+
+        // TODO: this is a temporary hack to prevent anyone other than the group creator to delete
+        // the group from disco. The functionality should be propertly implemented server side.
+        if (!mDisco.PubKey.equals(ConfigManager.getInstance(null).getPublicKey())) {
+            Log.d(TAG, "Not group creator => not deleting from disco");
+            return;
+        }
+
+        String url = String.format("%s/groups/%s", mServerURL, mDisco.GroupUID);
+
+        Log.d(TAG, "URL: " + url);
+
+        StringRequest request = new StringRequest(Request.Method.DELETE, url,
                 new Response.Listener<String>() {
                     @Override
                     public void onResponse(String response) {
@@ -119,59 +222,148 @@ public class WebRTCAdvertiser implements ServiceAdvertiser {
                 new Response.ErrorListener() {
                     @Override
                     public void onErrorResponse(VolleyError error) {
-                        //TODO: go.error handling
+                        Log.e(TAG, "Error removing group from disco", error);
                     }
                 }
-        )  {
-                @Override
-                public byte[] getBody() throws AuthFailureError {
-                    return PostBody.getBytes();
-                }
-        } ;
+        )  {} ;
 
         sQueue.add(request);
+    }
 
-        return true;
+    void stopHeartbeat() {
+        mAdvertising = false;
+        mHandler.removeCallbacks(mRefreshTask);
+        if (mInFlight != null) {
+            mInFlight.cancel();
+            mInFlight = null;
+        }
     }
 
-    @Override
-    public void stopAdvertising() {
-        // TODO: this is a temporary hack to prevent anyone other than the group creator to delete
-        // the group from disco. The functionality should be propertly implemented server side.
-        if (!mDisco.PubKey.equals(ConfigManager.getInstance(null).getPublicKey())) {
-            Log.d(TAG, "Not group creator => not deleting from disco");
+    private void refresh() {
+        if (!mAdvertising) {
             return;
         }
 
-        URL url;
-        try {
-            url = new URL(
-                    "https",
-                    Constants.DISCOVER_SERVER_HOST,
-                    Constants.DISCOVER_SERVER_PORT,
-                    String.format("groups/%s", mDisco.GroupUID)
-            );
-        } catch (MalformedURLException e) {
-            //We should never arrive here!
-            throw new RuntimeException("Unexpected Invalid host exception");
+        // an update is already on its way, send another as soon as it completes
+        if (mInFlight != null) {
+            mRefreshPending = true;
+            return;
         }
+        mRefreshPending = false;
+        mHandler.removeCallbacks(mRefreshTask);
 
-        Log.d(TAG, "URL: " + url.toString());
+        List<Peer> currentPeers = parsePeers(mPeersProvider.getCurrentPeers());
+        if (currentPeers == null) {
+            scheduleRefresh(heartbeatDelay());
+            return;
+        }
+
+        if (mRegistered) {
+            sendUpdate(currentPeers);
+        } else {
+            sendRegistration(currentPeers);
+        }
+    }
+
+    private void sendRegistration(final List<Peer> currentPeers) {
+        mDisco = new DiscoGroup(
+                mGroupID,
+                mGroupName,
+                mAppID,
+                mPubKey,
+                0,
+                mLastBlockIndex,
+                currentPeers,
+                mGenesisPeers);
+
+        String url = String.format("%s/%s", mServerURL, Constants.REGISTER_END_POINT);
+        send(Request.Method.POST, url, mGson.toJson(mDisco), currentPeers);
+    }
+
+    private void sendUpdate(List<Peer> currentPeers) {
+        DiscoGroupUpdate update = DiscoGroupUpdate.diff(mAdvertisedPeers, currentPeers, mLastBlockIndex);
+
+        String url = String.format("%s/%s/%s", mServerURL, Constants.DISCOVER_END_POINT, mGroupID);
+        send(Request.Method.PATCH, url, mGson.toJson(update), currentPeers);
+    }
+
+    private void send(final int method, String url, String body, final List<Peer> currentPeers) {
+        // Build body before launching the request for cleaner tidy up
+        final byte[] postBody = body.getBytes(StandardCharsets.UTF_8);
 
-        StringRequest request = new StringRequest(Request.Method.DELETE, url.toString(),
+        StringRequest request = new StringRequest(
+                method,
+                url,
                 new Response.Listener<String>() {
                     @Override
                     public void onResponse(String response) {
+                        mInFlight = null;
+                        mRegistered = true;
+                        mAdvertisedPeers = currentPeers;
+                        mBackoff.reset();
+                        scheduleRefresh(mRefreshPending ? 0 : heartbeatDelay());
                     }
                 },
                 new Response.ErrorListener() {
                     @Override
                     public void onErrorResponse(VolleyError error) {
-                        Log.e(TAG, "Error removing group from disco", error);
+                        mInFlight = null;
+                        Log.e(TAG, "Error advertising group on disco", error);
+
+                        // the group has expired, or compact updates are not supported: register
+                        // the full group again
+                        if (method == Request.Method.PATCH && isRejected(error)) {
+                            mRegistered = false;
+                            scheduleRefresh(0);
+                            return;
+                        }
+                        scheduleRefresh(mBackoff.nextDelay());
                     }
                 }
-        )  {} ;
+        )  {
+                @Override
+                public byte[] getBody() throws AuthFailureError {
+                    return postBody;
+                }
+
+                @Override
+                public String getBodyContentType() {
+                    return "application/json; charset=utf-8";
+                }
+        } ;
 
+        request.setShouldCache(false);
+        mInFlight = request;
         sQueue.add(request);
     }
+
+    private void scheduleRefresh(long delayMs) {
+        if (!mAdvertising) {
+            return;
+        }
+        mHandler.removeCallbacks(mRefreshTask);
+        mHandler.postDelayed(mRefreshTask, delayMs);
+    }
+
+    private long heartbeatDelay() {
+        double jitter = 1 - HEARTBEAT_JITTER + 2 * HEARTBEAT_JITTER * mRandom.nextDouble();
+        return (long) (mHeartbeatIntervalMs * jitter);
+    }
+
+    private static boolean isRejected(VolleyError error) {
+        if (error.networkResponse == null) {
+            return false;
+        }
+        int status = error.networkResponse.statusCode;
+        return status == 400 || status == 404 || status == 405 || status == 501;
+    }
+
+    private List<Peer> parsePeers(String peersJson) {
+        try {
+            return mGson.fromJson(peersJson, new TypeToken<List<Peer>>(){}.getType());
+        } catch (JsonParseException ex) {
+            Log.e(TAG, "Invalid peers JSON", ex);
+            return null;
+        }
+    }
 }
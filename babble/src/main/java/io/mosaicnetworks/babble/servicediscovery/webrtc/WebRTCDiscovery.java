@@ -25,49 +25,88 @@
 package io.mosaicnetworks.babble.servicediscovery.webrtc;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
-import com.android.volley.Request;
 import com.android.volley.RequestQueue;
 import com.android.volley.Response;
 import com.android.volley.VolleyError;
-import com.android.volley.toolbox.StringRequest;
 import com.android.volley.toolbox.Volley;
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
-
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
 
 import io.mosaicnetworks.babble.fragments.discover.ServiceDiscoveryListener;
-import io.mosaicnetworks.babble.servicediscovery.ResolvedGroup;
-import io.mosaicnetworks.babble.servicediscovery.ResolvedService;
+import io.mosaicnetworks.babble.servicediscovery.ResolvedGroupRegistry;
+import io.mosaicnetworks.babble.utils.ExponentialBackoff;
 import io.mosaicnetworks.babble.utils.HttpsTrustManager;
 
+/**
+ * Polls the discovery server for the groups of this app. After the first poll only the changes
+ * since the last response are requested, see {@link DiscoGroupsResponse}.
+ *
+ * Groups can be polled once with {@link #discoverService()}, or followed with
+ * {@link #subscribe()}. A subscription long-polls the server: each request is held by the server
+ * until a group changes or {@link #LONG_POLL_WAIT_SECONDS} have passed, and the next request is
+ * sent as soon as the response has been applied. Failed requests are retried with an exponential
+ * backoff. While no group has been listed there is nothing to wait on, so the server is polled
+ * with an exponential backoff up to {@link #IDLE_POLL_MAX_MS} milliseconds.
+ *
+ * A server which answers a long poll with the full list, or straight away with no changes, does
+ * not hold requests. Polling it would download the whole listing over and over, so the
+ * subscription ends there and the groups are only fetched again by {@link #discoverService()}.
+ *
+ * The methods of this class must be called from the main thread.
+ */
 public class WebRTCDiscovery {
     private static final String TAG = "WebRTCDiscovery";
+
+    public static final int LONG_POLL_WAIT_SECONDS = 60;
+    public static final long IDLE_POLL_MAX_MS = 30 * 60 * 1000;
+    private static final long IDLE_POLL_BASE_MS = 30000;
+    private static final long MIN_POLL_INTERVAL_MS = 1000;
+    private static final long RETRY_BASE_MS = 1000;
+    private static final long RETRY_MAX_MS = 120000;
+
     private static RequestQueue sQueue;
-    private static String mGroupsURL;
+    private final String mGroupsURL;
     private ServiceDiscoveryListener mServiceDiscoveryListener;
-    private List<ResolvedGroup> mResolvedGroups;
-    private HashMap<String, Boolean> mResolvedGroupsIndex;
+    private final DiscoGroupSync mSync;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ExponentialBackoff mBackoff = new ExponentialBackoff(RETRY_BASE_MS, RETRY_MAX_MS);
+    private final ExponentialBackoff mIdleBackoff =
+            new ExponentialBackoff(IDLE_POLL_BASE_MS, IDLE_POLL_MAX_MS);
+    private DiscoGroupsRequest mPendingRequest;
+    private long mRequestSentAt;
+    private boolean mSubscribed = false;
+
+    private final Runnable mPollTask = new Runnable() {
+        @Override
+        public void run() {
+            sendRequest(LONG_POLL_WAIT_SECONDS);
+        }
+    };
 
     public WebRTCDiscovery(Context context,
-                           List<ResolvedGroup> resolvedGroups,
+                           ResolvedGroupRegistry registry,
                            ServiceDiscoveryListener serviceDiscoveryListener) {
-
-        sQueue = Volley.newRequestQueue(context.getApplicationContext());
-
         // calculate groups URI once and for all
-        mGroupsURL = String.format(
+        this(context, registry, serviceDiscoveryListener, String.format(
                 "https://%s:%d/%s?app-id=%s",
                 Constants.DISCOVER_SERVER_HOST,
                 Constants.DISCOVER_SERVER_PORT,
                 Constants.DISCOVER_END_POINT,
                 context.getApplicationContext().getPackageName()
-        );
+        ));
+    }
+
+    WebRTCDiscovery(Context context,
+                    ResolvedGroupRegistry registry,
+                    ServiceDiscoveryListener serviceDiscoveryListener,
+                    String groupsUrl) {
+
+        sQueue = Volley.newRequestQueue(context.getApplicationContext());
+
+        mGroupsURL = groupsUrl;
 
         // disable TLS verification if skip-verify is set
         if (Constants.SKIP_VERIFY) {
@@ -76,75 +115,69 @@ public class WebRTCDiscovery {
 
         mServiceDiscoveryListener = serviceDiscoveryListener;
 
-        mResolvedGroups = resolvedGroups;
-        mResolvedGroupsIndex = new HashMap<>();
+        mSync = new DiscoGroupSync(registry);
     }
 
-    private void addGroup(ResolvedGroup group) {
-        mResolvedGroups.add(group);
-        mResolvedGroupsIndex.put(group.getGroupUid(), true);
+    /**
+     * Stop polling the server, cancelling any request in flight and ending the subscription
+     */
+    public void stopDiscoverService() {
+        mSubscribed = false;
+        mHandler.removeCallbacks(mPollTask);
+        cancelPendingRequest();
     }
 
-    private void removeGroup(ResolvedGroup group) {
-        mResolvedGroups.remove(group);
-        mResolvedGroupsIndex.remove(group.getGroupUid());
+    /**
+     * Poll the server once. If subscribed, the subscription carries on after the response.
+     */
+    public void discoverService() {
+        mHandler.removeCallbacks(mPollTask);
+        sendRequest(0);
     }
 
-    public void stopDiscoverService() {
-        //do nothing
+    /**
+     * Follow the changes to the groups until {@link #stopDiscoverService()} is called
+     */
+    public void subscribe() {
+        if (mSubscribed) {
+            return;
+        }
+        mSubscribed = true;
+        mBackoff.reset();
+        mIdleBackoff.reset();
+        mHandler.removeCallbacks(mPollTask);
+        sendRequest(LONG_POLL_WAIT_SECONDS);
     }
 
-    public void discoverService() {
+    /**
+     * @return true if subscribed to the changes to the groups
+     */
+    public boolean isSubscribed() {
+        return mSubscribed;
+    }
+
+    private void sendRequest(int waitSeconds) {
         Log.d("WebRTCService", mGroupsURL);
 
-        StringRequest request = new StringRequest(Request.Method.GET, mGroupsURL,
-                new Response.Listener<String>() {
+        // a response to an older poll would be applied against the wrong watermark
+        cancelPendingRequest();
+
+        final long watermark = mSync.getWatermark();
+        final boolean longPoll = watermark > 0 && waitSeconds > 0;
+        mRequestSentAt = SystemClock.elapsedRealtime();
+        mPendingRequest = new DiscoGroupsRequest(mGroupsURL, watermark, waitSeconds,
+                new Response.Listener<DiscoGroupsResponse>() {
                     @Override
-                    public void onResponse(String response) {
-                        //TODO: move this off the UI thread
-                        Gson gson = new Gson();
-                        Map<String, DiscoGroup> discos = gson.fromJson(response, new TypeToken<Map<String, DiscoGroup>>(){}.getType());
-                        Iterator<Map.Entry<String, DiscoGroup>> itr = discos.entrySet().iterator();
-
-                        while(itr.hasNext()) {
-
-                            Map.Entry<String, DiscoGroup> entry = itr.next();
-                            DiscoGroup disco = entry.getValue();
-
-                            Boolean exists = mResolvedGroupsIndex.get(entry.getKey());
-                            if (exists != null) {
-                                continue;
-                            }
-
-                            ResolvedService webRTCResolvedService =
-                                    new ResolvedService(disco.GroupUID,
-                                            disco.GroupName,
-                                            disco.AppID,
-                                            disco.LastUpdated,
-                                            disco.InitialPeers,
-                                            disco.Peers,
-                                            null,
-                                            0
-                                    );
-
-                            ResolvedGroup webRTCResolvedGroup = new ResolvedGroup(
-                                    webRTCResolvedService,
-                                    ResolvedGroup.Source.WEBRTC
-                            );
-
-                            webRTCResolvedService.setResolvedGroup(webRTCResolvedGroup);
-
-                            addGroup(webRTCResolvedGroup);
-                        }
+                    public void onResponse(DiscoGroupsResponse response) {
+                        mPendingRequest = null;
+                        mBackoff.reset();
 
-                        // remove deleted groups
-                        for (ResolvedGroup g: mResolvedGroups) {
-                            if (!discos.containsKey(g.getGroupUid())) {
-                                removeGroup(g);
-                            }
+                        int changes = mSync.apply(response);
+                        if (changes > 0) {
+                            mServiceDiscoveryListener.onServiceListUpdated(true);
                         }
 
-                        mServiceDiscoveryListener.onServiceListUpdated(true);
+                        scheduleNextPoll(longPoll, response, changes);
                     }
                 },
                 new Response.ErrorListener() {
@@ -154,9 +187,48 @@ public class WebRTCDiscovery {
                         // sQueue.stop();
                         // responseListener.onFailure(ResponseListener.Error.CONNECTION_ERROR);
                         Log.e(TAG, "CONNECTION_ERROR", error);
+                        mPendingRequest = null;
+
+                        // the server may not accept the watermark, ask for the full list next time
+                        mSync.reset();
+
+                        if (mSubscribed) {
+                            mHandler.postDelayed(mPollTask, mBackoff.nextDelay());
+                        }
                     }
                 });
 
-        sQueue.add(request);
+        sQueue.add(mPendingRequest);
+    }
+
+    private void scheduleNextPoll(boolean longPoll, DiscoGroupsResponse response, int changes) {
+        if (!mSubscribed) {
+            return;
+        }
+
+        long elapsed = SystemClock.elapsedRealtime() - mRequestSentAt;
+        boolean answeredAtOnce = changes == 0 && elapsed < LONG_POLL_WAIT_SECONDS * 1000 / 2;
+        if (longPoll && (response.isFull() || answeredAtOnce)) {
+            Log.i(TAG, "The server does not hold requests, ending the subscription");
+            mSubscribed = false;
+            return;
+        }
+
+        long delay = MIN_POLL_INTERVAL_MS - elapsed;
+        if (response.getWatermark() > 0) {
+            mIdleBackoff.reset();
+        } else {
+            // no group listed, so the next request could not be held
+            delay = mIdleBackoff.nextDelay();
+        }
+
+        mHandler.postDelayed(mPollTask, Math.max(0, delay));
+    }
+
+    private void cancelPendingRequest() {
+        if (mPendingRequest != null) {
+            mPendingRequest.cancel();
+            mPendingRequest = null;
+        }
     }
 }
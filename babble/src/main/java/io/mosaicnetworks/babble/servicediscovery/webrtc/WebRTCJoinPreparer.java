@@ -0,0 +1,292 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018- Mosaic Networks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.mosaicnetworks.babble.servicediscovery.webrtc;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import io.mosaicnetworks.babble.node.NodeConfig;
+import io.mosaicnetworks.babble.servicediscovery.mdns.ResponseListener;
+
+/**
+ * Does the network work of joining a WebRTC group ahead of time, while the user is still entering
+ * their moniker, so that little is left to do once they press join.
+ *
+ * {@link #prepare()} fetches the group with its peers from the discovery server, which also leaves
+ * a connection to the server open for reuse, and resolves the host names of the signal and TURN
+ * servers of the node configuration so that they are in the resolver cache when the node starts.
+ * {@link #getGroup(DiscoGroupRequest.Listener)} then returns the prefetched group straight away,
+ * or waits for the fetch still in flight.
+ *
+ * The methods of this class must be called from the main thread.
+ */
+public final class WebRTCJoinPreparer {
+
+    /**
+     * Sends group requests, abstracted so that tests can answer them
+     */
+    interface GroupFetcher {
+
+        /**
+         * Send a request for a group
+         * @param groupUid the group UID
+         * @param listener a listener to return the group or error, called on the main thread
+         * @return the request in flight
+         */
+        Fetch fetch(String groupUid, DiscoGroupRequest.Listener listener);
+    }
+
+    /**
+     * A group request in flight
+     */
+    interface Fetch {
+
+        /**
+         * Cancel the request, the listener is not called afterwards
+         */
+        void cancel();
+    }
+
+    /**
+     * Time source, abstracted so that tests can control the age of the prefetched group
+     */
+    interface Clock {
+
+        /**
+         * @return the current time in milliseconds on a monotonic clock
+         */
+        long now();
+    }
+
+    private static final String TAG = "WebRTCJoinPreparer";
+
+    // the peers change as nodes join and leave, an older group is fetched again
+    static final long GROUP_TTL_MS = 60000;
+    private static final long RESOLVED_TTL_MS = 300000;
+
+    private static final ExecutorService sResolver = Executors.newSingleThreadExecutor();
+    private static final Map<String, Long> sResolvedAt = new HashMap<>();
+
+    private final String mGroupUid;
+    private final NodeConfig mNodeConfig;
+    private final GroupFetcher mFetcher;
+    private final Clock mClock;
+
+    private Fetch mRequest;
+    private DiscoGroup mGroup;
+    private long mGroupReceivedAt;
+    private DiscoGroupRequest.Listener mWaitingListener;
+
+    /**
+     * @param context the application context
+     * @param groupUid the UID of the group to be joined
+     * @param nodeConfig the configuration the node will be started with
+     */
+    public WebRTCJoinPreparer(Context context, String groupUid, NodeConfig nodeConfig) {
+        this(groupUid, nodeConfig, new VolleyGroupFetcher(context.getApplicationContext()),
+                SYSTEM_CLOCK);
+    }
+
+    WebRTCJoinPreparer(String groupUid, NodeConfig nodeConfig, GroupFetcher fetcher, Clock clock) {
+        mGroupUid = groupUid;
+        mNodeConfig = nodeConfig;
+        mFetcher = fetcher;
+        mClock = clock;
+    }
+
+    /**
+     * Start preparing the join. Calling this again refreshes whatever has gone stale.
+     */
+    public void prepare() {
+        resolveEndpoints(mNodeConfig, mClock.now());
+
+        if (mRequest == null && !isGroupFresh()) {
+            fetchGroup();
+        }
+    }
+
+    /**
+     * Get the group with its peers, from the prefetch if it is recent enough
+     * @param listener a listener to return the group or error, called on the main thread. It may
+     *                 be called before this method returns.
+     */
+    public void getGroup(DiscoGroupRequest.Listener listener) {
+        if (isGroupFresh()) {
+            listener.onReceiveGroup(mGroup);
+            return;
+        }
+
+        mWaitingListener = listener;
+        if (mRequest == null) {
+            fetchGroup();
+        }
+    }
+
+    /**
+     * Cancel the fetch in flight, if any. Prepared results are kept.
+     */
+    public void cancel() {
+        mWaitingListener = null;
+        if (mRequest != null) {
+            mRequest.cancel();
+            mRequest = null;
+        }
+    }
+
+    private boolean isGroupFresh() {
+        return mGroup != null && mClock.now() - mGroupReceivedAt < GROUP_TTL_MS;
+    }
+
+    private void fetchGroup() {
+        mRequest = mFetcher.fetch(mGroupUid, new DiscoGroupRequest.Listener() {
+            @Override
+            public void onReceiveGroup(DiscoGroup group) {
+                mRequest = null;
+                mGroup = group;
+                mGroupReceivedAt = mClock.now();
+
+                DiscoGroupRequest.Listener listener = mWaitingListener;
+                mWaitingListener = null;
+                if (listener != null) {
+                    listener.onReceiveGroup(group);
+                }
+            }
+
+            @Override
+            public void onFailure(ResponseListener.Error error) {
+                // a failed prefetch is only reported if someone is waiting for the group, it is
+                // retried when the group is requested
+                mRequest = null;
+
+                DiscoGroupRequest.Listener listener = mWaitingListener;
+                mWaitingListener = null;
+                if (listener != null) {
+                    listener.onFailure(error);
+                }
+            }
+        });
+    }
+
+    private static void resolveEndpoints(NodeConfig nodeConfig, long now) {
+        List<String> hosts = new ArrayList<>();
+        if (!nodeConfig.signalAddr.isEmpty()) {
+            hosts.add(hostOf(nodeConfig.signalAddr));
+        }
+        if (nodeConfig.webrtc && nodeConfig.turnAddr != null && !nodeConfig.turnAddr.isEmpty()) {
+            hosts.add(hostOf(nodeConfig.turnAddr));
+        }
+
+        for (final String host : hosts) {
+            synchronized (sResolvedAt) {
+                Long resolvedAt = sResolvedAt.get(host);
+                if (resolvedAt != null && now - resolvedAt < RESOLVED_TTL_MS) {
+                    continue;
+                }
+                sResolvedAt.put(host, now);
+            }
+
+            sResolver.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        InetAddress.getAllByName(host);
+                    } catch (UnknownHostException ex) {
+                        Log.w(TAG, "Cannot resolve " + host, ex);
+                        synchronized (sResolvedAt) {
+                            sResolvedAt.remove(host);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Extract the host from an address in host:port format, optionally prefixed with a URI
+     * scheme such as turn: or stun:, with IPv6 literals in brackets
+     * @param address the address
+     * @return the host
+     */
+    static String hostOf(String address) {
+        String host = address;
+
+        int scheme = host.indexOf(':');
+        if (scheme > 0 && host.substring(0, scheme).matches("(?i)(stun|stuns|turn|turns)")) {
+            host = host.substring(scheme + 1);
+        }
+
+        // drop any transport parameter, e.g. ?transport=udp
+        int query = host.indexOf('?');
+        if (query >= 0) {
+            host = host.substring(0, query);
+        }
+
+        if (host.startsWith("[")) {
+            int end = host.indexOf(']');
+            return end > 0 ? host.substring(1, end) : host;
+        }
+
+        int port = host.lastIndexOf(':');
+        return port >= 0 ? host.substring(0, port) : host;
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long now() {
+            return SystemClock.elapsedRealtime();
+        }
+    };
+
+    private static final class VolleyGroupFetcher implements GroupFetcher {
+
+        private final Context mAppContext;
+
+        VolleyGroupFetcher(Context appContext) {
+            mAppContext = appContext;
+        }
+
+        @Override
+        public Fetch fetch(String groupUid, DiscoGroupRequest.Listener listener) {
+            final DiscoGroupRequest request = DiscoGroupRequest.create(groupUid, listener, mAppContext);
+            request.send();
+            return new Fetch() {
+                @Override
+                public void cancel() {
+                    request.cancel();
+                }
+            };
+        }
+    }
+}
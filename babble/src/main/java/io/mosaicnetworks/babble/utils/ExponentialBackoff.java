@@ -0,0 +1,92 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018- Mosaic Networks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.mosaicnetworks.babble.utils;
+
+import java.util.Random;
+
+/**
+ * Computes the delays between retries of a failing operation. The delay ceiling doubles with
+ * every attempt, from the base delay up to the maximum delay. Each delay is drawn at random
+ * between half the ceiling and the ceiling, so that clients which failed together do not retry
+ * together.
+ *
+ * This class is not thread safe.
+ */
+public final class ExponentialBackoff {
+
+    // 2^30 times any sensible base delay is past any sensible maximum
+    private static final int MAX_SHIFT = 30;
+
+    private final long mBaseMs;
+    private final long mMaxMs;
+    private final Random mRandom;
+    private int mAttempts = 0;
+
+    /**
+     * @param baseMs the ceiling of the first delay
+     * @param maxMs the largest ceiling
+     */
+    public ExponentialBackoff(long baseMs, long maxMs) {
+        this(baseMs, maxMs, new Random());
+    }
+
+    ExponentialBackoff(long baseMs, long maxMs, Random random) {
+        if (baseMs <= 0 || maxMs < baseMs) {
+            throw new IllegalArgumentException("Base delay must be positive and not above the maximum delay");
+        }
+        mBaseMs = baseMs;
+        mMaxMs = maxMs;
+        mRandom = random;
+    }
+
+    /**
+     * Get the delay before the next attempt, and count the attempt
+     * @return the delay in milliseconds
+     */
+    public long nextDelay() {
+        long ceiling = mMaxMs;
+        if (mAttempts < MAX_SHIFT) {
+            ceiling = Math.min(mMaxMs, mBaseMs << mAttempts);
+            mAttempts++;
+        }
+
+        long half = ceiling / 2;
+        return half + (long) (mRandom.nextDouble() * (ceiling - half));
+    }
+
+    /**
+     * Start again from the base delay, e.g. after a successful attempt
+     */
+    public void reset() {
+        mAttempts = 0;
+    }
+
+    /**
+     * @return the number of delays handed out since the last reset, up to an internal limit
+     */
+    public int getAttempts() {
+        return mAttempts;
+    }
+}
@@ -0,0 +1,200 @@
+package io.mosaicnetworks.babble.fragments.discover;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DiscoveryEventBusTest {
+
+    private static final long FRAME_MS = 16;
+
+    private FakeScheduler mScheduler;
+    private RecordingListener mListener;
+    private DiscoveryEventBus mBus;
+
+    @Before
+    public void setUp() {
+        mScheduler = new FakeScheduler();
+        mListener = new RecordingListener();
+        mBus = new DiscoveryEventBus(mListener, 50, 250, mScheduler);
+    }
+
+    @Test
+    public void burstIsCoalescedTest() {
+        for (int i = 0; i < 50; i++) {
+            mBus.onServiceListUpdated(i == 10);
+            mScheduler.advance(1);
+        }
+        assertTrue(mListener.mUpdates.isEmpty());
+
+        mScheduler.advance(50 + FRAME_MS);
+        assertEquals(1, mListener.mUpdates.size());
+        assertTrue(mListener.mUpdates.get(0));
+        assertEquals(1, mBus.getDeliveredCount());
+    }
+
+    @Test
+    public void quietWindowIsRespectedTest() {
+        mBus.onServiceListUpdated(false);
+        mScheduler.advance(40);
+        mBus.onServiceListUpdated(false);
+
+        // the window restarts with the second update
+        mScheduler.advance(40);
+        assertTrue(mListener.mUpdates.isEmpty());
+
+        mScheduler.advance(10 + FRAME_MS);
+        assertEquals(1, mListener.mUpdates.size());
+        assertFalse(mListener.mUpdates.get(0));
+    }
+
+    @Test
+    public void continuousStreamIsBoundedByMaxWaitTest() {
+        // an update every 20ms never leaves a quiet window of 50ms
+        for (int i = 0; i < 100; i++) {
+            mBus.onServiceListUpdated(false);
+            mScheduler.advance(20);
+        }
+
+        // 2000ms of updates with a maximum wait of 250ms, each delivery waiting for a frame
+        assertTrue(mListener.mUpdates.size() >= 7);
+        assertTrue(mListener.mUpdates.size() <= 8);
+        for (int i = 1; i < mListener.mTimes.size(); i++) {
+            assertTrue(mListener.mTimes.get(i) - mListener.mTimes.get(i - 1) <= 250 + 2 * FRAME_MS);
+        }
+    }
+
+    @Test
+    public void atMostOneUpdatePerFrameTest() {
+        DiscoveryEventBus bus = new DiscoveryEventBus(mListener, 0, 0, mScheduler);
+        for (int i = 0; i < 100; i++) {
+            bus.onServiceListUpdated(false);
+            mScheduler.advance(1);
+        }
+        mScheduler.advance(FRAME_MS);
+
+        assertTrue(mListener.mUpdates.size() <= 100 / FRAME_MS + 1);
+        for (int i = 1; i < mListener.mTimes.size(); i++) {
+            assertTrue(mListener.mTimes.get(i) > mListener.mTimes.get(i - 1));
+        }
+    }
+
+    @Test
+    public void cancelDropsPendingUpdateTest() {
+        mBus.onServiceListUpdated(true);
+        mBus.cancel();
+        mScheduler.advance(1000);
+        assertTrue(mListener.mUpdates.isEmpty());
+
+        mBus.onServiceListUpdated(false);
+        mScheduler.advance(1000);
+        assertEquals(1, mListener.mUpdates.size());
+    }
+
+    @Test
+    public void startFailureIsNotDebouncedTest() {
+        mBus.onStartDiscoveryFailed();
+        mScheduler.advance(0);
+        assertEquals(1, mListener.mFailures);
+    }
+
+    private class RecordingListener implements ServiceDiscoveryListener {
+        final List<Boolean> mUpdates = new ArrayList<>();
+        final List<Long> mTimes = new ArrayList<>();
+        int mFailures = 0;
+
+        @Override
+        public void onServiceListUpdated(boolean groupCountChange) {
+            mUpdates.add(groupCountChange);
+            mTimes.add(mScheduler.now());
+        }
+
+        @Override
+        public void onStartDiscoveryFailed() {
+            mFailures++;
+        }
+    }
+
+    /**
+     * Runs tasks as simulated time passes. Frames start every 16ms.
+     */
+    private static class FakeScheduler implements DiscoveryEventBus.Scheduler {
+        private long mNow = 0;
+        private final List<Task> mTasks = new ArrayList<>();
+        private final List<Runnable> mFrameTasks = new ArrayList<>();
+
+        @Override
+        public long now() {
+            return mNow;
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delayMs) {
+            mTasks.add(new Task(task, mNow + delayMs));
+        }
+
+        @Override
+        public void postFrame(Runnable task) {
+            mFrameTasks.add(task);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            Iterator<Task> iterator = mTasks.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().mRunnable == task) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        void advance(long ms) {
+            long end = mNow + ms;
+            while (true) {
+                runDueTasks();
+                if (mNow >= end) {
+                    return;
+                }
+                mNow++;
+                if (mNow % FRAME_MS == 0) {
+                    List<Runnable> frame = new ArrayList<>(mFrameTasks);
+                    mFrameTasks.clear();
+                    for (Runnable task : frame) {
+                        task.run();
+                    }
+                }
+            }
+        }
+
+        private void runDueTasks() {
+            boolean ran = true;
+            while (ran) {
+                ran = false;
+                for (Task task : new ArrayList<>(mTasks)) {
+                    if (task.mDueAt <= mNow) {
+                        mTasks.remove(task);
+                        task.mRunnable.run();
+                        ran = true;
+                    }
+                }
+            }
+        }
+    }
+
+    private static class Task {
+        final Runnable mRunnable;
+        final long mDueAt;
+
+        Task(Runnable runnable, long dueAt) {
+            mRunnable = runnable;
+            mDueAt = dueAt;
+        }
+    }
+}
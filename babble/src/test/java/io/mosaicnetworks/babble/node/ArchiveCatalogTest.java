@@ -0,0 +1,88 @@
+package io.mosaicnetworks.babble.node;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ArchiveCatalogTest {
+
+    private static final String LIVE = "app_abc123_My-Group_";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void changesArePersistedTest() throws IOException {
+        File root = mFolder.getRoot();
+        ArchiveCatalog catalog = ArchiveCatalog.load(root);
+        assertTrue(catalog.getDirectories().isEmpty());
+
+        makeConfig(LIVE, 100);
+        catalog.add(LIVE);
+        assertTrue(new File(root, LIVE).renameTo(new File(root, LIVE + 1)));
+        catalog.rename(LIVE, LIVE + 1);
+        makeConfig(LIVE, 10);
+        catalog.add(LIVE);
+        catalog.updateMetadata(LIVE + 1, 123, 42);
+        makeConfig("app_other_Other_", 10);
+        catalog.add("app_other_Other_");
+        catalog.remove("app_other_Other_");
+
+        ArchiveCatalog reloaded = ArchiveCatalog.load(root);
+        assertEquals(2, reloaded.getDirectories().size());
+        List<ConfigDirectory> versions = reloaded.getVersions("abc123");
+        assertEquals(2, versions.size());
+        assertEquals(LIVE + 1, versions.get(0).directoryName);
+        assertTrue(versions.get(0).isBackup);
+        assertEquals(123, reloaded.getEntry(LIVE + 1).getSizeBytes());
+        assertEquals(42, reloaded.getEntry(LIVE + 1).getLastBlockIndex());
+        assertEquals(10, reloaded.getEntry(LIVE).getSizeBytes());
+        assertEquals(ArchiveCatalog.NO_BLOCK, reloaded.getEntry(LIVE).getLastBlockIndex());
+        assertTrue(reloaded.getVersions("other").isEmpty());
+    }
+
+    @Test
+    public void rootIsNotRescannedTest() throws IOException {
+        File root = mFolder.getRoot();
+        ArchiveCatalog.load(root);
+
+        // a directory created behind the catalog's back is not picked up by a load
+        makeConfig(LIVE, 1);
+        assertFalse(ArchiveCatalog.load(root).contains(LIVE));
+    }
+
+    @Test
+    public void corruptCatalogIsRebuiltTest() throws IOException {
+        File root = mFolder.getRoot();
+        makeConfig(LIVE, 7);
+        makeConfig(LIVE + 2, 3);
+        makeConfig("not-a-config", 1);
+        FileUtils.writeStringToFile(new File(root, ArchiveCatalog.CATALOG_FILE), "{\"version\":1,\"entr",
+                StandardCharsets.UTF_8);
+
+        ArchiveCatalog catalog = ArchiveCatalog.load(root);
+        assertEquals(2, catalog.getVersions("abc123").size());
+        assertEquals(7, catalog.getEntry(LIVE).getSizeBytes());
+        assertNull(catalog.getEntry("not-a-config"));
+
+        // the rebuilt catalog is written back
+        assertTrue(ArchiveCatalog.load(root).contains(LIVE + 2));
+    }
+
+    private void makeConfig(String name, int size) throws IOException {
+        File dir = new File(mFolder.getRoot(), name);
+        assertTrue(dir.mkdir());
+        FileUtils.writeByteArrayToFile(new File(dir, "babble.toml"), new byte[size]);
+    }
+}
@@ -0,0 +1,152 @@
+package io.mosaicnetworks.babble.node;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ArchiveDeleterTest {
+
+    static final ArchiveDeleter.GroupLocks NO_LOCKS = new ArchiveDeleter.GroupLocks() {
+        @Override
+        public Lock lock(String directoryName) {
+            Lock lock = new ReentrantLock();
+            lock.lock();
+            return lock;
+        }
+    };
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mRoot;
+    private ArchiveCatalog mCatalog;
+    private ArchiveDeleter mDeleter;
+    private final List<Integer> mProgress = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        mRoot = mFolder.getRoot();
+        for (String name : Arrays.asList("app_a_A_", "app_a_A_1", "app_b_B_", "app_c_C_")) {
+            makeTree(new File(mRoot, name), 3);
+        }
+        mCatalog = ArchiveCatalog.load(mRoot);
+        mDeleter = new ArchiveDeleter(mRoot, mCatalog, NO_LOCKS,
+                new ConfigWriter(MoreExecutors.newDirectExecutorService()),
+                Executors.newFixedThreadPool(3));
+    }
+
+    @Test
+    public void directoriesAreDeletedInTheBackgroundTest() throws InterruptedException, ExecutionException {
+        ArchiveDeleter.Result result = mDeleter.delete(Arrays.asList("app_a_A_", "app_a_A_1", "app_b_B_"),
+                new RecordingListener(), MoreExecutors.directExecutor()).get();
+
+        assertEquals(3, result.getDeleted().size());
+        assertTrue(result.getFailed().isEmpty());
+        assertEquals(1, mCatalog.getDirectories().size());
+        assertTrue(mCatalog.contains("app_c_C_"));
+        assertFalse(new File(mRoot, "app_a_A_").exists());
+        assertEquals(0, new File(mRoot, ArchiveDeleter.TRASH_DIR).list().length);
+
+        synchronized (mProgress) {
+            assertEquals(3, mProgress.size());
+            assertTrue(mProgress.contains(3));
+        }
+
+        // the trash is not an archive
+        assertEquals(1, ArchiveCatalog.load(mRoot).getDirectories().size());
+        mCatalog.rebuild();
+        assertEquals(1, mCatalog.getDirectories().size());
+    }
+
+    @Test
+    public void directoryIsMovedUnderTheGroupLockTest() throws InterruptedException, ExecutionException {
+        final ReentrantLock groupLock = new ReentrantLock();
+        final List<String> locked = Collections.synchronizedList(new ArrayList<String>());
+        ArchiveDeleter deleter = new ArchiveDeleter(mRoot, mCatalog, new ArchiveDeleter.GroupLocks() {
+            @Override
+            public Lock lock(String directoryName) {
+                locked.add(directoryName);
+                groupLock.lock();
+                return groupLock;
+            }
+        }, new ConfigWriter(Executors.newSingleThreadExecutor()), Executors.newFixedThreadPool(3));
+
+        // a config write in progress on the group holds its lock
+        ListenableFuture<ArchiveDeleter.Result> future;
+        groupLock.lock();
+        try {
+            future = deleter.delete(Arrays.asList("app_b_B_"), null, MoreExecutors.directExecutor());
+            Thread.sleep(200);
+            assertTrue(new File(mRoot, "app_b_B_").exists());
+            assertFalse(future.isDone());
+        } finally {
+            groupLock.unlock();
+        }
+
+        assertEquals(Arrays.asList("app_b_B_"), future.get().getDeleted());
+        assertEquals(Arrays.asList("app_b_B_"), locked);
+        assertFalse(new File(mRoot, "app_b_B_").exists());
+    }
+
+    @Test
+    public void directoryWhichCannotBeMovedIsReportedTest() throws IOException, InterruptedException,
+            ExecutionException {
+        // a file in the way of the trash directory stops anything from being moved there
+        FileUtils.writeStringToFile(new File(mRoot, ArchiveDeleter.TRASH_DIR), "", "UTF-8");
+
+        ArchiveDeleter.Result result = mDeleter.delete(Arrays.asList("app_b_B_", "app_gone_G_"),
+                new RecordingListener(), MoreExecutors.directExecutor()).get();
+
+        assertEquals(Arrays.asList("app_b_B_"), result.getFailed());
+        assertEquals(Arrays.asList("app_gone_G_"), result.getDeleted());
+        assertTrue(new File(mRoot, "app_b_B_").exists());
+        assertTrue(mCatalog.contains("app_b_B_"));
+        assertEquals(2, mProgress.size());
+    }
+
+    @Test
+    public void purgeEmptiesTheTrashTest() throws IOException, InterruptedException, ExecutionException {
+        File trash = new File(mRoot, ArchiveDeleter.TRASH_DIR);
+        makeTree(new File(trash, "app_x_X_-left-behind"), 2);
+
+        assertTrue(mDeleter.purge().get());
+        assertEquals(0, trash.list().length);
+    }
+
+    private static void makeTree(File dir, int depth) throws IOException {
+        assertTrue(dir.mkdirs());
+        FileUtils.writeByteArrayToFile(new File(dir, "data"), new byte[64]);
+        if (depth > 0) {
+            makeTree(new File(dir, "sub"), depth - 1);
+        }
+    }
+
+    private class RecordingListener implements ArchiveDeleter.ProgressListener {
+        @Override
+        public void onProgress(int done, int total) {
+            synchronized (mProgress) {
+                mProgress.add(done);
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package io.mosaicnetworks.babble.node;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gson.Gson;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ArchiveMetadataRecorderTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mConfigDir;
+    private ArchiveMetadataRecorder mRecorder;
+
+    @Before
+    public void setUp() throws IOException {
+        mConfigDir = mFolder.getRoot();
+        File db = new File(mConfigDir, ArchiveMetadata.DB_SUB_DIR);
+        assertTrue(db.mkdir());
+        FileUtils.writeByteArrayToFile(new File(db, "000001.vlog"), new byte[2048]);
+
+        mRecorder = new ArchiveMetadataRecorder(mConfigDir,
+                new ConfigWriter(MoreExecutors.newDirectExecutorService()));
+    }
+
+    @Test
+    public void blocksAreSummarisedTest() throws InterruptedException, ExecutionException {
+        mRecorder.onBlockCommitted(block(0, 2), 1000);
+        mRecorder.onBlockCommitted(block(1, 3), 2000);
+        mRecorder.onBlockCommitted(block(2, 0), 3000);
+        mRecorder.flush().get();
+
+        ArchiveMetadata metadata = ArchiveMetadata.read(mConfigDir);
+        assertEquals(2, metadata.getLastBlockIndex());
+        assertEquals(5, metadata.getMessageCount());
+        assertEquals(1000, metadata.getFirstTimestamp());
+        assertEquals(3000, metadata.getLastTimestamp());
+        assertEquals(2048, metadata.getDbSizeBytes());
+    }
+
+    @Test
+    public void sidecarIsWrittenAtMostOncePerIntervalTest() {
+        long start = ArchiveMetadataRecorder.FLUSH_INTERVAL_MS;
+        mRecorder.onBlockCommitted(block(0, 1), start);
+        mRecorder.onBlockCommitted(block(1, 1), start + 1);
+        assertEquals(0, ArchiveMetadata.read(mConfigDir).getLastBlockIndex());
+
+        mRecorder.onBlockCommitted(block(2, 1), start + ArchiveMetadataRecorder.FLUSH_INTERVAL_MS);
+        assertEquals(2, ArchiveMetadata.read(mConfigDir).getLastBlockIndex());
+    }
+
+    @Test
+    public void unreadableSidecarIsIgnoredTest() throws IOException {
+        assertNull(ArchiveMetadata.read(mConfigDir));
+        FileUtils.writeStringToFile(new File(mConfigDir, ArchiveMetadata.FILE_NAME), "{\"lastBlock",
+                StandardCharsets.UTF_8);
+        assertNull(ArchiveMetadata.read(mConfigDir));
+        assertFalse(new File(mConfigDir, ArchiveMetadata.FILE_NAME + ConfigWriter.TEMP_SUFFIX).exists());
+    }
+
+    private static Block block(int index, int transactions) {
+        Block block = new Gson().fromJson("{\"Body\":{\"Index\":" + index + "}}", Block.class);
+        block.body.transactions = new byte[transactions][];
+        return block;
+    }
+}
@@ -0,0 +1,168 @@
+package io.mosaicnetworks.babble.node;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ArchiveRetentionTest {
+
+    private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+    private static final long NOW = 100 * DAY_MS;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void backupCountIsLimitedPerGroupTest() {
+        List<ArchiveRetention.Candidate> candidates = Arrays.asList(
+                live("app_a_A_"),
+                backup("app_a_A_1", 1, 10, 50),
+                backup("app_a_A_2", 2, 10, 60),
+                backup("app_a_A_3", 3, 10, 70),
+                backup("app_b_B_1", 1, 10, 10));
+
+        RetentionPolicy policy = new RetentionPolicy.Builder().maxBackupsPerGroup(2).build();
+        assertEquals(Arrays.asList("app_a_A_1"), names(ArchiveRetention.select(candidates, policy, NOW)));
+    }
+
+    @Test
+    public void oldBackupsArePrunedTest() {
+        List<ArchiveRetention.Candidate> candidates = Arrays.asList(
+                backup("app_a_A_1", 1, 10, 50),
+                backup("app_a_A_2", 2, 10, 95),
+                new ArchiveRetention.Candidate("app_b_B_1", "b", true, 1, 10, 10 * DAY_MS, false));
+
+        RetentionPolicy policy = new RetentionPolicy.Builder().maxAgeMs(30 * DAY_MS).build();
+        // the backup in use is kept, however old
+        assertEquals(Arrays.asList("app_a_A_1"), names(ArchiveRetention.select(candidates, policy, NOW)));
+    }
+
+    @Test
+    public void oldestBackupsArePrunedToFitTest() {
+        List<ArchiveRetention.Candidate> candidates = Arrays.asList(
+                live("app_a_A_"),
+                backup("app_a_A_1", 1, 300, 60),
+                backup("app_b_B_1", 1, 200, 40),
+                backup("app_c_C_1", 1, 100, 80));
+
+        RetentionPolicy policy = new RetentionPolicy.Builder().maxTotalBytes(450).build();
+        assertEquals(Arrays.asList("app_b_B_1", "app_a_A_1"),
+                names(ArchiveRetention.select(candidates, policy, NOW)));
+    }
+
+    @Test
+    public void runPrunesAndCompactsTest() throws IOException, InterruptedException, ExecutionException {
+        File root = mFolder.getRoot();
+        for (String name : Arrays.asList("app_a_A_", "app_a_A_1", "app_a_A_2", "app_a_A_3")) {
+            File dir = new File(root, name);
+            FileUtils.writeByteArrayToFile(new File(dir, "badger_db/000001.vlog"), new byte[1000]);
+        }
+        for (int version = 1; version <= 3; version++) {
+            assertTrue(new File(root, "app_a_A_" + version).setLastModified(version * DAY_MS));
+        }
+
+        ArchiveCatalog catalog = ArchiveCatalog.load(root);
+        ArchiveDeleter deleter = new ArchiveDeleter(root, catalog, ArchiveDeleterTest.NO_LOCKS,
+                new ConfigWriter(MoreExecutors.newDirectExecutorService()),
+                MoreExecutors.newDirectExecutorService());
+        final List<String> compacted = new ArrayList<>();
+        ArchiveRetention retention = new ArchiveRetention(root, catalog, deleter,
+                new ArchiveRetention.Compactor() {
+                    @Override
+                    public long compact(String directoryName) {
+                        compacted.add(directoryName);
+                        return 600;
+                    }
+                }, Executors.newSingleThreadScheduledExecutor());
+        // the oldest backup is in use, so it survives
+        retention.setInUse("app_a_A_1", true);
+
+        RetentionPolicy policy = new RetentionPolicy.Builder()
+                .maxBackupsPerGroup(1)
+                .compactAfterMs(DAY_MS)
+                .build();
+        ArchiveRetention.Report report = retention.run(policy).get();
+
+        assertEquals(1, report.getPrunedCount());
+        assertFalse(new File(root, "app_a_A_2").exists());
+        assertTrue(new File(root, "app_a_A_1").exists());
+        assertEquals(Arrays.asList("app_a_A_3"), compacted);
+        assertEquals(1, report.getCompactedCount());
+        assertEquals(1000 + 600, report.getReclaimedBytes());
+        assertEquals(report.getReclaimedBytes(), retention.getTotalReclaimedBytes());
+    }
+
+    @Test
+    public void compactedBackupsArePrunedTest() throws IOException, InterruptedException,
+            ExecutionException {
+        File root = mFolder.getRoot();
+        FileUtils.writeByteArrayToFile(new File(root, "app_a_A_/badger_db/000001.vlog"),
+                new byte[1000]);
+        File compactedDir = new File(root, ArchiveRetention.COMPACTED_DIR);
+        for (int version = 1; version <= 2; version++) {
+            File file = new File(compactedDir, "app_a_A_" + version + ArchiveTransfer.FILE_EXTENSION);
+            FileUtils.writeByteArrayToFile(file, new byte[100]);
+            assertTrue(file.setLastModified(version * DAY_MS));
+        }
+
+        ArchiveCatalog catalog = ArchiveCatalog.load(root);
+        ArchiveDeleter deleter = new ArchiveDeleter(root, catalog, ArchiveDeleterTest.NO_LOCKS,
+                new ConfigWriter(MoreExecutors.newDirectExecutorService()),
+                MoreExecutors.newDirectExecutorService());
+        final List<String> compacted = new ArrayList<>();
+        ArchiveRetention retention = new ArchiveRetention(root, catalog, deleter,
+                new ArchiveRetention.Compactor() {
+                    @Override
+                    public long compact(String directoryName) {
+                        compacted.add(directoryName);
+                        return 0;
+                    }
+                }, Executors.newSingleThreadScheduledExecutor());
+
+        RetentionPolicy policy = new RetentionPolicy.Builder()
+                .maxBackupsPerGroup(1)
+                .compactAfterMs(DAY_MS)
+                .build();
+        ArchiveRetention.Report report = retention.run(policy).get();
+
+        // the compacted files count as backups of their group, and are never compacted again
+        assertEquals(1, report.getPrunedCount());
+        assertEquals(100, report.getReclaimedBytes());
+        assertFalse(new File(compactedDir, "app_a_A_1" + ArchiveTransfer.FILE_EXTENSION).exists());
+        assertTrue(new File(compactedDir, "app_a_A_2" + ArchiveTransfer.FILE_EXTENSION).exists());
+        assertTrue(new File(root, "app_a_A_").exists());
+        assertTrue(compacted.isEmpty());
+    }
+
+    private static ArchiveRetention.Candidate live(String name) {
+        return new ArchiveRetention.Candidate(name, name.split("_")[1], false, 0, 100, NOW, false);
+    }
+
+    private static ArchiveRetention.Candidate backup(String name, int version, long size, long lastUsedDay) {
+        return new ArchiveRetention.Candidate(name, name.split("_")[1], true, version, size,
+                lastUsedDay * DAY_MS, true);
+    }
+
+    private static List<String> names(List<ArchiveRetention.Candidate> candidates) {
+        List<String> names = new ArrayList<>();
+        for (ArchiveRetention.Candidate candidate : candidates) {
+            names.add(candidate.directoryName);
+        }
+        return names;
+    }
+}
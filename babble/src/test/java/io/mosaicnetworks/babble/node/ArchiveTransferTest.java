@@ -0,0 +1,94 @@
+package io.mosaicnetworks.babble.node;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ArchiveTransferTest {
+
+    private static final String DIRECTORY_NAME = "io.mosaicnetworks.sample_abcdef123456_my-group_1";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mSource;
+    private byte[] mValueLog;
+
+    @Before
+    public void setUp() throws IOException {
+        mSource = mFolder.newFolder(DIRECTORY_NAME);
+        FileUtils.writeStringToFile(new File(mSource, "babble.toml"), "moniker = \"alice\"\n",
+                StandardCharsets.UTF_8);
+        FileUtils.writeStringToFile(new File(mSource, "priv_key"), "secret", StandardCharsets.UTF_8);
+
+        // several chunks, partly incompressible
+        mValueLog = new byte[ArchiveTransfer.CHUNK_SIZE * 3 + 123];
+        new Random(42).nextBytes(mValueLog);
+        Arrays.fill(mValueLog, 0, ArchiveTransfer.CHUNK_SIZE, (byte) 7);
+        File db = new File(mSource, ArchiveMetadata.DB_SUB_DIR);
+        FileUtils.writeByteArrayToFile(new File(db, "000001.vlog"), mValueLog);
+        FileUtils.writeByteArrayToFile(new File(db, "MANIFEST"), new byte[0]);
+    }
+
+    @Test
+    public void roundTripTest() throws IOException {
+        ByteArrayOutputStream exported = new ByteArrayOutputStream();
+        ArchiveTransfer.export(mSource, exported);
+
+        File target = new File(mFolder.getRoot(), "imported");
+        String name = ArchiveTransfer.importInto(new ByteArrayInputStream(exported.toByteArray()), target);
+
+        assertEquals(DIRECTORY_NAME, name);
+        assertEquals("moniker = \"alice\"\n", FileUtils.readFileToString(
+                new File(target, "babble.toml"), StandardCharsets.UTF_8));
+        assertArrayEquals(mValueLog, FileUtils.readFileToByteArray(
+                new File(target, ArchiveMetadata.DB_SUB_DIR + "/000001.vlog")));
+        assertTrue(new File(target, ArchiveMetadata.DB_SUB_DIR + "/MANIFEST").isFile());
+        assertFalse(new File(target, "priv_key").exists());
+    }
+
+    @Test
+    public void corruptChunkIsDetectedTest() throws IOException {
+        ByteArrayOutputStream exported = new ByteArrayOutputStream();
+        ArchiveTransfer.export(mSource, exported);
+        byte[] bytes = exported.toByteArray();
+        bytes[bytes.length / 2] ^= 0x10;
+
+        try {
+            ArchiveTransfer.importInto(new ByteArrayInputStream(bytes), mFolder.newFolder("corrupt"));
+            fail("Corrupt archive imported");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Corrupt archive"));
+        }
+    }
+
+    @Test
+    public void truncatedArchiveIsDetectedTest() throws IOException {
+        ByteArrayOutputStream exported = new ByteArrayOutputStream();
+        ArchiveTransfer.export(mSource, exported);
+        byte[] bytes = Arrays.copyOf(exported.toByteArray(), exported.size() - 1);
+
+        try {
+            ArchiveTransfer.importInto(new ByteArrayInputStream(bytes), mFolder.newFolder("truncated"));
+            fail("Truncated archive imported");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Corrupt archive"));
+        }
+    }
+}
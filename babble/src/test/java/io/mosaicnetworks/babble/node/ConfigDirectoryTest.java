@@ -0,0 +1,34 @@
+package io.mosaicnetworks.babble.node;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConfigDirectoryTest {
+
+    @Test
+    public void parseTest() {
+        ConfigDirectory directory = new ConfigDirectory("app_a1b2c3_My-Group_2");
+        assertEquals("app", directory.appId);
+        assertEquals("a1b2c3", directory.uniqueId);
+        assertEquals("My Group", directory.description);
+        assertTrue(directory.isBackup);
+        assertEquals(2, directory.BackUpVersion);
+    }
+
+    @Test
+    public void uniqueIdValidationTest() {
+        assertTrue(ConfigDirectory.isValidUniqueId("0123456789ab"));
+        assertTrue(ConfigDirectory.isValidUniqueId(new ConfigDirectory("app_XYZ9_g_").uniqueId));
+
+        assertFalse(ConfigDirectory.isValidUniqueId(null));
+        assertFalse(ConfigDirectory.isValidUniqueId(""));
+        assertFalse(ConfigDirectory.isValidUniqueId(".."));
+        assertFalse(ConfigDirectory.isValidUniqueId("a/b"));
+        assertFalse(ConfigDirectory.isValidUniqueId("..\\b"));
+        assertFalse(ConfigDirectory.isValidUniqueId(new ConfigDirectory("app_.._g_").uniqueId));
+        assertFalse(ConfigDirectory.isValidUniqueId(new ConfigDirectory("app_x/../../y_g_").uniqueId));
+    }
+}
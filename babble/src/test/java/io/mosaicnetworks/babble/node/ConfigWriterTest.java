@@ -0,0 +1,137 @@
+package io.mosaicnetworks.babble.node;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConfigWriterTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private ExecutorService mExecutor;
+    private ConfigWriter mWriter;
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newSingleThreadExecutor();
+        mWriter = new ConfigWriter(mExecutor);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void batchIsWrittenTest() throws IOException {
+        File dir = mFolder.getRoot();
+        FileUtils.writeStringToFile(new File(dir, "peers.json"), "old", StandardCharsets.UTF_8);
+
+        Map<String, String> files = new LinkedHashMap<>();
+        files.put("peers.json", "[]");
+        files.put("peers.genesis.json", "[{}]");
+        files.put("priv_key", "0xABCD");
+        files.put("babble.toml", "moniker = \"node\"\n");
+        ConfigWriter.writeFiles(dir, files);
+
+        for (Map.Entry<String, String> entry : files.entrySet()) {
+            assertEquals(entry.getValue(), FileUtils.readFileToString(new File(dir, entry.getKey()),
+                    StandardCharsets.UTF_8));
+        }
+        assertNoTempFiles(dir);
+    }
+
+    @Test
+    public void failedBatchLeavesExistingFilesTest() throws IOException {
+        File dir = mFolder.getRoot();
+        FileUtils.writeStringToFile(new File(dir, "peers.json"), "old", StandardCharsets.UTF_8);
+        // a directory in the way of the second temporary file makes the batch fail part way
+        assertTrue(new File(dir, "priv_key" + ConfigWriter.TEMP_SUFFIX).mkdir());
+
+        Map<String, String> files = new LinkedHashMap<>();
+        files.put("peers.json", "new");
+        files.put("priv_key", "0xABCD");
+        try {
+            ConfigWriter.writeFiles(dir, files);
+            fail("The batch should not have been written");
+        } catch (IOException expected) {
+            // expected
+        }
+
+        assertEquals("old", FileUtils.readFileToString(new File(dir, "peers.json"), StandardCharsets.UTF_8));
+        assertFalse(new File(dir, "priv_key").exists());
+        assertFalse(new File(dir, "peers.json" + ConfigWriter.TEMP_SUFFIX).exists());
+    }
+
+    @Test
+    public void tasksRunInOrderOffTheCallingThreadTest() throws InterruptedException, ExecutionException {
+        final Thread caller = Thread.currentThread();
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        List<Future<Boolean>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            final int task = i;
+            futures.add(mWriter.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    order.add(task);
+                    return Thread.currentThread() != caller;
+                }
+            }));
+        }
+
+        for (Future<Boolean> future : futures) {
+            assertTrue(future.get());
+        }
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i, (int) order.get(i));
+        }
+    }
+
+    @Test
+    public void failureIsReportedThroughTheFutureTest() throws InterruptedException {
+        final File missing = new File(mFolder.getRoot(), "missing");
+        Future<Void> future = mWriter.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                ConfigWriter.writeFile(new File(missing, "babble.toml"), "");
+                return null;
+            }
+        });
+
+        try {
+            future.get();
+            fail("The write should have failed");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof IOException);
+        }
+    }
+
+    private static void assertNoTempFiles(File dir) {
+        for (String name : dir.list()) {
+            assertFalse(name, name.endsWith(ConfigWriter.TEMP_SUFFIX));
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package io.mosaicnetworks.babble.node;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DbSnapshotTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFromDb;
+    private File mToDb;
+
+    @Before
+    public void setUp() throws IOException {
+        mFromDb = mFolder.newFolder("backup", "badger_db");
+        mToDb = mFolder.newFolder("live", "badger_db");
+        write(new File(mFromDb, "000001.sst"), "table 1");
+        write(new File(mFromDb, "000002.sst"), "table 2");
+        write(new File(mFromDb, "000001.vlog"), "value log");
+        write(new File(mFromDb, "000002.vlog"), "head log");
+        write(new File(mFromDb, "MANIFEST"), "manifest");
+    }
+
+    @Test
+    public void immutableFilesAreLinkedAndHeadCopiedTest() throws IOException {
+        DbSnapshot snapshot = new DbSnapshot(new DbSnapshot.Linker() {
+            @Override
+            public void link(File existing, File link) throws IOException {
+                Files.createLink(link.toPath(), existing.toPath());
+            }
+        });
+        snapshot.seed(mFromDb, mToDb);
+
+        assertEquals(3, snapshot.getLinkedCount());
+        assertTrue(Files.isSameFile(new File(mFromDb, "000001.sst").toPath(),
+                new File(mToDb, "000001.sst").toPath()));
+        assertTrue(Files.isSameFile(new File(mFromDb, "000001.vlog").toPath(),
+                new File(mToDb, "000001.vlog").toPath()));
+
+        // appending to the copied head log leaves the backup untouched
+        File log = new File(mToDb, "000002.vlog");
+        FileUtils.writeStringToFile(log, " appended", StandardCharsets.UTF_8, true);
+        assertEquals("head log", read(new File(mFromDb, "000002.vlog")));
+        assertEquals("manifest", read(new File(mToDb, "MANIFEST")));
+        assertEquals("head log".length() + "manifest".length(), snapshot.getCopiedBytes());
+    }
+
+    @Test
+    public void tablesAreCopiedWhenLinksFailTest() throws IOException {
+        DbSnapshot snapshot = new DbSnapshot(new DbSnapshot.Linker() {
+            @Override
+            public void link(File existing, File link) throws IOException {
+                throw new IOException("not supported");
+            }
+        });
+        snapshot.seed(mFromDb, mToDb);
+
+        assertEquals(0, snapshot.getLinkedCount());
+        assertEquals("table 2", read(new File(mToDb, "000002.sst")));
+        assertFalse(Files.isSameFile(new File(mFromDb, "000002.sst").toPath(),
+                new File(mToDb, "000002.sst").toPath()));
+    }
+
+    private static void write(File file, String contents) throws IOException {
+        FileUtils.writeStringToFile(file, contents, StandardCharsets.UTF_8);
+    }
+
+    private static String read(File file) throws IOException {
+        return FileUtils.readFileToString(file, StandardCharsets.UTF_8);
+    }
+}
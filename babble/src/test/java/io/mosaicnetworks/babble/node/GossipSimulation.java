@@ -0,0 +1,121 @@
+package io.mosaicnetworks.babble.node;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A deterministic, simplified model of Babble's gossip, used to compare the node config profiles
+ * under a simulated load. Time advances in steps of one millisecond. Transactions are created at
+ * random nodes at a fixed average rate. Each node pulls from a random peer every heartbeat while it
+ * has something to gossip about, and every slow heartbeat otherwise. A sync transfers at most
+ * syncLimit of the oldest transactions the puller is missing. Syncs are treated as instantaneous
+ * and the connection pool is not modelled.
+ */
+final class GossipSimulation {
+
+    static final class Result {
+        final double meanLatencyMs;
+        final double syncsPerNodePerSecond;
+        final int backlog;
+
+        Result(double meanLatencyMs, double syncsPerNodePerSecond, int backlog) {
+            this.meanLatencyMs = meanLatencyMs;
+            this.syncsPerNodePerSecond = syncsPerNodePerSecond;
+            this.backlog = backlog;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("latency %.1fms, %.2f syncs/node/s, backlog %d",
+                    meanLatencyMs, syncsPerNodePerSecond, backlog);
+        }
+    }
+
+    private GossipSimulation() {
+    }
+
+    /**
+     * @param config the settings of every node
+     * @param nodes the number of nodes in the group
+     * @param txPerSecond the rate at which transactions are created across the group
+     * @param durationMs how long transactions are created for. The backlog is measured at the end
+     *                   of this period, after which the simulation runs on until every transaction
+     *                   has been gossiped, to measure the latency of the last ones.
+     * @param seed the seed for the random choices
+     */
+    static Result run(NodeConfig config, int nodes, double txPerSecond, long durationMs, long seed) {
+        Random random = new Random(seed);
+        BitSet[] known = new BitSet[nodes];
+        long[] nextSync = new long[nodes];
+        boolean[] busy = new boolean[nodes];
+        for (int n = 0; n < nodes; n++) {
+            known[n] = new BitSet();
+            nextSync[n] = random.nextInt(config.slowHeartbeat);
+        }
+
+        List<Long> createdAt = new ArrayList<>();
+        List<Integer> knownBy = new ArrayList<>();
+        long totalLatency = 0;
+        int completed = 0;
+        int backlog = 0;
+        long syncs = 0;
+        double txDue = 0;
+
+        long now = 0;
+        while (now < durationMs || completed < createdAt.size()) {
+            if (now < durationMs) {
+                txDue += txPerSecond / 1000;
+                while (txDue >= 1) {
+                    txDue--;
+                    int origin = random.nextInt(nodes);
+                    known[origin].set(createdAt.size());
+                    createdAt.add(now);
+                    knownBy.add(1);
+                    busy[origin] = true;
+                }
+            }
+
+            for (int n = 0; n < nodes; n++) {
+                if (nextSync[n] > now) {
+                    continue;
+                }
+                int peer = random.nextInt(nodes - 1);
+                if (peer >= n) {
+                    peer++;
+                }
+
+                BitSet missing = (BitSet) known[peer].clone();
+                missing.andNot(known[n]);
+                int transferred = 0;
+                for (int tx = missing.nextSetBit(0); tx >= 0 && transferred < config.syncLimit;
+                     tx = missing.nextSetBit(tx + 1)) {
+                    known[n].set(tx);
+                    transferred++;
+                    int count = knownBy.get(tx) + 1;
+                    knownBy.set(tx, count);
+                    if (count == nodes) {
+                        totalLatency += now - createdAt.get(tx);
+                        completed++;
+                    }
+                }
+
+                // a node keeps gossiping quickly for as long as there is news, in either direction
+                busy[n] = transferred > 0 || known[n].cardinality() > known[peer].cardinality();
+                nextSync[n] = now + (busy[n] ? config.heartbeat : config.slowHeartbeat);
+                if (now < durationMs) {
+                    syncs++;
+                }
+            }
+
+            now++;
+            if (now == durationMs) {
+                backlog = createdAt.size() - completed;
+            }
+        }
+
+        double latency = completed == 0 ? 0 : (double) totalLatency / completed;
+        return new Result(latency, syncs * 1000.0 / nodes / durationMs, backlog);
+    }
+}
@@ -0,0 +1,86 @@
+package io.mosaicnetworks.babble.node;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Locale;
+
+/**
+ * Generates secp256k1 key pairs in the format used by babble, without the Go library, so that
+ * tests can run on the JVM. It is slow and not constant time, so it must not be used for real
+ * keys.
+ */
+final class JavaKeyProvider implements KeyProvider {
+
+    private static final BigInteger P = new BigInteger(
+            "FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFEFFFFFC2F", 16);
+    private static final BigInteger N = new BigInteger(
+            "FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFEBAAEDCE6AF48A03BBFD25E8CD0364141", 16);
+    private static final BigInteger[] G = {
+            new BigInteger("79BE667EF9DCBBAC55A06295CE870B07029BFCDB2DCE28D959F2815B16F81798", 16),
+            new BigInteger("483ADA7726A3C4655DA4FBFC0E1108A8FD17B448A68554199C47D08FFB10D4B8", 16)
+    };
+
+    private final SecureRandom mRandom = new SecureRandom();
+
+    @Override
+    public KeyPair generateKeyPair() {
+        BigInteger privateKey;
+        do {
+            privateKey = new BigInteger(256, mRandom);
+        } while (privateKey.signum() == 0 || privateKey.compareTo(N) >= 0);
+
+        return new KeyPair(publicKey(privateKey), hex(privateKey).toLowerCase(Locale.US));
+    }
+
+    /**
+     * @return the uncompressed public key of a private key, as written by babble
+     */
+    static String publicKey(BigInteger privateKey) {
+        BigInteger[] point = multiply(G, privateKey);
+        return "0X04" + hex(point[0]) + hex(point[1]);
+    }
+
+    private static String hex(BigInteger value) {
+        StringBuilder hex = new StringBuilder(value.toString(16).toUpperCase(Locale.US));
+        while (hex.length() < 64) {
+            hex.insert(0, '0');
+        }
+        return hex.toString();
+    }
+
+    // double and add, with null as the point at infinity
+    private static BigInteger[] multiply(BigInteger[] point, BigInteger scalar) {
+        BigInteger[] result = null;
+        for (int i = scalar.bitLength() - 1; i >= 0; i--) {
+            result = add(result, result);
+            if (scalar.testBit(i)) {
+                result = add(result, point);
+            }
+        }
+        return result;
+    }
+
+    private static BigInteger[] add(BigInteger[] a, BigInteger[] b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+
+        BigInteger slope;
+        if (a[0].equals(b[0])) {
+            if (!a[1].equals(b[1]) || a[1].signum() == 0) {
+                return null;
+            }
+            slope = a[0].pow(2).multiply(BigInteger.valueOf(3))
+                    .multiply(a[1].shiftLeft(1).modInverse(P)).mod(P);
+        } else {
+            slope = b[1].subtract(a[1]).multiply(b[0].subtract(a[0]).modInverse(P)).mod(P);
+        }
+
+        BigInteger x = slope.pow(2).subtract(a[0]).subtract(b[0]).mod(P);
+        BigInteger y = slope.multiply(a[0].subtract(x)).subtract(a[1]).mod(P);
+        return new BigInteger[]{x, y};
+    }
+}
@@ -0,0 +1,131 @@
+package io.mosaicnetworks.babble.node;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class KeyPoolTest {
+
+    private ExecutorService mExecutor;
+    private CountingProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newSingleThreadExecutor();
+        mProvider = new CountingProvider();
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void javaKeyProviderTest() {
+        // 2G, a published test vector
+        assertEquals("0X04C6047F9441ED7D6D3045406E95C07CD85C778E4B8CEF3CA7ABAC09B95C709EE5" +
+                        "1AE168FEA63DC339A3C58419466CEAEEF7F632653266D0E1236431A950CFE52A",
+                JavaKeyProvider.publicKey(BigInteger.valueOf(2)));
+
+        KeyPair keyPair = new JavaKeyProvider().generateKeyPair();
+        assertEquals(64, keyPair.privateKey.length());
+        assertEquals(JavaKeyProvider.publicKey(new BigInteger(keyPair.privateKey, 16)),
+                keyPair.publicKey);
+    }
+
+    @Test
+    public void poolIsFilledAndRefilledInTheBackgroundTest() throws InterruptedException {
+        KeyPool pool = new KeyPool(mProvider, 2, mExecutor);
+        pool.fill();
+        awaitSize(pool, 2);
+
+        KeyPair first = pool.take();
+        KeyPair second = pool.take();
+        assertNotEquals(first.privateKey, second.privateKey);
+
+        // both taken from the pool, which then fills up again
+        awaitSize(pool, 2);
+        assertEquals(4, mProvider.mCount.get());
+    }
+
+    @Test
+    public void takeWithoutRefillTest() throws InterruptedException {
+        KeyPool pool = new KeyPool(mProvider, 1, mExecutor);
+        pool.fill();
+        awaitSize(pool, 1);
+
+        pool.take(false);
+        mExecutor.shutdown();
+        assertTrue(mExecutor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(0, pool.size());
+        assertEquals(1, mProvider.mCount.get());
+    }
+
+    @Test
+    public void emptyPoolGeneratesInTheCallingThreadTest() {
+        KeyPool pool = new KeyPool(mProvider, 1, MoreExecutors.newDirectExecutorService());
+
+        KeyPair keyPair = pool.take();
+        assertTrue(mProvider.mThreads.contains(Thread.currentThread()));
+        assertTrue(keyPair.publicKey.startsWith("0X04"));
+    }
+
+    @Test
+    public void keyPairBeingGeneratedIsWaitedForTest() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        KeyPool pool = new KeyPool(new KeyProvider() {
+            @Override
+            public KeyPair generateKeyPair() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return mProvider.generateKeyPair();
+            }
+        }, 1, mExecutor);
+        pool.fill();
+
+        release.countDown();
+        pool.take();
+        assertFalse(mProvider.mThreads.contains(Thread.currentThread()));
+    }
+
+    private static void awaitSize(KeyPool pool, int size) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (pool.size() < size && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(size, pool.size());
+    }
+
+    private static class CountingProvider implements KeyProvider {
+        final AtomicInteger mCount = new AtomicInteger();
+        final KeyProvider mJava = new JavaKeyProvider();
+        final List<Thread> mThreads = Collections.synchronizedList(new ArrayList<Thread>());
+
+        @Override
+        public KeyPair generateKeyPair() {
+            mCount.incrementAndGet();
+            mThreads.add(Thread.currentThread());
+            return mJava.generateKeyPair();
+        }
+    }
+}
@@ -84,6 +84,47 @@ public class NodeConfigTest {
         assertEquals(false, nodeConfig.noService);
     }
 
+    @Test
+    public void profileConfigTest() {
+        NodeConfig nodeConfig = new NodeConfig.Builder()
+                .profile(NodeConfig.Profile.BATTERY_SAVER)
+                .build();
+
+        assertEquals(NodeConfig.Profile.BATTERY_SAVER, nodeConfig.profile);
+        assertEquals(500, nodeConfig.heartbeat);
+        assertEquals(2000, nodeConfig.slowHeartbeat);
+        assertEquals(1, nodeConfig.maxPool);
+        assertEquals(20000, nodeConfig.cacheSize);
+        assertEquals(200, nodeConfig.syncLimit);
+        assertEquals(10000, nodeConfig.tcpTimeout);
+    }
+
+    @Test
+    public void profileOverrideConfigTest() {
+        NodeConfig nodeConfig = new NodeConfig.Builder()
+                .heartbeat(5)
+                .profile(NodeConfig.Profile.LOW_LATENCY)
+                .syncLimit(75)
+                .build();
 
+        // the profile replaces earlier settings, later settings replace the profile
+        assertEquals(20, nodeConfig.heartbeat);
+        assertEquals(75, nodeConfig.syncLimit);
+        assertEquals(NodeConfig.Profile.LOW_LATENCY, nodeConfig.profile);
+    }
 
+    @Test
+    public void profileConfigNameTest() {
+        for (NodeConfig.Profile profile : NodeConfig.Profile.values()) {
+            assertEquals(profile, NodeConfig.Profile.fromConfigName(profile.configName));
+        }
+        assertEquals(NodeConfig.Profile.BALANCED, NodeConfig.Profile.fromConfigName("unknown"));
+
+        NodeConfig balanced = new NodeConfig.Builder().profile(NodeConfig.Profile.BALANCED).build();
+        NodeConfig defaults = new NodeConfig.Builder().build();
+        assertEquals(defaults.heartbeat, balanced.heartbeat);
+        assertEquals(defaults.slowHeartbeat, balanced.slowHeartbeat);
+        assertEquals(defaults.syncLimit, balanced.syncLimit);
+        assertEquals(NodeConfig.Profile.BALANCED, defaults.profile);
+    }
 }
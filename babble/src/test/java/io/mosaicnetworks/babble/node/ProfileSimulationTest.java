@@ -0,0 +1,58 @@
+package io.mosaicnetworks.babble.node;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ProfileSimulationTest {
+
+    private static final int NODES = 8;
+    private static final long DURATION_MS = 20000;
+    private static final long SEED = 4117;
+
+    @Test
+    public void lowLatencyCommitsFastestTest() {
+        GossipSimulation.Result lowLatency = run(NodeConfig.Profile.LOW_LATENCY, 5);
+        GossipSimulation.Result balanced = run(NodeConfig.Profile.BALANCED, 5);
+        GossipSimulation.Result batterySaver = run(NodeConfig.Profile.BATTERY_SAVER, 5);
+
+        assertTrue(lowLatency.meanLatencyMs < balanced.meanLatencyMs);
+        assertTrue(balanced.meanLatencyMs < batterySaver.meanLatencyMs);
+    }
+
+    @Test
+    public void batterySaverSyncsLeastTest() {
+        GossipSimulation.Result batterySaver = run(NodeConfig.Profile.BATTERY_SAVER, 1);
+        for (NodeConfig.Profile profile : NodeConfig.Profile.values()) {
+            if (profile != NodeConfig.Profile.BATTERY_SAVER) {
+                assertTrue(profile.name(),
+                        batterySaver.syncsPerNodePerSecond < run(profile, 1).syncsPerNodePerSecond);
+            }
+        }
+    }
+
+    @Test
+    public void highThroughputKeepsUpUnderLoadTest() {
+        GossipSimulation.Result highThroughput = run(NodeConfig.Profile.HIGH_THROUGHPUT, 2000);
+        GossipSimulation.Result batterySaver = run(NodeConfig.Profile.BATTERY_SAVER, 2000);
+
+        assertTrue(highThroughput.backlog < batterySaver.backlog);
+        assertTrue(highThroughput.meanLatencyMs < batterySaver.meanLatencyMs);
+    }
+
+    @Test
+    public void simulationIsDeterministicTest() {
+        GossipSimulation.Result first = run(NodeConfig.Profile.LARGE_GROUP, 50);
+        GossipSimulation.Result second = run(NodeConfig.Profile.LARGE_GROUP, 50);
+
+        assertEquals(first.meanLatencyMs, second.meanLatencyMs, 0);
+        assertEquals(first.syncsPerNodePerSecond, second.syncsPerNodePerSecond, 0);
+        assertEquals(first.backlog, second.backlog);
+    }
+
+    private static GossipSimulation.Result run(NodeConfig.Profile profile, double txPerSecond) {
+        NodeConfig config = new NodeConfig.Builder().profile(profile).build();
+        return GossipSimulation.run(config, NODES, txPerSecond, DURATION_MS, SEED);
+    }
+}
@@ -0,0 +1,81 @@
+package io.mosaicnetworks.babble.node;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TomlConfigCacheTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private TomlConfigCache mCache;
+    private File mTomlFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mCache = new TomlConfigCache();
+        mTomlFile = new File(mFolder.getRoot(), "babble.toml");
+        FileUtils.writeStringToFile(mTomlFile,
+                "heartbeat = 200\nmaintenance-mode = false\nmoniker = \"alice\"\n",
+                StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void unchangedAmendmentIsNotWrittenTest() throws IOException {
+        long lastModified = mTomlFile.lastModified();
+
+        Map<String, Object> changes = new HashMap<>();
+        changes.put("heartbeat", 200);
+        changes.put("maintenance-mode", false);
+        assertFalse(mCache.amend(mTomlFile, changes));
+        assertFalse(mCache.amend(mTomlFile, changes));
+
+        assertEquals(lastModified, mTomlFile.lastModified());
+        assertEquals(1, mCache.getLoadCount());
+    }
+
+    @Test
+    public void changedAmendmentIsWrittenTest() throws IOException {
+        Map<String, Object> changes = new HashMap<>();
+        changes.put("maintenance-mode", true);
+        changes.put("listen", "192.168.1.2:6666");
+        assertTrue(mCache.amend(mTomlFile, changes));
+
+        // the write is recorded, so the file is not parsed again
+        Map<String, Object> config = mCache.read(mTomlFile);
+        assertEquals(1, mCache.getLoadCount());
+        assertEquals(true, config.get("maintenance-mode"));
+        assertEquals("192.168.1.2:6666", config.get("listen"));
+        assertEquals("alice", config.get("moniker"));
+
+        // and what was written parses to the same config
+        assertEquals(config, new TomlConfigCache().read(mTomlFile));
+        assertFalse(new File(mFolder.getRoot(), "babble.toml" + ConfigWriter.TEMP_SUFFIX).exists());
+    }
+
+    @Test
+    public void externalChangeInvalidatesCacheTest() throws IOException {
+        assertEquals("alice", mCache.read(mTomlFile).get("moniker"));
+
+        long lastModified = mTomlFile.lastModified();
+        FileUtils.writeStringToFile(mTomlFile, "heartbeat = 200\nmoniker = \"bob\"\n",
+                StandardCharsets.UTF_8);
+        assertTrue(mTomlFile.setLastModified(lastModified + 2000));
+
+        assertEquals("bob", mCache.read(mTomlFile).get("moniker"));
+        assertEquals(2, mCache.getLoadCount());
+    }
+}
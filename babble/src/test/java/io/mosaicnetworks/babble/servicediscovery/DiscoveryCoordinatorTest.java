@@ -0,0 +1,232 @@
+package io.mosaicnetworks.babble.servicediscovery;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DiscoveryCoordinatorTest {
+
+    private ResolvedGroupRegistry mRegistry;
+    private FakeProber mProber;
+    private QueueExecutor mExecutor;
+    private int mRankingChanges;
+    private long mNow = 0;
+    private DiscoveryCoordinator mCoordinator;
+
+    @Before
+    public void setUp() {
+        mRegistry = new ResolvedGroupRegistry();
+        mProber = new FakeProber();
+        mExecutor = new QueueExecutor();
+        mCoordinator = new DiscoveryCoordinator(mRegistry, new DiscoveryCoordinator.Listener() {
+            @Override
+            public void onRankingChanged() {
+                mRankingChanges++;
+            }
+        }, mProber, mExecutor, null, new DiscoveryCoordinator.Clock() {
+            @Override
+            public long now() {
+                return mNow;
+            }
+        });
+    }
+
+    @Test
+    public void groupOnBothTransportsIsListedOnceTest() {
+        addLan("uid-1", "alpha", 1);
+        addRelay("uid-1", "alpha");
+        addRelay("uid-2", "beta");
+        mExecutor.runAll();
+
+        List<ResolvedGroup> groups = mCoordinator.getGroups();
+        assertEquals(2, groups.size());
+        assertEquals("uid-1", groups.get(0).getGroupUid());
+        assertEquals(ResolvedGroup.Source.MDNS, groups.get(0).getSource());
+        assertEquals(ResolvedGroup.Source.WEBRTC, groups.get(1).getSource());
+        assertEquals(2, mCoordinator.getTransports("uid-1").size());
+    }
+
+    @Test
+    public void unreachableLanFallsBackToRelayTest() {
+        mProber.mLanLatencies.put(1, DiscoveryCoordinator.UNREACHABLE);
+        addLan("uid-1", "alpha", 1);
+        addRelay("uid-1", "alpha");
+        mExecutor.runAll();
+
+        List<ResolvedGroup> groups = mCoordinator.getGroups();
+        assertEquals(1, groups.size());
+        assertEquals(ResolvedGroup.Source.WEBRTC, groups.get(0).getSource());
+        assertEquals(ResolvedGroup.Source.WEBRTC, mCoordinator.getTransports("uid-1").get(0).getSource());
+    }
+
+    @Test
+    public void groupsAreRankedByReachabilityAndLatencyTest() {
+        mProber.mLanLatencies.put(1, 40L);
+        mProber.mLanLatencies.put(2, 5L);
+        mProber.mLanLatencies.put(3, DiscoveryCoordinator.UNREACHABLE);
+        addLan("uid-slow", "slow", 1);
+        addLan("uid-fast", "fast", 2);
+        addLan("uid-dead", "dead", 3);
+        addRelay("uid-relay", "relay");
+
+        // before any probe completes LAN groups are still preferred, ordered by name
+        List<ResolvedGroup> groups = mCoordinator.getGroups();
+        assertEquals("dead", groups.get(0).getGroupName());
+        assertEquals("relay", groups.get(3).getGroupName());
+
+        mExecutor.runAll();
+        assertEquals(4, mRankingChanges);
+        groups = mCoordinator.getGroups();
+        assertEquals("fast", groups.get(0).getGroupName());
+        assertEquals("slow", groups.get(1).getGroupName());
+        assertEquals("relay", groups.get(2).getGroupName());
+        assertEquals("dead", groups.get(3).getGroupName());
+    }
+
+    @Test
+    public void relayIsProbedOnceForAllGroupsTest() {
+        for (int i = 0; i < 100; i++) {
+            addRelay("uid-" + i, "group " + i);
+        }
+        mExecutor.runAll();
+        assertEquals(1, mProber.mRelayProbes);
+
+        // the list is only rebuilt after a change
+        List<ResolvedGroup> groups = mCoordinator.getGroups();
+        assertSame(groups, mCoordinator.getGroups());
+        assertEquals(100, groups.size());
+    }
+
+    @Test
+    public void expiredMeasurementsAreProbedAgainTest() {
+        mProber.mLanLatencies.put(1, DiscoveryCoordinator.UNREACHABLE);
+        addLan("uid-down", "down", 1);
+        addLan("uid-up", "up", 2);
+        addRelay("uid-relay", "relay");
+        mExecutor.runAll();
+        assertEquals("down", mCoordinator.getGroups().get(2).getGroupName());
+
+        // fresh measurements are not probed again
+        mNow += DiscoveryCoordinator.PROBE_TTL_MS - 1;
+        mCoordinator.reprobeStale();
+        mExecutor.runAll();
+        assertEquals(2, mProber.mLanProbes);
+        assertEquals(1, mProber.mRelayProbes);
+
+        // the host has come back by the time its measurement expires
+        mProber.mLanLatencies.put(1, 5L);
+        mNow += 1;
+        mCoordinator.reprobeStale();
+        mExecutor.runAll();
+        assertEquals(4, mProber.mLanProbes);
+        assertEquals(2, mProber.mRelayProbes);
+
+        List<ResolvedGroup> groups = mCoordinator.getGroups();
+        assertEquals("down", groups.get(0).getGroupName());
+        assertEquals("up", groups.get(1).getGroupName());
+        assertEquals("relay", groups.get(2).getGroupName());
+    }
+
+    @Test
+    public void closeStopsProbingTest() {
+        mCoordinator.close();
+        addLan("uid-1", "alpha", 1);
+        mExecutor.runAll();
+        assertEquals(0, mProber.mLanProbes);
+        assertTrue(mExecutor.isShutdown());
+    }
+
+    private void addLan(String uid, String name, int port) {
+        mRegistry.addService(ResolvedGroup.Source.MDNS, uid + ":" + port,
+                new ResolvedService(uid, name, "app", 0, null, null, null, port));
+    }
+
+    private void addRelay(String uid, String name) {
+        mRegistry.addService(ResolvedGroup.Source.WEBRTC, uid,
+                new ResolvedService(uid, name, "app", 0, null, null, null, 0));
+    }
+
+    /**
+     * Reports latencies by port, LAN services are reachable in 10ms and the relay in 80ms unless
+     * set otherwise
+     */
+    private static class FakeProber implements DiscoveryCoordinator.Prober {
+        final Map<Integer, Long> mLanLatencies = new HashMap<>();
+        int mLanProbes;
+        int mRelayProbes;
+
+        @Override
+        public long probeLan(ResolvedService service) {
+            mLanProbes++;
+            Long latency = mLanLatencies.get(service.getPort());
+            return latency == null ? 10 : latency;
+        }
+
+        @Override
+        public long probeRelay() {
+            mRelayProbes++;
+            return 80;
+        }
+    }
+
+    /**
+     * Holds tasks until the test runs them
+     */
+    private static class QueueExecutor extends AbstractExecutorService {
+        private final List<Runnable> mTasks = new ArrayList<>();
+        private boolean mShutdown;
+
+        void runAll() {
+            while (!mTasks.isEmpty()) {
+                mTasks.remove(0).run();
+            }
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            if (mShutdown) {
+                throw new RejectedExecutionException();
+            }
+            mTasks.add(command);
+        }
+
+        @Override
+        public void shutdown() {
+            mShutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            mShutdown = true;
+            List<Runnable> pending = new ArrayList<>(mTasks);
+            mTasks.clear();
+            return pending;
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return mShutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return mShutdown && mTasks.isEmpty();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return isTerminated();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package io.mosaicnetworks.babble.servicediscovery;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ResolvedGroupRegistryTest {
+
+    @Test
+    public void groupsServicesByUidTest() {
+        ResolvedGroupRegistry registry = new ResolvedGroupRegistry();
+
+        ResolvedGroupRegistry.ChangeEvent first = registry.addService(ResolvedGroup.Source.MDNS,
+                "node-1", service("uid-1"));
+        assertEquals(ResolvedGroupRegistry.ChangeEvent.Type.GROUP_ADDED, first.getType());
+
+        ResolvedGroupRegistry.ChangeEvent second = registry.addService(ResolvedGroup.Source.MDNS,
+                "node-2", service("uid-1"));
+        assertEquals(ResolvedGroupRegistry.ChangeEvent.Type.SERVICE_ADDED, second.getType());
+        assertSame(first.getGroup(), second.getGroup());
+        assertSame(first.getGroup(), second.getService().getResolvedGroup());
+        assertEquals(2, first.getGroup().getResolvedServices().size());
+
+        // the same UID from another source is another group
+        registry.addService(ResolvedGroup.Source.WEBRTC, "uid-1", service("uid-1"));
+        assertEquals(2, registry.getSnapshot().size());
+        assertEquals(3, registry.getVersion());
+    }
+
+    @Test
+    public void removesEmptyGroupsTest() {
+        ResolvedGroupRegistry registry = new ResolvedGroupRegistry();
+        registry.addService(ResolvedGroup.Source.MDNS, "node-1", service("uid-1"));
+        registry.addService(ResolvedGroup.Source.MDNS, "node-2", service("uid-1"));
+
+        assertEquals(ResolvedGroupRegistry.ChangeEvent.Type.SERVICE_REMOVED,
+                registry.removeService(ResolvedGroup.Source.MDNS, "node-1").getType());
+        assertEquals(ResolvedGroupRegistry.ChangeEvent.Type.GROUP_REMOVED,
+                registry.removeService(ResolvedGroup.Source.MDNS, "node-2").getType());
+        assertNull(registry.removeService(ResolvedGroup.Source.MDNS, "node-2"));
+        assertTrue(registry.getSnapshot().isEmpty());
+    }
+
+    @Test
+    public void snapshotsAreImmutableTest() {
+        ResolvedGroupRegistry registry = new ResolvedGroupRegistry();
+        registry.addService(ResolvedGroup.Source.MDNS, "node-1", service("uid-1"));
+        List<ResolvedGroup> before = registry.getSnapshot();
+
+        // adding a service to an existing group leaves the group list as it was
+        registry.addService(ResolvedGroup.Source.MDNS, "node-2", service("uid-1"));
+        assertSame(before, registry.getSnapshot());
+
+        registry.addService(ResolvedGroup.Source.MDNS, "node-3", service("uid-2"));
+        assertNotSame(before, registry.getSnapshot());
+        assertEquals(1, before.size());
+
+        try {
+            registry.getSnapshot().clear();
+            throw new AssertionError("snapshot should be unmodifiable");
+        } catch (UnsupportedOperationException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void retainServicesTest() {
+        ResolvedGroupRegistry registry = new ResolvedGroupRegistry();
+        registry.addService(ResolvedGroup.Source.WEBRTC, "uid-1", service("uid-1"));
+        registry.addService(ResolvedGroup.Source.WEBRTC, "uid-2", service("uid-2"));
+        registry.addService(ResolvedGroup.Source.MDNS, "node-1", service("uid-2"));
+
+        assertEquals(1, registry.retainServices(ResolvedGroup.Source.WEBRTC, Arrays.asList("uid-1")));
+        assertEquals(2, registry.getSnapshot().size());
+        assertTrue(registry.containsService(ResolvedGroup.Source.MDNS, "node-1"));
+
+        registry.clear(ResolvedGroup.Source.WEBRTC);
+        assertEquals(1, registry.getSnapshot().size());
+    }
+
+    @Test
+    public void concurrentEventsAreOrderedTest() throws InterruptedException {
+        final ResolvedGroupRegistry registry = new ResolvedGroupRegistry();
+        final List<Long> versions = Collections.synchronizedList(new ArrayList<Long>());
+        registry.addListener(new ResolvedGroupRegistry.Listener() {
+            @Override
+            public void onRegistryChanged(ResolvedGroupRegistry.ChangeEvent event) {
+                versions.add(event.getVersion());
+            }
+        });
+
+        final int threads = 8;
+        final int perThread = 500;
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    for (int i = 0; i < perThread; i++) {
+                        String key = "node-" + id + "-" + i;
+                        registry.addService(ResolvedGroup.Source.MDNS, key, service("uid-" + (i % 10)));
+                        if (i % 2 == 0) {
+                            registry.removeService(ResolvedGroup.Source.MDNS, key);
+                        }
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        long expected = threads * perThread * 3 / 2;
+        assertEquals(expected, registry.getVersion());
+        assertEquals(expected, versions.size());
+        for (int i = 0; i < versions.size(); i++) {
+            assertEquals(i + 1, (long) versions.get(i));
+        }
+
+        int services = 0;
+        for (ResolvedGroup group : registry.getSnapshot()) {
+            services += group.getResolvedServices().size();
+        }
+        assertEquals(threads * perThread / 2, services);
+    }
+
+    private static ResolvedService service(String groupUid) {
+        return new ResolvedService(groupUid, "group " + groupUid, "app", 0, null, null, null, 0);
+    }
+}
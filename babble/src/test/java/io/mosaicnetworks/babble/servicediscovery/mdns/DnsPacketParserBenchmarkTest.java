@@ -0,0 +1,89 @@
+package io.mosaicnetworks.babble.servicediscovery.mdns;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the throughput of DnsPacketParser with the legacy stream based decoder on a mix of
+ * typical responses. The timings are printed rather than asserted, as they depend on the machine.
+ * The benchmark is ignored in the regular test run, remove the {@code @Ignore} to run it.
+ */
+public class DnsPacketParserBenchmarkTest {
+
+    private static final int WARMUP_ITERATIONS = 20000;
+    private static final int MEASURED_ITERATIONS = 100000;
+
+    @Test
+    public void parserAndLegacyDecoderAgreeTest() throws IOException {
+        List<byte[]> packets = packets();
+
+        // every packet holds three records, for both decoders
+        assertEquals(3L * packets.size(),
+                runParser(new DnsPacketParser(), new DnsPacketParser.Message(), packets, packets.size()));
+        assertEquals(3L * packets.size(), runLegacy(packets, packets.size()));
+    }
+
+    @Ignore("Benchmark, run on demand")
+    @Test
+    public void parserVersusLegacyDecoderBenchmark() throws IOException {
+        List<byte[]> packets = packets();
+
+        DnsPacketParser parser = new DnsPacketParser();
+        DnsPacketParser.Message message = new DnsPacketParser.Message();
+
+        long sink = 0;
+        sink += runParser(parser, message, packets, WARMUP_ITERATIONS);
+        sink += runLegacy(packets, WARMUP_ITERATIONS);
+
+        long start = System.nanoTime();
+        sink += runParser(parser, message, packets, MEASURED_ITERATIONS);
+        long parserNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        sink += runLegacy(packets, MEASURED_ITERATIONS);
+        long legacyNanos = System.nanoTime() - start;
+
+        System.out.printf("DnsPacketParser: %d ns/packet, legacy decoder: %d ns/packet%n",
+                parserNanos / MEASURED_ITERATIONS, legacyNanos / MEASURED_ITERATIONS);
+
+        // every packet holds three records, for both decoders
+        assertEquals(3L * 2 * (WARMUP_ITERATIONS + MEASURED_ITERATIONS), sink);
+    }
+
+    private static List<byte[]> packets() throws IOException {
+        List<byte[]> packets = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            packets.add(DnsPacketParserTest.androidResponse("node-" + i, "192.168.1." + i, 6666 + i));
+        }
+        return packets;
+    }
+
+    private static long runParser(DnsPacketParser parser, DnsPacketParser.Message message,
+                                  List<byte[]> packets, int iterations) throws IOException {
+        long records = 0;
+        for (int i = 0; i < iterations; i++) {
+            byte[] packet = packets.get(i % packets.size());
+            parser.parse(packet, packet.length, message);
+            records += message.size();
+        }
+        return records;
+    }
+
+    private static long runLegacy(List<byte[]> packets, int iterations) throws IOException {
+        long records = 0;
+        List<MdnsCustomResolve.Record> decoded = new ArrayList<>();
+        for (int i = 0; i < iterations; i++) {
+            byte[] packet = packets.get(i % packets.size());
+            decoded.clear();
+            LegacyDnsDecoder.decodeRecords(packet, packet.length, decoded);
+            records += decoded.size();
+        }
+        return records;
+    }
+}
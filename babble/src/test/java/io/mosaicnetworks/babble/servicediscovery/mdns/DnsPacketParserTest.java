@@ -0,0 +1,331 @@
+package io.mosaicnetworks.babble.servicediscovery.mdns;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class DnsPacketParserTest {
+
+    @Test
+    public void decodesAndroidResponseTest() throws IOException {
+        DnsPacketParser parser = new DnsPacketParser();
+        DnsPacketParser.Message message = new DnsPacketParser.Message();
+
+        byte[] packet = androidResponse("node-1", "192.168.1.20", 6666);
+        parser.parse(packet, packet.length, message);
+
+        assertEquals(3, message.size());
+        MdnsCustomResolve.SRV srv = (MdnsCustomResolve.SRV) message.get(0);
+        assertEquals("node-1._babble._tcp.local", srv.fqdn);
+        assertEquals(6666, srv.port);
+        assertEquals("Android.local", srv.target);
+        assertEquals(120, srv.ttl);
+
+        MdnsCustomResolve.TXT txt = (MdnsCustomResolve.TXT) message.get(1);
+        assertEquals("babble-group", txt.dict.get("group"));
+        assertEquals("", txt.dict.get("empty"));
+        assertNull(txt.dict.get("flag"));
+        assertEquals(true, txt.dict.containsKey("flag"));
+        assertEquals("first", txt.dict.get("dup"));
+
+        MdnsCustomResolve.A a = (MdnsCustomResolve.A) message.get(2);
+        assertEquals("192.168.1.20", a.ipaddr);
+    }
+
+    @Test
+    public void reusesRecordsAndInternsNamesTest() throws IOException {
+        DnsPacketParser parser = new DnsPacketParser();
+        DnsPacketParser.Message message = new DnsPacketParser.Message();
+
+        byte[] packet = androidResponse("node-1", "10.0.0.1", 6666);
+        parser.parse(packet, packet.length, message);
+        MdnsCustomResolve.Record first = message.get(0);
+        String name = first.fqdn;
+        MdnsCustomResolve.Record copy = DnsPacketParser.copyOf(first);
+
+        byte[] other = androidResponse("node-2", "10.0.0.2", 7777);
+        parser.parse(other, other.length, message);
+        assertSame(first, message.get(0));
+        assertEquals("node-2._babble._tcp.local", message.get(0).fqdn);
+        assertEquals("node-1._babble._tcp.local", copy.fqdn);
+
+        parser.parse(packet, packet.length, message);
+        assertSame(name, message.get(0).fqdn);
+    }
+
+    @Test
+    public void parsesHeapBufferTest() throws IOException {
+        byte[] packet = androidResponse("node-1", "10.0.0.1", 6666);
+        byte[] padded = new byte[packet.length + 7];
+        System.arraycopy(packet, 0, padded, 5, packet.length);
+
+        ByteBuffer buffer = ByteBuffer.wrap(padded, 5, packet.length).slice();
+        DnsPacketParser.Message message = new DnsPacketParser.Message();
+        new DnsPacketParser().parse(buffer, message);
+
+        assertEquals(3, message.size());
+        assertEquals("Android.local", ((MdnsCustomResolve.SRV) message.get(0)).target);
+    }
+
+    @Test
+    public void emptyCycleTest() {
+        // an answer whose name is a pointer to itself
+        byte[] packet = header(0, 1);
+        packet = concat(packet, new byte[]{(byte) 0xc0, 12});
+        assertCycle(packet, "cyclic empty references in domain name");
+    }
+
+    @Test
+    public void nonEmptyCycleTest() {
+        // an answer whose name is a label followed by a pointer back to the label
+        byte[] packet = header(0, 1);
+        packet = concat(packet, new byte[]{3, 'a', 'b', 'c', (byte) 0xc0, 12});
+        assertCycle(packet, "cyclic non-empty references in domain name");
+    }
+
+    @Test
+    public void fuzzAgainstLegacyDecoderTest() throws IOException {
+        Random random = new Random(6762);
+        List<byte[]> seeds = new ArrayList<>();
+        seeds.add(androidResponse("node-1", "192.168.1.20", 6666));
+        seeds.add(androidResponse("\u00e9t\u00e9-node", "10.1.2.3", 1));
+        seeds.add(concat(header(0, 1), new byte[]{3, 'a', 'b', 'c', (byte) 0xc0, 12}));
+
+        DnsPacketParser parser = new DnsPacketParser();
+        DnsPacketParser.Message message = new DnsPacketParser.Message();
+
+        for (int i = 0; i < 50000; i++) {
+            byte[] packet;
+            if (i % 10 == 0) {
+                packet = new byte[random.nextInt(64)];
+                random.nextBytes(packet);
+            } else {
+                packet = mutate(seeds.get(random.nextInt(seeds.size())), random);
+            }
+            int length = random.nextInt(4) == 0 ? random.nextInt(packet.length + 1) : packet.length;
+            compare(parser, message, packet, length);
+        }
+    }
+
+    private static void compare(DnsPacketParser parser, DnsPacketParser.Message message,
+                                byte[] packet, int length) {
+        List<MdnsCustomResolve.Record> expected = new ArrayList<>();
+        Exception expectedError = null;
+        try {
+            LegacyDnsDecoder.decodeRecords(packet, length, expected);
+        } catch (Exception ex) {
+            expectedError = ex;
+        }
+
+        Exception actualError = null;
+        try {
+            parser.parse(packet, length, message);
+        } catch (Exception ex) {
+            actualError = ex;
+        }
+
+        String context = Arrays.toString(Arrays.copyOf(packet, length));
+        if (expectedError == null) {
+            assertNull(context, actualError);
+        } else {
+            if (actualError == null) {
+                fail("expected " + expectedError + " for " + context);
+            }
+            assertEquals(context, expectedError.getClass(), actualError.getClass());
+            assertEquals(context, expectedError.getMessage(), actualError.getMessage());
+        }
+
+        assertEquals(context, expected.size(), message.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(context, describe(expected.get(i)), describe(message.get(i)));
+        }
+    }
+
+    private static String describe(MdnsCustomResolve.Record record) {
+        String common = record.getClass().getSimpleName() + " " + record.fqdn + " " + record.ttl;
+        if (record instanceof MdnsCustomResolve.A) {
+            return common + " " + ((MdnsCustomResolve.A) record).ipaddr;
+        }
+        if (record instanceof MdnsCustomResolve.SRV) {
+            MdnsCustomResolve.SRV srv = (MdnsCustomResolve.SRV) record;
+            return common + " " + srv.priority + " " + srv.weight + " " + srv.port + " " + srv.target;
+        }
+        return common + " " + ((MdnsCustomResolve.TXT) record).dict;
+    }
+
+    private static byte[] mutate(byte[] seed, Random random) {
+        byte[] packet = seed.clone();
+        int mutations = 1 + random.nextInt(4);
+        for (int m = 0; m < mutations; m++) {
+            int pos = random.nextInt(packet.length);
+            switch (random.nextInt(4)) {
+                case 0:
+                    packet[pos] = (byte) random.nextInt(256);
+                    break;
+                case 1:
+                    packet[pos] ^= 1 << random.nextInt(8);
+                    break;
+                case 2:
+                    // plant a compression pointer somewhere in the packet
+                    if (pos + 1 < packet.length) {
+                        packet[pos] = (byte) 0xc0;
+                        packet[pos + 1] = (byte) random.nextInt(packet.length + 4);
+                    }
+                    break;
+                default:
+                    // corrupt a count in the header
+                    packet[4 + random.nextInt(8)] = (byte) random.nextInt(4);
+                    break;
+            }
+        }
+        return packet;
+    }
+
+    private static void assertCycle(byte[] packet, String message) {
+        try {
+            new DnsPacketParser().parse(packet, packet.length, new DnsPacketParser.Message());
+            fail("expected a cycle to be detected");
+        } catch (IOException ex) {
+            assertEquals(message, ex.getMessage());
+        }
+    }
+
+    /**
+     * A response shaped like those sent by Android's mDNS responder: SRV, TXT and A records with
+     * the service type and host names compressed.
+     */
+    static byte[] androidResponse(String instance, String ipaddr, int port) throws IOException {
+        PacketWriter writer = new PacketWriter();
+        writer.header(0, 3);
+
+        int serviceName = writer.position();
+        writer.name(instance + "._babble._tcp.local");
+        writer.recordHeader(MdnsCustomResolve.QTYPE_SRV, 120);
+        int srvLength = writer.beginData();
+        writer.u16(0);
+        writer.u16(0);
+        writer.u16(port);
+        int hostName = writer.position();
+        writer.labels("Android");
+        writer.pointer(serviceName + 1 + instance.getBytes("UTF-8").length + 1 + 7 + 1 + 4);
+        writer.endData(srvLength);
+
+        writer.pointer(serviceName);
+        writer.recordHeader(MdnsCustomResolve.QTYPE_TXT, 4500);
+        int txtLength = writer.beginData();
+        writer.txt("group=babble-group", "empty=", "flag", "dup=first", "dup=second");
+        writer.endData(txtLength);
+
+        writer.pointer(hostName);
+        writer.recordHeader(MdnsCustomResolve.QTYPE_A, 120);
+        int aLength = writer.beginData();
+        for (String part : ipaddr.split("\\.")) {
+            writer.u8(Integer.parseInt(part));
+        }
+        writer.endData(aLength);
+
+        return writer.toByteArray();
+    }
+
+    private static byte[] header(int questions, int answers) {
+        return new byte[]{0, 0, (byte) 0x84, 0, 0, (byte) questions, 0, (byte) answers, 0, 0, 0, 0};
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    static class PacketWriter {
+        private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+        private final Map<Integer, Integer> mDataLengths = new HashMap<>();
+
+        int position() {
+            return mOut.size();
+        }
+
+        void header(int questions, int answers) {
+            u16(0);
+            u16(0x8400);
+            u16(questions);
+            u16(answers);
+            u16(0);
+            u16(0);
+        }
+
+        void name(String name) throws IOException {
+            labels(name.split("\\."));
+            u8(0);
+        }
+
+        void labels(String... labels) throws IOException {
+            for (String label : labels) {
+                byte[] bytes = label.getBytes("UTF-8");
+                u8(bytes.length);
+                mOut.write(bytes);
+            }
+        }
+
+        void pointer(int offset) {
+            u8(0xc0 | (offset >> 8));
+            u8(offset & 0xff);
+        }
+
+        void recordHeader(int type, int ttl) {
+            u16(type);
+            u16(MdnsCustomResolve.QCLASS_INTERNET);
+            u16(ttl >>> 16);
+            u16(ttl & 0xffff);
+        }
+
+        int beginData() {
+            int position = mOut.size();
+            u16(0);
+            return position;
+        }
+
+        void endData(int lengthPosition) {
+            mDataLengths.put(lengthPosition, mOut.size() - lengthPosition - 2);
+        }
+
+        void txt(String... entries) throws IOException {
+            for (String entry : entries) {
+                byte[] bytes = entry.getBytes("UTF-8");
+                u8(bytes.length);
+                mOut.write(bytes);
+            }
+        }
+
+        void u8(int value) {
+            mOut.write(value);
+        }
+
+        void u16(int value) {
+            mOut.write(value >> 8);
+            mOut.write(value);
+        }
+
+        byte[] toByteArray() {
+            byte[] data = mOut.toByteArray();
+            for (Map.Entry<Integer, Integer> entry : mDataLengths.entrySet()) {
+                data[entry.getKey()] = (byte) (entry.getValue() >> 8);
+                data[entry.getKey() + 1] = (byte) (entry.getValue() & 0xff);
+            }
+            return data;
+        }
+    }
+}
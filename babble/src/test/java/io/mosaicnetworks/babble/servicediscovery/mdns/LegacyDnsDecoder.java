@@ -0,0 +1,158 @@
+package io.mosaicnetworks.babble.servicediscovery.mdns;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The stream based decoder that MdnsCustomResolve used before DnsPacketParser. It is kept as a
+ * reference implementation for the parser tests. Strings are decoded as UTF-8, which is the
+ * platform charset on Android.
+ */
+class LegacyDnsDecoder {
+
+    static void decodeRecords(byte[] packet, int packetLength, List<MdnsCustomResolve.Record> records) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(packet, 0, packetLength));
+        short transactionID = dis.readShort();
+        short flags = dis.readShort();
+        int questions = dis.readUnsignedShort();
+        int answers = dis.readUnsignedShort();
+        int authorityRRs = dis.readUnsignedShort();
+        int additionalRRs = dis.readUnsignedShort();
+        // decode the queries
+        for (int i = 0; i < questions; i++) {
+            String fqdn = decodeFQDN(dis, packet, packetLength);
+            short type = dis.readShort();
+            short qclass = dis.readShort();
+        }
+        // decode the answers
+        for (int i = 0; i < answers + authorityRRs + additionalRRs; i++) {
+            String fqdn = decodeFQDN(dis, packet, packetLength);
+            short type = dis.readShort();
+            short aclass = dis.readShort();
+            int ttl = dis.readInt();
+            int length = dis.readUnsignedShort();
+            byte[] data = new byte[length];
+            dis.readFully(data);
+            MdnsCustomResolve.Record record = null;
+            switch (type) {
+                case MdnsCustomResolve.QTYPE_A:
+                    record = decodeA(data);
+                    break;
+                case MdnsCustomResolve.QTYPE_SRV:
+                    record = decodeSRV(data, packet, packetLength);
+                    break;
+                case MdnsCustomResolve.QTYPE_PTR:
+                    decodePTR(data, packet, packetLength);
+                    break;
+                case MdnsCustomResolve.QTYPE_TXT:
+                    record = decodeTXT(data);
+                    break;
+                default:
+                    break;
+            }
+            if (record != null) {
+                record.fqdn = fqdn;
+                record.ttl = ttl;
+                records.add(record);
+            }
+        }
+    }
+
+    private static MdnsCustomResolve.SRV decodeSRV(byte[] srvData, byte[] packetData, int packetLength) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(srvData));
+        MdnsCustomResolve.SRV srv = new MdnsCustomResolve.SRV();
+        srv.priority = dis.readUnsignedShort();
+        srv.weight = dis.readUnsignedShort();
+        srv.port = dis.readUnsignedShort();
+        srv.target = decodeFQDN(dis, packetData, packetLength);
+        return srv;
+    }
+
+    private static String decodePTR(byte[] ptrData, byte[] packet, int packetLength) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(ptrData));
+        String fqdn = decodeFQDN(dis, packet, packetLength);
+        return fqdn;
+    }
+
+    private static MdnsCustomResolve.A decodeA(byte[] data) throws IOException {
+        if (data.length < 4) throw new IOException("expected 4 bytes for IPv4 addr");
+        MdnsCustomResolve.A a = new MdnsCustomResolve.A();
+        a.ipaddr = (data[0] & 0xFF) + "." + (data[1] & 0xFF) + "." + (data[2] & 0xFF) + "." + (data[3] & 0xFF);
+        return a;
+    }
+
+    private static MdnsCustomResolve.TXT decodeTXT(byte[] data) throws IOException {
+        MdnsCustomResolve.TXT txt = new MdnsCustomResolve.TXT();
+        txt.dict = new HashMap<>();
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        while (true) {
+            int length;
+            try {
+                length = dis.readUnsignedByte();
+            } catch (EOFException e) {
+                return txt;
+            }
+            byte[] segmentBytes = new byte[length];
+            dis.readFully(segmentBytes);
+            String segment = new String(segmentBytes, StandardCharsets.UTF_8);
+            int pos = segment.indexOf('=');
+            String key, value = null;
+            if (pos != -1) {
+                key = segment.substring(0, pos);
+                value = segment.substring(pos + 1);
+            } else {
+                key = segment;
+            }
+            if (!txt.dict.containsKey(key)) {
+                // from RFC6763
+                // If a client receives a TXT record containing the same key more than once, then
+                // the client MUST silently ignore all but the first occurrence of that attribute."
+                txt.dict.put(key, value);
+            }
+        }
+    }
+
+    private static String decodeFQDN(DataInputStream dis, byte[] packet, int packetLength) throws IOException {
+        StringBuilder result = new StringBuilder();
+        boolean dot = false;
+        while (true) {
+            int pointerHopCount = 0;
+            int length;
+            while (true) {
+                length = dis.readUnsignedByte();
+                if (length == 0) return result.toString();
+                if ((length & 0xc0) == 0xc0) {
+                    // this is a compression method, the remainder of the string is a pointer to elsewhere in the packet
+                    // adjust the stream boundary and repeat processing
+                    if ((++pointerHopCount) * 2 >= packetLength) {
+                        // We must have visited one of the possible pointers more than once => cycle
+                        // this doesn't add to the domain length, but decoding would be non-terminating
+                        throw new IOException("cyclic empty references in domain name");
+                    }
+                    length &= 0x3f;
+                    int offset = (length << 8) | dis.readUnsignedByte();
+                    dis = new DataInputStream(new ByteArrayInputStream(packet, offset, packetLength - offset));
+                } else {
+                    break;
+                }
+            }
+            byte[] segment = new byte[length];
+            dis.readFully(segment);
+            if (dot) result.append('.');
+            dot = true;
+            result.append(new String(segment, StandardCharsets.UTF_8));
+            if (result.length() > packetLength) {
+                // If we get here, we must be following cyclic references, since non-cyclic
+                // references can't encode a domain name longer than the total length of the packet.
+                // The domain name would be infinitely long, so abort now rather than consume
+                // maximum heap.
+                throw new IOException("cyclic non-empty references in domain name");
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package io.mosaicnetworks.babble.servicediscovery.mdns;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MdnsRecordCacheTest {
+
+    private static final String SERVICE = "node._babble._tcp.local";
+    private static final String HOST = "host.local";
+
+    private MdnsRecordCache mCache;
+    private final List<String> mRefreshes = new ArrayList<>();
+    private final List<Long> mRefreshTimes = new ArrayList<>();
+    private final List<String> mExpiries = new ArrayList<>();
+    private long mNow;
+
+    @Before
+    public void setUp() {
+        mCache = new MdnsRecordCache(100, new Random(6762));
+        mCache.addListener(new MdnsRecordCache.Listener() {
+            @Override
+            public void onRefreshDue(String name, int type) {
+                mRefreshes.add(name + "/" + type);
+                mRefreshTimes.add(mNow);
+            }
+
+            @Override
+            public void onRecordExpired(String name, int type) {
+                mExpiries.add(name + "/" + type);
+            }
+        });
+    }
+
+    @Test
+    public void refreshesBeforeExpiryTest() {
+        mCache.put(srv(SERVICE, HOST, 100), 0);
+
+        for (mNow = 0; mNow <= 101000; mNow += 100) {
+            mCache.advance(mNow);
+        }
+
+        // four refresh points between 80% and 97% of the TTL, then the expiry
+        assertEquals(4, mRefreshes.size());
+        for (long time : mRefreshTimes) {
+            assertTrue("refresh at " + time, time >= 80000 && time <= 97100);
+        }
+        assertEquals(1, mExpiries.size());
+        assertEquals(SERVICE + "/" + MdnsCustomResolve.QTYPE_SRV, mExpiries.get(0));
+        assertEquals(0, mCache.size());
+    }
+
+    @Test
+    public void refreshedRecordDoesNotExpireTest() {
+        mCache.put(srv(SERVICE, HOST, 10), 0);
+        mNow = 8500;
+        mCache.advance(mNow);
+        assertEquals(1, mRefreshes.size());
+
+        mCache.put(srv(SERVICE, HOST, 10), mNow);
+        for (mNow = 8500; mNow <= 12000; mNow += 100) {
+            mCache.advance(mNow);
+        }
+
+        // the timers of the replaced record are stale and ignored
+        assertEquals(1, mRefreshes.size());
+        assertTrue(mExpiries.isEmpty());
+        assertNotNull(mCache.get(SERVICE, MdnsCustomResolve.QTYPE_SRV, mNow));
+    }
+
+    @Test
+    public void goodbyeExpiresAfterOneSecondTest() {
+        mCache.put(srv(SERVICE, HOST, 120), 0);
+        mCache.put(srv(SERVICE, HOST, 0), 5000);
+
+        mCache.advance(5900);
+        assertTrue(mExpiries.isEmpty());
+        mCache.advance(6100);
+        assertEquals(1, mExpiries.size());
+        assertNull(mCache.get(SERVICE, MdnsCustomResolve.QTYPE_SRV, 6100));
+    }
+
+    @Test
+    public void resultLookupTest() {
+        assertNull(mCache.getResult(SERVICE, 0));
+        assertFalse(mCache.isTracked(HOST, MdnsCustomResolve.QTYPE_A));
+
+        mCache.put(srv(SERVICE, HOST, 120), 0);
+        mCache.put(txt(SERVICE, 120), 0);
+        assertTrue(mCache.isTracked(HOST, MdnsCustomResolve.QTYPE_A));
+        assertNull(mCache.getResult(SERVICE, 0));
+
+        mCache.put(a(HOST, "10.0.0.1", 120), 0);
+        MdnsCustomResolve.Result result = mCache.getResult(SERVICE.toUpperCase(), 30000);
+        assertNotNull(result);
+        assertEquals("10.0.0.1", result.a.ipaddr);
+        assertEquals(90, result.srv.ttl);
+
+        assertEquals(1, mCache.getHitCount());
+        assertEquals(2, mCache.getMissCount());
+
+        mCache.removeService(SERVICE);
+        assertNull(mCache.getResult(SERVICE, 30000));
+        assertFalse(mCache.isTracked(SERVICE, MdnsCustomResolve.QTYPE_SRV));
+    }
+
+    @Test
+    public void largeTimeJumpTest() {
+        for (int i = 0; i < 1000; i++) {
+            mCache.put(srv("node" + i + "._babble._tcp.local", HOST, 1 + i % 200), 0);
+        }
+
+        // far more than one revolution of the wheel
+        mNow = 10000000;
+        mCache.advance(mNow);
+
+        assertEquals(1000, mExpiries.size());
+        assertEquals(4000, mRefreshes.size());
+        assertEquals(0, mCache.size());
+        assertEquals(Long.MAX_VALUE, mCache.getNextDeadline());
+    }
+
+    @Test
+    public void synthesizedRecordsExpireSilentlyTest() {
+        MdnsCustomResolve.Result result = new MdnsCustomResolve.Result();
+        result.srv = srv(SERVICE, HOST, 10);
+        result.txt = txt(SERVICE, 10);
+        result.a = a(HOST, "192.168.1.2", 10);
+        mCache.putSynthesizedResult(result, 0);
+        assertNotNull(mCache.getResult(SERVICE, 5000));
+
+        for (mNow = 0; mNow <= 11000; mNow += 100) {
+            mCache.advance(mNow);
+        }
+
+        // the records are gone, but nothing was asked to refresh them or told they expired
+        assertNull(mCache.getResult(SERVICE, mNow));
+        assertEquals(0, mCache.size());
+        assertTrue(mRefreshes.isEmpty());
+        assertTrue(mExpiries.isEmpty());
+
+        // a record learnt from a packet is tracked as usual
+        mCache.putSynthesizedResult(result, mNow);
+        mCache.put(srv(SERVICE, HOST, 10), mNow);
+        long start = mNow;
+        for (; mNow <= start + 11000; mNow += 100) {
+            mCache.advance(mNow);
+        }
+        assertEquals(4, mRefreshes.size());
+        assertEquals(1, mExpiries.size());
+    }
+
+    @Test
+    public void overheardRecordsAreRefreshedOnceTrackedTest() {
+        mCache.putOverheard(srv(SERVICE, HOST, 10), 0);
+        mCache.putOverheard(txt(SERVICE, 10), 0);
+        mCache.putOverheard(a(HOST, "192.168.1.2", 10), 0);
+        for (mNow = 0; mNow <= 11000; mNow += 100) {
+            mCache.advance(mNow);
+        }
+
+        // used and expired, but never refreshed
+        assertTrue(mRefreshes.isEmpty());
+        assertEquals(3, mExpiries.size());
+
+        // once the service is resolved, its records are refreshed, overheard copies included
+        long start = mNow;
+        mCache.putOverheard(srv(SERVICE, HOST, 10), start);
+        mCache.putOverheard(txt(SERVICE, 10), start);
+        mCache.track(SERVICE);
+        mCache.putOverheard(a(HOST, "192.168.1.2", 10), start);
+        assertTrue(mCache.isRefreshed(HOST, MdnsCustomResolve.QTYPE_A));
+        mCache.putOverheard(srv(SERVICE, HOST, 10), start + 1000);
+        for (; mNow <= start + 12000; mNow += 100) {
+            mCache.advance(mNow);
+        }
+        assertEquals(12, mRefreshes.size());
+    }
+
+    private static MdnsCustomResolve.SRV srv(String name, String target, int ttl) {
+        MdnsCustomResolve.SRV srv = new MdnsCustomResolve.SRV();
+        srv.fqdn = name;
+        srv.ttl = ttl;
+        srv.port = 6666;
+        srv.target = target;
+        return srv;
+    }
+
+    private static MdnsCustomResolve.TXT txt(String name, int ttl) {
+        MdnsCustomResolve.TXT txt = new MdnsCustomResolve.TXT();
+        txt.fqdn = name;
+        txt.ttl = ttl;
+        txt.dict = new HashMap<>();
+        txt.dict.put("uid", "1");
+        return txt;
+    }
+
+    private static MdnsCustomResolve.A a(String name, String ipaddr, int ttl) {
+        MdnsCustomResolve.A a = new MdnsCustomResolve.A();
+        a.fqdn = name;
+        a.ttl = ttl;
+        a.ipaddr = ipaddr;
+        return a;
+    }
+}
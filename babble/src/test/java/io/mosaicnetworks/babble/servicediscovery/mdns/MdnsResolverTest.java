@@ -0,0 +1,451 @@
+package io.mosaicnetworks.babble.servicediscovery.mdns;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MdnsResolverTest {
+
+    private static final String SERVICE_TYPE = "._babble._tcp.local";
+
+    private Responder mResponder;
+    private MdnsResolver mResolver;
+
+    @Before
+    public void setUp() throws IOException {
+        mResponder = new Responder();
+        mResponder.start();
+        mResolver = new MdnsResolver(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                mResponder.getPort()));
+        mResolver.start();
+    }
+
+    @After
+    public void tearDown() {
+        mResolver.stop();
+        mResponder.stop();
+    }
+
+    @Test
+    public void batchedResolveTest() throws Exception {
+        final int count = 20;
+        for (int i = 0; i < count; i++) {
+            String name = "node" + i + SERVICE_TYPE;
+            mResponder.addAnswer(name, cannedPacket(srv(name, "host" + i + ".local", 6000 + i),
+                    txt(name, "uid=" + i), a("host" + i + ".local", "192.168.1." + i)));
+        }
+
+        CollectingListener listener = new CollectingListener(count);
+        for (int i = 0; i < count; i++) {
+            mResolver.resolve("node" + i + SERVICE_TYPE, 3000, listener);
+        }
+
+        assertTrue(listener.await(3000));
+        assertEquals(count, listener.mResolved.size());
+        assertEquals(0, listener.mFailed.size());
+
+        MdnsCustomResolve.Result result = listener.mResolved.get("node7" + SERVICE_TYPE);
+        assertEquals(6007, result.srv.port);
+        assertEquals("192.168.1.7", result.a.ipaddr);
+        assertEquals("7", result.txt.dict.get("uid"));
+
+        // all twenty services fit in a single query packet
+        assertEquals(1, mResponder.mQueryCount.get());
+    }
+
+    @Test
+    public void followUpAddressQueryTest() throws Exception {
+        String name = "node" + SERVICE_TYPE;
+        mResponder.addAnswer(name, cannedPacket(srv(name, "host.local", 6000), txt(name, "uid=1")));
+        mResponder.addAnswer("host.local", cannedPacket(a("host.local", "10.0.0.1")));
+
+        CollectingListener listener = new CollectingListener(1);
+        mResolver.resolve(name, 3000, listener);
+
+        assertTrue(listener.await(3000));
+        assertEquals("10.0.0.1", listener.mResolved.get(name).a.ipaddr);
+        assertEquals(2, mResponder.mQueryCount.get());
+    }
+
+    @Test
+    public void demultiplexIsCaseInsensitiveTest() throws Exception {
+        String name = "Node" + SERVICE_TYPE;
+        String upper = name.toUpperCase();
+        mResponder.addAnswer(name, cannedPacket(srv(upper, "HOST.local", 6000), txt(upper, "uid=1"),
+                a("host.LOCAL", "10.0.0.2")));
+
+        CollectingListener listener = new CollectingListener(1);
+        mResolver.resolve(name, 3000, listener);
+
+        assertTrue(listener.await(3000));
+        assertEquals("10.0.0.2", listener.mResolved.get(name).a.ipaddr);
+    }
+
+    @Test
+    public void timeoutTest() throws Exception {
+        String name = "partial" + SERVICE_TYPE;
+        mResponder.addAnswer(name, cannedPacket(txt(name, "uid=1")));
+
+        CollectingListener listener = new CollectingListener(1);
+        mResolver.resolve(name, 300, listener);
+
+        assertTrue(listener.await(3000));
+        MdnsCustomResolve.Result partial = listener.mFailed.get(name);
+        assertNotNull(partial);
+        assertNotNull(partial.txt);
+        assertNull(partial.srv);
+    }
+
+    @Test
+    public void stopFailsPendingTest() throws Exception {
+        CollectingListener listener = new CollectingListener(1);
+        mResolver.resolve("missing" + SERVICE_TYPE, 10000, listener);
+        mResolver.stop();
+
+        assertTrue(listener.await(1000));
+        assertEquals(1, listener.mFailed.size());
+    }
+
+    @Test
+    public void knownAnswerTest() throws Exception {
+        String name = "node" + SERVICE_TYPE;
+        mResolver.getRecordCache().put(srvRecord(name, "host.local", 6000), MdnsRecordCache.now());
+        mResponder.addAnswer(name, cannedPacket(txt(name, "uid=1")));
+        mResponder.addAnswer("host.local", cannedPacket(a("host.local", "10.0.0.3")));
+
+        CollectingListener listener = new CollectingListener(1);
+        mResolver.resolve(name, 3000, listener);
+
+        assertTrue(listener.await(3000));
+        MdnsCustomResolve.Result result = listener.mResolved.get(name);
+        assertEquals(6000, result.srv.port);
+        assertEquals("10.0.0.3", result.a.ipaddr);
+
+        // the cached SRV record is listed as a known answer, and the TXT and A records are asked
+        // for together
+        assertEquals(1, mResponder.mQueryCount.get());
+        assertEquals(1, mResponder.mKnownAnswerCount.get());
+    }
+
+    @Test
+    public void passiveListenerReplayTest() throws Exception {
+        MdnsRecordCache cache = mResolver.getRecordCache();
+        MdnsPassiveListener passiveListener = new MdnsPassiveListener(cache, "_babble._tcp.local", 0, null);
+        passiveListener.start();
+
+        try (DatagramSocket socket = new DatagramSocket()) {
+            // replay announcements as multicast by other phones, and one for another service type
+            for (int i = 0; i < 10; i++) {
+                byte[] packet = DnsPacketParserTest.androidResponse("node-" + i, "192.168.1." + i, 6000 + i);
+                socket.send(new DatagramPacket(packet, packet.length, InetAddress.getLoopbackAddress(),
+                        passiveListener.getLocalPort()));
+            }
+            byte[] other = cannedPacket(srv("printer._ipp._tcp.local", "printer.local", 631));
+            socket.send(new DatagramPacket(other, other.length, InetAddress.getLoopbackAddress(),
+                    passiveListener.getLocalPort()));
+
+            long deadline = System.currentTimeMillis() + 3000;
+            while (passiveListener.getPacketCount() < 11 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        } finally {
+            passiveListener.stop();
+        }
+
+        // a SRV and a TXT record per announcement, and the A record of the host name they all
+        // share. The printer is ignored.
+        assertEquals(21, cache.size());
+
+        CollectingListener listener = new CollectingListener(10);
+        for (int i = 0; i < 10; i++) {
+            mResolver.resolve("node-" + i + SERVICE_TYPE, 3000, listener);
+        }
+
+        assertTrue(listener.await(3000));
+        assertEquals(10, listener.mResolved.size());
+        assertEquals(6007, listener.mResolved.get("node-7" + SERVICE_TYPE).srv.port);
+        assertEquals(0, mResponder.mQueryCount.get());
+    }
+
+    @Test
+    public void overheardServicesAreNotRefreshedTest() throws Exception {
+        // with the default one second tick the refresh points of a two second record can fall in
+        // the tick of its expiry
+        mResolver.stop();
+        mResolver = new MdnsResolver(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                mResponder.getPort()), new MdnsRecordCache(100, new Random(6762)));
+        mResolver.start();
+
+        String name = "node" + SERVICE_TYPE;
+        mResponder.addAnswer(name, cannedPacket(srv(name, "host.local", 6000, 2),
+                txt(name, 2, "uid=1"), a("host.local", "10.0.0.3", 2)));
+
+        MdnsRecordCache cache = mResolver.getRecordCache();
+        MdnsPassiveListener passiveListener = new MdnsPassiveListener(cache, "_babble._tcp.local", 0, null);
+        passiveListener.start();
+
+        try (DatagramSocket socket = new DatagramSocket()) {
+            // replay answers to other phones' queries, for services this one never resolves
+            for (int i = 0; i < 10; i++) {
+                String heard = "heard-" + i + SERVICE_TYPE;
+                byte[] packet = cannedPacket(srv(heard, "heard-" + i + ".local", 6000 + i, 2),
+                        txt(heard, 2, "uid=" + i), a("heard-" + i + ".local", "10.0.1." + i, 2));
+                socket.send(new DatagramPacket(packet, packet.length, InetAddress.getLoopbackAddress(),
+                        passiveListener.getLocalPort()));
+            }
+
+            long deadline = System.currentTimeMillis() + 3000;
+            while (passiveListener.getPacketCount() < 10 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        } finally {
+            passiveListener.stop();
+        }
+        assertEquals(30, cache.size());
+
+        CollectingListener listener = new CollectingListener(1);
+        mResolver.resolve(name, 3000, listener);
+        assertTrue(listener.await(3000));
+
+        // past the refresh points and the expiry of every record
+        Thread.sleep(3000);
+
+        // the resolved service is refreshed, the overheard ones are left to expire
+        assertTrue(mResponder.mQuestions.size() > 1);
+        for (String question : mResponder.mQuestions) {
+            assertFalse(question, question.startsWith("heard-"));
+        }
+        assertNull(cache.get("heard-0" + SERVICE_TYPE, MdnsCustomResolve.QTYPE_SRV,
+                MdnsRecordCache.now()));
+        assertNotNull(cache.get(name, MdnsCustomResolve.QTYPE_SRV, MdnsRecordCache.now()));
+    }
+
+    private static class CollectingListener implements MdnsResolver.ResolveListener {
+
+        final Map<String, MdnsCustomResolve.Result> mResolved = new ConcurrentHashMap<>();
+        final Map<String, MdnsCustomResolve.Result> mFailed = new ConcurrentHashMap<>();
+        private final CountDownLatch mLatch;
+
+        CollectingListener(int count) {
+            mLatch = new CountDownLatch(count);
+        }
+
+        boolean await(long timeoutMs) throws InterruptedException {
+            return mLatch.await(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void onServiceResolved(String serviceName, MdnsCustomResolve.Result result) {
+            mResolved.put(serviceName, result);
+            mLatch.countDown();
+        }
+
+        @Override
+        public void onResolveFailed(String serviceName, MdnsCustomResolve.Result partialResult) {
+            mFailed.put(serviceName, partialResult);
+            mLatch.countDown();
+        }
+    }
+
+    /**
+     * A unicast stand in for an mDNS responder. Every question name found in a query is looked up
+     * in a table of canned answer packets and the matching packets are replayed to the sender.
+     */
+    private static class Responder {
+
+        final AtomicInteger mQueryCount = new AtomicInteger();
+        final AtomicInteger mKnownAnswerCount = new AtomicInteger();
+        final List<String> mQuestions = new CopyOnWriteArrayList<>();
+        private final Map<String, byte[]> mAnswers = new ConcurrentHashMap<>();
+        private DatagramSocket mSocket;
+        private Thread mThread;
+
+        void start() throws SocketException {
+            mSocket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve();
+                }
+            });
+            mThread.start();
+        }
+
+        void stop() {
+            mSocket.close();
+            try {
+                mThread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        int getPort() {
+            return mSocket.getLocalPort();
+        }
+
+        void addAnswer(String name, byte[] packet) {
+            mAnswers.put(name.toLowerCase(), packet);
+        }
+
+        private void serve() {
+            byte[] buf = new byte[9000];
+            while (!mSocket.isClosed()) {
+                DatagramPacket query = new DatagramPacket(buf, buf.length);
+                try {
+                    mSocket.receive(query);
+                    mQueryCount.incrementAndGet();
+                    mKnownAnswerCount.addAndGet(((buf[6] & 0xff) << 8) | (buf[7] & 0xff));
+
+                    for (String name : questionNames(query.getData(), query.getLength())) {
+                        mQuestions.add(name);
+                        byte[] answer = mAnswers.get(name.toLowerCase());
+                        if (answer != null) {
+                            mSocket.send(new DatagramPacket(answer, answer.length,
+                                    query.getSocketAddress()));
+                        }
+                    }
+                } catch (IOException ex) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static List<String> questionNames(byte[] packet, int length) {
+        int questions = ((packet[4] & 0xff) << 8) | (packet[5] & 0xff);
+        List<String> names = new ArrayList<>();
+        int[] offset = {12};
+        for (int i = 0; i < questions; i++) {
+            String name = readName(packet, offset);
+            if (!names.contains(name)) {
+                names.add(name);
+            }
+            offset[0] += 4;
+        }
+        return names;
+    }
+
+    private static String readName(byte[] packet, int[] offset) {
+        StringBuilder name = new StringBuilder();
+        int pos = offset[0];
+        boolean jumped = false;
+        while (true) {
+            int length = packet[pos] & 0xff;
+            if (length == 0) {
+                if (!jumped) {
+                    offset[0] = pos + 1;
+                }
+                return name.toString();
+            }
+            if ((length & 0xc0) == 0xc0) {
+                if (!jumped) {
+                    offset[0] = pos + 2;
+                }
+                jumped = true;
+                pos = ((length & 0x3f) << 8) | (packet[pos + 1] & 0xff);
+                continue;
+            }
+            if (name.length() > 0) {
+                name.append('.');
+            }
+            name.append(new String(packet, pos + 1, length));
+            pos += length + 1;
+        }
+    }
+
+    private static byte[] cannedPacket(byte[]... records) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeShort(0);
+        dos.writeShort(0x8400); // response, authoritative
+        dos.writeShort(0);
+        dos.writeShort(records.length);
+        dos.writeShort(0);
+        dos.writeShort(0);
+        for (byte[] record : records) {
+            dos.write(record);
+        }
+        return bos.toByteArray();
+    }
+
+    private static byte[] record(String name, short type, int ttl, byte[] data) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        MdnsCustomResolve.writeFQDN(name, dos);
+        dos.writeShort(type);
+        dos.writeShort(MdnsCustomResolve.QCLASS_INTERNET);
+        dos.writeInt(ttl);
+        dos.writeShort(data.length);
+        dos.write(data);
+        return bos.toByteArray();
+    }
+
+    private static byte[] srv(String name, String target, int port) throws IOException {
+        return srv(name, target, port, 120);
+    }
+
+    private static byte[] srv(String name, String target, int port, int ttl) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeShort(0);
+        dos.writeShort(0);
+        dos.writeShort(port);
+        MdnsCustomResolve.writeFQDN(target, dos);
+        return record(name, MdnsCustomResolve.QTYPE_SRV, ttl, bos.toByteArray());
+    }
+
+    private static MdnsCustomResolve.SRV srvRecord(String name, String target, int port) {
+        MdnsCustomResolve.SRV srv = new MdnsCustomResolve.SRV();
+        srv.fqdn = name;
+        srv.ttl = 120;
+        srv.port = port;
+        srv.target = target;
+        return srv;
+    }
+
+    private static byte[] txt(String name, String... entries) throws IOException {
+        return txt(name, 120, entries);
+    }
+
+    private static byte[] txt(String name, int ttl, String... entries) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        for (String entry : entries) {
+            bos.write(entry.length());
+            bos.write(entry.getBytes());
+        }
+        return record(name, MdnsCustomResolve.QTYPE_TXT, ttl, bos.toByteArray());
+    }
+
+    private static byte[] a(String name, String ipaddr) throws IOException {
+        return a(name, ipaddr, 120);
+    }
+
+    private static byte[] a(String name, String ipaddr, int ttl) throws IOException {
+        return record(name, MdnsCustomResolve.QTYPE_A, ttl, InetAddress.getByName(ipaddr).getAddress());
+    }
+}
@@ -0,0 +1,116 @@
+package io.mosaicnetworks.babble.servicediscovery.webrtc;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import io.mosaicnetworks.babble.servicediscovery.ResolvedGroup;
+import io.mosaicnetworks.babble.servicediscovery.ResolvedGroupRegistry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DiscoGroupSyncTest {
+
+    @Test
+    public void parseFullMapTest() throws IOException {
+        DiscoGroupsResponse response = parse("{" + group("uid-1", 100) + "," + group("uid-2", 120) + "}");
+
+        assertTrue(response.isFull());
+        assertEquals(2, response.getGroups().size());
+        assertEquals("group uid-2", response.getGroups().get("uid-2").getGroupName());
+        assertEquals(120, response.getWatermark());
+    }
+
+    @Test
+    public void parseSkipsPeersTest() throws IOException {
+        // members of the peers with the names of group members must not be taken for them
+        DiscoGroupsResponse response = parse("{\"uid-1\":{\"Peers\":[{\"ID\":\"peer\","
+                + "\"Name\":\"peer\",\"LastUpdated\":999}],\"ID\":\"uid-1\",\"Name\":\"group\","
+                + "\"AppID\":\"app\",\"LastUpdated\":100,\"GenesisPeers\":[{\"AppID\":\"peer\"}]}}");
+
+        DiscoGroupSummary summary = response.getGroups().get("uid-1");
+        assertEquals("uid-1", summary.getGroupUid());
+        assertEquals("group", summary.getGroupName());
+        assertEquals("app", summary.getAppId());
+        assertEquals(100, summary.getLastUpdated());
+        assertEquals(100, response.getWatermark());
+    }
+
+    @Test
+    public void parseDeltaTest() throws IOException {
+        DiscoGroupsResponse response = parse("{\"LastUpdated\":150,\"Groups\":{" + group("uid-3", 140)
+                + "},\"Removed\":[\"uid-1\"]}");
+
+        assertFalse(response.isFull());
+        assertEquals(1, response.getGroups().size());
+        assertEquals("uid-1", response.getRemoved().get(0));
+        assertEquals(150, response.getWatermark());
+    }
+
+    @Test
+    public void applyDeltaTest() throws IOException {
+        ResolvedGroupRegistry registry = new ResolvedGroupRegistry();
+        DiscoGroupSync sync = new DiscoGroupSync(registry);
+        assertEquals(0, sync.getWatermark());
+
+        StringBuilder full = new StringBuilder("{");
+        for (int i = 0; i < 1000; i++) {
+            full.append(i > 0 ? "," : "").append(group("uid-" + i, 100 + i % 10));
+        }
+        assertEquals(1000, sync.apply(parse(full.append("}").toString())));
+        assertEquals(109, sync.getWatermark());
+
+        ResolvedGroup unchanged = registry.getGroup(ResolvedGroup.Source.WEBRTC, "uid-1");
+        ResolvedGroup updated = registry.getGroup(ResolvedGroup.Source.WEBRTC, "uid-2");
+
+        // groups at the watermark are listed again and ignored
+        String delta = "{\"LastUpdated\":130,\"Groups\":{" + group("uid-9", 109) + ","
+                + group("uid-2", 125) + "," + group("uid-new", 130) + "},\"Removed\":[\"uid-3\",\"uid-gone\"]}";
+        assertEquals(3, sync.apply(parse(delta)));
+        assertEquals(130, sync.getWatermark());
+
+        assertEquals(1000, registry.getSnapshot().size());
+        assertSame(unchanged, registry.getGroup(ResolvedGroup.Source.WEBRTC, "uid-1"));
+        assertNotSame(updated, registry.getGroup(ResolvedGroup.Source.WEBRTC, "uid-2"));
+        assertFalse(registry.containsService(ResolvedGroup.Source.WEBRTC, "uid-3"));
+        assertTrue(registry.containsService(ResolvedGroup.Source.WEBRTC, "uid-new"));
+
+        // the same delta again changes nothing
+        assertEquals(0, sync.apply(parse(delta)));
+    }
+
+    @Test
+    public void periodicFullSyncTest() throws IOException {
+        ResolvedGroupRegistry registry = new ResolvedGroupRegistry();
+        DiscoGroupSync sync = new DiscoGroupSync(registry);
+        sync.apply(parse("{" + group("uid-1", 100) + "," + group("uid-2", 100) + "}"));
+
+        String empty = "{\"LastUpdated\":100,\"Groups\":{},\"Removed\":[]}";
+        for (int i = 0; i < DiscoGroupSync.FULL_SYNC_INTERVAL; i++) {
+            assertEquals(100, sync.getWatermark());
+            sync.apply(parse(empty));
+        }
+        assertEquals(0, sync.getWatermark());
+
+        // a removal the server did not report is picked up by the full list
+        assertEquals(1, sync.apply(parse("{" + group("uid-1", 100) + "}")));
+        assertEquals(1, registry.getSnapshot().size());
+        assertEquals(100, sync.getWatermark());
+    }
+
+    private static DiscoGroupsResponse parse(String json) throws IOException {
+        return DiscoGroupsResponse.parse(new StringReader(json));
+    }
+
+    private static String group(String uid, int lastUpdated) {
+        return "\"" + uid + "\":{\"ID\":\"" + uid + "\",\"Name\":\"group " + uid + "\",\"AppID\":\"app\","
+                + "\"PubKey\":\"key\",\"LastUpdated\":" + lastUpdated + ",\"LastBlockIndex\":0,"
+                + "\"Peers\":[{\"NetAddr\":\"" + uid + "\",\"PubKeyHex\":\"0X04\",\"Moniker\":\"m\"}],"
+                + "\"GenesisPeers\":[]}";
+    }
+}
@@ -0,0 +1,50 @@
+package io.mosaicnetworks.babble.servicediscovery.webrtc;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import io.mosaicnetworks.babble.node.Peer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DiscoGroupUpdateTest {
+
+    private static final Peer ALICE = new Peer("0X01", "relay:1", "alice");
+    private static final Peer BOB = new Peer("0X02", "relay:2", "bob");
+    private static final Peer CAROL = new Peer("0X03", "relay:3", "carol");
+
+    @Test
+    public void unchangedPeersTest() {
+        DiscoGroupUpdate update = DiscoGroupUpdate.diff(Arrays.asList(ALICE, BOB),
+                Arrays.asList(BOB, ALICE), 12);
+
+        assertFalse(update.hasPeerChanges());
+        assertEquals(12, update.LastBlockIndex);
+    }
+
+    @Test
+    public void joinAndLeaveTest() {
+        DiscoGroupUpdate update = DiscoGroupUpdate.diff(Arrays.asList(ALICE, BOB),
+                Arrays.asList(ALICE, CAROL), 3);
+
+        assertTrue(update.hasPeerChanges());
+        assertEquals(Collections.singletonList(CAROL), update.AddedPeers);
+        assertEquals(Collections.singletonList("0X02"), update.RemovedPeers);
+    }
+
+    @Test
+    public void movedPeerIsReplacedTest() {
+        Peer moved = new Peer("0X01", "relay:9", "alice");
+        DiscoGroupUpdate update = DiscoGroupUpdate.diff(Collections.singletonList(ALICE),
+                Collections.singletonList(moved), 3);
+
+        List<String> removed = update.RemovedPeers;
+        assertEquals(Collections.singletonList("0X01"), removed);
+        assertEquals(Collections.singletonList(moved), update.AddedPeers);
+    }
+}
@@ -0,0 +1,113 @@
+package io.mosaicnetworks.babble.servicediscovery.webrtc;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.mosaicnetworks.babble.node.Peer;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the streaming summary parser with decoding the full group map with Gson, on a
+ * synthetic listing of 10k groups of 8 peers each. The timings and retained heap are printed
+ * rather than asserted, as they depend on the machine and on when the garbage collector runs.
+ * The benchmark is ignored in the regular test run, remove the {@code @Ignore} to run it.
+ */
+public class DiscoGroupsParserBenchmarkTest {
+
+    private static final int GROUPS = 10000;
+    private static final int PEERS = 8;
+    private static final int ITERATIONS = 5;
+
+    @Test
+    public void summariesMatchFullDecodeTest() throws IOException {
+        String listing = listing(20);
+
+        Map<String, DiscoGroupSummary> summaries =
+                DiscoGroupsResponse.parse(new StringReader(listing)).getGroups();
+        Map<String, DiscoGroup> full = decodeFull(listing);
+
+        assertEquals(full.keySet(), summaries.keySet());
+        for (DiscoGroup group : full.values()) {
+            DiscoGroupSummary summary = summaries.get(group.GroupUID);
+            assertEquals(group.GroupUID, summary.getGroupUid());
+            assertEquals(group.GroupName, summary.getGroupName());
+            assertEquals(group.AppID, summary.getAppId());
+            assertEquals(group.LastUpdated, summary.getLastUpdated());
+        }
+    }
+
+    @Ignore("Benchmark, run on demand")
+    @Test
+    public void summaryParserVersusFullDecodeBenchmark() throws IOException {
+        String listing = listing(GROUPS);
+
+        // warm up both decoders
+        DiscoGroupsResponse.parse(new StringReader(listing));
+        decodeFull(listing);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertEquals(GROUPS, DiscoGroupsResponse.parse(new StringReader(listing)).getGroups().size());
+        }
+        long summaryNanos = (System.nanoTime() - start) / ITERATIONS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertEquals(GROUPS, decodeFull(listing).size());
+        }
+        long fullNanos = (System.nanoTime() - start) / ITERATIONS;
+
+        long baseline = usedMemory();
+        DiscoGroupsResponse summaries = DiscoGroupsResponse.parse(new StringReader(listing));
+        long summaryBytes = usedMemory() - baseline;
+
+        baseline = usedMemory();
+        Map<String, DiscoGroup> full = decodeFull(listing);
+        long fullBytes = usedMemory() - baseline;
+
+        System.out.printf("%d groups, %d KB listing: summaries %d ms / %d KB retained, full decode %d ms / %d KB retained%n",
+                GROUPS, listing.length() / 1024,
+                summaryNanos / 1000000, summaryBytes / 1024,
+                fullNanos / 1000000, fullBytes / 1024);
+
+        assertEquals(summaries.getGroups().size(), full.size());
+    }
+
+    private static Map<String, DiscoGroup> decodeFull(String listing) {
+        return new Gson().fromJson(listing, new TypeToken<Map<String, DiscoGroup>>(){}.getType());
+    }
+
+    private static String listing(int groupCount) {
+        Map<String, DiscoGroup> groups = new LinkedHashMap<>();
+        for (int g = 0; g < groupCount; g++) {
+            List<Peer> peers = new ArrayList<>();
+            for (int p = 0; p < PEERS; p++) {
+                peers.add(new Peer(String.format("0X04%0128x", g * PEERS + p),
+                        "relay.example.com:" + (2000 + p), "peer-" + p));
+            }
+            String uid = String.format("uid-%016d", g);
+            groups.put(uid, new DiscoGroup(uid, "group " + g, "io.mosaicnetworks.app",
+                    "0X04" + uid, 1580000000 + g, g, peers, peers));
+        }
+        return new Gson().toJson(groups);
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
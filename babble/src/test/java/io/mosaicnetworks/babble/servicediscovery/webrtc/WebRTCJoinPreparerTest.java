@@ -0,0 +1,179 @@
+package io.mosaicnetworks.babble.servicediscovery.webrtc;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.mosaicnetworks.babble.node.NodeConfig;
+import io.mosaicnetworks.babble.node.Peer;
+import io.mosaicnetworks.babble.servicediscovery.mdns.ResponseListener;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class WebRTCJoinPreparerTest {
+
+    private final List<StubFetch> mFetches = new ArrayList<>();
+    private long mNow = 0;
+    private WebRTCJoinPreparer mPreparer;
+
+    @Before
+    public void setUp() {
+        mPreparer = new WebRTCJoinPreparer("uid-1", new NodeConfig.Builder().build(),
+                new WebRTCJoinPreparer.GroupFetcher() {
+                    @Override
+                    public WebRTCJoinPreparer.Fetch fetch(String groupUid,
+                                                          DiscoGroupRequest.Listener listener) {
+                        StubFetch fetch = new StubFetch(listener);
+                        mFetches.add(fetch);
+                        return fetch;
+                    }
+                }, new WebRTCJoinPreparer.Clock() {
+                    @Override
+                    public long now() {
+                        return mNow;
+                    }
+                });
+    }
+
+    @Test
+    public void freshPrefetchIsReturnedTest() {
+        mPreparer.prepare();
+        DiscoGroup group = group();
+        mFetches.get(0).receive(group);
+
+        mNow += WebRTCJoinPreparer.GROUP_TTL_MS - 1;
+        RecordingListener listener = new RecordingListener();
+        mPreparer.getGroup(listener);
+
+        assertSame(group, listener.mGroup);
+        assertEquals(1, mFetches.size());
+    }
+
+    @Test
+    public void getGroupWaitsForFetchInFlightTest() {
+        mPreparer.prepare();
+        RecordingListener listener = new RecordingListener();
+        mPreparer.getGroup(listener);
+
+        assertEquals(1, mFetches.size());
+        assertNull(listener.mGroup);
+
+        DiscoGroup group = group();
+        mFetches.get(0).receive(group);
+        assertSame(group, listener.mGroup);
+    }
+
+    @Test
+    public void staleGroupIsFetchedAgainTest() {
+        mPreparer.prepare();
+        mFetches.get(0).receive(group());
+
+        mNow += WebRTCJoinPreparer.GROUP_TTL_MS;
+        RecordingListener listener = new RecordingListener();
+        mPreparer.getGroup(listener);
+
+        assertEquals(2, mFetches.size());
+        assertNull(listener.mGroup);
+
+        DiscoGroup group = group();
+        mFetches.get(1).receive(group);
+        assertSame(group, listener.mGroup);
+    }
+
+    @Test
+    public void failedPrefetchIsReportedOnlyToWaitingListenerTest() {
+        // nobody is waiting, the failure is dropped and the group is fetched again on request
+        mPreparer.prepare();
+        mFetches.get(0).fail(ResponseListener.Error.TIMEOUT);
+
+        RecordingListener listener = new RecordingListener();
+        mPreparer.getGroup(listener);
+        assertEquals(2, mFetches.size());
+        assertNull(listener.mError);
+
+        mFetches.get(1).fail(ResponseListener.Error.CONNECTION_ERROR);
+        assertEquals(ResponseListener.Error.CONNECTION_ERROR, listener.mError);
+        assertEquals(1, listener.mCalls);
+    }
+
+    @Test
+    public void cancelDropsWaitingListenerTest() {
+        RecordingListener listener = new RecordingListener();
+        mPreparer.getGroup(listener);
+        mPreparer.cancel();
+
+        assertTrue(mFetches.get(0).mCancelled);
+
+        // a later fetch is not reported to the dropped listener
+        mPreparer.prepare();
+        assertEquals(2, mFetches.size());
+        mFetches.get(1).receive(group());
+
+        assertEquals(0, listener.mCalls);
+    }
+
+    @Test
+    public void hostOfTest() {
+        assertEquals("disco.babble.io", WebRTCJoinPreparer.hostOf("disco.babble.io:2443"));
+        assertEquals("disco.babble.io", WebRTCJoinPreparer.hostOf("turn:disco.babble.io:3478"));
+        assertEquals("turn.example.com", WebRTCJoinPreparer.hostOf("TURNS:turn.example.com:5349?transport=tcp"));
+        assertEquals("2001:db8::1", WebRTCJoinPreparer.hostOf("stun:[2001:db8::1]:3478"));
+        assertEquals("relay", WebRTCJoinPreparer.hostOf("relay"));
+    }
+
+    private static DiscoGroup group() {
+        return new DiscoGroup("uid-1", "group", "app", "", 0, 0, new ArrayList<Peer>(),
+                new ArrayList<Peer>());
+    }
+
+    private static final class StubFetch implements WebRTCJoinPreparer.Fetch {
+
+        private final DiscoGroupRequest.Listener mListener;
+        boolean mCancelled = false;
+
+        StubFetch(DiscoGroupRequest.Listener listener) {
+            mListener = listener;
+        }
+
+        void receive(DiscoGroup group) {
+            if (!mCancelled) {
+                mListener.onReceiveGroup(group);
+            }
+        }
+
+        void fail(ResponseListener.Error error) {
+            if (!mCancelled) {
+                mListener.onFailure(error);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            mCancelled = true;
+        }
+    }
+
+    private static final class RecordingListener implements DiscoGroupRequest.Listener {
+
+        DiscoGroup mGroup;
+        ResponseListener.Error mError;
+        int mCalls = 0;
+
+        @Override
+        public void onReceiveGroup(DiscoGroup group) {
+            mGroup = group;
+            mCalls++;
+        }
+
+        @Override
+        public void onFailure(ResponseListener.Error error) {
+            mError = error;
+            mCalls++;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package io.mosaicnetworks.babble.utils;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ExponentialBackoffTest {
+
+    @Test
+    public void delaysGrowUpToTheMaximumTest() {
+        ExponentialBackoff backoff = new ExponentialBackoff(1000, 60000, new Random(42));
+
+        long ceiling = 1000;
+        for (int i = 0; i < 100; i++) {
+            long delay = backoff.nextDelay();
+            assertTrue(delay >= ceiling / 2);
+            assertTrue(delay <= ceiling);
+            ceiling = Math.min(60000, ceiling * 2);
+        }
+    }
+
+    @Test
+    public void delaysAreSpreadTest() {
+        ExponentialBackoff first = new ExponentialBackoff(1000, 60000, new Random(1));
+        ExponentialBackoff second = new ExponentialBackoff(1000, 60000, new Random(2));
+
+        int same = 0;
+        for (int i = 0; i < 10; i++) {
+            if (first.nextDelay() == second.nextDelay()) {
+                same++;
+            }
+        }
+        assertTrue(same < 3);
+    }
+
+    @Test
+    public void resetTest() {
+        ExponentialBackoff backoff = new ExponentialBackoff(1000, 60000, new Random(42));
+        for (int i = 0; i < 5; i++) {
+            backoff.nextDelay();
+        }
+        assertEquals(5, backoff.getAttempts());
+
+        backoff.reset();
+        assertEquals(0, backoff.getAttempts());
+        assertTrue(backoff.nextDelay() <= 1000);
+    }
+}